@@ -29,19 +29,28 @@ import net.daporkchop.lib.logging.LogAmount;
 import net.daporkchop.lib.logging.format.FormatParser;
 import net.daporkchop.tpposmtilegen.mode.AssembleGeometry;
 import net.daporkchop.tpposmtilegen.mode.AveragePointDensity;
+import net.daporkchop.tpposmtilegen.mode.Benchmark;
+import net.daporkchop.tpposmtilegen.mode.BuildPyramid;
 import net.daporkchop.tpposmtilegen.mode.Compact;
 import net.daporkchop.tpposmtilegen.mode.CreateSnapshot;
 import net.daporkchop.tpposmtilegen.mode.DigestCoastlines;
 import net.daporkchop.tpposmtilegen.mode.DigestPBF;
+import net.daporkchop.tpposmtilegen.mode.ExportSquashfs;
+import net.daporkchop.tpposmtilegen.mode.GeneratePBF;
 import net.daporkchop.tpposmtilegen.mode.IMode;
 import net.daporkchop.tpposmtilegen.mode.Purge;
 import net.daporkchop.tpposmtilegen.mode.RecomputeReferences;
 import net.daporkchop.tpposmtilegen.mode.Serve;
+import net.daporkchop.tpposmtilegen.mode.ServeSquashfs;
 import net.daporkchop.tpposmtilegen.mode.ServeWithUpdates;
 import net.daporkchop.tpposmtilegen.mode.Squash;
+import net.daporkchop.tpposmtilegen.mode.SquashIncremental;
 import net.daporkchop.tpposmtilegen.mode.Stats;
 import net.daporkchop.tpposmtilegen.mode.Test;
+import net.daporkchop.tpposmtilegen.mode.TrainDictionary;
 import net.daporkchop.tpposmtilegen.mode.Update;
+import net.daporkchop.tpposmtilegen.mode.VerifyPBF;
+import net.daporkchop.tpposmtilegen.mode.VerifySquashfs;
 
 import java.io.File;
 import java.time.Instant;
@@ -60,18 +69,27 @@ public final class Main implements Runnable {
     protected static final Map<String, IMode> MODES = Stream.of(
             new AssembleGeometry(),
             new AveragePointDensity(),
+            new Benchmark(),
+            new BuildPyramid(),
             new Compact(),
             new CreateSnapshot(),
             new DigestCoastlines(),
             new DigestPBF(),
+            new ExportSquashfs(),
+            new GeneratePBF(),
             new Purge(),
             new RecomputeReferences(),
             new Serve(),
+            new ServeSquashfs(),
             new ServeWithUpdates(),
             new Squash(),
+            new SquashIncremental(),
             new Stats(),
             new Test(),
-            new Update()
+            new TrainDictionary(),
+            new Update(),
+            new VerifyPBF(),
+            new VerifySquashfs()
     ).collect(Collectors.toMap(IMode::name, PFunctions.identity()));
 
     public static void main(String... args) {
@@ -0,0 +1,146 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.geometry;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Parses GeoJSON features emitted by {@link Geometry#toGeoJSON(StringBuilder, Geometry, Map, long)} back into {@link Geometry} instances.
+ * <p>
+ * Coordinates are parsed as exact decimals, so a geometry survives a round trip through GeoJSON without any loss of precision.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class GeoJSONParser {
+    private final JsonMapper MAPPER = JsonMapper.builder().enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS).build();
+
+    /**
+     * Parses a GeoJSON feature.
+     *
+     * @param json the encoded feature
+     * @return the parsed feature
+     */
+    public Feature parseFeature(@NonNull byte[] json) throws IOException {
+        JsonNode root = MAPPER.readTree(json);
+        checkArg("Feature".equals(root.path("type").asText()), "not a feature: %s", root.path("type"));
+
+        Map<String, String> tags = Collections.emptyMap();
+        JsonNode properties = root.get("properties");
+        if (properties != null) {
+            tags = new LinkedHashMap<>();
+            for (Iterator<Map.Entry<String, JsonNode>> itr = properties.fields(); itr.hasNext(); ) {
+                Map.Entry<String, JsonNode> entry = itr.next();
+                tags.put(entry.getKey(), entry.getValue().asText());
+            }
+        }
+
+        return new Feature(parseGeometry(root.get("geometry")), tags);
+    }
+
+    /**
+     * Parses a GeoJSON geometry object.
+     *
+     * @param node the geometry object
+     * @return the parsed geometry
+     */
+    public Geometry parseGeometry(@NonNull JsonNode node) {
+        JsonNode coordinates = node.get("coordinates");
+        checkArg(coordinates != null && coordinates.isArray(), "geometry has no coordinates");
+
+        String type = node.path("type").asText();
+        switch (type) {
+            case "Point":
+                return parsePoint(coordinates);
+            case "MultiPoint":
+                return new MultiPoint(parsePoints(coordinates));
+            case "LineString":
+                return new Line(parsePoints(coordinates));
+            case "Polygon":
+                return new Area(new Shape[]{ parseShape(coordinates) });
+            case "MultiPolygon": {
+                Shape[] shapes = new Shape[coordinates.size()];
+                for (int i = 0; i < shapes.length; i++) {
+                    shapes[i] = parseShape(coordinates.get(i));
+                }
+                return new Area(shapes);
+            }
+            default:
+                throw new IllegalArgumentException("unsupported geometry type: " + type);
+        }
+    }
+
+    private Point parsePoint(JsonNode coordinates) {
+        checkArg(coordinates.size() == 2, "point must have exactly 2 coordinates (found: %d)", coordinates.size());
+        return new Point(parseCoordinate(coordinates.get(0)), parseCoordinate(coordinates.get(1)));
+    }
+
+    private int parseCoordinate(JsonNode coordinate) {
+        checkArg(coordinate.isNumber(), "coordinate is not a number: %s", coordinate);
+        return coordinate.decimalValue().scaleByPowerOfTen(7).intValueExact(); //Point.PRECISION is 10^7
+    }
+
+    private Point[] parsePoints(JsonNode coordinates) {
+        Point[] points = new Point[coordinates.size()];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = parsePoint(coordinates.get(i));
+        }
+        return points;
+    }
+
+    private Shape parseShape(JsonNode coordinates) {
+        checkArg(coordinates.size() >= 1, "polygon must have an outer loop");
+        Point[][] innerLoops = new Point[coordinates.size() - 1][];
+        for (int i = 0; i < innerLoops.length; i++) {
+            innerLoops[i] = parsePoints(coordinates.get(i + 1));
+        }
+        return new Shape(parsePoints(coordinates.get(0)), innerLoops);
+    }
+
+    /**
+     * A GeoJSON feature, consisting of a geometry and its properties.
+     *
+     * @author DaPorkchop_
+     */
+    @AllArgsConstructor
+    @Getter
+    public static final class Feature {
+        @NonNull
+        protected final Geometry geometry;
+        @NonNull
+        protected final Map<String, String> tags;
+    }
+}
@@ -88,6 +88,24 @@ public interface Geometry extends Persistent {
         return buffer;
     }
 
+    /**
+     * Checks whether the given tile JSON data is a reference to an externally stored geometry, as created by {@link #createReference(int, long)}.
+     *
+     * @param json the JSON data. Its reader index will not be modified
+     */
+    static boolean isReference(@NonNull ByteBuf json) {
+        if (json.readableBytes() < _REFERENCE_PREFIX.length) {
+            return false;
+        }
+
+        for (int i = 0, readerIndex = json.readerIndex(); i < _REFERENCE_PREFIX.length; i++) {
+            if (json.getByte(readerIndex + i) != _REFERENCE_PREFIX[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     static ByteBuf toByteBuf(@NonNull CharSequence text) { //really should go in a separate util class but i don't want to make one
         ByteBuf buf = ByteBufAllocator.DEFAULT.directBuffer(text.length());
         buf.writeCharSequence(text, StandardCharsets.UTF_8);
@@ -24,6 +24,7 @@ import io.netty.buffer.ByteBuf;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongList;
 import it.unimi.dsi.fastutil.longs.LongLists;
+import lombok.Getter;
 import lombok.NonNull;
 import lombok.ToString;
 import net.daporkchop.tpposmtilegen.util.Bounds2d;
@@ -47,6 +48,7 @@ import static net.daporkchop.tpposmtilegen.util.Tile.*;
  *
  * @author DaPorkchop_
  */
+@Getter
 @ToString
 public final class Shape extends ComplexGeometry {
     private static Point[] loopFromBytes(ByteBuf src) {
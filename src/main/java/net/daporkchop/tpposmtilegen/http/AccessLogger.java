@@ -0,0 +1,156 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.http;
+
+import io.netty.handler.codec.http.HttpMethod;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import net.daporkchop.lib.logging.Logger;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Writes HTTP access log entries from a background thread, so that formatting and writing log lines doesn't happen on the event loop.
+ * <p>
+ * Entries are written in batches. If the queue is full, new entries are dropped rather than blocking the caller.
+ *
+ * @author DaPorkchop_
+ */
+final class AccessLogger implements AutoCloseable {
+    public static final double DEFAULT_SAMPLE_RATE = Double.parseDouble(System.getProperty("http.accessLogSampleRate", "1.0"));
+
+    private static final int QUEUE_CAPACITY = 1 << 16;
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    private final Logger logger;
+    private final double sampleRate;
+
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder dropped = new LongAdder();
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    public AccessLogger(@NonNull Logger logger, double sampleRate) {
+        checkArg(sampleRate >= 0.0d && sampleRate <= 1.0d, "sampleRate (%s) must be in range [0, 1]", sampleRate);
+        this.logger = logger;
+        this.sampleRate = sampleRate;
+
+        this.thread = new Thread(this::run, "HTTP access logger");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Adds an entry to the access log, if it is selected by sampling.
+     */
+    public void log(SocketAddress localAddress, SocketAddress remoteAddress, @NonNull HttpMethod method, @NonNull String uri, int status, long size, long durationNanos) {
+        if (this.sampleRate < 1.0d && ThreadLocalRandom.current().nextDouble() >= this.sampleRate) {
+            return;
+        }
+
+        if (!this.queue.offer(new Entry(localAddress, remoteAddress, method, uri, status, size, durationNanos))) {
+            this.dropped.increment();
+        }
+    }
+
+    /**
+     * @return the number of entries which were dropped because the queue was full
+     */
+    public long dropped() {
+        return this.dropped.sum();
+    }
+
+    private void run() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        StringBuilder builder = new StringBuilder();
+        try {
+            while (this.running || !this.queue.isEmpty()) {
+                Entry first = this.queue.poll(100L, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                this.queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                this.write(batch, builder);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            //exit
+        }
+
+        //write any remaining entries
+        this.queue.drainTo(batch);
+        if (!batch.isEmpty()) {
+            this.write(batch, builder);
+        }
+    }
+
+    private void write(List<Entry> batch, StringBuilder builder) {
+        builder.setLength(0);
+        for (Entry entry : batch) {
+            builder.append(entry.localAddress).append(' ').append(entry.remoteAddress)
+                    .append(" [").append(entry.method).append(' ').append(entry.uri).append("] ")
+                    .append(entry.status).append(' ');
+            if (entry.size >= 0L) {
+                builder.append(entry.size);
+            } else {
+                builder.append("chunked");
+            }
+            builder.append(' ').append(TimeUnit.NANOSECONDS.toMicros(entry.durationNanos)).append("us\n");
+        }
+        builder.setLength(builder.length() - 1); //trim trailing newline
+
+        this.logger.info(builder.toString());
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        this.running = false;
+        this.thread.join();
+
+        if (this.dropped() != 0L) {
+            this.logger.warn("dropped %d access log entries", this.dropped());
+        }
+    }
+
+    @AllArgsConstructor
+    private static final class Entry {
+        final SocketAddress localAddress;
+        final SocketAddress remoteAddress;
+        final HttpMethod method;
+        final String uri;
+        final int status;
+        final long size;
+        final long durationNanos;
+    }
+}
@@ -24,17 +24,22 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.ByteBufOutputStream;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpChunkedInput;
 import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.QueryStringDecoder;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import net.daporkchop.lib.common.util.PorkUtil;
@@ -43,6 +48,7 @@ import net.daporkchop.lib.logging.Logging;
 import net.daporkchop.tpposmtilegen.http.exception.HttpException;
 
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 
 import static net.daporkchop.lib.logging.Logging.*;
 
@@ -59,12 +65,20 @@ class HttpChannelHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) throws Exception {
+        long startTime = System.nanoTime();
+        this.server.metrics.requestStarted();
+
         Response tempResponse = new Response();
         try {
-            this.server.handler.handleRequest(request, tempResponse);
+            if (isMetricsPath(new QueryStringDecoder(request.uri()).path())) {
+                this.sendMetrics(tempResponse);
+            } else {
+                this.server.handler.handleRequest(request, tempResponse);
+            }
         } catch (HttpException e) {
             tempResponse.status(e.status())
                     .contentType(HttpHeaderValues.TEXT_PLAIN)
+                    .chunkedBody(null)
                     .body(PorkUtil.fallbackIfNull(e.body(), Unpooled.EMPTY_BUFFER).retain());
         } catch (Exception e) {
             ByteBuf body = ByteBufAllocator.DEFAULT.buffer();
@@ -73,18 +87,22 @@ class HttpChannelHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
             }
             tempResponse.contentType(HttpHeaderValues.TEXT_PLAIN)
                     .status(HttpResponseStatus.INTERNAL_SERVER_ERROR)
+                    .chunkedBody(null)
                     .body(body);
         }
 
-        logger.info("%s %s [%s %s] %d %d",
-                ctx.channel().localAddress(), ctx.channel().remoteAddress(),
-                request.method(), request.uri(),
-                tempResponse.status().code(), tempResponse.body().readableBytes());
+        if (tempResponse.chunkedBody() != null) {
+            this.sendChunked(ctx, request, tempResponse, startTime);
+            return;
+        }
+
+        int size = tempResponse.body().readableBytes();
+        this.requestFinished(ctx, request, tempResponse, size, startTime);
 
         HttpResponse response = new DefaultFullHttpResponse(request.protocolVersion(), tempResponse.status(), tempResponse.body());
 
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, tempResponse.contentType());
-        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, tempResponse.body().readableBytes());
+        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, size);
 
         boolean keepAlive = HttpUtil.isKeepAlive(request);
         if (keepAlive) {
@@ -95,6 +113,63 @@ class HttpChannelHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         }
     }
 
+    protected void sendChunked(ChannelHandlerContext ctx, FullHttpRequest request, Response tempResponse, long startTime) {
+        HttpResponse response = new DefaultHttpResponse(request.protocolVersion(), tempResponse.status());
+
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, tempResponse.contentType());
+        HttpUtil.setTransferEncodingChunked(response, true);
+
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        if (keepAlive) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        }
+
+        //the request's uri is needed after the request itself has been released
+        String uri = request.uri();
+        HttpMethod method = request.method();
+
+        //the chunked input will be pulled by the ChunkedWriteHandler whenever the channel becomes writable, so only a bounded amount of data is buffered at once
+        ctx.write(response, ctx.voidPromise());
+        ctx.writeAndFlush(new HttpChunkedInput(tempResponse.chunkedBody())).addListener((ChannelFutureListener) future -> {
+            //the request only counts as finished once the whole body has been sent
+            this.requestFinished(future.channel(), method, uri, tempResponse, -1L, startTime);
+
+            if (!keepAlive || !future.isSuccess()) {
+                future.channel().close();
+            }
+        });
+    }
+
+    /**
+     * @param path the request's decoded path, without the query string
+     */
+    protected static boolean isMetricsPath(@NonNull String path) {
+        return "/metrics".equals(path) || "/metrics/".equals(path);
+    }
+
+    protected void sendMetrics(Response tempResponse) {
+        StringBuilder builder = new StringBuilder();
+        this.server.metrics.appendPrometheus(builder);
+        this.server.handler.appendMetrics(builder);
+
+        tempResponse.status(HttpResponseStatus.OK)
+                .contentType("text/plain; version=0.0.4")
+                .route("metrics")
+                .body(Unpooled.wrappedBuffer(builder.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    protected void requestFinished(ChannelHandlerContext ctx, FullHttpRequest request, Response tempResponse, long size, long startTime) {
+        this.requestFinished(ctx.channel(), request.method(), request.uri(), tempResponse, size, startTime);
+    }
+
+    protected void requestFinished(Channel channel, HttpMethod method, String uri, Response tempResponse, long size, long startTime) {
+        long duration = System.nanoTime() - startTime;
+        int status = tempResponse.status().code();
+
+        this.server.metrics.requestFinished(tempResponse.route(), status, size, duration);
+        this.server.accessLogger.log(channel.localAddress(), channel.remoteAddress(), method, uri, status, size, duration);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         cause.printStackTrace();
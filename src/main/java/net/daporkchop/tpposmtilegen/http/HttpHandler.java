@@ -29,4 +29,10 @@ import net.daporkchop.tpposmtilegen.http.Response;
  */
 public interface HttpHandler {
     void handleRequest(@NonNull FullHttpRequest request, @NonNull Response response) throws Exception;
+
+    /**
+     * Appends any additional handler-specific metrics to the server's {@code /metrics} output, in the Prometheus text exposition format.
+     */
+    default void appendMetrics(@NonNull StringBuilder out) {
+    }
 }
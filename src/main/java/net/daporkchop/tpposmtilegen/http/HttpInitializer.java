@@ -25,6 +25,7 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.stream.ChunkedWriteHandler;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 
@@ -42,6 +43,7 @@ class HttpInitializer extends ChannelInitializer<Channel> {
                 .addLast(new HttpRequestDecoder())
                 .addLast(new HttpResponseEncoder())
                 .addLast(new HttpObjectAggregator(1024, true))
+                .addLast(new ChunkedWriteHandler())
                 .addLast(this.server.netHandler);
     }
 }
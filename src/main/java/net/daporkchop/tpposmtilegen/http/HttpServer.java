@@ -29,6 +29,7 @@ import io.netty.channel.epoll.EpollServerSocketChannel;
 import lombok.NonNull;
 import lombok.SneakyThrows;
 import net.daporkchop.lib.common.util.PorkUtil;
+import net.daporkchop.tpposmtilegen.http.metrics.HttpMetrics;
 
 import java.lang.reflect.InvocationTargetException;
 import java.net.InetSocketAddress;
@@ -42,6 +43,9 @@ public class HttpServer implements AutoCloseable {
     protected final HttpChannelHandler netHandler = new HttpChannelHandler(this);
     protected final HttpHandler handler;
 
+    protected final HttpMetrics metrics = new HttpMetrics();
+    protected final AccessLogger accessLogger = new AccessLogger(HttpChannelHandler.logger, AccessLogger.DEFAULT_SAMPLE_RATE);
+
     public HttpServer(@NonNull InetSocketAddress address, @NonNull HttpHandler handler) {
         this.handler = handler;
 
@@ -63,7 +67,9 @@ public class HttpServer implements AutoCloseable {
     }
 
     @Override
+    @SneakyThrows(InterruptedException.class)
     public void close() {
-        this.channel.close();
+        this.channel.close().awaitUninterruptibly();
+        this.accessLogger.close();
     }
 }
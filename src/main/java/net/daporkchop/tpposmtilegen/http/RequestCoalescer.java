@@ -0,0 +1,127 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.tpposmtilegen.http;
+
+import io.netty.buffer.ByteBuf;
+import lombok.NonNull;
+import net.daporkchop.lib.common.function.exception.ESupplier;
+import net.daporkchop.lib.unsafe.PUnsafe;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent requests for the same key into a single load.
+ * <p>
+ * The first request for a given key (the "leader") performs the actual load, while any requests for the same key which arrive before the leader has finished
+ * simply wait for the leader's result. Every participant receives its own duplicate of the same {@link ByteBuf}, which must be released by the caller as usual.
+ *
+ * @author DaPorkchop_
+ */
+public final class RequestCoalescer {
+    protected final Map<String, InFlight> inFlight = new HashMap<>();
+
+    protected final LongAdder requests = new LongAdder();
+    protected final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Gets the value for the given key, loading it if no other request for the same key is currently in progress.
+     *
+     * @param key    the key
+     * @param loader a function which loads the value. The returned buffer is owned by this coalescer
+     * @return a buffer containing the loaded value. The caller is responsible for releasing it
+     */
+    public ByteBuf load(@NonNull String key, @NonNull ESupplier<ByteBuf> loader) {
+        this.requests.increment();
+
+        InFlight entry;
+        boolean leader;
+        synchronized (this.inFlight) {
+            entry = this.inFlight.get(key);
+            if (entry != null) { //another request for the same key is already in progress, register ourself as a waiter
+                entry.waiters++;
+                leader = false;
+            } else {
+                this.inFlight.put(key, entry = new InFlight());
+                leader = true;
+            }
+        }
+
+        if (!leader) { //we're waiting for another request
+            this.coalesced.increment();
+
+            try {
+                //the leader has already retained the buffer once on our behalf, so we only need to take a duplicate of it
+                return entry.future.join().duplicate();
+            } catch (CompletionException e) {
+                throw PUnsafe.throwException(e.getCause());
+            }
+        }
+
+        ByteBuf result;
+        try {
+            result = loader.getThrowing();
+        } catch (Throwable t) {
+            synchronized (this.inFlight) {
+                this.inFlight.remove(key);
+            }
+            entry.future.completeExceptionally(t);
+            throw PUnsafe.throwException(t);
+        }
+
+        synchronized (this.inFlight) {
+            //no new waiters can register after the entry has been removed, so the waiter count is final
+            this.inFlight.remove(key);
+            if (entry.waiters != 0) {
+                result.retain(entry.waiters);
+            }
+        }
+        entry.future.complete(result);
+
+        //the original buffer's indices are never modified, so waiters which obtain their duplicate after we've already sent our response still see the full contents
+        return result.duplicate();
+    }
+
+    /**
+     * @return the total number of requests which have been made to this coalescer
+     */
+    public long requests() {
+        return this.requests.sum();
+    }
+
+    /**
+     * @return the number of requests which were satisfied by waiting for another in-flight request for the same key
+     */
+    public long coalesced() {
+        return this.coalesced.sum();
+    }
+
+    /**
+     * @author DaPorkchop_
+     */
+    protected static final class InFlight {
+        protected final CompletableFuture<ByteBuf> future = new CompletableFuture<>();
+        protected int waiters;
+    }
+}
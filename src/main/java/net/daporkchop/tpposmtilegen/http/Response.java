@@ -24,6 +24,7 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.stream.ChunkedInput;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.Setter;
@@ -42,4 +43,15 @@ public class Response {
     protected HttpResponseStatus status = HttpResponseStatus.OK;
     @NonNull
     protected ByteBuf body = Unpooled.EMPTY_BUFFER;
+
+    /**
+     * The name of the route which handled the request, used for grouping request metrics.
+     */
+    @NonNull
+    protected String route = "other";
+
+    /**
+     * If non-{@code null}, the response body will be streamed from this input using chunked transfer encoding, and {@link #body} will be ignored.
+     */
+    protected ChunkedInput<ByteBuf> chunkedBody;
 }
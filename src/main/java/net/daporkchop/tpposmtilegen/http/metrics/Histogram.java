@@ -0,0 +1,139 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.http.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * A lock-free histogram of non-negative {@code long} values with bounded relative error, in the style of HdrHistogram.
+ * <p>
+ * Values are grouped into power-of-two magnitudes, each of which is split into {@link #SUB_BUCKETS} linear sub-buckets. This gives a relative error of at
+ * most 12.5% for any recorded value while requiring only a small, fixed amount of memory.
+ *
+ * @author DaPorkchop_
+ */
+public final class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest value which is stored in the bucket with the given index
+     */
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index & (SUB_BUCKETS - 1);
+        return ((SUB_BUCKETS | subBucket) + 1L << (magnitude - SUB_BUCKET_BITS)) - 1L;
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Records a single value.
+     *
+     * @param value the value. Negative values are treated as {@code 0}
+     */
+    public void record(long value) {
+        value = Math.max(value, 0L);
+        this.counts.incrementAndGet(bucketIndex(value));
+        this.count.increment();
+        this.sum.add(value);
+    }
+
+    /**
+     * @return the total number of recorded values
+     */
+    public long count() {
+        return this.count.sum();
+    }
+
+    /**
+     * @return the sum of all recorded values
+     */
+    public long sum() {
+        return this.sum.sum();
+    }
+
+    /**
+     * Gets the number of recorded values which are less than or equal to the given value.
+     * <p>
+     * This is only exact if {@code value + 1} is a power of two (or {@code value} is less than {@link #SUB_BUCKETS}), otherwise the count may include some values
+     * which are slightly greater than {@code value}.
+     *
+     * @param value the value
+     * @return the number of recorded values which are less than or equal to the given value
+     */
+    public long countAtOrBelow(long value) {
+        long total = 0L;
+        for (int i = 0, last = bucketIndex(Math.max(value, 0L)); i <= last; i++) {
+            total += this.counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Gets an estimate of the value at the given quantile.
+     *
+     * @param quantile the quantile, in range {@code [0, 1]}
+     * @return the (upper bound of the) value at the given quantile, or {@code 0} if no values have been recorded
+     */
+    public long valueAtQuantile(double quantile) {
+        checkArg(quantile >= 0.0d && quantile <= 1.0d, "quantile (%s) must be in range [0, 1]", quantile);
+
+        long[] snapshot = new long[BUCKETS];
+        long total = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += snapshot[i] = this.counts.get(i);
+        }
+        if (total == 0L) {
+            return 0L;
+        }
+
+        long target = Math.max((long) Math.ceil(quantile * total), 1L);
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            if ((seen += snapshot[i]) >= target) {
+                return bucketUpperBound(i);
+            }
+        }
+        return bucketUpperBound(BUCKETS - 1);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.http.metrics;
+
+import lombok.NonNull;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects per-route request metrics for an HTTP server, and formats them in the Prometheus text exposition format.
+ *
+ * @author DaPorkchop_
+ */
+public final class HttpMetrics {
+    private static final String PREFIX = "tpposmtilegen_http_";
+
+    private static final double[] QUANTILES = { 0.5d, 0.9d, 0.99d, 0.999d };
+
+    private final ConcurrentMap<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+    private final LongAdder inFlight = new LongAdder();
+
+    /**
+     * Must be called when a request is received.
+     */
+    public void requestStarted() {
+        this.inFlight.increment();
+    }
+
+    /**
+     * Must be called exactly once for every call to {@link #requestStarted()}, once the response has been sent.
+     *
+     * @param route         the name of the route which the request was handled by
+     * @param status        the response status code
+     * @param responseSize  the size of the response body in bytes, or {@code -1} if unknown
+     * @param durationNanos the time taken to handle the request, in nanoseconds
+     */
+    public void requestFinished(@NonNull String route, int status, long responseSize, long durationNanos) {
+        this.inFlight.decrement();
+
+        RouteMetrics metrics = this.routes.computeIfAbsent(route, unused -> new RouteMetrics());
+        metrics.statusCodes.computeIfAbsent(status, unused -> new LongAdder()).increment();
+        metrics.latencyMicros.record(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+        if (responseSize >= 0L) {
+            metrics.responseSizes.record(responseSize);
+        }
+    }
+
+    /**
+     * Appends all metrics to the given {@link StringBuilder} in the Prometheus text exposition format.
+     */
+    public void appendPrometheus(@NonNull StringBuilder out) {
+        Map<String, RouteMetrics> routes = new TreeMap<>(this.routes);
+
+        out.append("# TYPE ").append(PREFIX).append("requests_in_flight gauge\n");
+        out.append(PREFIX).append("requests_in_flight ").append(this.inFlight.sum()).append('\n');
+
+        out.append("# TYPE ").append(PREFIX).append("responses_total counter\n");
+        routes.forEach((route, metrics) -> new TreeMap<>(metrics.statusCodes).forEach((status, count) ->
+                out.append(PREFIX).append("responses_total{route=\"").append(route).append("\",code=\"").append(status).append("\"} ").append(count.sum()).append('\n')));
+
+        out.append("# TYPE ").append(PREFIX).append("request_duration_seconds histogram\n");
+        routes.forEach((route, metrics) -> appendHistogram(out, PREFIX + "request_duration_seconds", route, metrics.latencyMicros, 1.0e-6d, 10, 26));
+
+        out.append("# TYPE ").append(PREFIX).append("request_duration_quantile_seconds gauge\n");
+        routes.forEach((route, metrics) -> {
+            for (double quantile : QUANTILES) {
+                out.append(PREFIX).append("request_duration_quantile_seconds{route=\"").append(route).append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(metrics.latencyMicros.valueAtQuantile(quantile) * 1.0e-6d).append('\n');
+            }
+        });
+
+        out.append("# TYPE ").append(PREFIX).append("response_size_bytes histogram\n");
+        routes.forEach((route, metrics) -> appendHistogram(out, PREFIX + "response_size_bytes", route, metrics.responseSizes, 1.0d, 6, 30));
+    }
+
+    private static void appendHistogram(StringBuilder out, String name, String route, Histogram histogram, double scale, int minShift, int maxShift) {
+        //buckets are emitted at power-of-two boundaries, which are exact in the underlying histogram
+        for (int shift = minShift; shift <= maxShift; shift++) {
+            long bound = (1L << shift) - 1L;
+            out.append(name).append("_bucket{route=\"").append(route).append("\",le=\"").append(bound * scale).append("\"} ")
+                    .append(histogram.countAtOrBelow(bound)).append('\n');
+        }
+        out.append(name).append("_bucket{route=\"").append(route).append("\",le=\"+Inf\"} ").append(histogram.count()).append('\n');
+        out.append(name).append("_sum{route=\"").append(route).append("\"} ").append(histogram.sum() * scale).append('\n');
+        out.append(name).append("_count{route=\"").append(route).append("\"} ").append(histogram.count()).append('\n');
+    }
+
+    /**
+     * @author DaPorkchop_
+     */
+    private static final class RouteMetrics {
+        final ConcurrentMap<Integer, LongAdder> statusCodes = new ConcurrentHashMap<>();
+        final Histogram latencyMicros = new Histogram();
+        final Histogram responseSizes = new Histogram();
+    }
+}
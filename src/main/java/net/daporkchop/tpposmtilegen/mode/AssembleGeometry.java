@@ -18,38 +18,88 @@
  *
  */
 
+
 package net.daporkchop.tpposmtilegen.mode;
 
 import lombok.NonNull;
 import net.daporkchop.lib.common.function.exception.EConsumer;
 import net.daporkchop.lib.common.function.exception.EFunction;
 import net.daporkchop.lib.common.misc.file.PFiles;
+import net.daporkchop.lib.common.pool.handle.Handle;
 import net.daporkchop.lib.primitive.lambda.LongObjConsumer;
+import net.daporkchop.lib.unsafe.PUnsafe;
 import net.daporkchop.tpposmtilegen.natives.AbstractUnsortedWriteAccess;
 import net.daporkchop.tpposmtilegen.natives.UInt64BlobUnsortedWriteAccess;
 import net.daporkchop.tpposmtilegen.natives.UInt64ToBlobMapUnsortedWriteAccess;
+import net.daporkchop.tpposmtilegen.osm.Coastline;
 import net.daporkchop.tpposmtilegen.osm.Element;
+import net.daporkchop.tpposmtilegen.osm.Node;
+import net.daporkchop.tpposmtilegen.osm.Relation;
+import net.daporkchop.tpposmtilegen.osm.Way;
+import net.daporkchop.tpposmtilegen.storage.SpatialWayOrder;
 import net.daporkchop.tpposmtilegen.storage.Storage;
+import net.daporkchop.tpposmtilegen.storage.map.RocksDBMap;
 import net.daporkchop.tpposmtilegen.storage.rocksdb.DatabaseConfig;
 import net.daporkchop.tpposmtilegen.storage.rocksdb.WrappedRocksDB;
 import net.daporkchop.tpposmtilegen.storage.rocksdb.WriteRedirectingAccess;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBIterator;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBReadAccess;
 import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBWriteAccess;
+import net.daporkchop.tpposmtilegen.storage.special.DBProperties;
 import net.daporkchop.tpposmtilegen.util.ProgressNotifier;
 import net.daporkchop.tpposmtilegen.util.TimedOperation;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.Options;
+import org.rocksdb.ReadOptions;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.SstFileReader;
+import org.rocksdb.SstFileReaderIterator;
+import org.rocksdb.SstFileWriter;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.lib.logging.Logging.*;
 
 /**
  * @author DaPorkchop_
  */
 public class AssembleGeometry implements IMode {
+    //ways are assembled in spatial order by default, as their points are read much more efficiently that way. setting this to false restores
+    //  the old behavior of assembling them in ID order, which doesn't need any additional memory.
+    private static final boolean SPATIAL_WAY_ORDER = Boolean.parseBoolean(System.getProperty("spatialWayOrder", "true"));
+
+    //the number of ID ranges each element type is split into, if there's enough data to split it that finely
+    private static final int PARTITIONS = Integer.parseUnsignedInt(System.getProperty("assembleGeometryPartitions", "16"));
+
+    private static final int TYPE_COUNT = Coastline.TYPE + 1;
+
+    private static RocksDBMap<? extends Element> source(@NonNull Storage storage, int type) {
+        switch (type) {
+            case Node.TYPE:
+                return storage.nodes();
+            case Way.TYPE:
+                return storage.ways();
+            case Relation.TYPE:
+                return storage.relations();
+            case Coastline.TYPE:
+                return storage.coastlines();
+            default:
+                throw new IllegalArgumentException("unknown element type: " + type);
+        }
+    }
+
     @Override
     public String name() {
         return "assemble_geometry";
@@ -57,78 +107,93 @@ public class AssembleGeometry implements IMode {
 
     @Override
     public String synopsis() {
-        return "<index_dir>";
+        return "<index_dir> [--resume | --rebuild=<type>[:<first>[-<last>]][,...]]";
     }
 
     @Override
     public String help() {
-        return "Assembles and indexes all geometry elements.";
+        return "Assembles and indexes all geometry elements.\n"
+               + "The elements of each type are split into ranges of IDs, which are assembled one at a time. Completed ranges are recorded in the index.\n"
+               + "  --resume: continues an interrupted run, skipping all ranges which have already been completed\n"
+               + "  --rebuild: re-assembles only the given element types (node, way, relation, coastline) on top of the existing geometry. the rebuild\n"
+               + "             may be limited to the ranges with the given indices, as computed by the last full run.";
     }
 
     @Override
     public void run(@NonNull String... args) throws Exception {
-        checkArg(args.length == 1, "Usage: assemble_geometry <index_dir>");
+        checkArg(args.length >= 1, "Usage: assemble_geometry <index_dir> [--resume | --rebuild=<type>[:<first>[-<last>]][,...]]");
         Path src = PFiles.assertDirectoryExists(Paths.get(args[0]));
 
-        try (Storage storage = new Storage(src, DatabaseConfig.RW_LITE_BULK_LOAD)) {
-            Purge.purge(storage, Purge.DataType.geometry);
+        boolean resume = false;
+        String rebuild = null;
+        for (int i = 1; i < args.length; i++) {
+            if ("--resume".equals(args[i])) {
+                resume = true;
+            } else if (args[i].startsWith("--rebuild=")) {
+                rebuild = args[i].substring("--rebuild=".length());
+            } else {
+                throw new IllegalArgumentException("unknown option: " + args[i]);
+            }
+        }
+        checkArg(!resume || rebuild == null, "--resume and --rebuild may not be used together");
+
+        if (rebuild != null) {
+            rebuild(src, rebuild);
+            return;
+        }
+
+        if (!resume) {
+            try (Storage storage = new Storage(src, DatabaseConfig.RW_LITE_BULK_LOAD)) {
+                Purge.purge(storage, Purge.DataType.geometry);
+                PFiles.rm(tileRunsRoot(storage));
+            }
         }
 
         try (Storage storage = new Storage(src, DatabaseConfig.RW_BULK_LOAD)) {
-            AbstractUnsortedWriteAccess[] externalJsonStorageAccesses = Stream.of(storage.externalJsonStorage())
-                    //.filter(i -> false)
-                    .map((EFunction<WrappedRocksDB, AbstractUnsortedWriteAccess>) externalJsonStorageLevel -> new UInt64BlobUnsortedWriteAccess(
-                            storage, storage.db().internalColumnFamily(externalJsonStorageLevel), 0.000440108682))
-                    .toArray(AbstractUnsortedWriteAccess[]::new);
-
-            AbstractUnsortedWriteAccess[] intersectedTilesAccesses = Stream.of(storage.intersectedTiles())
-                    //.filter(i -> false)
-                    .map((EFunction<WrappedRocksDB, AbstractUnsortedWriteAccess>) intersectedTilesLevel -> new UInt64BlobUnsortedWriteAccess(
-                            storage, storage.db().internalColumnFamily(intersectedTilesLevel), 0.206963215028d))
-                    .toArray(AbstractUnsortedWriteAccess[]::new);
-
-            AbstractUnsortedWriteAccess[] tileJsonStorageAccesses = Stream.of(storage.tileJsonStorage())
-                    .peek((EConsumer<WrappedRocksDB>) db -> storage.db().delegate().enableAutoCompaction(Collections.singletonList(storage.db().internalColumnFamily(db))))
-                    .filter(i -> false)
-                    .map((EFunction<WrappedRocksDB, AbstractUnsortedWriteAccess>) tileJsonStorageLevel -> new UInt64ToBlobMapUnsortedWriteAccess(
-                            storage, storage.db().internalColumnFamily(tileJsonStorageLevel), 5.754273128207d))
-                    .toArray(AbstractUnsortedWriteAccess[]::new);
-
-            try (WriteRedirectingAccess access = new WriteRedirectingAccess(
-                         storage.db().read(),
-                         WriteRedirectingAccess.indexWriteDelegates(
-                                 Stream.of(externalJsonStorageAccesses, intersectedTilesAccesses, tileJsonStorageAccesses)
-                                         .flatMap(Stream::of)
-                                         .flatMap(specificAccess -> Stream.of(specificAccess.columnFamilyHandle(), specificAccess))
-                                         .toArray()),
-                         storage.db().batch());
-                 ProgressNotifier notifier = new ProgressNotifier.Builder().prefix("Assemble Geometry")
-                         .slot("nodes", 0L).slot("ways", 0L).slot("relations", 0L).slot("coastlines", 0L)
-                         .build()) {
-                LongObjConsumer<Element> func = (id, element) -> {
-                    int type = element.type();
-                    notifier.incrementTotal(type);
-                    if (!element.visible()) {
-                        return;
+            PartitionPlan plan = new PartitionPlan(storage);
+            if (resume) {
+                checkState(plan.isPresent(), "there is no assemble_geometry run to resume!");
+            } else {
+                plan.create(PARTITIONS);
+            }
+
+            try (ProgressNotifier notifier = new ProgressNotifier.Builder().prefix("Assemble Geometry")
+                    .slot("nodes", 0L).slot("ways", 0L).slot("relations", 0L).slot("coastlines", 0L)
+                    .build()) {
+                for (int type = 0; type < TYPE_COUNT; type++) {
+                    long[] boundaries = plan.boundaries(type);
+                    for (int partition = 0; partition < boundaries.length; partition++) {
+                        if (plan.isComplete(type, partition)) {
+                            logger.info("skipping %s range %d/%d, it has already been assembled", Element.typeName(type), partition, boundaries.length);
+                            continue;
+                        }
+
+                        try (TimedOperation partitionOperation = new TimedOperation(
+                                "Assemble " + Element.typeName(type) + " range " + partition + '/' + boundaries.length)) {
+                            assembleRange(storage, type, partition, boundaries[partition], partition + 1 < boundaries.length ? boundaries[partition + 1] : -1L, notifier);
+                        }
+                        plan.complete(type, partition);
                     }
-                    notifier.step(type);
+                }
+            }
 
-                    try {
-                        storage.assembleElement(access, access, null, element);
-                    } catch (Exception e) {
-                        throw new RuntimeException(Element.typeName(type) + ' ' + id, e);
+            //combine every range's tiles into the final tile columns
+            for (int lvl = 0; lvl < storage.maxLevel(); lvl++) {
+                List<Path> rangeDirectories = new ArrayList<>();
+                for (int type = 0; type < TYPE_COUNT; type++) {
+                    for (int partition = 0, count = plan.boundaries(type).length; partition < count; partition++) {
+                        rangeDirectories.add(tileRunsDirectory(storage, lvl, type, partition));
                     }
-                };
+                }
 
-                storage.nodes().forEachParallel(storage.db().read(), func);
-                storage.ways().forEachParallel(storage.db().read(), func);
-                storage.relations().forEachParallel(storage.db().read(), func);
-                storage.coastlines().forEachParallel(storage.db().read(), func);
+                try (TimedOperation mergeOperation = new TimedOperation("Merge level " + lvl + " tiles from " + rangeDirectories.size() + " ranges")) {
+                    mergeTileRuns(storage, lvl, rangeDirectories);
+                }
             }
+            PFiles.rm(tileRunsRoot(storage));
 
-            Stream.of(externalJsonStorageAccesses, intersectedTilesAccesses, tileJsonStorageAccesses).flatMap(Stream::of).forEach((EConsumer<DBWriteAccess>) DBWriteAccess::close);
-
-            for (WrappedRocksDB column : Stream.of(storage.intersectedTiles(), storage.tileJsonStorage(), storage.externalJsonStorage())
+            //tiles are written out fully merged and ingested directly, so they don't need to be compacted afterwards
+            for (WrappedRocksDB column : Stream.of(storage.intersectedTiles(), storage.externalJsonStorage())
                     .flatMap(Stream::of).collect(Collectors.toList())) {
                 try (TimedOperation compactOperation = new TimedOperation(
                         new String(storage.db().internalColumnFamily(column).getName(), StandardCharsets.UTF_8) + " Compaction")) {
@@ -137,4 +202,407 @@ public class AssembleGeometry implements IMode {
             }
         }
     }
+
+    /**
+     * Assembles all elements of the given type in the given range of IDs, writing the results directly to SST files once the whole range is done.
+     * <p>
+     * The elements' intersected tiles and external geometry are ingested immediately, which will simply overwrite anything left behind by a previous
+     * attempt at assembling the same range. The tiles themselves are shared with other ranges, so they're written to the range's own directory (see
+     * {@link #tileRunsDirectory(Storage, int, int, int)}), replacing its previous contents, and only merged into the tile columns once all ranges are done.
+     */
+    private static void assembleRange(@NonNull Storage storage, int type, int partition, long fromInclusive, long toExclusive, @NonNull ProgressNotifier notifier) throws Exception {
+        AbstractUnsortedWriteAccess[] externalJsonStorageAccesses = Stream.of(storage.externalJsonStorage())
+                .map((EFunction<WrappedRocksDB, AbstractUnsortedWriteAccess>) externalJsonStorageLevel -> new UInt64BlobUnsortedWriteAccess(
+                        storage, storage.db().internalColumnFamily(externalJsonStorageLevel), 0.000440108682))
+                .toArray(AbstractUnsortedWriteAccess[]::new);
+
+        AbstractUnsortedWriteAccess[] intersectedTilesAccesses = Stream.of(storage.intersectedTiles())
+                .map((EFunction<WrappedRocksDB, AbstractUnsortedWriteAccess>) intersectedTilesLevel -> new UInt64BlobUnsortedWriteAccess(
+                        storage, storage.db().internalColumnFamily(intersectedTilesLevel), 0.206963215028d))
+                .toArray(AbstractUnsortedWriteAccess[]::new);
+
+        AbstractUnsortedWriteAccess[] tileJsonStorageAccesses = new AbstractUnsortedWriteAccess[storage.maxLevel()];
+        for (int lvl = 0; lvl < tileJsonStorageAccesses.length; lvl++) {
+            Path directory = tileRunsDirectory(storage, lvl, type, partition);
+            PFiles.rm(directory);
+            tileJsonStorageAccesses[lvl] = new UInt64ToBlobMapUnsortedWriteAccess(
+                    storage, storage.db().internalColumnFamily(storage.tileJsonStorage()[lvl]), 5.754273128207d, directory);
+        }
+
+        try (WriteRedirectingAccess access = new WriteRedirectingAccess(
+                storage.db().read(),
+                WriteRedirectingAccess.indexWriteDelegates(
+                        Stream.of(externalJsonStorageAccesses, intersectedTilesAccesses, tileJsonStorageAccesses)
+                                .flatMap(Stream::of)
+                                .flatMap(specificAccess -> Stream.of(specificAccess.columnFamilyHandle(), specificAccess))
+                                .toArray()),
+                storage.db().batch())) {
+            forEachInRange(storage, type, fromInclusive, toExclusive, (id, element) -> {
+                notifier.incrementTotal(type);
+                if (!element.visible()) {
+                    return;
+                }
+                notifier.step(type);
+
+                try {
+                    storage.assembleElement(access, access, null, element);
+                } catch (Exception e) {
+                    throw new RuntimeException(Element.typeName(type) + ' ' + id, e);
+                }
+            });
+        }
+
+        Stream.of(externalJsonStorageAccesses, intersectedTilesAccesses, tileJsonStorageAccesses).flatMap(Stream::of).forEach((EConsumer<DBWriteAccess>) DBWriteAccess::close);
+        storage.db().flush();
+    }
+
+    /**
+     * Re-assembles the given elements on top of the existing geometry, replacing whatever was previously stored for them.
+     *
+     * @param spec a comma-separated list of element types, each optionally followed by the index of a range or an inclusive range of range indices
+     */
+    private static void rebuild(@NonNull Path src, @NonNull String spec) throws Exception {
+        try (Storage storage = new Storage(src, DatabaseConfig.RW_GENERAL)) {
+            PartitionPlan plan = new PartitionPlan(storage);
+            DBReadAccess readAccess = storage.db().read();
+            DBWriteAccess writeAccess = storage.db().batch();
+
+            try (ProgressNotifier notifier = new ProgressNotifier.Builder().prefix("Rebuild Geometry")
+                    .slot("nodes", 0L).slot("ways", 0L).slot("relations", 0L).slot("coastlines", 0L)
+                    .build()) {
+                for (String target : spec.split(",")) {
+                    int separator = target.indexOf(':');
+                    String typeName = separator < 0 ? target : target.substring(0, separator);
+                    int type = Element.typeNames().indexOf(typeName);
+                    checkArg(type >= 0, "unknown element type '%s', must be one of %s", typeName, Element.typeNames());
+
+                    long fromInclusive = 0L;
+                    long toExclusive = -1L;
+                    if (separator >= 0) {
+                        String range = target.substring(separator + 1);
+                        int dash = range.indexOf('-');
+                        int first = Integer.parseUnsignedInt(dash < 0 ? range : range.substring(0, dash));
+                        int last = dash < 0 ? first : Integer.parseUnsignedInt(range.substring(dash + 1));
+
+                        long[] boundaries = plan.boundaries(type);
+                        checkArg(first <= last && last < boundaries.length, "invalid %s range %s, there are %d ranges", typeName, range, boundaries.length);
+                        fromInclusive = boundaries[first];
+                        toExclusive = last + 1 < boundaries.length ? boundaries[last + 1] : -1L;
+                    }
+
+                    try (TimedOperation rebuildOperation = new TimedOperation("Rebuild " + target)) {
+                        forEachInRange(storage, type, fromInclusive, toExclusive, (id, element) -> {
+                            notifier.incrementTotal(type);
+                            notifier.step(type);
+
+                            try {
+                                if (element.visible()) {
+                                    //the element is passed as its own previous version, so that any geometry which it no longer has gets removed
+                                    storage.assembleElement(readAccess, writeAccess, element, element);
+                                } else { //the element has been deleted, remove any geometry which may have been left behind for it
+                                    storage.unassembleElement(readAccess, writeAccess, Element.addTypeToId(type, id));
+                                }
+                            } catch (Exception e) {
+                                throw new RuntimeException(Element.typeName(type) + ' ' + id, e);
+                            }
+                        });
+                        storage.db().flush();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the directory which the tiles written by each range are stored in until they're merged
+     */
+    private static Path tileRunsRoot(@NonNull Storage storage) {
+        return storage.root().resolve("assemble_geometry_tiles");
+    }
+
+    /**
+     * @return the directory which the tiles at the given level written by the given range are stored in until they're merged
+     */
+    private static Path tileRunsDirectory(@NonNull Storage storage, int level, int type, int partition) {
+        return tileRunsRoot(storage).resolve(String.valueOf(level)).resolve(Element.typeName(type) + '.' + partition);
+    }
+
+    /**
+     * Merges the tiles written by every range into one sequence of non-overlapping SST files, and ingests them into the tile column at the given level.
+     * <p>
+     * Each range's tiles already have complete values for that range, in SST files whose key ranges don't overlap. Since the ranges are given in order of
+     * ascending combined ID, all entries in one range's value for a tile come after those in every previous range's value for the same tile, so the merged
+     * value is simply the concatenation of each range's value.
+     *
+     * @param rangeDirectories the directories containing each range's SST files, in the order the ranges were assembled in. Missing directories are
+     *                         treated as empty
+     */
+    private static void mergeTileRuns(@NonNull Storage storage, int level, @NonNull List<Path> rangeDirectories) throws Exception {
+        ColumnFamilyHandle column = storage.db().internalColumnFamily(storage.tileJsonStorage()[level]);
+        List<Handle<Path>> outputs = new ArrayList<>();
+        try (Options options = new Options(storage.db().config().dbOptions(), storage.db().columns().get(column).getOptions());
+             ReadOptions readOptions = new ReadOptions().setFillCache(false)) {
+            PriorityQueue<RangeCursor> queue = new PriorityQueue<>();
+            try {
+                for (int i = 0; i < rangeDirectories.size(); i++) {
+                    Path directory = rangeDirectories.get(i);
+                    if (Files.isDirectory(directory)) {
+                        List<Path> files;
+                        try (Stream<Path> stream = Files.list(directory)) {
+                            files = stream.sorted().collect(Collectors.toList());
+                        }
+
+                        RangeCursor cursor = new RangeCursor(options, readOptions, files.iterator(), i);
+                        if (cursor.advance()) {
+                            queue.add(cursor);
+                        } else {
+                            cursor.close();
+                        }
+                    }
+                }
+
+                SstFileWriter writer = null;
+                try {
+                    ByteArrayOutputStream value = new ByteArrayOutputStream();
+                    while (!queue.isEmpty()) {
+                        RangeCursor cursor = queue.poll();
+                        byte[] key = cursor.iterator.key();
+                        long tilePos = cursor.key;
+
+                        value.reset();
+                        while (true) {
+                            value.write(cursor.iterator.value());
+                            if (cursor.advance()) {
+                                queue.add(cursor);
+                            } else {
+                                cursor.close();
+                            }
+
+                            if (queue.isEmpty() || queue.peek().key != tilePos) {
+                                break;
+                            }
+                            cursor = queue.poll();
+                        }
+
+                        if (writer == null) {
+                            Handle<Path> output = storage.getTmpFilePath(new String(column.getName(), StandardCharsets.UTF_8), "sst");
+                            outputs.add(output);
+                            writer = new SstFileWriter(storage.db().config().envOptions(), options);
+                            writer.open(output.get().toString());
+                        }
+                        writer.put(key, value.toByteArray());
+
+                        if (writer.fileSize() >= options.targetFileSizeBase()) {
+                            writer.finish();
+                            writer.close();
+                            writer = null;
+                        }
+                    }
+
+                    if (writer != null) {
+                        writer.finish();
+                    }
+                } finally {
+                    if (writer != null) {
+                        writer.close();
+                    }
+                }
+            } finally {
+                queue.forEach(RangeCursor::close);
+            }
+        }
+
+        if (!outputs.isEmpty()) {
+            storage.db().delegate().ingestExternalFile(column,
+                    outputs.stream().map(Handle::get).map(Path::toString).collect(Collectors.toList()),
+                    storage.db().config().ingestOptions(DatabaseConfig.IngestType.MOVE));
+        }
+        outputs.forEach(Handle::release);
+    }
+
+    private static void forEachInRange(@NonNull Storage storage, int type, long fromInclusive, long toExclusive, @NonNull LongObjConsumer<Element> callback) throws Exception {
+        DBReadAccess access = storage.db().read();
+        if (type == Way.TYPE && SPATIAL_WAY_ORDER) {
+            SpatialWayOrder.forEachParallel(storage, access, fromInclusive, toExclusive, callback);
+        } else if (fromInclusive == 0L && toExclusive < 0L) { //the whole column can be iterated over much more efficiently
+            source(storage, type).forEachParallel(access, callback);
+        } else {
+            source(storage, type).forEachParallel(access, fromInclusive, toExclusive, callback);
+        }
+    }
+
+    /**
+     * The ranges of element IDs which assembly is split into, and which of them have already been assembled.
+     * <p>
+     * This is persisted in the index, so that an interrupted run can be resumed and so that individual ranges can still be referred to afterwards.
+     *
+     * @author DaPorkchop_
+     */
+    private static final class PartitionPlan {
+        private final Storage storage;
+
+        //the first ID in each range, separated by commas
+        private final DBProperties.StringProperty[] boundariesProperties = new DBProperties.StringProperty[TYPE_COUNT];
+
+        public PartitionPlan(@NonNull Storage storage) throws Exception {
+            this.storage = storage;
+
+            for (int type = 0; type < TYPE_COUNT; type++) {
+                this.boundariesProperties[type] = storage.properties().getStringProperty("assembleGeometry.partitions." + Element.typeName(type));
+            }
+        }
+
+        public boolean isPresent() throws Exception {
+            for (DBProperties.StringProperty property : this.boundariesProperties) {
+                if (!property.isPresent(this.storage.db().read())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public long[] boundaries(int type) throws Exception {
+            String value = this.boundariesProperties[type].get(this.storage.db().read())
+                    .orElseThrow(() -> new IllegalStateException("no ID ranges have been computed for " + Element.typeName(type) + "s, run a full assemble_geometry first!"));
+            return Stream.of(value.split(",")).mapToLong(Long::parseLong).toArray();
+        }
+
+        private DBProperties.LongProperty completeProperty(int type, int partition) throws Exception {
+            return this.storage.properties().getLongProperty("assembleGeometry.complete." + Element.typeName(type) + '.' + partition);
+        }
+
+        public boolean isComplete(int type, int partition) throws Exception {
+            return this.completeProperty(type, partition).isPresent(this.storage.db().read());
+        }
+
+        public void complete(int type, int partition) throws Exception {
+            try (DBWriteAccess batch = this.storage.db().beginLocalBatch(DatabaseConfig.WriteType.SYNC)) {
+                this.completeProperty(type, partition).set(batch, System.currentTimeMillis());
+            }
+        }
+
+        /**
+         * Splits each element type into the given number of ranges, replacing any previous plan.
+         */
+        public void create(int partitions) throws Exception {
+            positive(partitions, "partitions");
+
+            //compute all the boundaries first, so that the old plan stays intact if anything goes wrong
+            String[] values = new String[TYPE_COUNT];
+            for (int type = 0; type < TYPE_COUNT; type++) {
+                long[] boundaries = this.computeBoundaries(source(this.storage, type), partitions);
+                values[type] = LongStream.of(boundaries).mapToObj(String::valueOf).collect(Collectors.joining(","));
+                logger.info("split %ss into %d ranges", Element.typeName(type), boundaries.length);
+            }
+
+            try (DBWriteAccess batch = this.storage.db().beginLocalBatch(DatabaseConfig.WriteType.SYNC)) {
+                for (int type = 0; type < TYPE_COUNT; type++) {
+                    if (this.boundariesProperties[type].isPresent(this.storage.db().read())) {
+                        for (int partition = 0, count = this.boundaries(type).length; partition < count; partition++) {
+                            this.completeProperty(type, partition).remove(batch);
+                        }
+                    }
+                    this.boundariesProperties[type].set(batch, values[type]);
+                }
+            }
+        }
+
+        private long[] computeBoundaries(@NonNull RocksDBMap<?> map, int partitions) throws Exception {
+            try (DBIterator itr = this.storage.db().read().iterator(this.storage.db().internalColumnFamily(map))) {
+                itr.seekToFirst();
+                if (!itr.isValid()) { //the column is empty, there's nothing to split
+                    return new long[]{ 0L };
+                }
+            }
+
+            try (RocksDBMap.KeySpliterator root = map.keySpliterator()) {
+                List<RocksDBMap.KeySpliterator> spliterators = new ArrayList<>();
+                spliterators.add(root);
+                for (boolean split = true; split && spliterators.size() < partitions; ) {
+                    split = false;
+                    for (int i = 0, size = spliterators.size(); i < size && spliterators.size() < partitions; i++) {
+                        RocksDBMap.KeySpliterator child = spliterators.get(i).trySplit();
+                        if (child != null) {
+                            spliterators.add(child);
+                            split = true;
+                        }
+                    }
+                }
+
+                //the first range always starts at 0, the last one has no upper bound
+                return LongStream.concat(LongStream.of(0L), spliterators.stream().mapToLong(RocksDBMap.KeySpliterator::smallestKeyInclusive))
+                        .sorted().distinct().toArray();
+            }
+        }
+    }
+
+    /**
+     * Iterates over the contents of all of a single range's SST files for a level, in key order.
+     *
+     * @author DaPorkchop_
+     */
+    private static final class RangeCursor implements Comparable<RangeCursor>, AutoCloseable {
+        private final Options options;
+        private final ReadOptions readOptions;
+        private final Iterator<Path> files;
+        private final int index;
+
+        private SstFileReader reader;
+        private SstFileReaderIterator iterator;
+        private long key;
+
+        public RangeCursor(@NonNull Options options, @NonNull ReadOptions readOptions, @NonNull Iterator<Path> files, int index) {
+            this.options = options;
+            this.readOptions = readOptions;
+            this.files = files;
+            this.index = index;
+        }
+
+        /**
+         * Advances to the next key, opening the next file if the current one has been exhausted.
+         *
+         * @return {@code false} if there are no keys left
+         */
+        public boolean advance() throws RocksDBException {
+            if (this.iterator != null) {
+                this.iterator.next();
+            }
+
+            while (this.iterator == null || !this.iterator.isValid()) {
+                if (this.iterator != null) {
+                    this.iterator.status();
+                    this.close();
+                }
+                if (!this.files.hasNext()) {
+                    return false;
+                }
+
+                this.reader = new SstFileReader(this.options);
+                this.reader.open(this.files.next().toString());
+                this.iterator = this.reader.newIterator(this.readOptions);
+                this.iterator.seekToFirst();
+            }
+
+            byte[] key = this.iterator.key();
+            checkState(key.length == 8, key.length);
+            this.key = PUnsafe.getUnalignedLongBE(key, PUnsafe.arrayByteElementOffset(0));
+            return true;
+        }
+
+        @Override
+        public int compareTo(RangeCursor o) {
+            int d = Long.compareUnsigned(this.key, o.key);
+            return d != 0 ? d : Integer.compare(this.index, o.index);
+        }
+
+        @Override
+        public void close() {
+            if (this.iterator != null) {
+                this.iterator.close();
+                this.reader.close();
+                this.iterator = null;
+                this.reader = null;
+            }
+        }
+    }
 }
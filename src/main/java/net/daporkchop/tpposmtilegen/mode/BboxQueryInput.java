@@ -0,0 +1,203 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.tpposmtilegen.mode;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongList;
+import lombok.NonNull;
+import net.daporkchop.tpposmtilegen.geometry.Geometry;
+import net.daporkchop.tpposmtilegen.osm.Element;
+import net.daporkchop.tpposmtilegen.storage.Storage;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBReadAccess;
+import net.daporkchop.tpposmtilegen.util.Bounds2d;
+import net.daporkchop.tpposmtilegen.util.Tile;
+
+import java.util.List;
+import java.util.PrimitiveIterator;
+
+import static net.daporkchop.lib.logging.Logging.*;
+
+/**
+ * Streams all features intersecting a bounding box as a GeoJSON {@code FeatureCollection}.
+ * <p>
+ * Tiles are read in batches in the order in which they are stored in the database (i.e. in Morton order), using a single batched read per batch, and
+ * references to externally stored geometry are resolved inline.
+ * <p>
+ * Elements which intersect multiple tiles are deduplicated using a set of recently sent element IDs. The set is bounded: once it's full, the least recently
+ * seen ID is evicted. Since tiles are visited in Morton order, the tiles intersected by an element are generally visited close together, so an element will
+ * only be sent more than once if more than {@link #MAX_SEEN_IDS} other elements are encountered between two of its tiles. This keeps memory usage bounded
+ * regardless of the size of the bounding box, without having to look up any per-element data.
+ *
+ * @author DaPorkchop_
+ */
+final class BboxQueryInput implements ChunkedInput<ByteBuf> {
+    private static final int TILES_PER_BATCH = 64;
+    private static final int TARGET_CHUNK_SIZE = 1 << 16;
+    private static final int MAX_SEEN_IDS = 1 << 20;
+
+    private final Storage storage;
+    private final DBReadAccess access;
+    private final int level;
+
+    private final PrimitiveIterator.OfLong tilePositions;
+    private final LongList batch = new LongArrayList(TILES_PER_BATCH);
+    private final LongList references = new LongArrayList();
+    private final LongLinkedOpenHashSet seenIds = new LongLinkedOpenHashSet();
+
+    private boolean started = false;
+    private boolean anyFeatures = false;
+    private boolean ended = false;
+    private long progress = 0L;
+
+    public BboxQueryInput(@NonNull Storage storage, @NonNull DBReadAccess access, int level, @NonNull Bounds2d tileBounds) {
+        this.storage = storage;
+        this.access = access;
+        this.level = level;
+
+        this.tilePositions = Tile.tilePositionsInBounds(tileBounds);
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return this.ended;
+    }
+
+    @Override
+    public void close() {
+        this.ended = true;
+    }
+
+    @Override
+    @Deprecated
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        return this.readChunk(ctx.alloc());
+    }
+
+    @Override
+    public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+        if (this.ended) {
+            return null;
+        }
+
+        ByteBuf chunk = allocator.ioBuffer(TARGET_CHUNK_SIZE);
+        try {
+            if (!this.started) {
+                this.started = true;
+                chunk.writeBytes(Geometry._FEATURECOLLECTION_PREFIX);
+            }
+
+            while (chunk.readableBytes() < TARGET_CHUNK_SIZE && this.tilePositions.hasNext()) {
+                this.readBatch(chunk);
+            }
+
+            if (!this.tilePositions.hasNext()) {
+                this.ended = true;
+                chunk.writeBytes(Geometry._FEATURECOLLECTION_SUFFIX);
+            }
+            return chunk;
+        } catch (Throwable t) {
+            chunk.release();
+            throw t;
+        }
+    }
+
+    private void readBatch(ByteBuf chunk) throws Exception {
+        this.batch.clear();
+        while (this.batch.size() < TILES_PER_BATCH && this.tilePositions.hasNext()) {
+            this.batch.add(this.tilePositions.nextLong());
+        }
+
+        this.references.clear();
+        this.storage.tileJsonStorage()[this.level].getElementsInTiles(this.access, this.batch, (tilePos, combinedId, json) -> {
+            if (!this.markSeen(combinedId)) { //the element was already sent from another tile
+                return;
+            }
+
+            if (Geometry.isReference(json)) { //the element's geometry is stored externally, resolve it once the whole batch has been read
+                this.references.add(combinedId);
+            } else {
+                this.appendFeature(chunk, json);
+            }
+        });
+
+        if (!this.references.isEmpty()) {
+            List<byte[]> externalJson = this.storage.externalJsonCache().getAll(this.access, this.level, this.references);
+            for (int i = 0; i < externalJson.size(); i++) {
+                byte[] json = externalJson.get(i);
+                if (json != null) {
+                    this.appendFeature(chunk, Unpooled.wrappedBuffer(json));
+                } else {
+                    long combinedId = this.references.getLong(i);
+                    logger.warn("missing external json for %s %d at level %d", Element.typeName(Element.extractType(combinedId)), Element.extractId(combinedId), this.level);
+                }
+            }
+        }
+
+        this.progress += this.batch.size();
+    }
+
+    /**
+     * Marks the given element as having been sent.
+     *
+     * @return whether the element hadn't been sent yet (or at least not recently enough to still be remembered)
+     */
+    private boolean markSeen(long combinedId) {
+        if (!this.seenIds.addAndMoveToLast(combinedId)) { //already present, it's now the most recently seen one
+            return false;
+        }
+        if (this.seenIds.size() > MAX_SEEN_IDS) {
+            this.seenIds.removeFirstLong();
+        }
+        return true;
+    }
+
+    private void appendFeature(ByteBuf chunk, ByteBuf json) {
+        int length = json.readableBytes();
+        while (length > 0 && json.getByte(json.readerIndex() + length - 1) == '\n') { //trim trailing newlines
+            length--;
+        }
+        if (length == 0) {
+            return;
+        }
+
+        if (this.anyFeatures) {
+            chunk.writeByte(',');
+        }
+        this.anyFeatures = true;
+        chunk.writeBytes(json, json.readerIndex(), length);
+    }
+
+    @Override
+    public long length() {
+        return -1L;
+    }
+
+    @Override
+    public long progress() {
+        return this.progress;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.mode;
+
+import io.netty.buffer.ByteBuf;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import net.daporkchop.lib.common.misc.file.PFiles;
+import net.daporkchop.lib.common.util.PorkUtil;
+import net.daporkchop.lib.unsafe.PUnsafe;
+import net.daporkchop.tpposmtilegen.pbf.SyntheticPbfGenerator;
+import net.daporkchop.tpposmtilegen.storage.Storage;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.DatabaseConfig;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBReadAccess;
+import net.daporkchop.tpposmtilegen.util.Bounds2d;
+import net.daporkchop.tpposmtilegen.util.Tile;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.lib.logging.Logging.*;
+import static net.daporkchop.tpposmtilegen.util.Utils.*;
+
+/**
+ * Runs the whole pipeline on synthetic data, and reports how long each stage took.
+ * <p>
+ * Peak RSS is read from {@code /proc/self/status}, and reset between stages using {@code /proc/self/clear_refs}. On systems where these aren't available, it
+ * isn't reported.
+ *
+ * @author DaPorkchop_
+ */
+public class Benchmark implements IMode {
+    private static final Path PROC_STATUS = Paths.get("/proc/self/status");
+    private static final Path PROC_CLEAR_REFS = Paths.get("/proc/self/clear_refs");
+
+    @Override
+    public String name() {
+        return "benchmark";
+    }
+
+    @Override
+    public String synopsis() {
+        return "<work_dir> <nodes> <ways> <relations>";
+    }
+
+    @Override
+    public String help() {
+        return "Generates synthetic OSM data, then builds an index from it and reads every tile back, reporting the throughput and peak RSS of each stage.\n"
+               + "The working directory must be empty, and will contain the generated PBF file and index afterwards.";
+    }
+
+    @Override
+    public void run(@NonNull String... args) throws Exception {
+        checkArg(args.length == 4, "Usage: benchmark <work_dir> <nodes> <ways> <relations>");
+        Path workDir = Paths.get(args[0]);
+        if (PFiles.checkDirectoryExists(workDir)) {
+            try (Stream<Path> stream = Files.list(workDir)) {
+                checkArg(!stream.findAny().isPresent(), "'%s' isn't empty!", workDir);
+            }
+        }
+        PFiles.ensureDirectoryExists(workDir);
+        Path pbf = workDir.resolve("synthetic.osm.pbf");
+        Path index = workDir.resolve("index");
+
+        SyntheticPbfGenerator generator = SyntheticPbfGenerator.builder()
+                .nodes(Long.parseUnsignedLong(args[1]))
+                .ways(Long.parseUnsignedLong(args[2]))
+                .relations(Long.parseUnsignedLong(args[3]))
+                .build();
+        long elements = generator.nodes() + generator.ways() + generator.relations();
+
+        List<Result> results = new ArrayList<>();
+
+        resetPeakRss();
+        long startTime = System.nanoTime();
+        long versions = generator.generate(pbf, PorkUtil.CPU_COUNT);
+        results.add(new Result("generate_pbf", System.nanoTime() - startTime, versions, "elements", Files.size(pbf), peakRss()));
+
+        resetPeakRss();
+        startTime = System.nanoTime();
+        new DigestPBF().run(pbf.toString(), index.toString());
+        results.add(new Result("digest_pbf", System.nanoTime() - startTime, versions, "elements", Files.size(pbf), peakRss()));
+
+        resetPeakRss();
+        startTime = System.nanoTime();
+        new AssembleGeometry().run(index.toString());
+        results.add(new Result("assemble_geometry", System.nanoTime() - startTime, elements, "elements", -1L, peakRss()));
+
+        resetPeakRss();
+        startTime = System.nanoTime();
+        LongAdder tiles = new LongAdder();
+        LongAdder tileBytes = new LongAdder();
+        readAllTiles(index, generator.bounds(), tiles, tileBytes);
+        results.add(new Result("serve", System.nanoTime() - startTime, tiles.sum(), "tiles", tileBytes.sum(), peakRss()));
+
+        logger.info("Benchmark results for %d nodes, %d ways and %d relations (%d elements including old versions):",
+                generator.nodes(), generator.ways(), generator.relations(), versions);
+        results.forEach(Result::print);
+    }
+
+    /**
+     * Reads every tile at every level which intersects the given bounds, in the same way as {@link Serve} does.
+     */
+    private static void readAllTiles(@NonNull Path index, @NonNull Bounds2d pointBounds, @NonNull LongAdder tiles, @NonNull LongAdder bytes) throws Exception {
+        try (Storage storage = new Storage(index, DatabaseConfig.RO_GENERAL)) {
+            DBReadAccess access = storage.db().read();
+            for (int level = 0; level < storage.maxLevel(); level++) {
+                int finalLevel = level;
+                IntStream.rangeClosed(Tile.point2tile(level, pointBounds.minX()), Tile.point2tile(level, pointBounds.maxX())).parallel().forEach(tileX -> {
+                    try {
+                        for (int tileY = Tile.point2tile(finalLevel, pointBounds.minY()); tileY <= Tile.point2tile(finalLevel, pointBounds.maxY()); tileY++) {
+                            ByteBuf tile = storage.getTile(access, tileX, tileY, finalLevel);
+                            try {
+                                bytes.add(tile.readableBytes());
+                                tiles.increment();
+                            } finally {
+                                tile.release();
+                            }
+                        }
+                    } catch (Exception e) {
+                        PUnsafe.throwException(e);
+                    }
+                });
+            }
+        }
+    }
+
+    private static void resetPeakRss() {
+        try {
+            Files.write(PROC_CLEAR_REFS, "5".getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            logger.debug("unable to reset peak RSS: %s", e);
+        }
+    }
+
+    /**
+     * @return the peak resident set size since the last call to {@link #resetPeakRss()}, in bytes, or {@code -1} if it can't be determined
+     */
+    private static long peakRss() {
+        try {
+            for (String line : Files.readAllLines(PROC_STATUS, StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmHWM:")) { //e.g. "VmHWM:     123456 kB"
+                    return Long.parseLong(line.substring("VmHWM:".length()).trim().split("\\s+")[0]) << 10L;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.debug("unable to read peak RSS: %s", e);
+        }
+        return -1L;
+    }
+
+    /**
+     * The measurements for a single stage.
+     *
+     * @author DaPorkchop_
+     */
+    @AllArgsConstructor
+    private static final class Result {
+        @NonNull
+        private final String stage;
+        private final long time;
+        private final long count;
+        @NonNull
+        private final String unit;
+        private final long bytes;
+        private final long peakRss;
+
+        public void print() {
+            double seconds = this.time / 1_000_000_000.0d;
+            logger.info("  %-18s %9.2fs %14.1f %s/s%s, peak RSS %s",
+                    this.stage, seconds, this.count / seconds, this.unit,
+                    this.bytes >= 0L ? String.format(" (%s/s)", formatSize((long) (this.bytes / seconds))) : "",
+                    this.peakRss >= 0L ? formatSize(this.peakRss) : "unknown");
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.mode;
+
+import io.netty.buffer.ByteBuf;
+import lombok.NonNull;
+import net.daporkchop.lib.common.function.exception.EConsumer;
+import net.daporkchop.lib.common.function.exception.EFunction;
+import net.daporkchop.lib.common.misc.file.PFiles;
+import net.daporkchop.tpposmtilegen.geometry.GeoJSONParser;
+import net.daporkchop.tpposmtilegen.geometry.Geometry;
+import net.daporkchop.tpposmtilegen.natives.AbstractUnsortedWriteAccess;
+import net.daporkchop.tpposmtilegen.natives.UInt64BlobUnsortedWriteAccess;
+import net.daporkchop.tpposmtilegen.osm.Element;
+import net.daporkchop.tpposmtilegen.osm.LevelOfDetail;
+import net.daporkchop.tpposmtilegen.storage.Storage;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.DatabaseConfig;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.WrappedRocksDB;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.WriteRedirectingAccess;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBReadAccess;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBWriteAccess;
+import net.daporkchop.tpposmtilegen.util.ProgressNotifier;
+import net.daporkchop.tpposmtilegen.util.TimedOperation;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.lib.logging.Logging.*;
+import static net.daporkchop.tpposmtilegen.util.Utils.*;
+
+/**
+ * Adds levels to an index by simplifying the geometry which is already stored at an existing level.
+ * <p>
+ * Because the simplification tolerance at each level is absolute, every new level can be derived directly from the source level, so all of them are built
+ * together in a single pass over the source level's elements.
+ *
+ * @author DaPorkchop_
+ */
+public class BuildPyramid implements IMode {
+    @Override
+    public String name() {
+        return "build_pyramid";
+    }
+
+    @Override
+    public String synopsis() {
+        return "<index_dir> <max_level> [source_level]";
+    }
+
+    @Override
+    public String help() {
+        return "Builds levels up to (but not including) max_level from the simplified geometry stored at source_level, without re-assembling anything from the\n"
+               + "OSM data. source_level defaults to the deepest level currently in the index. Any existing levels above source_level are rebuilt.";
+    }
+
+    @Override
+    public void run(@NonNull String... args) throws Exception {
+        checkArg(args.length == 2 || args.length == 3, "Usage: build_pyramid <index_dir> <max_level> [source_level]");
+        Path src = PFiles.assertDirectoryExists(Paths.get(args[0]));
+        int maxLevel = Integer.parseUnsignedInt(args[1]);
+
+        int existingMaxLevel;
+        try (Storage storage = new Storage(src, DatabaseConfig.RO_LITE)) {
+            existingMaxLevel = storage.maxLevel();
+        }
+        checkArg(maxLevel >= existingMaxLevel, "index already has %d levels", existingMaxLevel);
+
+        int sourceLevel = args.length == 3 ? Integer.parseUnsignedInt(args[2]) : existingMaxLevel - 1;
+        checkArg(sourceLevel >= MIN_LEVEL && sourceLevel < existingMaxLevel, "source level %d doesn't exist", sourceLevel);
+        checkArg(sourceLevel < maxLevel - 1, "no levels to build above source level %d", sourceLevel);
+
+        int firstLevel = sourceLevel + 1;
+        if (firstLevel < existingMaxLevel) {
+            logger.warn("Existing levels %d-%d will be rebuilt", firstLevel, existingMaxLevel - 1);
+        }
+
+        try (Storage storage = new Storage(src, DatabaseConfig.RW_BULK_LOAD, maxLevel)) {
+            int levelCount = maxLevel - firstLevel;
+
+            //clear any existing data from the levels being built
+            storage.db().clear(IntStream.range(firstLevel, maxLevel)
+                    .mapToObj(lvl -> Stream.<WrappedRocksDB>of(storage.intersectedTiles()[lvl], storage.tileJsonStorage()[lvl], storage.externalJsonStorage()[lvl]))
+                    .flatMap(s -> s)
+                    .collect(Collectors.toList()));
+
+            AbstractUnsortedWriteAccess[] externalJsonStorageAccesses = IntStream.range(firstLevel, maxLevel)
+                    .boxed()
+                    .map((EFunction<Integer, AbstractUnsortedWriteAccess>) lvl -> new UInt64BlobUnsortedWriteAccess(
+                            storage, storage.db().internalColumnFamily(storage.externalJsonStorage()[lvl]), 0.000440108682))
+                    .toArray(AbstractUnsortedWriteAccess[]::new);
+
+            AbstractUnsortedWriteAccess[] intersectedTilesAccesses = IntStream.range(firstLevel, maxLevel)
+                    .boxed()
+                    .map((EFunction<Integer, AbstractUnsortedWriteAccess>) lvl -> new UInt64BlobUnsortedWriteAccess(
+                            storage, storage.db().internalColumnFamily(storage.intersectedTiles()[lvl]), 0.206963215028d))
+                    .toArray(AbstractUnsortedWriteAccess[]::new);
+
+            for (int lvl = firstLevel; lvl < maxLevel; lvl++) {
+                storage.db().delegate().enableAutoCompaction(Collections.singletonList(storage.db().internalColumnFamily(storage.tileJsonStorage()[lvl])));
+            }
+
+            LongAdder[] elementCounts = new LongAdder[levelCount];
+            LongAdder[] jsonSizes = new LongAdder[levelCount];
+            for (int i = 0; i < levelCount; i++) {
+                elementCounts[i] = new LongAdder();
+                jsonSizes[i] = new LongAdder();
+            }
+
+            ProgressNotifier.Builder notifierBuilder = new ProgressNotifier.Builder().prefix("Build Pyramid")
+                    .slot("source elements");
+            for (int lvl = firstLevel; lvl < maxLevel; lvl++) {
+                notifierBuilder.slot("level " + lvl);
+            }
+
+            DBReadAccess readAccess = storage.db().read();
+            try (TimedOperation buildOperation = new TimedOperation("Build levels " + firstLevel + '-' + (maxLevel - 1) + " from level " + sourceLevel);
+                 WriteRedirectingAccess access = new WriteRedirectingAccess(
+                         readAccess,
+                         WriteRedirectingAccess.indexWriteDelegates(
+                                 Stream.of(externalJsonStorageAccesses, intersectedTilesAccesses)
+                                         .flatMap(Stream::of)
+                                         .flatMap(specificAccess -> Stream.of(specificAccess.columnFamilyHandle(), specificAccess))
+                                         .toArray()),
+                         storage.db().batch());
+                 ProgressNotifier notifier = notifierBuilder.build()) {
+                //read each source tile exactly once. an element is only processed from the lowest tile it intersects, which means that elements spanning
+                //multiple tiles don't need to be looked up anywhere else
+                storage.tileJsonStorage()[sourceLevel].forEachElementParallel(readAccess, (tilePos, combinedId, json) -> {
+                    try {
+                        long[] intersected = storage.intersectedTiles()[sourceLevel].get(readAccess, combinedId);
+                        checkState(intersected != null && intersected.length > 0, "element intersects no tiles at level %d", sourceLevel);
+                        if (intersected[0] != tilePos) {
+                            return;
+                        }
+                        notifier.step(0);
+
+                        int type = Element.extractType(combinedId);
+                        GeoJSONParser.Feature feature = GeoJSONParser.parseFeature(getSourceJson(storage, readAccess, sourceLevel, combinedId, json));
+
+                        for (int lvl = firstLevel; lvl < maxLevel; lvl++) {
+                            Geometry simplified = LevelOfDetail.allowElement(type, feature.tags(), lvl, null) ? feature.geometry().simplifyTo(lvl).orElse(null) : null;
+                            if (simplified == null || !LevelOfDetail.allowElement(type, feature.tags(), lvl, simplified)) {
+                                //an element which isn't included at one level won't be included at any higher level either
+                                break;
+                            }
+
+                            jsonSizes[lvl - firstLevel].add(storage.putGeometryAtLevel(access, lvl, combinedId, simplified, feature.tags()));
+                            elementCounts[lvl - firstLevel].increment();
+                            notifier.step(lvl - firstLevel + 1);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(Element.typeName(Element.extractType(combinedId)) + ' ' + Element.extractId(combinedId), e);
+                    }
+                });
+            }
+
+            Stream.of(externalJsonStorageAccesses, intersectedTilesAccesses).flatMap(Stream::of).forEach((EConsumer<DBWriteAccess>) DBWriteAccess::close);
+
+            List<WrappedRocksDB> columns = IntStream.rangeClosed(sourceLevel, maxLevel - 1)
+                    .mapToObj(lvl -> Stream.<WrappedRocksDB>of(storage.intersectedTiles()[lvl], storage.tileJsonStorage()[lvl], storage.externalJsonStorage()[lvl]))
+                    .flatMap(s -> s)
+                    .collect(Collectors.toList());
+            for (WrappedRocksDB column : columns.subList(3, columns.size())) {
+                try (TimedOperation compactOperation = new TimedOperation(
+                        new String(storage.db().internalColumnFamily(column).getName(), StandardCharsets.UTF_8) + " Compaction")) {
+                    column.compact();
+                }
+            }
+
+            //print per-level statistics, with the source level for comparison
+            for (int lvl = sourceLevel; lvl < maxLevel; lvl++) {
+                long storedSize = 0L;
+                for (WrappedRocksDB column : columns.subList((lvl - sourceLevel) * 3, (lvl - sourceLevel + 1) * 3)) {
+                    storedSize += storage.db().delegate().getLongProperty(storage.db().internalColumnFamily(column), "rocksdb.total-sst-files-size");
+                }
+
+                if (lvl == sourceLevel) {
+                    logger.info("Level %d (source): %s stored", lvl, formatSize(storedSize));
+                } else {
+                    logger.info("Level %d: %d elements, %s of GeoJSON, %s stored",
+                            lvl, elementCounts[lvl - firstLevel].sum(), formatSize(jsonSizes[lvl - firstLevel].sum()), formatSize(storedSize));
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the GeoJSON feature which was stored for an element at the given level, resolving it from the external JSON storage if the tile only contains a
+     * reference to it.
+     */
+    private static byte[] getSourceJson(@NonNull Storage storage, @NonNull DBReadAccess access, int level, long combinedId, @NonNull ByteBuf tileJson) throws Exception {
+        if (!Geometry.isReference(tileJson)) {
+            byte[] json = new byte[tileJson.readableBytes()];
+            tileJson.getBytes(tileJson.readerIndex(), json);
+            return json;
+        }
+
+        ByteBuffer external = storage.externalJsonStorage()[level].get(access, combinedId);
+        checkState(external != null, "missing external json at level %d", level);
+        byte[] json = new byte[external.remaining()];
+        external.get(json);
+        return json;
+    }
+}
@@ -20,47 +20,62 @@
 
 package net.daporkchop.tpposmtilegen.mode;
 
-import com.wolt.osm.parallelpbf.ParallelBinaryParser;
-import com.wolt.osm.parallelpbf.blob.BlobInformation;
-import com.wolt.osm.parallelpbf.entity.Header;
-import com.wolt.osm.parallelpbf.entity.OsmEntity;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongList;
+import lombok.AllArgsConstructor;
 import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
 import net.daporkchop.lib.common.function.exception.EConsumer;
-import net.daporkchop.lib.common.function.exception.ERunnable;
+import net.daporkchop.lib.common.function.exception.ESupplier;
 import net.daporkchop.lib.common.misc.file.PFiles;
-import net.daporkchop.lib.common.misc.threadlocal.TL;
 import net.daporkchop.lib.common.util.PorkUtil;
 import net.daporkchop.lib.primitive.lambda.LongObjConsumer;
-import net.daporkchop.tpposmtilegen.geometry.Point;
+import net.daporkchop.lib.unsafe.PUnsafe;
 import net.daporkchop.tpposmtilegen.natives.OSMDataUnsortedWriteAccess;
 import net.daporkchop.tpposmtilegen.natives.UInt64SetUnsortedWriteAccess;
 import net.daporkchop.tpposmtilegen.osm.Element;
 import net.daporkchop.tpposmtilegen.osm.Node;
 import net.daporkchop.tpposmtilegen.osm.Relation;
 import net.daporkchop.tpposmtilegen.osm.Way;
+import net.daporkchop.tpposmtilegen.pbf.PbfFileReader;
+import net.daporkchop.tpposmtilegen.pbf.PbfHeader;
+import net.daporkchop.tpposmtilegen.pbf.PrimitiveBlockDecoder;
 import net.daporkchop.tpposmtilegen.storage.Storage;
+import net.daporkchop.tpposmtilegen.storage.special.DBProperties;
 import net.daporkchop.tpposmtilegen.storage.rocksdb.DatabaseConfig;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.WrappedRocksDB;
 import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBReadAccess;
 import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBWriteAccess;
+import net.daporkchop.tpposmtilegen.util.CloseableExecutor;
 import net.daporkchop.tpposmtilegen.util.CloseableThreadFactory;
 import net.daporkchop.tpposmtilegen.util.IterableThreadLocal;
 import net.daporkchop.tpposmtilegen.util.ProgressNotifier;
 import net.daporkchop.tpposmtilegen.util.TimedOperation;
-import org.apache.commons.lang3.mutable.MutableInt;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
 import java.util.Objects;
+import java.util.OptionalLong;
 import java.util.Scanner;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
-import java.util.function.ToIntFunction;
+import java.util.function.LongConsumer;
 import java.util.stream.Stream;
 
+import static java.lang.Math.*;
 import static net.daporkchop.lib.common.util.PValidation.*;
 import static net.daporkchop.lib.logging.Logging.*;
 
@@ -68,49 +83,11 @@ import static net.daporkchop.lib.logging.Logging.*;
  * @author DaPorkchop_
  */
 public class DigestPBF implements IMode {
-    private static <T> T getHeader(@NonNull Path path, @NonNull Function<Header, T> mapper) throws IOException {
-        Header[] out = new Header[1];
-        try (InputStream is = Files.newInputStream(path)) {
-            new ParallelBinaryParser(is, 1)
-                    .onHeader(header -> out[0] = header)
-                    .parse();
-        }
-        return mapper.apply(Objects.requireNonNull(out[0], "header"));
-    }
-
-    private static void eraseBase(OsmEntity entity) {
-        entity.getTags().clear();
-        entity.setTags(null);
-        entity.setInfo(null);
-    }
-
-    private static void erase(com.wolt.osm.parallelpbf.entity.Node node) {
-        eraseBase(node);
-    }
-
-    private static void erase(com.wolt.osm.parallelpbf.entity.Way way) {
-        eraseBase(way);
-        way.getNodes().clear();
-        way.setNodes(null);
-    }
-
-    private static void erase(com.wolt.osm.parallelpbf.entity.Relation relation) {
-        eraseBase(relation);
-        relation.getMembers().clear();
-        relation.setMembers(null);
-    }
-
-    private static void eraseAuto(OsmEntity entity) {
-        if (entity instanceof com.wolt.osm.parallelpbf.entity.Node) {
-            erase((com.wolt.osm.parallelpbf.entity.Node) entity);
-        } else if (entity instanceof com.wolt.osm.parallelpbf.entity.Way) {
-            erase((com.wolt.osm.parallelpbf.entity.Way) entity);
-        } else if (entity instanceof com.wolt.osm.parallelpbf.entity.Relation) {
-            erase((com.wolt.osm.parallelpbf.entity.Relation) entity);
-        } else {
-            throw new IllegalArgumentException();
-        }
-    }
+    private static final int COLUMN_NODES = 0;
+    private static final int COLUMN_POINTS = 1;
+    private static final int COLUMN_WAYS = 2;
+    private static final int COLUMN_RELATIONS = 3;
+    private static final String[] COLUMN_NAMES = { "nodes", "points", "ways", "relations" };
 
     @Override
     public String name() {
@@ -119,103 +96,63 @@ public class DigestPBF implements IMode {
 
     @Override
     public String synopsis() {
-        return "<planet-latest.osm.pbf> <index_dir>";
+        return "<planet-latest.osm.pbf>... <index_dir>";
     }
 
     @Override
     public String help() {
-        return "Creates a new index from a full OSM planet file.\n"
-               + "Any existing OSM data will be purged before the import is started.";
+        return "Creates a new index from a full OSM planet file, or from the union of multiple extracts.\n"
+               + "Any existing OSM data will be purged before the import is started.\n"
+               + "If a previous import of the same files into the index was interrupted, it will be resumed from the last checkpoint instead.";
     }
 
     @Override
     public void run(@NonNull String... args) throws Exception {
-        checkArg(args.length == 2, "Usage: digest_pbf <pbf> <index_dir>");
-        Path src = PFiles.assertFileExists(Paths.get(args[0]));
-        Path dst = Paths.get(args[1]);
-
-        Header header = getHeader(src, Function.identity());
-        logger.info("PBF header: " + header);
-        checkArg(true || header.getReplicationSequenceNumber() != null || header.getReplicationTimestamp() != null,
-                "'%s' doesn't contain a replication timestamp or sequence number!", src);
-
-        //we need this in order to make sure that every element which exists is actually present in the db (i.e. deleted elements should have visible=false)
-        checkArg(header.getRequiredFeatures().contains(Header.FEATURE_HISTORICAL_INFORMATION),
-                "'%s' doesn't contain historical information! (required_features is missing '%s')", src, Header.FEATURE_HISTORICAL_INFORMATION);
-
-        //we need this in order to fill the database efficiently
-        checkArg(header.getOptionalFeatures().contains("Sort.Type_then_ID"),
-                "'%s' isn't sorted by element ID! (optional_features is missing '%s')", src, "Sort.Type_then_ID");
-
-        if (false) {
-            try (Storage storage = new Storage(dst, DatabaseConfig.RO_GENERAL);
-                 DBReadAccess access = storage.db().snapshot();
-                 InputStream is = Files.newInputStream(src);
-                 CloseableThreadFactory threadFactory = new CloseableThreadFactory("PBF parse worker");
-                 ProgressNotifier notifier = new ProgressNotifier.Builder().prefix("Read PBF")
-                         .slot("nodes").slot("ways").slot("relations")
-                         .build()) {
-                new ParallelBinaryParser(is, PorkUtil.CPU_COUNT)
-                        .setThreadFactory(threadFactory)
-                        .onBoundBox(bb -> logger.info("bounding box: %s", bb))
-                        .onChangeset(changeset -> logger.info("changeset: %s", changeset))
-                        .onNode((EConsumer<com.wolt.osm.parallelpbf.entity.Node>) in -> {
-                            Node node = storage.nodes().get(access, in.getId());
-                            checkState(node != null, "node %d isn't present in db!", in.getId());
-                            checkState(node.version() >= in.getInfo().getVersion(), "node %d is outdated! should be at least version %d, but stored version is %d",
-                                    in.getId(), in.getInfo().getVersion(), node.version());
-                            if (node.version() == in.getInfo().getVersion()) {
-                                checkState(node.tags().equals(in.getTags()), "node %d has incorrect tags! should be %s, but stored tags are %s",
-                                        in.getId(), in.getTags(), node.tags());
-
-                                Point point = storage.points().get(access, in.getId());
-                                checkState(point != null, "node %d isn't present in db!", in.getId());
-                                checkState(point.x() == in.getLonFixedPoint() && point.y() == in.getLatFixedPoint(),
-                                        "point for node %d has incorrect coordinates! should be (%d,%d) but stored coordinates are (%d,%d)",
-                                        in.getId(), in.getLonFixedPoint(), in.getLatFixedPoint(), point.x(), point.y());
-                            }
-
-                            notifier.step(Node.TYPE);
-                        })
-                        .onWay((EConsumer<com.wolt.osm.parallelpbf.entity.Way>) in -> {
-                            Way way = storage.ways().get(access, in.getId());
-                            checkState(way != null, "way %d isn't present in db!", in.getId());
-                            checkState(way.version() >= in.getInfo().getVersion(), "way %d is outdated! should be at least version %d, but stored version is %d",
-                                    in.getId(), in.getInfo().getVersion(), way.version());
-                            if (way.version() == in.getInfo().getVersion()) {
-                                checkState(way.tags().equals(in.getTags()), "way %d has incorrect tags! should be %s, but stored tags are %s",
-                                        in.getId(), in.getTags(), way.tags());
-                            }
-                            notifier.step(Way.TYPE);
-                        })
-                        .onRelation((EConsumer<com.wolt.osm.parallelpbf.entity.Relation>) in -> {
-                            Relation relation = storage.relations().get(access, in.getId());
-                            checkState(relation != null, "relation %d isn't present in db!", in.getId());
-                            checkState(relation.version() >= in.getInfo().getVersion(), "relation %d is outdated! should be at least version %d, but stored version is %d",
-                                    in.getId(), in.getInfo().getVersion(), relation.version());
-                            if (relation.version() == in.getInfo().getVersion()) {
-                                checkState(relation.tags().equals(in.getTags()), "relation %d has incorrect tags! should be %s, but stored tags are %s",
-                                        in.getId(), in.getTags(), relation.tags());
-                            }
-                            notifier.step(Relation.TYPE);
-                        })
-                        .parse();
-            }
-            return;
+        checkArg(args.length >= 2, "Usage: digest_pbf <pbf>... <index_dir>");
+        List<Path> srcs = new ArrayList<>();
+        for (int i = 0; i < args.length - 1; i++) {
+            srcs.add(PFiles.assertFileExists(Paths.get(args[i])));
         }
+        Path dst = Paths.get(args[args.length - 1]);
+
+        List<PbfHeader> headers = new ArrayList<>();
+        for (Path src : srcs) {
+            PbfHeader header = PbfFileReader.readHeader(src);
+            logger.info("PBF header of '%s': %s", src, header);
+            checkArg(true || header.replicationSequenceNumber() != null || header.replicationTimestamp() != null,
+                    "'%s' doesn't contain a replication timestamp or sequence number!", src);
+
+            //we need this in order to make sure that every element which exists is actually present in the db (i.e. deleted elements should have visible=false)
+            checkArg(header.requiredFeatures().contains(PbfHeader.FEATURE_HISTORICAL_INFORMATION),
+                    "'%s' doesn't contain historical information! (required_features is missing '%s')", src, PbfHeader.FEATURE_HISTORICAL_INFORMATION);
 
+            //we need this in order to fill the database efficiently
+            checkArg(header.optionalFeatures().contains(PbfHeader.FEATURE_SORTED),
+                    "'%s' isn't sorted by element ID! (optional_features is missing '%s')", src, PbfHeader.FEATURE_SORTED);
+
+            headers.add(header);
+        }
+        String source = describeSources(srcs);
+        boolean resume = false;
         if (PFiles.checkDirectoryExists(dst)) {
             try (Stream<Path> stream = Files.list(dst)) {
                 if (stream.findAny().isPresent()) {
-                    logger.warn("destination folder already exists. proceed? [true/false]");
-                    if (!Boolean.parseBoolean(new Scanner(System.in).nextLine())) {
-                        logger.info("Abort.");
-                        return;
-                    }
-
                     try (Storage storage = new Storage(dst, DatabaseConfig.RW_LITE)) {
-                        //purge all OSM data from the storage to ensure that we aren't writing over existing stuff
-                        Purge.purge(storage, Purge.DataType.osm);
+                        Checkpoint checkpoint = new Checkpoint(storage, srcs.size());
+                        if (checkpoint.isPresent()) { //a previous import into this index was interrupted, pick up where it left off
+                            checkArg(source.equals(checkpoint.source()), "'%s' contains an interrupted import of different PBF files: %s", dst, checkpoint.source());
+                            logger.info("resuming interrupted import at phase %s", checkpoint.phase());
+                            resume = true;
+                        } else {
+                            logger.warn("destination folder already exists. proceed? [true/false]");
+                            if (!Boolean.parseBoolean(new Scanner(System.in).nextLine())) {
+                                logger.info("Abort.");
+                                return;
+                            }
+
+                            //purge all OSM data from the storage to ensure that we aren't writing over existing stuff
+                            Purge.purge(storage, Purge.DataType.osm);
+                        }
                     }
                 }
             }
@@ -224,94 +161,387 @@ public class DigestPBF implements IMode {
         PFiles.ensureDirectoryExists(dst);
 
         try (Storage storage = new Storage(dst, DatabaseConfig.RW_BULK_LOAD)) {
-            try (DBWriteAccess batch = storage.db().beginLocalBatch()) {
-                //write replication information from the headers
-                if (header.getReplicationSequenceNumber() != null) {
-                    storage.sequenceNumberProperty().set(batch, header.getReplicationSequenceNumber().longValue());
-                } else {
-                    storage.sequenceNumberProperty().remove(batch);
+            Checkpoint checkpoint = new Checkpoint(storage, srcs.size());
+            if (!resume) {
+                //the index can only follow a single replication feed, so if the extracts come from different feeds we fall back to the default one. updates
+                // must start from the oldest of the extracts in order to avoid missing any changes.
+                String replicationBaseUrl = headers.get(0).replicationBaseUrl();
+                boolean sameFeed = headers.stream().allMatch(header -> Objects.equals(header.replicationBaseUrl(), replicationBaseUrl));
+                Long replicationSequenceNumber = sameFeed ? minOrNull(headers, PbfHeader::replicationSequenceNumber) : null;
+                Long replicationTimestamp = minOrNull(headers, PbfHeader::replicationTimestamp);
+
+                try (DBWriteAccess batch = storage.db().beginLocalBatch()) {
+                    //write replication information from the headers
+                    if (replicationSequenceNumber != null) {
+                        storage.sequenceNumberProperty().set(batch, replicationSequenceNumber);
+                    } else {
+                        storage.sequenceNumberProperty().remove(batch);
+                    }
+
+                    if (replicationTimestamp != null) {
+                        storage.replicationTimestampProperty().set(batch, replicationTimestamp);
+                    } else {
+                        storage.replicationTimestampProperty().remove(batch);
+                    }
+
+                    if (sameFeed && replicationBaseUrl != null) {
+                        storage.replicationBaseUrlProperty().set(batch, replicationBaseUrl);
+                    } else {
+                        logger.warn(sameFeed ? "'%s' doesn't provide a replication base url, falling back to default: '%s'" : "%s don't share a replication base url, falling back to default: '%s'",
+                                sameFeed ? srcs.get(0) : srcs, Storage.DEFAULT_REPLICATION_BASE_URL);
+                        storage.replicationBaseUrlProperty().set(batch, Storage.DEFAULT_REPLICATION_BASE_URL);
+                    }
                 }
 
-                if (header.getReplicationTimestamp() != null) {
-                    storage.replicationTimestampProperty().set(batch, header.getReplicationTimestamp().longValue());
-                } else {
-                    storage.replicationTimestampProperty().remove(batch);
+                checkpoint.begin(source);
+            }
+
+            final int threads = PorkUtil.CPU_COUNT;
+
+            //references are emitted while the PBF is being read, so there's no need for a second pass over all the ways and relations. they aren't persisted
+            // until all of them have been computed though, so this is only possible if the whole import runs without being interrupted. it's also only possible
+            // with a single input, as otherwise we can't know whether another input contains a newer version of an element.
+            UInt64SetUnsortedWriteAccess fusedReferencesWriteAccess = resume || srcs.size() != 1 ? null : new UInt64SetUnsortedWriteAccess(storage,
+                    storage.db().internalColumnFamily(storage.references()), true, 4.266666667d);
+            try {
+                LongList boundaryElements = null;
+                if (checkpoint.phase() == Phase.INGEST) {
+                    boundaryElements = ingest(storage, checkpoint, srcs, fusedReferencesWriteAccess, threads);
+                    checkpoint.advance();
                 }
 
-                if (header.getReplicationBaseUrl() != null) {
-                    storage.replicationBaseUrlProperty().set(batch, header.getReplicationBaseUrl());
-                } else {
-                    logger.warn("'%s' doesn't provide a replication base url, falling back to default: '%s'", src, Storage.DEFAULT_REPLICATION_BASE_URL);
-                    storage.replicationBaseUrlProperty().set(batch, Storage.DEFAULT_REPLICATION_BASE_URL);
+                compact(checkpoint, Phase.COMPACT_POINTS, "Points", storage.points());
+                compact(checkpoint, Phase.COMPACT_NODES, "Nodes", storage.nodes());
+                compact(checkpoint, Phase.COMPACT_WAYS, "Ways", storage.ways());
+                compact(checkpoint, Phase.COMPACT_RELATIONS, "Relations", storage.relations());
+
+                if (checkpoint.phase() == Phase.REFERENCES) {
+                    if (fusedReferencesWriteAccess != null) {
+                        computeBoundaryReferences(storage, fusedReferencesWriteAccess, boundaryElements);
+
+                        UInt64SetUnsortedWriteAccess access = fusedReferencesWriteAccess;
+                        fusedReferencesWriteAccess = null;
+                        access.close();
+                    } else {
+                        computeAllReferences(storage);
+                    }
+                    checkpoint.advance();
+                }
+            } finally {
+                if (fusedReferencesWriteAccess != null) {
+                    fusedReferencesWriteAccess.close();
                 }
             }
 
-            final int threads = PorkUtil.CPU_COUNT;
+            compact(checkpoint, Phase.COMPACT_REFERENCES, "References", storage.references());
+        }
+    }
 
-            try (InputStream is = Files.newInputStream(src);
-                 ProgressNotifier notifier = new ProgressNotifier.Builder().prefix("Read PBF")
-                         .slot("nodes").slot("ways").slot("relations")
-                         .build();
-                 PbfElementHandler elementHandler = new PbfElementHandler(storage, notifier, threads);
-                 CloseableThreadFactory threadFactory = new CloseableThreadFactory("PBF parse worker")) {
-                new ParallelBinaryParser(is, threads)
-                        .setThreadFactory(threadFactory)
-                        .onBoundBox(bb -> logger.info("bounding box: %s", bb))
-                        .onChangeset(changeset -> logger.info("changeset: %s", changeset))
-                        .onNode(elementHandler.nodeHandler)
-                        .onWay(elementHandler.wayHandler)
-                        .onRelation(elementHandler.relationHandler)
-                        .onBlobStart(elementHandler.blobStartHandler)
-                        .onBlobComplete(elementHandler.blobCompleteHandler)
-                        .parse();
-                notifier.close();
+    private static String describeSources(@NonNull List<Path> srcs) throws IOException {
+        StringJoiner joiner = new StringJoiner(", ");
+        for (Path src : srcs) {
+            joiner.add(src.toAbsolutePath().normalize() + " (" + Files.size(src) + " bytes, last modified " + Files.getLastModifiedTime(src) + ')');
+        }
+        return joiner.toString();
+    }
+
+    private static Long minOrNull(@NonNull List<PbfHeader> headers, @NonNull Function<PbfHeader, Long> extractor) {
+        Long min = null;
+        for (PbfHeader header : headers) {
+            Long value = extractor.apply(header);
+            if (value == null) {
+                return null;
+            } else if (min == null || value < min) {
+                min = value;
             }
+        }
+        return min;
+    }
 
-            try (TimedOperation compactPoints = new TimedOperation("Points compaction")) {
-                storage.points().compact();
+    private static LongList ingest(@NonNull Storage storage, @NonNull Checkpoint checkpoint, @NonNull List<Path> srcs, UInt64SetUnsortedWriteAccess referencesWriteAccess, int threads) throws Exception {
+        List<InputFile> files = new ArrayList<>(srcs.size());
+        try (ProgressNotifier notifier = new ProgressNotifier.Builder().prefix("Read PBF")
+                .slot("nodes").slot("ways").slot("relations")
+                .build();
+             PbfElementHandler elementHandler = new PbfElementHandler(storage, checkpoint, referencesWriteAccess, notifier, threads, srcs.size());
+             CloseableExecutor executor = new CloseableExecutor(new CloseableThreadFactory("PBF decode worker"), threads)) {
+            try {
+                for (int i = 0; i < srcs.size(); i++) {
+                    long startOffset = checkpoint.blobOffset(i);
+                    if (startOffset != 0L) {
+                        logger.info("resuming ingest of '%s' at offset %d", srcs.get(i), startOffset);
+                    }
+                    files.add(new InputFile(i, new PbfFileReader(srcs.get(i), startOffset)));
+                }
+
+                //the blobs from all inputs are merged into a single stream which is roughly sorted by type and ID, by always reading the next blob from the
+                // input which is furthest behind. this keeps the inputs from drifting apart, which would force the data from the inputs which are ahead to be
+                // buffered until the others catch up. blobs are decoded in parallel, with a bounded number of blobs in flight at once.
+                int maxPending = threads << 1;
+                for (InputFile file; (file = furthestBehind(files, elementHandler)) != null; ) {
+                    if (files.stream().mapToInt(f -> f.pending.size()).sum() >= maxPending && !file.pending.isEmpty()) {
+                        PendingBlob completed = file.pending.poll();
+                        completed.future.join();
+                        file.decoded.add(completed);
+                    } else {
+                        PbfFileReader.Blob blob = file.reader.next();
+                        if (blob == null) {
+                            file.exhausted = true;
+                            elementHandler.inputExhausted(file.index, file.blobCount);
+                        } else if (PbfFileReader.TYPE_DATA.equals(blob.type())) {
+                            int input = file.index;
+                            long sequence = file.blobCount++;
+                            file.pending.add(new PendingBlob(blob.offset(), CompletableFuture.supplyAsync(
+                                    (ESupplier<long[]>) () -> elementHandler.decode(input, sequence, blob), executor)));
+                        }
+                    }
+
+                    for (InputFile f : files) {
+                        while (!f.pending.isEmpty() && f.pending.peek().future.isDone()) {
+                            f.decoded.add(f.pending.poll());
+                        }
+
+                        //the checkpoint may only advance past a blob once everything in it has been ingested
+                        while (!f.decoded.isEmpty() && elementHandler.isDurable(f.decoded.peek().future.join())) {
+                            f.decoded.poll();
+                        }
+                        checkpoint.blobOffset(f.index, !f.decoded.isEmpty() ? f.decoded.peek().offset : !f.pending.isEmpty() ? f.pending.peek().offset : f.reader.position());
+                    }
+                }
+                files.forEach(f -> f.pending.forEach(completed -> completed.future.join()));
+            } finally {
+                for (InputFile f : files) {
+                    f.reader.close();
+                }
             }
-            try (TimedOperation compactNodes = new TimedOperation("Nodes compaction")) {
-                storage.nodes().compact();
+            notifier.close();
+
+            return elementHandler.boundaryElements();
+        }
+    }
+
+    private static InputFile furthestBehind(@NonNull List<InputFile> files, @NonNull PbfElementHandler elementHandler) {
+        InputFile result = null;
+        long resultProgress = Long.MAX_VALUE;
+        for (InputFile file : files) {
+            if (!file.exhausted) {
+                long progress = elementHandler.progress(file.index);
+                if (result == null || progress < resultProgress) {
+                    result = file;
+                    resultProgress = progress;
+                }
             }
-            try (TimedOperation compactWays = new TimedOperation("Ways compaction")) {
-                storage.ways().compact();
+        }
+        return result;
+    }
+
+    private static void compact(@NonNull Checkpoint checkpoint, @NonNull Phase phase, @NonNull String name, @NonNull WrappedRocksDB db) throws Exception {
+        if (checkpoint.phase() == phase) {
+            try (TimedOperation compact = new TimedOperation(name + " compaction")) {
+                db.compact();
             }
-            try (TimedOperation compactRelations = new TimedOperation("Relations compaction")) {
-                storage.relations().compact();
+            checkpoint.advance();
+        }
+    }
+
+    private static void computeBoundaryReferences(@NonNull Storage storage, @NonNull UInt64SetUnsortedWriteAccess referencesWriteAccess, @NonNull LongList boundaryElements) throws Exception {
+        //the elements which were at the end of a blob may have had a newer version in the following blob, so their references could only be
+        // computed now that we know which version was actually stored
+        try (TimedOperation computeBoundaryReferences = new TimedOperation("Compute references for " + boundaryElements.size() + " elements at blob boundaries")) {
+            DBReadAccess access = storage.db().read();
+            for (LongIterator itr = boundaryElements.iterator(); itr.hasNext(); ) {
+                long combinedId = itr.nextLong();
+                long id = Element.extractId(combinedId);
+                Element element;
+                switch (Element.extractType(combinedId)) {
+                    case Way.TYPE:
+                        element = storage.ways().get(access, id);
+                        break;
+                    case Relation.TYPE:
+                        element = storage.relations().get(access, id);
+                        break;
+                    default:
+                        throw new IllegalStateException(Element.typeName(Element.extractType(combinedId)));
+                }
+                checkState(element != null, "%s %d isn't present in db!", Element.typeName(Element.extractType(combinedId)), id);
+                element.computeReferences(referencesWriteAccess, storage);
             }
+        }
+    }
 
-            try (UInt64SetUnsortedWriteAccess referencesWriteAccess = new UInt64SetUnsortedWriteAccess(storage,
-                    storage.db().internalColumnFamily(storage.references()), true, 4.266666667d);
-                 ProgressNotifier notifier = new ProgressNotifier.Builder().prefix("Compute references")
-                         .slot("nodes").slot("ways").slot("relations").slot("coastlines")
-                         .build()) {
-                LongObjConsumer<Element> func = (id, element) -> {
-                    int type = element.type();
-                    try {
-                        element.computeReferences(referencesWriteAccess, storage);
-                    } catch (Exception e) {
-                        throw new RuntimeException(Element.typeName(type) + ' ' + id, e);
-                    }
-                    notifier.step(type);
-                };
+    private static void computeAllReferences(@NonNull Storage storage) throws Exception {
+        //the references computed while reading the PBF were lost when the import was interrupted, so they have to be recomputed from the stored elements.
+        // nodes and coastlines never reference anything, so only the ways and relations need to be scanned.
+        storage.references().clear();
+
+        try (UInt64SetUnsortedWriteAccess referencesWriteAccess = new UInt64SetUnsortedWriteAccess(storage,
+                storage.db().internalColumnFamily(storage.references()), true, 4.266666667d);
+             ProgressNotifier notifier = new ProgressNotifier.Builder().prefix("Compute references")
+                     .slot("nodes").slot("ways").slot("relations")
+                     .build()) {
+            LongObjConsumer<Element> func = (id, element) -> {
+                int type = element.type();
+                try {
+                    element.computeReferences(referencesWriteAccess, storage);
+                } catch (Exception e) {
+                    throw new RuntimeException(Element.typeName(type) + ' ' + id, e);
+                }
+                notifier.step(type);
+            };
 
-                storage.nodes().forEachParallel(storage.db().read(), func);
-                storage.ways().forEachParallel(storage.db().read(), func);
-                storage.relations().forEachParallel(storage.db().read(), func);
-                storage.coastlines().forEachParallel(storage.db().read(), func);
+            storage.ways().forEachParallel(storage.db().read(), func);
+            storage.relations().forEachParallel(storage.db().read(), func);
+        }
+    }
+
+    /**
+     * The phases of an import, in the order in which they're run.
+     */
+    private enum Phase {
+        INGEST,
+        COMPACT_POINTS,
+        COMPACT_NODES,
+        COMPACT_WAYS,
+        COMPACT_RELATIONS,
+        REFERENCES,
+        COMPACT_REFERENCES,
+    }
+
+    @AllArgsConstructor
+    private static final class PendingBlob {
+        private final long offset;
+        private final CompletableFuture<long[]> future;
+    }
+
+    @RequiredArgsConstructor
+    private static final class InputFile {
+        private final int index;
+        @NonNull
+        private final PbfFileReader reader;
+
+        private final Deque<PendingBlob> pending = new ArrayDeque<>();
+
+        //blobs which have been decoded, but whose contents might not have been ingested into the db yet
+        private final Deque<PendingBlob> decoded = new ArrayDeque<>();
+
+        private long blobCount;
+        private boolean exhausted;
+    }
+
+    /**
+     * The progress of an import, which is persisted in the index so that an interrupted import can be resumed.
+     * <p>
+     * All writes are synchronous, so the checkpoint never claims that more data has been written than has actually reached the disk.
+     *
+     * @author DaPorkchop_
+     */
+    private static final class Checkpoint {
+        private final Storage storage;
+
+        private final DBProperties.StringProperty sourceProperty;
+        private final DBProperties.LongProperty phaseProperty;
+
+        //the offset of the first blob in each input whose contents might not have been ingested yet
+        private final DBProperties.LongProperty[] blobOffsetProperties;
+        private final long[] blobOffsets;
+
+        //the (exclusive) upper bound of the keys which have been ingested into each column family, indexed by COLUMN_*
+        private final DBProperties.LongProperty[] durableKeyProperties = new DBProperties.LongProperty[COLUMN_NAMES.length];
+
+        public Checkpoint(@NonNull Storage storage, int inputs) throws Exception {
+            this.storage = storage;
+
+            this.sourceProperty = storage.properties().getStringProperty("digestPbf.source");
+            this.phaseProperty = storage.properties().getLongProperty("digestPbf.phase");
+            this.blobOffsetProperties = new DBProperties.LongProperty[positive(inputs, "inputs")];
+            for (int input = 0; input < inputs; input++) {
+                this.blobOffsetProperties[input] = storage.properties().getLongProperty("digestPbf.blobOffset." + input);
+            }
+            this.blobOffsets = new long[inputs];
+            Arrays.fill(this.blobOffsets, -1L);
+            for (int column = 0; column < COLUMN_NAMES.length; column++) {
+                this.durableKeyProperties[column] = storage.properties().getLongProperty("digestPbf.durableKey." + COLUMN_NAMES[column]);
+            }
+        }
+
+        public boolean isPresent() throws Exception {
+            return this.phaseProperty.isPresent(this.storage.db().read());
+        }
+
+        public String source() throws Exception {
+            return this.sourceProperty.get(this.storage.db().read()).orElse(null);
+        }
+
+        public Phase phase() throws Exception {
+            OptionalLong phase = this.phaseProperty.getLong(this.storage.db().read());
+            checkState(phase.isPresent(), "no import is in progress");
+            return Phase.values()[toIntExact(phase.getAsLong())];
+        }
+
+        public long blobOffset(int input) throws Exception {
+            return this.blobOffsetProperties[input].getLong(this.storage.db().read()).orElse(0L);
+        }
+
+        public long durableKey(int column) throws Exception {
+            return this.durableKeyProperties[column].getLong(this.storage.db().read()).orElse(0L);
+        }
+
+        public void begin(@NonNull String source) throws Exception {
+            try (DBWriteAccess batch = this.storage.db().beginLocalBatch(DatabaseConfig.WriteType.SYNC)) {
+                this.sourceProperty.set(batch, source);
+                this.phaseProperty.set(batch, Phase.INGEST.ordinal());
+                for (DBProperties.LongProperty property : this.blobOffsetProperties) {
+                    property.set(batch, 0L);
+                }
+                for (DBProperties.LongProperty property : this.durableKeyProperties) {
+                    property.set(batch, 0L);
+                }
             }
+        }
 
-            try (TimedOperation compactReferences = new TimedOperation("References compaction")) {
-                storage.references().compact();
+        public synchronized void blobOffset(int input, long blobOffset) throws Exception {
+            if (this.blobOffsets[input] != blobOffset) {
+                try (DBWriteAccess batch = this.storage.db().beginLocalBatch(DatabaseConfig.WriteType.SYNC)) {
+                    this.blobOffsetProperties[input].set(batch, blobOffset);
+                }
+                this.blobOffsets[input] = blobOffset;
+            }
+        }
+
+        public LongConsumer durableKeyListener(int column) {
+            return key -> {
+                try (DBWriteAccess batch = this.storage.db().beginLocalBatch(DatabaseConfig.WriteType.SYNC)) {
+                    this.durableKeyProperties[column].set(batch, key);
+                } catch (Exception e) {
+                    throw PUnsafe.throwException(e);
+                }
+            };
+        }
+
+        /**
+         * Marks the current phase as complete. Once the last phase is complete, the checkpoint is removed.
+         */
+        public void advance() throws Exception {
+            int next = this.phase().ordinal() + 1;
+            try (DBWriteAccess batch = this.storage.db().beginLocalBatch(DatabaseConfig.WriteType.SYNC)) {
+                if (next < Phase.values().length) {
+                    this.phaseProperty.set(batch, next);
+                } else {
+                    this.sourceProperty.remove(batch);
+                    this.phaseProperty.remove(batch);
+                    for (DBProperties.LongProperty property : this.blobOffsetProperties) {
+                        property.remove(batch);
+                    }
+                    for (DBProperties.LongProperty property : this.durableKeyProperties) {
+                        property.remove(batch);
+                    }
+                }
             }
         }
     }
 
     private static final class PbfElementHandler implements AutoCloseable {
         private final IterableThreadLocal<ThreadState> state = IterableThreadLocal.of(ThreadState::new);
-        private final TL<MutableInt> currentVersion = TL.initializedWith(MutableInt::new);
-
-        private final Storage storage;
 
         private final OSMDataUnsortedWriteAccess nodesWriteAccess;
         private final OSMDataUnsortedWriteAccess pointsWriteAccess;
@@ -319,29 +549,41 @@ public class DigestPBF implements IMode {
         private final OSMDataUnsortedWriteAccess relationsWriteAccess;
 
         private final OSMDataUnsortedWriteAccess[] osmDataWriteAccesses;
+        private final OSMDataUnsortedWriteAccess[][] osmDataWriteAccessesByType;
 
-        private final ProgressNotifier notifier;
+        //keys below these have already been ingested by a previous run, indexed by COLUMN_*
+        private final long[] firstKeys = new long[COLUMN_NAMES.length];
 
-        private final EConsumer<com.wolt.osm.parallelpbf.entity.Node> nodeHandler = in -> this.state.get().accept(in);
-        private final EConsumer<com.wolt.osm.parallelpbf.entity.Way> wayHandler = in -> this.state.get().accept(in);
-        private final EConsumer<com.wolt.osm.parallelpbf.entity.Relation> relationHandler = in -> this.state.get().accept(in);
+        private final Storage storage;
+        private final UInt64SetUnsortedWriteAccess referencesWriteAccess;
 
-        private final EConsumer<BlobInformation> blobStartHandler = in -> this.state.get().onBlobStart(in);
-        private final ERunnable blobCompleteHandler = () -> this.state.get().onBlobComplete();
+        //combined IDs of the ways and relations whose references couldn't be computed while reading the PBF
+        private final LongList boundaryElements = new LongArrayList();
 
-        public PbfElementHandler(@NonNull Storage storage, @NonNull ProgressNotifier notifier, int threads) throws Exception {
-            this.storage = storage;
+        private final InputProgress[] inputs;
+
+        private final ProgressNotifier notifier;
 
-            ToIntFunction<ByteBuffer> currentVersionExtractor = buf -> this.currentVersion.get().intValue();
+        public PbfElementHandler(@NonNull Storage storage, @NonNull Checkpoint checkpoint, UInt64SetUnsortedWriteAccess referencesWriteAccess, @NonNull ProgressNotifier notifier, int threads, int inputs) throws Exception {
+            for (int column = 0; column < COLUMN_NAMES.length; column++) {
+                this.firstKeys[column] = checkpoint.durableKey(column);
+            }
 
+            //values are always written with an explicit version, so none of these need a version extractor.
+            //SST files are ingested as soon as they're built so that the checkpoint can advance. the compression ratios are only initial estimates (measured
+            // on the planet file), each write access refines them as it goes
             this.nodesWriteAccess = new OSMDataUnsortedWriteAccess(
-                    storage, storage.db().internalColumnFamily(storage.nodes()), currentVersionExtractor, 6.394704777d, threads, true);
+                    storage, storage.db().internalColumnFamily(storage.nodes()), 6.394704777d, threads, true,
+                    this.firstKeys[COLUMN_NODES], checkpoint.durableKeyListener(COLUMN_NODES));
             this.pointsWriteAccess = new OSMDataUnsortedWriteAccess(
-                    storage, storage.db().internalColumnFamily(storage.points()), currentVersionExtractor, 2.154728129d, threads, true);
+                    storage, storage.db().internalColumnFamily(storage.points()), 2.154728129d, threads, true,
+                    this.firstKeys[COLUMN_POINTS], checkpoint.durableKeyListener(COLUMN_POINTS));
             this.waysWriteAccess = new OSMDataUnsortedWriteAccess(
-                    storage, storage.db().internalColumnFamily(storage.ways()), currentVersionExtractor, 3.243015087d, threads, true);
+                    storage, storage.db().internalColumnFamily(storage.ways()), 3.243015087d, threads, true,
+                    this.firstKeys[COLUMN_WAYS], checkpoint.durableKeyListener(COLUMN_WAYS));
             this.relationsWriteAccess = new OSMDataUnsortedWriteAccess(
-                    storage, storage.db().internalColumnFamily(storage.relations()), currentVersionExtractor, 3.519971471d, threads, true);
+                    storage, storage.db().internalColumnFamily(storage.relations()), 3.519971471d, threads, true,
+                    this.firstKeys[COLUMN_RELATIONS], checkpoint.durableKeyListener(COLUMN_RELATIONS));
 
             this.osmDataWriteAccesses = new OSMDataUnsortedWriteAccess[] {
                     this.nodesWriteAccess,
@@ -350,42 +592,99 @@ public class DigestPBF implements IMode {
                     this.relationsWriteAccess
             };
 
+            this.osmDataWriteAccessesByType = new OSMDataUnsortedWriteAccess[Relation.TYPE + 1][];
+            this.osmDataWriteAccessesByType[Node.TYPE] = new OSMDataUnsortedWriteAccess[]{ this.nodesWriteAccess, this.pointsWriteAccess };
+            this.osmDataWriteAccessesByType[Way.TYPE] = new OSMDataUnsortedWriteAccess[]{ this.waysWriteAccess };
+            this.osmDataWriteAccessesByType[Relation.TYPE] = new OSMDataUnsortedWriteAccess[]{ this.relationsWriteAccess };
+
+            this.storage = storage;
+            this.referencesWriteAccess = referencesWriteAccess;
             this.notifier = notifier;
-        }
 
-        private void writeNode(com.wolt.osm.parallelpbf.entity.Node in) throws Exception {
-            this.notifier.step(Node.TYPE);
+            this.inputs = new InputProgress[positive(inputs, "inputs")];
+            for (int input = 0; input < inputs; input++) {
+                this.inputs[input] = new InputProgress();
+            }
 
-            this.currentVersion.get().setValue(in.getInfo().getVersion());
+            //blobs from the same input may be decoded by any thread in any order, so flushes can't be triggered based on the positions of the individual threads
+            this.updateWatermarks();
+        }
 
-            Node node = new Node(in);
-            this.storage.nodes().put(this.nodesWriteAccess, node.id(), node);
-            if (node.visible()) { //only store the point if the node is actually visible
-                this.storage.points().put(this.pointsWriteAccess, node.id(), new Point(in.getLonFixedPoint(), in.getLatFixedPoint()));
-            } else { //we need to explicitly delete the point in order to replace any older versions of the point for which the node was visible
-                this.storage.points().delete(this.pointsWriteAccess, node.id());
+        public LongList boundaryElements() {
+            synchronized (this.boundaryElements) {
+                return new LongArrayList(this.boundaryElements);
             }
-            node.erase();
         }
 
-        private void writeWay(com.wolt.osm.parallelpbf.entity.Way in) throws Exception {
-            this.notifier.step(Way.TYPE);
-
-            this.currentVersion.get().setValue(in.getInfo().getVersion());
+        /**
+         * Decodes the given blob.
+         *
+         * @return the ID of the last element of each type in the blob, or {@code -1} for types which the blob doesn't contain
+         */
+        public long[] decode(int input, long sequence, @NonNull PbfFileReader.Blob blob) throws Exception {
+            ThreadState state = this.state.get();
+            Arrays.fill(state.lastIds, -1L);
+            state.lastType = Node.TYPE;
+            state.decoder.decode(blob, state);
+            state.onBlobComplete();
+            long[] lastIds = state.lastIds.clone();
+
+            long lastKey = -1L;
+            for (int type = Relation.TYPE; type >= Node.TYPE && lastKey < 0L; type--) {
+                if (lastIds[type] >= 0L) {
+                    lastKey = Element.addTypeToId(type, lastIds[type]);
+                }
+            }
+            this.inputs[input].complete(sequence, lastKey);
+            this.updateWatermarks();
+            return lastIds;
+        }
 
-            Way way = new Way(in);
-            this.storage.putWay(this.waysWriteAccess, way);
-            way.erase();
+        /**
+         * Indicates that the given input doesn't contain any more blobs.
+         *
+         * @param blobCount the total number of blobs which were passed to {@link #decode(int, long, PbfFileReader.Blob)} for the input
+         */
+        public void inputExhausted(int input, long blobCount) {
+            this.inputs[input].exhausted(blobCount);
+            this.updateWatermarks();
         }
 
-        private void writeRelation(com.wolt.osm.parallelpbf.entity.Relation in) throws Exception {
-            this.notifier.step(Relation.TYPE);
+        /**
+         * @return the combined ID of the last element in the given input which is known to have been written, or {@code -1} if none have
+         */
+        public long progress(int input) {
+            return this.inputs[input].progress;
+        }
 
-            this.currentVersion.get().setValue(in.getInfo().getVersion());
+        private void updateWatermarks() {
+            for (int type = Node.TYPE; type <= Relation.TYPE; type++) {
+                long lowWatermark = Long.MAX_VALUE;
+                for (InputProgress input : this.inputs) {
+                    lowWatermark = min(lowWatermark, input.lowWatermark(type));
+                }
+                for (OSMDataUnsortedWriteAccess access : this.osmDataWriteAccessesByType[type]) {
+                    access.lowWatermark(lowWatermark);
+                }
+            }
+        }
 
-            Relation relation = new Relation(in);
-            this.storage.putRelation(this.relationsWriteAccess, relation);
-            relation.erase();
+        /**
+         * Checks whether all the elements in a decoded blob have been ingested into the db.
+         *
+         * @param lastIds the value returned by {@link #decode(int, long, PbfFileReader.Blob)}
+         */
+        public boolean isDurable(@NonNull long[] lastIds) {
+            for (int type = 0; type < lastIds.length; type++) {
+                if (lastIds[type] >= 0L) {
+                    for (OSMDataUnsortedWriteAccess access : this.osmDataWriteAccessesByType[type]) {
+                        if (lastIds[type] >= access.durableKeyExclusive()) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            return true;
         }
 
         @Override
@@ -397,171 +696,205 @@ public class DigestPBF implements IMode {
             for (OSMDataUnsortedWriteAccess access : this.osmDataWriteAccesses) {
                 access.close();
             }
-        }
-
-        private final class ThreadState {
-            private boolean joined = false;
 
-            //only one of these three fields may be non-null at a time
-            private com.wolt.osm.parallelpbf.entity.Node node;
-            private com.wolt.osm.parallelpbf.entity.Way way;
-            private com.wolt.osm.parallelpbf.entity.Relation relation;
+            this.state.forEach(ThreadState::release);
+        }
 
-            private Class<? extends OsmEntity> lastType = com.wolt.osm.parallelpbf.entity.Node.class;
+        /**
+         * Tracks how far each input has been written, based on the blobs which have been decoded in order.
+         */
+        private final class InputProgress {
+            //the last key of each blob which was decoded before all of the preceding blobs
+            private final Long2LongMap outOfOrder = new Long2LongOpenHashMap();
+            private long nextSequence;
+            private long blobCount = -1L;
+
+            private volatile long progress = -1L;
+            private volatile boolean finished;
+
+            public synchronized void complete(long sequence, long lastKey) {
+                this.outOfOrder.put(sequence, lastKey);
+                while (this.outOfOrder.containsKey(this.nextSequence)) {
+                    this.progress = max(this.progress, this.outOfOrder.remove(this.nextSequence++));
+                }
+                this.finished = this.nextSequence == this.blobCount;
+            }
 
-            public void accept(@NonNull com.wolt.osm.parallelpbf.entity.Node node) throws Exception {
-                checkState(this.way == null && this.relation == null);
-                checkState(this.lastType == com.wolt.osm.parallelpbf.entity.Node.class, this.lastType);
+            public synchronized void exhausted(long blobCount) {
+                this.blobCount = blobCount;
+                this.finished = this.nextSequence == this.blobCount;
+            }
 
-                if (!this.joined) {
-                    this.joined = true;
-                    PbfElementHandler.this.nodesWriteAccess.threadJoin();
-                    PbfElementHandler.this.pointsWriteAccess.threadJoin();
+            /**
+             * @return the lowest ID of the given type which may still be written by this input
+             */
+            public long lowWatermark(int type) {
+                if (this.finished) {
+                    return Long.MAX_VALUE;
                 }
 
-                if (this.node != null) {
-                    if (this.node.getId() == node.getId()) {
-                        checkState(this.node.getInfo().getVersion() < node.getInfo().getVersion(), "node %d goes from version %d to %d",
-                                node.getId(), this.node.getInfo().getVersion(), node.getInfo().getVersion());
-
-                        //replace the node with the new one
-                    } else {
-                        checkState(this.node.getId() < node.getId(), "nodes out-of-order: %d to %d", this.node.getId(), node.getId());
+                long progress = this.progress;
+                if (progress < 0L || Element.extractType(progress) < type) { //we haven't reached any elements of the given type yet
+                    return 0L;
+                } else if (Element.extractType(progress) > type) { //we're already past all the elements of the given type
+                    return Long.MAX_VALUE;
+                } else { //the element at the current position might have a newer version at the start of the next blob, so it's still included
+                    return Element.extractId(progress);
+                }
+            }
+        }
 
-                        //write out the current node before advancing to the next one
-                        PbfElementHandler.this.writeNode(this.node);
-                    }
+        private final class ThreadState implements PrimitiveBlockDecoder.Visitor {
+            private final PrimitiveBlockDecoder decoder = new PrimitiveBlockDecoder();
 
-                    erase(this.node);
-                } else {
-                    //store the first node
-                }
-                this.node = node;
+            private boolean joined = false;
+            private int lastType;
+
+            private final long[] lastIds = new long[Relation.TYPE + 1];
+
+            //the most recently decoded element. we only know that it's the newest version of the element once we see the next element (or the end of the blob),
+            // so it's kept in serialized form until then
+            private int pendingType = -1;
+            private long pendingId;
+            private int pendingVersion;
+            private boolean pendingVisible;
+            private final ByteBuf pendingValue = UnpooledByteBufAllocator.DEFAULT.directBuffer();
+            private final ByteBuf pendingPoint = UnpooledByteBufAllocator.DEFAULT.directBuffer();
+            private final LongList pendingReferences = new LongArrayList();
+
+            @Override
+            public void node(@NonNull PrimitiveBlockDecoder block) throws Exception {
+                this.beginElement(Node.TYPE, block);
+                block.writeElement(this.pendingValue);
+                block.writePoint(this.pendingPoint);
             }
 
-            public void accept(@NonNull com.wolt.osm.parallelpbf.entity.Way way) throws Exception {
-                checkState(this.node == null && this.relation == null);
+            @Override
+            public void way(@NonNull PrimitiveBlockDecoder block) throws Exception {
+                this.beginElement(Way.TYPE, block);
+                block.writeWay(this.pendingValue);
+                block.getReferencesCombinedIds(this.pendingReferences);
+            }
 
-                if (this.lastType == com.wolt.osm.parallelpbf.entity.Node.class) {
-                    if (this.joined) {
-                        PbfElementHandler.this.nodesWriteAccess.threadRemove();
-                        PbfElementHandler.this.pointsWriteAccess.threadRemove();
-                    }
-                    PbfElementHandler.this.nodesWriteAccess.threadQuit();
-                    PbfElementHandler.this.pointsWriteAccess.threadQuit();
-                    this.lastType = com.wolt.osm.parallelpbf.entity.Way.class;
-                }
-                checkState(this.lastType == com.wolt.osm.parallelpbf.entity.Way.class, this.lastType);
+            @Override
+            public void relation(@NonNull PrimitiveBlockDecoder block) throws Exception {
+                this.beginElement(Relation.TYPE, block);
+                block.writeRelation(this.pendingValue);
+                block.getReferencesCombinedIds(this.pendingReferences);
+            }
 
-                if (!this.joined) {
-                    this.joined = true;
-                    PbfElementHandler.this.waysWriteAccess.threadJoin();
-                }
+            private void beginElement(int type, PrimitiveBlockDecoder block) throws Exception {
+                this.advanceTo(type);
 
-                if (this.way != null) {
-                    if (this.way.getId() == way.getId()) {
-                        checkState(this.way.getInfo().getVersion() < way.getInfo().getVersion(), "way %d goes from version %d to %d",
-                                way.getId(), this.way.getInfo().getVersion(), way.getInfo().getVersion());
+                if (this.pendingType >= 0) {
+                    if (this.pendingId == block.id()) {
+                        checkState(this.pendingVersion < block.version(), "%s %d goes from version %d to %d",
+                                Element.typeName(type), block.id(), this.pendingVersion, block.version());
 
-                        //replace the way with the new one
+                        //replace the element with the new one
                     } else {
-                        checkState(this.way.getId() < way.getId(), "ways out-of-order: %d to %d", this.way.getId(), way.getId());
+                        checkState(this.pendingId < block.id(), "%ss out-of-order: %d to %d", Element.typeName(type), this.pendingId, block.id());
 
-                        //write out the current way before advancing to the next one
-                        PbfElementHandler.this.writeWay(this.way);
+                        //write out the current element before advancing to the next one
+                        this.flush(true);
                     }
-
-                    erase(this.way);
-                } else {
-                    //store the first way
                 }
-                this.way = way;
+
+                this.lastIds[type] = block.id();
+                this.pendingType = type;
+                this.pendingId = block.id();
+                this.pendingVersion = block.version();
+                this.pendingVisible = block.visible();
+                this.pendingValue.clear();
+                this.pendingPoint.clear();
+                this.pendingReferences.clear();
             }
 
-            public void accept(@NonNull com.wolt.osm.parallelpbf.entity.Relation relation) throws Exception {
-                checkState(this.node == null && this.way == null);
+            private void advanceTo(int type) throws Exception {
+                checkState(type >= this.lastType, "%s after %s", Element.typeName(type), Element.typeName(this.lastType));
 
-                if (this.lastType == com.wolt.osm.parallelpbf.entity.Node.class) {
-                    if (this.joined) {
-                        PbfElementHandler.this.nodesWriteAccess.threadRemove();
-                        PbfElementHandler.this.pointsWriteAccess.threadRemove();
+                if (this.lastType < type && this.joined) { //we've moved on to the next element type, which means this blob won't contain any more of the previous one
+                    this.flush(true);
+                    for (OSMDataUnsortedWriteAccess access : PbfElementHandler.this.osmDataWriteAccessesByType[this.lastType]) {
+                        access.threadRemove();
                     }
-                    PbfElementHandler.this.nodesWriteAccess.threadQuit();
-                    PbfElementHandler.this.pointsWriteAccess.threadQuit();
-                    this.lastType = com.wolt.osm.parallelpbf.entity.Way.class;
-                }
-                if (this.lastType == com.wolt.osm.parallelpbf.entity.Way.class) {
-                    if (this.joined) {
-                        PbfElementHandler.this.waysWriteAccess.threadRemove();
-                    }
-                    PbfElementHandler.this.waysWriteAccess.threadQuit();
-                    this.lastType = com.wolt.osm.parallelpbf.entity.Relation.class;
+                    this.joined = false;
                 }
-                checkState(this.lastType == com.wolt.osm.parallelpbf.entity.Relation.class, this.lastType);
+                this.lastType = type;
 
                 if (!this.joined) {
                     this.joined = true;
-                    PbfElementHandler.this.relationsWriteAccess.threadJoin();
+                    for (OSMDataUnsortedWriteAccess access : PbfElementHandler.this.osmDataWriteAccessesByType[type]) {
+                        access.threadJoin();
+                    }
                 }
+            }
 
-                if (this.relation != null) {
-                    if (this.relation.getId() == relation.getId()) {
-                        checkState(this.relation.getInfo().getVersion() < relation.getInfo().getVersion(), "relation %d goes from version %d to %d",
-                                relation.getId(), this.relation.getInfo().getVersion(), relation.getInfo().getVersion());
+            /**
+             * Writes out the pending element.
+             *
+             * @param newest whether the pending element is known to be the newest version of the element. If {@code false}, a newer version may
+             *               still follow at the start of the next blob, so the element's references can't be emitted yet
+             */
+            private void flush(boolean newest) throws Exception {
+                switch (this.pendingType) {
+                    case -1:
+                        return;
+                    case Node.TYPE:
+                        if (this.pendingId >= PbfElementHandler.this.firstKeys[COLUMN_NODES]) {
+                            PbfElementHandler.this.nodesWriteAccess.put(this.pendingId, this.pendingVersion, this.pendingValue);
+                        }
+                        if (this.pendingId < PbfElementHandler.this.firstKeys[COLUMN_POINTS]) {
+                            //the point has already been ingested
+                        } else if (this.pendingVisible) { //only store the point if the node is actually visible
+                            PbfElementHandler.this.pointsWriteAccess.put(this.pendingId, this.pendingVersion, this.pendingPoint);
+                        } else { //we need to explicitly delete the point in order to replace any older versions of the point for which the node was visible
+                            PbfElementHandler.this.pointsWriteAccess.delete(this.pendingId, this.pendingVersion);
+                        }
+                        break;
+                    case Way.TYPE:
+                        if (this.pendingId >= PbfElementHandler.this.firstKeys[COLUMN_WAYS]) {
+                            PbfElementHandler.this.waysWriteAccess.put(this.pendingId, this.pendingVersion, this.pendingValue);
+                        }
+                        break;
+                    case Relation.TYPE:
+                        if (this.pendingId >= PbfElementHandler.this.firstKeys[COLUMN_RELATIONS]) {
+                            PbfElementHandler.this.relationsWriteAccess.put(this.pendingId, this.pendingVersion, this.pendingValue);
+                        }
+                        break;
+                    default:
+                        throw new IllegalStateException(String.valueOf(this.pendingType));
+                }
 
-                        //replace the relation with the new one
+                if (PbfElementHandler.this.referencesWriteAccess != null && this.pendingType != Node.TYPE) { //nodes don't reference anything
+                    long combinedId = Element.addTypeToId(this.pendingType, this.pendingId);
+                    if (newest) {
+                        PbfElementHandler.this.storage.references().addReferences(PbfElementHandler.this.referencesWriteAccess, this.pendingReferences, combinedId);
                     } else {
-                        checkState(this.relation.getId() < relation.getId(), "relations out-of-order: %d to %d", this.relation.getId(), relation.getId());
-
-                        //write out the current relation before advancing to the next one
-                        PbfElementHandler.this.writeRelation(this.relation);
+                        synchronized (PbfElementHandler.this.boundaryElements) {
+                            PbfElementHandler.this.boundaryElements.add(combinedId);
+                        }
                     }
-
-                    erase(this.relation);
-                } else {
-                    //store the first relation
-                }
-                this.relation = relation;
-            }
-
-            public void flush() throws Exception {
-                if (this.node != null) {
-                    checkState(this.way == null && this.relation == null);
-                    PbfElementHandler.this.writeNode(this.node);
-                    erase(this.node);
-                    this.node = null;
-                } else if (this.way != null) {
-                    checkState(this.relation == null);
-                    PbfElementHandler.this.writeWay(this.way);
-                    erase(this.way);
-                    this.way = null;
-                } else if (this.relation != null) {
-                    PbfElementHandler.this.writeRelation(this.relation);
-                    erase(this.relation);
-                    this.relation = null;
                 }
-            }
 
-            public void onBlobStart(BlobInformation blobInformation) throws Exception {
-                checkState(!this.joined);
+                PbfElementHandler.this.notifier.step(this.pendingType);
+                this.pendingType = -1;
             }
 
             public void onBlobComplete() throws Exception {
                 if (this.joined) {
-                    this.flush();
-                    if (this.lastType == com.wolt.osm.parallelpbf.entity.Node.class) {
-                        PbfElementHandler.this.nodesWriteAccess.threadRemove();
-                        PbfElementHandler.this.pointsWriteAccess.threadRemove();
-                    }
-                    if (this.lastType == com.wolt.osm.parallelpbf.entity.Way.class) {
-                        PbfElementHandler.this.waysWriteAccess.threadRemove();
-                    }
-                    if (this.lastType == com.wolt.osm.parallelpbf.entity.Relation.class) {
-                        PbfElementHandler.this.relationsWriteAccess.threadRemove();
+                    this.flush(false);
+                    for (OSMDataUnsortedWriteAccess access : PbfElementHandler.this.osmDataWriteAccessesByType[this.lastType]) {
+                        access.threadRemove();
                     }
                     this.joined = false;
                 }
             }
+
+            public void release() {
+                this.pendingValue.release();
+                this.pendingPoint.release();
+            }
         }
     }
 }
@@ -0,0 +1,311 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.mode;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import lombok.NonNull;
+import net.daporkchop.lib.common.function.exception.ESupplier;
+import net.daporkchop.lib.common.misc.file.PFiles;
+import net.daporkchop.lib.common.misc.string.PStrings;
+import net.daporkchop.lib.common.util.PorkUtil;
+import net.daporkchop.lib.unsafe.PUnsafe;
+import net.daporkchop.tpposmtilegen.osm.Element;
+import net.daporkchop.tpposmtilegen.storage.Storage;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.DatabaseConfig;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.WrappedRocksDB;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBReadAccess;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.iterate.RocksColumnSpliterator;
+import net.daporkchop.tpposmtilegen.util.CloseableExecutor;
+import net.daporkchop.tpposmtilegen.util.ProgressNotifier;
+import net.daporkchop.tpposmtilegen.util.Threading;
+import net.daporkchop.tpposmtilegen.util.Tile;
+import net.daporkchop.tpposmtilegen.util.squashfs.SquashfsBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.tpposmtilegen.util.Utils.*;
+
+/**
+ * Exports the tiles and external JSON directly from the index into a squashfs image, using the same directory layout as {@link Serve}.
+ * <p>
+ * Files are rendered in parallel, but {@link SquashfsBuilder} requires them to be added in the sorted order of their paths. The keys of every column are
+ * therefore collected and sorted by path up front, and rendered batches are buffered until all of the batches before them have been added.
+ *
+ * @author DaPorkchop_
+ */
+public class ExportSquashfs implements IMode {
+    private static final int BATCH_SIZE = 256;
+    private static final int MAX_BATCHES_IN_FLIGHT = PorkUtil.CPU_COUNT << 2;
+
+    static long[] collectKeys(@NonNull Storage storage, @NonNull DBReadAccess access, @NonNull WrappedRocksDB column) throws Exception {
+        LongList keys = new LongArrayList();
+        try (RocksColumnSpliterator rootSpliterator = new RocksColumnSpliterator(storage.db(), storage.db().internalColumnFamily(column), access.internalSnapshot(),
+                DatabaseConfig.ReadType.BULK_ITERATE, RocksColumnSpliterator.KeyOperations.FIXED_SIZE_LEX_ORDER)) {
+            Threading.forEachParallel(PorkUtil.CPU_COUNT, spliterator -> {
+                LongList localKeys = new LongArrayList();
+                spliterator.forEachRemaining(slice -> {
+                    checkState(slice.keySize() == 8, slice.keySize());
+                    localKeys.add(PUnsafe.getUnalignedLongBE(slice.keyAddr()));
+                });
+                synchronized (keys) {
+                    keys.addAll(localKeys);
+                }
+            }, rootSpliterator);
+        }
+        return keys.toLongArray();
+    }
+
+    /**
+     * Sorts the given distinct values by the names of the files or directories they will be stored in, which isn't necessarily the same as their numeric order.
+     */
+    private static int[] sortByName(@NonNull IntSet values, @NonNull IntFunction<String> nameFunction) {
+        return IntStream.of(values.toIntArray()).boxed()
+                .sorted(Comparator.comparing(nameFunction::apply))
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    private static Int2IntMap ranks(@NonNull int[] sortedValues) {
+        Int2IntMap ranks = new Int2IntOpenHashMap(sortedValues.length);
+        for (int i = 0; i < sortedValues.length; i++) {
+            ranks.put(sortedValues[i], i);
+        }
+        return ranks;
+    }
+
+    @Override
+    public String name() {
+        return "export_squashfs";
+    }
+
+    @Override
+    public String synopsis() {
+        return "<index_dir> <image> <compression> [dictionary]";
+    }
+
+    @Override
+    public String help() {
+        return "Exports all tiles and external JSON from the index directly into a squashfs image.";
+    }
+
+    @Override
+    public void run(@NonNull String... args) throws Exception {
+        checkArg(args.length == 3 || args.length == 4, "Usage: export_squashfs <index_dir> <image> <compression> [dictionary]");
+        Path src = PFiles.assertDirectoryExists(Paths.get(args[0]));
+        Path dst = Paths.get(args[1]);
+
+        try (Storage storage = new Storage(src, DatabaseConfig.RO_GENERAL);
+             DBReadAccess access = storage.db().snapshot();
+             CloseableExecutor executor = new CloseableExecutor("Export worker");
+             SquashfsBuilder builder = new SquashfsBuilder(Squash.compressionForName(args[2], args.length == 4 ? Paths.get(args[3]) : null), dst.resolveSibling(dst.getFileName().toString() + ".tmp"), dst, 19)) {
+            for (String levelName : IntStream.range(MIN_LEVEL, storage.maxLevel()).mapToObj(String::valueOf).sorted().toArray(String[]::new)) {
+                this.exportLevel(storage, access, executor, builder, levelName);
+            }
+        }
+    }
+
+    private void exportLevel(@NonNull Storage storage, @NonNull DBReadAccess access, @NonNull Executor executor, @NonNull SquashfsBuilder builder, @NonNull String levelName) throws Exception {
+        int level = Integer.parseInt(levelName);
+
+        long[] tilePositions = collectKeys(storage, access, storage.tileJsonStorage()[level]);
+        long[] combinedIds = collectKeys(storage, access, storage.externalJsonStorage()[level]);
+
+        //external json is stored in one directory per element type
+        Map<String, LongList> combinedIdsByType = new TreeMap<>();
+        for (long combinedId : combinedIds) {
+            combinedIdsByType.computeIfAbsent(Element.typeName(Element.extractType(combinedId)), unused -> new LongArrayList()).add(combinedId);
+        }
+
+        Set<String> directoryNames = new TreeSet<>(combinedIdsByType.keySet());
+        directoryNames.add("tile");
+
+        try (ProgressNotifier notifier = new ProgressNotifier.Builder().prefix("Export level " + level)
+                .slot("tiles", tilePositions.length).slot("external", combinedIds.length)
+                .build()) {
+            for (String directoryName : directoryNames) {
+                if ("tile".equals(directoryName)) {
+                    this.exportTiles(storage, access, executor, builder, notifier, levelName, tilePositions);
+                } else {
+                    this.exportExternal(storage, access, executor, builder, notifier, levelName, directoryName, combinedIdsByType.get(directoryName));
+                }
+            }
+        }
+    }
+
+    private void exportTiles(@NonNull Storage storage, @NonNull DBReadAccess access, @NonNull Executor executor, @NonNull SquashfsBuilder builder,
+                             @NonNull ProgressNotifier notifier, @NonNull String levelName, @NonNull long[] tilePositions) throws IOException {
+        int level = Integer.parseInt(levelName);
+
+        IntSet xValues = new IntOpenHashSet();
+        IntSet yValues = new IntOpenHashSet();
+        for (long tilePos : tilePositions) {
+            xValues.add(Tile.tileX(tilePos));
+            yValues.add(Tile.tileY(tilePos));
+        }
+
+        int[] xs = sortByName(xValues, String::valueOf);
+        int[] ys = sortByName(yValues, y -> y + ".json");
+        Int2IntMap xRanks = ranks(xs);
+        Int2IntMap yRanks = ranks(ys);
+
+        //the ranks are sorted by name, so sorting the combined ranks numerically yields the tiles in path order
+        long[] sortKeys = new long[tilePositions.length];
+        for (int i = 0; i < tilePositions.length; i++) {
+            sortKeys[i] = ((long) xRanks.get(Tile.tileX(tilePositions[i])) << 32L) | yRanks.get(Tile.tileY(tilePositions[i]));
+        }
+        maybeParallelSort(sortKeys);
+
+        exportOrdered(executor, builder, notifier, 0, sortKeys.length,
+                i -> Paths.get(levelName, "tile", String.valueOf(xs[(int) (sortKeys[i] >>> 32L)]), ys[(int) sortKeys[i]] + ".json"),
+                (from, to) -> {
+                    ByteBuf[] bodies = new ByteBuf[to - from];
+                    for (int i = from; i < to; i++) {
+                        bodies[i - from] = storage.getTile(access, xs[(int) (sortKeys[i] >>> 32L)], ys[(int) sortKeys[i]], level);
+                    }
+                    return bodies;
+                });
+    }
+
+    private void exportExternal(@NonNull Storage storage, @NonNull DBReadAccess access, @NonNull Executor executor, @NonNull SquashfsBuilder builder,
+                                @NonNull ProgressNotifier notifier, @NonNull String levelName, @NonNull String typeName, @NonNull LongList combinedIds) throws IOException {
+        int level = Integer.parseInt(levelName);
+        int type = Element.typeId(typeName);
+
+        //coastlines are stored as <level>/coastline/<aaa>/<bbb>.json, everything else as <level>/<type>/<aaa>/<bbb>/<ccc>.json. only the outermost directory can
+        // have a name longer than 3 digits, so it's the only one whose numeric and name order can differ
+        boolean coastline = "coastline".equals(typeName);
+        long divisor = coastline ? 1000L : 1000000L;
+
+        IntSet topValues = new IntOpenHashSet();
+        for (int i = 0; i < combinedIds.size(); i++) {
+            topValues.add(toInt(Element.extractId(combinedIds.getLong(i)) / divisor));
+        }
+
+        int[] tops = sortByName(topValues, top -> PStrings.fastFormat("%03d", top));
+        Int2IntMap topRanks = ranks(tops);
+
+        long[] sortKeys = new long[combinedIds.size()];
+        for (int i = 0; i < sortKeys.length; i++) {
+            long id = Element.extractId(combinedIds.getLong(i));
+            sortKeys[i] = ((long) topRanks.get(toInt(id / divisor)) << 32L) | (id % divisor);
+        }
+        maybeParallelSort(sortKeys);
+
+        exportOrdered(executor, builder, notifier, 1, sortKeys.length,
+                i -> {
+                    String top = PStrings.fastFormat("%03d", tops[(int) (sortKeys[i] >>> 32L)]);
+                    int remainder = (int) sortKeys[i];
+                    return coastline
+                            ? Paths.get(levelName, typeName, top, PStrings.fastFormat("%03d.json", remainder))
+                            : Paths.get(levelName, typeName, top, PStrings.fastFormat("%03d", remainder / 1000), PStrings.fastFormat("%03d.json", remainder % 1000));
+                },
+                (from, to) -> {
+                    LongList ids = new LongArrayList(to - from);
+                    for (int i = from; i < to; i++) {
+                        ids.add(Element.addTypeToId(type, tops[(int) (sortKeys[i] >>> 32L)] * divisor + (int) sortKeys[i]));
+                    }
+
+                    List<ByteBuffer> values = storage.externalJsonStorage()[level].getAll(access, ids);
+                    ByteBuf[] bodies = new ByteBuf[values.size()];
+                    for (int i = 0; i < bodies.length; i++) {
+                        ByteBuffer value = values.get(i);
+                        bodies[i] = value != null ? Unpooled.wrappedBuffer(value) : null;
+                    }
+                    return bodies;
+                });
+    }
+
+    /**
+     * Renders the files with the given indices in parallel batches, and adds them to the builder in order of their indices.
+     * <p>
+     * Empty files are skipped.
+     */
+    private static void exportOrdered(@NonNull Executor executor, @NonNull SquashfsBuilder builder, @NonNull ProgressNotifier notifier, int slot,
+                                      int count, @NonNull IntFunction<Path> pathFunction, @NonNull BatchRenderer renderer) throws IOException {
+        Deque<CompletableFuture<ByteBuf[]>> pending = new ArrayDeque<>();
+        int added = 0;
+        for (int from = 0; from < count; from += BATCH_SIZE) {
+            int batchFrom = from;
+            int batchTo = min(from + BATCH_SIZE, count);
+            pending.addLast(CompletableFuture.supplyAsync((ESupplier<ByteBuf[]>) () -> renderer.render(batchFrom, batchTo), executor));
+
+            if (pending.size() >= MAX_BATCHES_IN_FLIGHT) { //wait for the oldest batch before submitting any more
+                added = addBatch(builder, notifier, slot, pathFunction, pending.pollFirst().join(), added);
+            }
+        }
+        while (!pending.isEmpty()) {
+            added = addBatch(builder, notifier, slot, pathFunction, pending.pollFirst().join(), added);
+        }
+    }
+
+    private static int addBatch(@NonNull SquashfsBuilder builder, @NonNull ProgressNotifier notifier, int slot,
+                                @NonNull IntFunction<Path> pathFunction, @NonNull ByteBuf[] bodies, int baseIndex) throws IOException {
+        for (int i = 0; i < bodies.length; i++) {
+            ByteBuf body = bodies[i];
+            if (body != null) {
+                try {
+                    if (body.isReadable()) {
+                        builder.putFile(pathFunction.apply(baseIndex + i), body);
+                    }
+                } finally {
+                    body.release();
+                }
+            }
+            notifier.step(slot);
+        }
+        return baseIndex + bodies.length;
+    }
+
+    @FunctionalInterface
+    private interface BatchRenderer {
+        /**
+         * Renders the files with indices in the given range.
+         *
+         * @return the contents of each file, or {@code null} for files which don't exist
+         */
+        ByteBuf[] render(int from, int to) throws Exception;
+    }
+}
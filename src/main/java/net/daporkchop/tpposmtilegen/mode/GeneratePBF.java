@@ -0,0 +1,74 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.mode;
+
+import lombok.NonNull;
+import net.daporkchop.lib.common.util.PorkUtil;
+import net.daporkchop.tpposmtilegen.pbf.SyntheticPbfGenerator;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.lib.logging.Logging.*;
+import static net.daporkchop.tpposmtilegen.util.Utils.*;
+
+/**
+ * @author DaPorkchop_
+ */
+public class GeneratePBF implements IMode {
+    @Override
+    public String name() {
+        return "generate_pbf";
+    }
+
+    @Override
+    public String synopsis() {
+        return "<dst.osm.pbf> <nodes> <ways> <relations> [seed]";
+    }
+
+    @Override
+    public String help() {
+        return "Generates a PBF file full of synthetic OSM data, which can be used in place of a real planet file for testing and benchmarking.\n"
+               + "The output is the same for a given set of arguments.";
+    }
+
+    @Override
+    public void run(@NonNull String... args) throws Exception {
+        checkArg(args.length == 4 || args.length == 5, "Usage: generate_pbf <dst.osm.pbf> <nodes> <ways> <relations> [seed]");
+        Path dst = Paths.get(args[0]);
+        checkArg(!Files.exists(dst), "'%s' already exists!", dst);
+
+        SyntheticPbfGenerator generator = SyntheticPbfGenerator.builder()
+                .nodes(Long.parseUnsignedLong(args[1]))
+                .ways(Long.parseUnsignedLong(args[2]))
+                .relations(Long.parseUnsignedLong(args[3]))
+                .seed(args.length == 5 ? Long.parseLong(args[4]) : 0L)
+                .build();
+
+        long startTime = System.nanoTime();
+        long elements = generator.generate(dst, PorkUtil.CPU_COUNT);
+        long time = System.nanoTime() - startTime;
+        logger.success("Generated %d elements (%s) in %.2fs", elements, formatSize(Files.size(dst)), time / 1_000_000_000.0d);
+    }
+}
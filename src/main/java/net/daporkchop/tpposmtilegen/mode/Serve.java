@@ -26,6 +26,9 @@ import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
 import lombok.NonNull;
 import lombok.SneakyThrows;
 import net.daporkchop.lib.binary.oio.appendable.PAppendable;
@@ -36,12 +39,14 @@ import net.daporkchop.lib.common.misc.string.PStrings;
 import net.daporkchop.tpposmtilegen.geometry.Point;
 import net.daporkchop.tpposmtilegen.http.HttpHandler;
 import net.daporkchop.tpposmtilegen.http.HttpServer;
+import net.daporkchop.tpposmtilegen.http.RequestCoalescer;
 import net.daporkchop.tpposmtilegen.http.Response;
 import net.daporkchop.tpposmtilegen.http.exception.HttpException;
 import net.daporkchop.tpposmtilegen.osm.Element;
 import net.daporkchop.tpposmtilegen.storage.Storage;
 import net.daporkchop.tpposmtilegen.storage.rocksdb.DatabaseConfig;
 import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBReadAccess;
+import net.daporkchop.tpposmtilegen.util.Bounds2d;
 import net.daporkchop.tpposmtilegen.util.Tile;
 
 import java.io.IOException;
@@ -49,6 +54,9 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -61,6 +69,11 @@ import static net.daporkchop.tpposmtilegen.util.Utils.*;
  * @author DaPorkchop_
  */
 public class Serve implements IMode {
+    /**
+     * The maximum number of tiles which may be requested at once using the {@code /<level>/tiles?bbox=...} endpoint.
+     */
+    public static final int MAX_BATCH_TILES = 1024;
+
     @Override
     public String name() {
         return "serve";
@@ -94,6 +107,8 @@ public class Serve implements IMode {
         protected final HttpServer server;
         protected final Path customRoot;
 
+        protected final RequestCoalescer tileRequests = new RequestCoalescer();
+
         public Server(int port, @NonNull Storage storage, @NonNull DBReadAccess access) {
             this.storage = storage;
             this.access = access;
@@ -124,12 +139,18 @@ public class Serve implements IMode {
             }
 
             if (path.isEmpty()) {
-                this.sendIndex(response, path, IntStream.range(0, MAX_LEVEL).mapToObj(i -> i + "/"));
+                this.sendIndex(response, path, IntStream.range(0, this.storage.maxLevel()).mapToObj(i -> i + "/"));
                 return;
             }
 
             String[] split = path.split("/");
 
+            if ("query".equals(split[0])) {
+                checkArg(split.length == 1);
+                this.handleQuery(request.uri(), response);
+                return;
+            }
+
             int level = Integer.parseUnsignedInt(split[0]);
             if (split.length == 1) {
                 this.sendIndex(response, path, Stream.of("way/", "relation/", "coastline/", "tile/"));
@@ -158,9 +179,24 @@ public class Serve implements IMode {
                     checkArg(split[3].endsWith(".json"));
                     int tileY = Integer.parseInt(split[3].substring(0, split[3].length() - ".json".length()));
 
+                    List<String> resolveParams = new QueryStringDecoder(request.uri()).parameters().get("resolve");
+                    boolean resolve = resolveParams != null && resolveParams.size() == 1 && Boolean.parseBoolean(resolveParams.get(0));
+
+                    //concurrent requests for the same tile share a single read
                     response.status(HttpResponseStatus.OK)
                             .contentType("application/geo+json")
-                            .body(this.storage.getTile(this.access, tileX, tileY, level));
+                            .route("tile")
+                            .body(this.tileRequests.load(resolve ? path + "?resolve" : path, () -> this.storage.getTile(this.access, tileX, tileY, level, resolve)));
+                    return;
+                }
+                case "tiles": {
+                    checkArg(split.length == 2);
+                    LongList tilePositions = this.parseTileBbox(request.uri());
+
+                    response.status(HttpResponseStatus.OK)
+                            .contentType("application/x-ndjson")
+                            .route("tiles")
+                            .body(this.storage.getTiles(this.access, tilePositions, level));
                     return;
                 }
                 case "way":
@@ -218,6 +254,7 @@ public class Serve implements IMode {
             int type = Element.typeId(split[1]);
             long combinedId = Element.addTypeToId(type, id);
 
+            response.route("external");
             ByteBuffer val = this.storage.externalJsonStorage()[level].get(this.access, combinedId);
             if (val == null) {
                 response.status(HttpResponseStatus.NOT_FOUND);
@@ -228,11 +265,96 @@ public class Serve implements IMode {
             }
         }
 
+        /**
+         * Handles a request to {@code /query?bbox=<minLon>,<minLat>,<maxLon>,<maxLat>[&level=<level>]}, which streams all features intersecting the given
+         * bounding box.
+         */
+        private void handleQuery(@NonNull String uri, @NonNull Response response) {
+            Map<String, List<String>> params = new QueryStringDecoder(uri).parameters();
+            List<String> bboxParams = params.get("bbox");
+            List<String> levelParams = params.getOrDefault("level", Collections.singletonList(String.valueOf(MIN_LEVEL)));
+            if (bboxParams == null || bboxParams.size() != 1 || levelParams.size() != 1) {
+                throw new HttpException(HttpResponseStatus.BAD_REQUEST);
+            }
+
+            String[] bbox = bboxParams.get(0).split(",");
+            int level;
+            Bounds2d pointBounds;
+            try {
+                checkArg(bbox.length == 4);
+                level = Integer.parseUnsignedInt(levelParams.get(0));
+                checkArg(level >= MIN_LEVEL && level < this.storage.maxLevel());
+
+                double minLon = Double.parseDouble(bbox[0]);
+                double minLat = Double.parseDouble(bbox[1]);
+                double maxLon = Double.parseDouble(bbox[2]);
+                double maxLat = Double.parseDouble(bbox[3]);
+                checkArg(minLon <= maxLon && minLat <= maxLat);
+
+                //clamp to the valid coordinate range
+                pointBounds = Bounds2d.of(
+                        Point.doubleToFix(Math.max(minLon, -180.0d)), Point.doubleToFix(Math.min(maxLon, 180.0d)),
+                        Point.doubleToFix(Math.max(minLat, -90.0d)), Point.doubleToFix(Math.min(maxLat, 90.0d)));
+            } catch (IllegalArgumentException e) {
+                throw new HttpException(HttpResponseStatus.BAD_REQUEST);
+            }
+
+            Bounds2d tileBounds = Bounds2d.of(
+                    Tile.point2tile(level, pointBounds.minX()), Tile.point2tile(level, pointBounds.maxX()),
+                    Tile.point2tile(level, pointBounds.minY()), Tile.point2tile(level, pointBounds.maxY()));
+
+            response.status(HttpResponseStatus.OK)
+                    .contentType("application/geo+json")
+                    .route("query")
+                    .chunkedBody(new BboxQueryInput(this.storage, this.access, level, tileBounds));
+        }
+
+        /**
+         * Parses the {@code bbox} parameter of a batched tile request.
+         * <p>
+         * The bounding box is given in tile coordinates in the form {@code <minX>,<minY>,<maxX>,<maxY>} (all inclusive).
+         */
+        private LongList parseTileBbox(@NonNull String uri) {
+            List<String> bboxParams = new QueryStringDecoder(uri).parameters().get("bbox");
+            if (bboxParams == null || bboxParams.size() != 1) {
+                throw new HttpException(HttpResponseStatus.BAD_REQUEST);
+            }
+
+            String[] bbox = bboxParams.get(0).split(",");
+            int minX;
+            int minY;
+            int maxX;
+            int maxY;
+            try {
+                checkArg(bbox.length == 4);
+                minX = Integer.parseInt(bbox[0]);
+                minY = Integer.parseInt(bbox[1]);
+                maxX = Integer.parseInt(bbox[2]);
+                maxY = Integer.parseInt(bbox[3]);
+            } catch (IllegalArgumentException e) {
+                throw new HttpException(HttpResponseStatus.BAD_REQUEST);
+            }
+
+            if (minX > maxX || minY > maxY
+                || ((long) maxX - minX + 1L) * ((long) maxY - minY + 1L) > MAX_BATCH_TILES) {
+                throw new HttpException(HttpResponseStatus.BAD_REQUEST);
+            }
+
+            LongList tilePositions = new LongArrayList((maxX - minX + 1) * (maxY - minY + 1));
+            for (int x = minX; x <= maxX; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    tilePositions.add(Tile.xy2tilePos(x, y));
+                }
+            }
+            return tilePositions;
+        }
+
         @SneakyThrows(IOException.class)
         private void sendIndex(@NonNull Response response, @NonNull String path, @NonNull Stream<String> values) {
             ByteBuf body = UnpooledByteBufAllocator.DEFAULT.ioBuffer();
             response.contentType("text/html")
                     .status(HttpResponseStatus.OK)
+                    .route("index")
                     .body(body);
 
             try (PAppendable out = new UTF8ByteBufAppendable(body)) {
@@ -245,10 +367,25 @@ public class Serve implements IMode {
             }
         }
 
+        @Override
+        public void appendMetrics(@NonNull StringBuilder out) {
+            out.append("# TYPE tpposmtilegen_tile_requests_total counter\n")
+                    .append("tpposmtilegen_tile_requests_total ").append(this.tileRequests.requests()).append('\n');
+            out.append("# TYPE tpposmtilegen_tile_requests_coalesced_total counter\n")
+                    .append("tpposmtilegen_tile_requests_coalesced_total ").append(this.tileRequests.coalesced()).append('\n');
+            out.append("# TYPE tpposmtilegen_external_json_cache_hits_total counter\n")
+                    .append("tpposmtilegen_external_json_cache_hits_total ").append(this.storage.externalJsonCache().hits()).append('\n');
+            out.append("# TYPE tpposmtilegen_external_json_cache_misses_total counter\n")
+                    .append("tpposmtilegen_external_json_cache_misses_total ").append(this.storage.externalJsonCache().misses()).append('\n');
+        }
+
         @Override
         public void close() {
             logger.info("Shutting down...");
             this.server.close();
+
+            logger.info("Coalesced %d/%d tile requests", this.tileRequests.coalesced(), this.tileRequests.requests());
+            logger.info("External JSON cache: %d hits, %d misses", this.storage.externalJsonCache().hits(), this.storage.externalJsonCache().misses());
         }
     }
 }
@@ -0,0 +1,121 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.mode;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import lombok.NonNull;
+import net.daporkchop.tpposmtilegen.http.HttpHandler;
+import net.daporkchop.tpposmtilegen.http.HttpServer;
+import net.daporkchop.tpposmtilegen.http.Response;
+import net.daporkchop.tpposmtilegen.http.exception.HttpException;
+import net.daporkchop.tpposmtilegen.util.squashfs.SquashfsReader;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Scanner;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.lib.logging.Logging.*;
+
+/**
+ * @author DaPorkchop_
+ */
+public class ServeSquashfs implements IMode {
+    @Override
+    public String name() {
+        return "serve_squashfs";
+    }
+
+    @Override
+    public String synopsis() {
+        return "<image> <port>";
+    }
+
+    @Override
+    public String help() {
+        return "Launches a web server which serves files directly from a squashfs image, without needing the index.";
+    }
+
+    @Override
+    public void run(@NonNull String... args) throws Exception {
+        checkArg(args.length == 2, "Usage: serve_squashfs <image> <port>");
+        Path src = Paths.get(args[0]);
+
+        logger.info("Opening %s and indexing its directory tree...", src);
+        try (SquashfsReader reader = new SquashfsReader(src, SquashfsReader.DEFAULT_CACHE_SIZE);
+             Server server = new Server(Integer.parseUnsignedInt(args[1]), reader)) {
+            new Scanner(System.in).nextLine();
+        }
+    }
+
+    static class Server implements HttpHandler, AutoCloseable {
+        protected final SquashfsReader reader;
+        protected final HttpServer server;
+
+        public Server(int port, @NonNull SquashfsReader reader) {
+            this.reader = reader;
+
+            this.server = new HttpServer(new InetSocketAddress(port), this);
+            logger.success("Server started on port %d, serving %d files", port, reader.fileCount());
+        }
+
+        @Override
+        public void handleRequest(@NonNull FullHttpRequest request, @NonNull Response response) throws Exception {
+            if (request.method() != HttpMethod.GET) {
+                throw new HttpException(HttpResponseStatus.METHOD_NOT_ALLOWED);
+            }
+
+            String path = new QueryStringDecoder(request.uri()).path().substring(1); //trim leading slash
+
+            response.route("file");
+            ByteBuf contents = this.reader.read(path);
+            if (contents == null) {
+                response.status(HttpResponseStatus.NOT_FOUND);
+            } else {
+                response.status(HttpResponseStatus.OK)
+                        .contentType(path.endsWith(".json") ? "application/geo+json" : "application/octet-stream")
+                        .body(contents);
+            }
+        }
+
+        @Override
+        public void appendMetrics(@NonNull StringBuilder out) {
+            out.append("# TYPE tpposmtilegen_squashfs_block_cache_hits_total counter\n")
+                    .append("tpposmtilegen_squashfs_block_cache_hits_total ").append(this.reader.cacheHits()).append('\n');
+            out.append("# TYPE tpposmtilegen_squashfs_block_cache_misses_total counter\n")
+                    .append("tpposmtilegen_squashfs_block_cache_misses_total ").append(this.reader.cacheMisses()).append('\n');
+        }
+
+        @Override
+        public void close() {
+            logger.info("Shutting down...");
+            this.server.close();
+
+            logger.info("Block cache: %d hits, %d misses", this.reader.cacheHits(), this.reader.cacheMisses());
+        }
+    }
+}
@@ -81,6 +81,7 @@ public class ServeWithUpdates implements IMode {
                             result = updater.update(storage, txn);
                             txn.flush(); //commit changes
                         }
+                        storage.externalJsonCache().clear(); //cached external json may have been modified by the update
                         updateCount++;
                     } while (running.get() && result);
 
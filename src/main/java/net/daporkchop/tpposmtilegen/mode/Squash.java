@@ -22,37 +22,56 @@ package net.daporkchop.tpposmtilegen.mode;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import net.daporkchop.lib.common.function.exception.ESupplier;
 import net.daporkchop.lib.common.function.io.IOBiConsumer;
-import net.daporkchop.lib.common.misc.file.PFiles;
-import net.daporkchop.tpposmtilegen.storage.Storage;
+import net.daporkchop.lib.common.function.io.IOConsumer;
+import net.daporkchop.lib.common.util.PorkUtil;
+import net.daporkchop.tpposmtilegen.util.CloseableExecutor;
+import net.daporkchop.tpposmtilegen.util.CloseableThreadFactory;
 import net.daporkchop.tpposmtilegen.util.ProgressNotifier;
-import net.daporkchop.tpposmtilegen.util.SimpleRecycler;
 import net.daporkchop.tpposmtilegen.util.squashfs.SquashfsBuilder;
+import net.daporkchop.tpposmtilegen.util.squashfs.SquashfsReader;
 import net.daporkchop.tpposmtilegen.util.squashfs.compression.Compression;
 import net.daporkchop.tpposmtilegen.util.squashfs.compression.GzipCompression;
 import net.daporkchop.tpposmtilegen.util.squashfs.compression.NoCompression;
 import net.daporkchop.tpposmtilegen.util.squashfs.compression.ZstdCompression;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 
+import static java.lang.Math.*;
 import static net.daporkchop.lib.common.util.PValidation.*;
 import static net.daporkchop.tpposmtilegen.util.Utils.*;
 
 /**
+ * Packs a directory into a squashfs image.
+ * <p>
+ * The directory tree is walked one directory at a time in sorted order. Files are read ahead on a pool of {@link #READ_THREADS} threads as they're found, and
+ * added to the builder in the same order as their contents become available.
+ *
  * @author DaPorkchop_
  */
 public class Squash implements IMode {
+    static final int READ_THREADS = Integer.getInteger("squashReadThreads", PorkUtil.CPU_COUNT);
+    private static final int READ_AHEAD_BYTES = toInt(Long.getLong("squashReadAheadBytes", 256L << 20L));
+
     static Compression compressionForName(@NonNull String name) {
         switch (name) {
             case "none":
@@ -66,6 +85,18 @@ public class Squash implements IMode {
         }
     }
 
+    /**
+     * @param dictionary the path to a zstd dictionary produced by {@link TrainDictionary}, or {@code null}
+     */
+    static Compression compressionForName(@NonNull String name, Path dictionary) throws IOException {
+        if (dictionary == null) {
+            return compressionForName(name);
+        }
+
+        checkArg("zstd".equals(name), "a dictionary may only be used with zstd compression");
+        return new ZstdCompression(Unpooled.wrappedBuffer(Files.readAllBytes(dictionary)));
+    }
+
     @Override
     public String name() {
         return "squash";
@@ -73,27 +104,34 @@ public class Squash implements IMode {
 
     @Override
     public String synopsis() {
-        return "<src_dir> <squashfs> <compression>";
+        return "<src_dir> <squashfs> <compression> [dictionary]";
     }
 
     @Override
     public String help() {
-        return "Packs a given directory into a squashfs.";
+        return "Packs a given directory into a squashfs. If a zstd dictionary is given, the resulting image may only be read by serve_squashfs.";
     }
 
     @Override
     public void run(@NonNull String... args) throws Exception {
-        checkArg(args.length == 3, "Usage: squash <src_dir> <squashfs> <compression>");
+        checkArg(args.length == 3 || args.length == 4, "Usage: squash <src_dir> <squashfs> <compression> [dictionary]");
         Path dst = Paths.get(args[1]);
 
-        try (SquashfsBuilder builder = new SquashfsBuilder(compressionForName(args[2]), dst.resolveSibling(dst.getFileName().toString() + ".tmp"), dst, 19);
+        try (SquashfsBuilder builder = new SquashfsBuilder(compressionForName(args[2], args.length == 4 ? Paths.get(args[3]) : null), dst.resolveSibling(dst.getFileName().toString() + ".tmp"), dst, 19);
+             CloseableExecutor executor = new CloseableExecutor(new CloseableThreadFactory("Squash reader"), READ_THREADS);
              ProgressNotifier notifier = new ProgressNotifier.Builder().prefix("Squash")
                      .slot("files").slot("directories").build()) {
-            this.squashRecursive(builder, notifier, null, Paths.get(args[0]));
+            this.squashOrdered(builder, executor, notifier, Paths.get(args[0]), null, null);
         }
     }
 
-    private void squashRecursive(@NonNull SquashfsBuilder builder, @NonNull ProgressNotifier notifier, Path fakeRoot, @NonNull Path dir) throws IOException {
+    /**
+     * Calls the given callback for every file in the given directory and its subdirectories, in the order in which they need to be added to the
+     * {@link SquashfsBuilder}.
+     * <p>
+     * Only the contents of the directories which are currently being visited are kept in memory.
+     */
+    private void forEachRecursive(@NonNull ProgressNotifier notifier, Path fakeRoot, @NonNull Path dir, @NonNull IOConsumer<InputFile> callback) throws IOException {
         Map<String, BasicFileAttributes> namesToAttrs = new TreeMap<>();
         Files.find(dir, 1, (path, attrs) -> {
             if (!dir.equals(path)) {
@@ -108,21 +146,139 @@ public class Squash implements IMode {
             Path filePath = dir.resolve(name);
             Path outputPath = fakeRoot != null ? fakeRoot.resolve(name) : Paths.get(name);
             if (attrs.isDirectory()) {
-                this.squashRecursive(builder, notifier, outputPath, filePath);
+                this.forEachRecursive(notifier, outputPath, filePath, callback);
                 notifier.step(1);
             } else {
-                SimpleRecycler<ByteBuf> recycler = IO_BUFFER_RECYCLER.get();
-                ByteBuf buf = recycler.get();
-                try {
-                    try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
-                        readFully(channel, buf, toInt(attrs.size(), filePath));
+                callback.acceptThrowing(new InputFile(filePath, outputPath, toInt(attrs.size(), filePath)));
+            }
+        });
+    }
+
+    /**
+     * Reads all the files in the given directory and its subdirectories ahead in parallel, and adds them to the builder in order.
+     * <p>
+     * The number of bytes which have been read but not yet added to the builder is limited to {@link #READ_AHEAD_BYTES}.
+     *
+     * @param previous     a previous image to copy unchanged files from, or {@code null}
+     * @param changedPaths the paths of all files which have changed since the previous image was built. If {@code null}, each file's contents are compared
+     *                     with its contents in the previous image instead
+     */
+    void squashOrdered(@NonNull SquashfsBuilder builder, @NonNull Executor executor, @NonNull ProgressNotifier notifier, @NonNull Path dir,
+                       SquashfsReader previous, Set<String> changedPaths) throws IOException {
+        Semaphore bytesInFlight = new Semaphore(READ_AHEAD_BYTES);
+        Deque<PendingFile> pending = new ArrayDeque<>();
+
+        try {
+            this.forEachRecursive(notifier, null, dir, file -> {
+                if (previous != null && changedPaths != null && !changedPaths.contains(file.imagePath())) { //the file doesn't need to be read at all
+                    pending.addLast(new PendingFile(file, 0, CompletableFuture.completedFuture(null)));
+                } else {
+                    //files larger than the limit are allowed, but only when nothing else is in flight
+                    int permits = min(file.size, READ_AHEAD_BYTES);
+                    while (!bytesInFlight.tryAcquire(permits)) { //wait for the oldest file to be added before reading any more
+                        this.addFile(builder, notifier, bytesInFlight, previous, pending.pollFirst());
                     }
-                    builder.putFile(outputPath, buf);
-                } finally {
-                    recycler.release(buf);
+
+                    pending.addLast(new PendingFile(file, permits, CompletableFuture.supplyAsync((ESupplier<ByteBuf>) () -> {
+                        ByteBuf buf = readFile(file);
+                        if (previous != null && changedPaths == null) { //compare the file's contents with the previous image
+                            ByteBuf previousContents = previous.read(file.imagePath());
+                            if (previousContents != null) {
+                                try {
+                                    if (buf.equals(previousContents)) { //the file is unchanged, signal that it should be copied
+                                        buf.release();
+                                        return null;
+                                    }
+                                } finally {
+                                    previousContents.release();
+                                }
+                            }
+                        }
+                        return buf;
+                    }, executor)));
                 }
-                notifier.step(0);
+
+                //add any files which are already done, so that they don't pile up while the tree is still being walked
+                while (!pending.isEmpty() && pending.peekFirst().contents.isDone()) {
+                    this.addFile(builder, notifier, bytesInFlight, previous, pending.pollFirst());
+                }
+            });
+            while (!pending.isEmpty()) {
+                this.addFile(builder, notifier, bytesInFlight, previous, pending.pollFirst());
             }
-        });
+        } finally { //make sure no buffers are leaked if something went wrong
+            pending.forEach(file -> file.contents.thenAccept(buf -> {
+                if (buf != null) {
+                    buf.release();
+                }
+            }));
+        }
+    }
+
+    private void addFile(@NonNull SquashfsBuilder builder, @NonNull ProgressNotifier notifier, @NonNull Semaphore bytesInFlight,
+                         SquashfsReader previous, @NonNull PendingFile file) throws IOException {
+        ByteBuf buf = file.contents.join();
+        try {
+            if (buf == null && !builder.copyFile(file.file.outputPath, previous, file.file.imagePath())) { //the file is new, so we have to read it after all
+                buf = readFile(file.file);
+            }
+            if (buf != null) {
+                builder.putFile(file.file.outputPath, buf);
+            }
+        } finally {
+            if (buf != null) {
+                buf.release();
+            }
+            bytesInFlight.release(file.permits);
+        }
+        notifier.step(0);
+    }
+
+    private static ByteBuf readFile(@NonNull InputFile file) throws IOException {
+        ByteBuf buf = UnpooledByteBufAllocator.DEFAULT.ioBuffer(file.size);
+        try (FileChannel channel = FileChannel.open(file.path, StandardOpenOption.READ)) {
+            readFully(channel, buf, file.size);
+        } catch (Exception e) {
+            buf.release();
+            throw e;
+        }
+        return buf;
+    }
+
+    /**
+     * A file to be added to the image.
+     *
+     * @author DaPorkchop_
+     */
+    @RequiredArgsConstructor
+    static final class InputFile {
+        @NonNull
+        protected final Path path;
+        @NonNull
+        protected final Path outputPath;
+        protected final int size;
+
+        /**
+         * @return the path to store this file at in the image, with components separated by {@code '/'}
+         */
+        String imagePath() {
+            StringJoiner joiner = new StringJoiner("/");
+            this.outputPath.forEach(component -> joiner.add(component.toString()));
+            return joiner.toString();
+        }
+    }
+
+    /**
+     * A file which is currently being read.
+     *
+     * @author DaPorkchop_
+     */
+    @RequiredArgsConstructor
+    private static final class PendingFile {
+        @NonNull
+        protected final InputFile file;
+        protected final int permits;
+        @NonNull
+        protected final CompletableFuture<ByteBuf> contents;
     }
 }
@@ -0,0 +1,89 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.mode;
+
+import lombok.NonNull;
+import net.daporkchop.tpposmtilegen.util.CloseableExecutor;
+import net.daporkchop.tpposmtilegen.util.CloseableThreadFactory;
+import net.daporkchop.tpposmtilegen.util.ProgressNotifier;
+import net.daporkchop.tpposmtilegen.util.squashfs.SquashfsBuilder;
+import net.daporkchop.tpposmtilegen.util.squashfs.SquashfsReader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Packs a given directory into a squashfs, copying the compressed data of all unchanged files verbatim from a previous image instead of recompressing it.
+ * <p>
+ * Only the directory and inode tables are rebuilt from scratch. The new image uses the same compression, dictionary and block size as the previous one.
+ *
+ * @author DaPorkchop_
+ */
+public class SquashIncremental extends Squash {
+    @Override
+    public String name() {
+        return "squash_incremental";
+    }
+
+    @Override
+    public String synopsis() {
+        return "<src_dir> <previous_squashfs> <squashfs> [changed_paths]";
+    }
+
+    @Override
+    public String help() {
+        return "Packs a given directory into a squashfs, reusing the data of unchanged files from a previous image. "
+               + "If a file listing the changed paths (one per line, relative to src_dir) is given, all other files are assumed to be unchanged. "
+               + "Otherwise, every file is compared with its contents in the previous image.";
+    }
+
+    @Override
+    public void run(@NonNull String... args) throws Exception {
+        checkArg(args.length == 3 || args.length == 4, "Usage: squash_incremental <src_dir> <previous_squashfs> <squashfs> [changed_paths]");
+        Path previousPath = Paths.get(args[1]);
+        Path dst = Paths.get(args[2]);
+
+        Set<String> changedPaths = null;
+        if (args.length == 4) {
+            try (Stream<String> lines = Files.lines(Paths.get(args[3]))) {
+                changedPaths = lines.map(String::trim).filter(line -> !line.isEmpty())
+                        .map(line -> line.startsWith("/") ? line.substring(1) : line)
+                        .collect(Collectors.toCollection(HashSet::new));
+            }
+        }
+
+        try (SquashfsReader previous = new SquashfsReader(previousPath, SquashfsReader.DEFAULT_CACHE_SIZE);
+             SquashfsBuilder builder = new SquashfsBuilder(previous.compression(), dst.resolveSibling(dst.getFileName().toString() + ".tmp"), dst, previous.blockLog());
+             CloseableExecutor executor = new CloseableExecutor(new CloseableThreadFactory("Squash reader"), READ_THREADS);
+             ProgressNotifier notifier = new ProgressNotifier.Builder().prefix("Squash")
+                     .slot("files").slot("directories").build()) {
+            this.squashOrdered(builder, executor, notifier, Paths.get(args[0]), previous, changedPaths);
+        }
+    }
+}
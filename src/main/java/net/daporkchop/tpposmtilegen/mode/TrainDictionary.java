@@ -0,0 +1,207 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.mode;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import lombok.NonNull;
+import net.daporkchop.lib.common.misc.file.PFiles;
+import net.daporkchop.tpposmtilegen.storage.Storage;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.DatabaseConfig;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBReadAccess;
+import net.daporkchop.tpposmtilegen.util.Tile;
+import net.daporkchop.tpposmtilegen.util.squashfs.compression.Compression;
+import net.daporkchop.tpposmtilegen.util.squashfs.compression.ZstdCompression;
+import net.daporkchop.tpposmtilegen.util.squashfs.compression.ZstdDictionaryTrainer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.lib.logging.Logging.*;
+import static net.daporkchop.tpposmtilegen.util.Utils.*;
+
+/**
+ * Trains a zstd dictionary from a random sample of the tiles and external JSON in an index, for use with {@link Squash} and {@link ExportSquashfs}.
+ * <p>
+ * A portion of the samples is held out from training and used to compare the dictionary against plain zstd, both with each file compressed individually and
+ * with files packed together into blocks the size of a squashfs data block.
+ *
+ * @author DaPorkchop_
+ */
+public class TrainDictionary implements IMode {
+    private static final int DEFAULT_SAMPLES = 100000;
+    private static final int HOLDOUT_DIVISOR = 10;
+    private static final int BLOCK_SIZE = 1 << 19;
+
+    @Override
+    public String name() {
+        return "train_dictionary";
+    }
+
+    @Override
+    public String synopsis() {
+        return "<index_dir> <dictionary> [samples]";
+    }
+
+    @Override
+    public String help() {
+        return "Trains a zstd dictionary from randomly sampled tiles and external JSON, and benchmarks it against plain zstd.";
+    }
+
+    @Override
+    public void run(@NonNull String... args) throws Exception {
+        checkArg(args.length == 2 || args.length == 3, "Usage: train_dictionary <index_dir> <dictionary> [samples]");
+        Path src = PFiles.assertDirectoryExists(Paths.get(args[0]));
+        Path dst = Paths.get(args[1]);
+        int sampleCount = positive(args.length == 3 ? Integer.parseInt(args[2]) : DEFAULT_SAMPLES, "samples");
+
+        List<ByteBuf> samples = new ArrayList<>(sampleCount);
+        try {
+            try (Storage storage = new Storage(src, DatabaseConfig.RO_GENERAL);
+                 DBReadAccess access = storage.db().snapshot()) {
+                this.sample(storage, access, sampleCount, samples);
+            }
+            checkState(samples.size() >= HOLDOUT_DIVISOR, "index only contains %d non-empty files", samples.size());
+
+            Collections.shuffle(samples);
+            List<ByteBuf> testSamples = samples.subList(0, samples.size() / HOLDOUT_DIVISOR);
+            List<ByteBuf> trainSamples = samples.subList(testSamples.size(), samples.size());
+
+            long startTime = System.nanoTime();
+            ByteBuf dictionary = ZstdDictionaryTrainer.train(trainSamples, ZstdDictionaryTrainer.DEFAULT_DICTIONARY_SIZE);
+            logger.info("Trained %s dictionary from %d samples in %.2fs",
+                    formatSize(dictionary.readableBytes()), trainSamples.size(), (System.nanoTime() - startTime) / 1_000_000_000.0d);
+
+            try (FileChannel channel = FileChannel.open(dst, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFully(channel, dictionary.slice());
+            }
+
+            //pack the test samples into blocks, like squashfs fragments
+            List<ByteBuf> blocks = new ArrayList<>();
+            ByteBuf block = null;
+            for (ByteBuf sample : testSamples) {
+                if (block == null || block.readableBytes() + sample.readableBytes() > BLOCK_SIZE) {
+                    blocks.add(block = Unpooled.buffer(BLOCK_SIZE));
+                }
+                block.writeBytes(sample, sample.readerIndex(), min(sample.readableBytes(), BLOCK_SIZE - block.readableBytes()));
+            }
+
+            Compression plain = new ZstdCompression();
+            Compression trained = new ZstdCompression(dictionary);
+            try {
+                benchmark("plain zstd, per file", plain, testSamples);
+                benchmark("dictionary zstd, per file", trained, testSamples);
+                benchmark("plain zstd, " + formatSize(BLOCK_SIZE) + " blocks", plain, blocks);
+                benchmark("dictionary zstd, " + formatSize(BLOCK_SIZE) + " blocks", trained, blocks);
+            } finally {
+                blocks.forEach(ByteBuf::release);
+                dictionary.release();
+                trained.dictionary().release();
+            }
+        } finally {
+            samples.forEach(ByteBuf::release);
+        }
+    }
+
+    private void sample(@NonNull Storage storage, @NonNull DBReadAccess access, int sampleCount, @NonNull List<ByteBuf> samples) throws Exception {
+        //reservoir sample over all tile and external json keys. each key is stored as a pair of (level << 1 | external, key)
+        long[] reservoir = new long[sampleCount << 1];
+        long seen = 0L;
+        SplittableRandom random = new SplittableRandom();
+        for (int level = MIN_LEVEL; level < storage.maxLevel(); level++) {
+            for (int external = 0; external < 2; external++) {
+                long[] keys = ExportSquashfs.collectKeys(storage, access, external == 0 ? storage.tileJsonStorage()[level] : storage.externalJsonStorage()[level]);
+                for (long key : keys) {
+                    long index = seen < sampleCount ? seen : random.nextLong(seen + 1L);
+                    if (index < sampleCount) {
+                        reservoir[(int) index << 1] = (level << 1) | external;
+                        reservoir[((int) index << 1) + 1] = key;
+                    }
+                    seen++;
+                }
+            }
+        }
+        logger.info("Sampling %d out of %d files", min(seen, sampleCount), seen);
+
+        for (int i = 0; i < min(seen, sampleCount); i++) {
+            int level = (int) (reservoir[i << 1] >>> 1);
+            long key = reservoir[(i << 1) + 1];
+
+            ByteBuf sample;
+            if ((reservoir[i << 1] & 1L) == 0L) {
+                sample = storage.getTile(access, Tile.tileX(key), Tile.tileY(key), level);
+            } else {
+                ByteBuffer value = storage.externalJsonStorage()[level].get(access, key);
+                sample = value != null ? Unpooled.wrappedBuffer(value) : null;
+            }
+
+            if (sample != null && sample.isReadable()) {
+                samples.add(sample);
+            } else if (sample != null) {
+                sample.release();
+            }
+        }
+    }
+
+    private static void benchmark(@NonNull String name, @NonNull Compression compression, @NonNull List<ByteBuf> inputs) throws IOException {
+        long uncompressedSize = 0L;
+        long compressedSize = 0L;
+        List<ByteBuf> compressed = new ArrayList<>(inputs.size());
+        ByteBuf dst = UnpooledByteBufAllocator.DEFAULT.ioBuffer();
+        try {
+            long compressTime = System.nanoTime();
+            for (ByteBuf input : inputs) {
+                ByteBuf buf = UnpooledByteBufAllocator.DEFAULT.ioBuffer();
+                compression.compress(input.slice(), buf);
+                compressed.add(buf);
+                uncompressedSize += input.readableBytes();
+                compressedSize += buf.readableBytes();
+            }
+            compressTime = System.nanoTime() - compressTime;
+
+            long decompressTime = System.nanoTime();
+            for (ByteBuf buf : compressed) {
+                dst.clear();
+                compression.decompress(buf.slice(), dst);
+            }
+            decompressTime = System.nanoTime() - decompressTime;
+
+            logger.info("%s: %s -> %s (ratio %.3f), compress %.2f MB/s, decompress %.2f MB/s",
+                    name, formatSize(uncompressedSize), formatSize(compressedSize), (double) uncompressedSize / compressedSize,
+                    uncompressedSize * 1000.0d / compressTime, uncompressedSize * 1000.0d / decompressTime);
+        } finally {
+            dst.release();
+            compressed.forEach(ByteBuf::release);
+        }
+    }
+}
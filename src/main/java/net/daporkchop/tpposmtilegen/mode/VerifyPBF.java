@@ -0,0 +1,418 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.mode;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import lombok.NonNull;
+import net.daporkchop.lib.common.function.exception.ERunnable;
+import net.daporkchop.lib.common.misc.file.PFiles;
+import net.daporkchop.lib.common.util.PorkUtil;
+import net.daporkchop.lib.unsafe.PUnsafe;
+import net.daporkchop.tpposmtilegen.natives.NativeRocksHelper;
+import net.daporkchop.tpposmtilegen.osm.Element;
+import net.daporkchop.tpposmtilegen.osm.Node;
+import net.daporkchop.tpposmtilegen.osm.Relation;
+import net.daporkchop.tpposmtilegen.osm.Way;
+import net.daporkchop.tpposmtilegen.pbf.PbfFileReader;
+import net.daporkchop.tpposmtilegen.pbf.PbfHeader;
+import net.daporkchop.tpposmtilegen.pbf.PrimitiveBlockDecoder;
+import net.daporkchop.tpposmtilegen.storage.Storage;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.DatabaseConfig;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBIterator;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBReadAccess;
+import net.daporkchop.tpposmtilegen.util.CloseableExecutor;
+import net.daporkchop.tpposmtilegen.util.CloseableThreadFactory;
+import net.daporkchop.tpposmtilegen.util.IterableThreadLocal;
+import net.daporkchop.tpposmtilegen.util.ProgressNotifier;
+import org.rocksdb.ColumnFamilyHandle;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.lib.logging.Logging.*;
+
+/**
+ * Verifies that the OSM data in an index matches a PBF file.
+ * <p>
+ * The PBF's blocks are decoded in parallel, and the elements in each block are compared with the index by walking an iterator over the corresponding range
+ * of each column family alongside them. As both are sorted by ID, this only requires sequential reads. Mismatches are counted and summarized at the end
+ * instead of aborting the verification.
+ *
+ * @author DaPorkchop_
+ */
+public class VerifyPBF implements IMode {
+    private static final int MAX_REPORTED_ERRORS = 100;
+
+    //if an iterator would have to be advanced more than this many times to reach the next element, it's repositioned with a seek instead
+    private static final int MAX_SEQUENTIAL_SKIP = 16;
+
+    //index of the iterator over the points column family, the element column families are indexed by type
+    private static final int POINTS = Relation.TYPE + 1;
+
+    @Override
+    public String name() {
+        return "verify_pbf";
+    }
+
+    @Override
+    public String synopsis() {
+        return "<pbf> <index_dir> [sample_rate]";
+    }
+
+    @Override
+    public String help() {
+        return "Checks that the OSM data in an index matches the given PBF file.\n"
+               + "Elements which have been updated to a newer version than the one in the PBF are ignored.\n"
+               + "If a sample rate between 0 and 1 is given, only approximately that fraction of the PBF's blocks will be checked.";
+    }
+
+    @Override
+    public void run(@NonNull String... args) throws Exception {
+        checkArg(args.length == 2 || args.length == 3, "Usage: verify_pbf <pbf> <index_dir> [sample_rate]");
+        Path src = PFiles.assertFileExists(Paths.get(args[0]));
+        Path dst = PFiles.assertDirectoryExists(Paths.get(args[1]));
+        double sampleRate = args.length == 3 ? Double.parseDouble(args[2]) : 1.0d;
+        checkArg(sampleRate > 0.0d && sampleRate <= 1.0d, "sample rate must be in range (0, 1]: %s", sampleRate);
+
+        //the comparison relies on the elements being in the same order as the keys in the db
+        PbfHeader header = PbfFileReader.readHeader(src);
+        checkArg(header.optionalFeatures().contains(PbfHeader.FEATURE_SORTED),
+                "'%s' isn't sorted by element ID! (optional_features is missing '%s')", src, PbfHeader.FEATURE_SORTED);
+
+        Report report = new Report();
+        int threads = PorkUtil.CPU_COUNT;
+
+        long startTime = System.nanoTime();
+        try (Storage storage = new Storage(dst, DatabaseConfig.RO_GENERAL);
+             DBReadAccess access = storage.db().snapshot();
+             PbfFileReader reader = new PbfFileReader(src);
+             ProgressNotifier notifier = new ProgressNotifier.Builder().prefix("Verify PBF")
+                     .slot("nodes").slot("ways").slot("relations")
+                     .build();
+             Verifier verifier = new Verifier(storage, access, report, notifier);
+             CloseableExecutor executor = new CloseableExecutor(new CloseableThreadFactory("PBF verify worker"), threads)) {
+            Deque<CompletableFuture<Void>> pending = new ArrayDeque<>();
+            long dataBlobs = 0L;
+            for (PbfFileReader.Blob blob; (blob = reader.next()) != null; ) {
+                if (!PbfFileReader.TYPE_DATA.equals(blob.type())) {
+                    continue;
+                }
+
+                //sample whole blobs at evenly spaced intervals, so that the reads within each blob stay sequential and the entire file is covered
+                long index = dataBlobs++;
+                if ((long) ((index + 1L) * sampleRate) == (long) (index * sampleRate)) {
+                    continue;
+                }
+                report.blobs.increment();
+
+                PbfFileReader.Blob finalBlob = blob;
+                pending.add(CompletableFuture.runAsync((ERunnable) () -> verifier.verify(finalBlob), executor));
+                while (pending.size() > threads << 1) {
+                    pending.poll().join();
+                }
+            }
+            pending.forEach(CompletableFuture::join);
+
+            report.totalBlobs = dataBlobs;
+        }
+
+        report.print(System.nanoTime() - startTime);
+        checkState(report.errors.sum() == 0L, "verification failed with %d errors", report.errors.sum());
+        logger.success("Index matches '%s'.", src);
+    }
+
+    /**
+     * Counts the elements which were checked, and the problems which were found with them.
+     *
+     * @author DaPorkchop_
+     */
+    private static final class Report {
+        private final LongAdder blobs = new LongAdder();
+        private long totalBlobs;
+
+        private final LongAdder errors = new LongAdder();
+
+        private final LongAdder[] checked = newAdders();
+        private final LongAdder[] missing = newAdders();
+        private final LongAdder[] outdated = newAdders();
+        private final LongAdder[] different = newAdders();
+
+        private final LongAdder missingPoints = new LongAdder();
+        private final LongAdder differentPoints = new LongAdder();
+        private final LongAdder undeletedPoints = new LongAdder();
+
+        private static LongAdder[] newAdders() {
+            LongAdder[] adders = new LongAdder[Relation.TYPE + 1];
+            Arrays.setAll(adders, i -> new LongAdder());
+            return adders;
+        }
+
+        public void error(@NonNull LongAdder counter, @NonNull String format, Object... args) {
+            counter.increment();
+            this.errors.increment();
+            if (this.errors.sum() <= MAX_REPORTED_ERRORS) {
+                logger.error(format, args);
+            }
+        }
+
+        public void print(long time) {
+            logger.info("Verified %d/%d blocks in %.2fs", this.blobs.sum(), this.totalBlobs, time / 1_000_000_000.0d);
+            for (int type = Node.TYPE; type <= Relation.TYPE; type++) {
+                logger.info("  %ss: %d checked, %d missing, %d outdated, %d with different contents",
+                        Element.typeName(type), this.checked[type].sum(), this.missing[type].sum(), this.outdated[type].sum(), this.different[type].sum());
+            }
+            logger.info("  points: %d missing, %d with different coordinates, %d belonging to deleted nodes",
+                    this.missingPoints.sum(), this.differentPoints.sum(), this.undeletedPoints.sum());
+        }
+    }
+
+    /**
+     * Compares the contents of PBF blobs with the index.
+     *
+     * @author DaPorkchop_
+     */
+    private static final class Verifier implements AutoCloseable {
+        private final IterableThreadLocal<ThreadState> state = IterableThreadLocal.of(ThreadState::new);
+
+        private final DBReadAccess access;
+        private final ColumnFamilyHandle[] columns;
+        private final Report report;
+        private final ProgressNotifier notifier;
+
+        public Verifier(@NonNull Storage storage, @NonNull DBReadAccess access, @NonNull Report report, @NonNull ProgressNotifier notifier) {
+            this.access = access;
+            this.report = report;
+            this.notifier = notifier;
+
+            this.columns = new ColumnFamilyHandle[POINTS + 1];
+            this.columns[Node.TYPE] = storage.db().internalColumnFamily(storage.nodes());
+            this.columns[Way.TYPE] = storage.db().internalColumnFamily(storage.ways());
+            this.columns[Relation.TYPE] = storage.db().internalColumnFamily(storage.relations());
+            this.columns[POINTS] = storage.db().internalColumnFamily(storage.points());
+        }
+
+        public void verify(@NonNull PbfFileReader.Blob blob) throws Exception {
+            ThreadState state = this.state.get();
+            try {
+                state.decoder.decode(blob, state);
+                state.flush();
+            } finally {
+                state.closeIterators();
+            }
+        }
+
+        @Override
+        public void close() throws Exception {
+            this.state.forEach(ThreadState::release);
+        }
+
+        private final class ThreadState implements PrimitiveBlockDecoder.Visitor {
+            private final PrimitiveBlockDecoder decoder = new PrimitiveBlockDecoder();
+
+            //one iterator per column family, opened at the first element in the blob which needs it and closed once the blob is done
+            private final DBIterator[] iterators = new DBIterator[POINTS + 1];
+            private final byte[] keyArray = new byte[8];
+
+            //the most recently decoded element. we only know that it's the newest version of the element in the blob once we see the next element (or the
+            // end of the blob), so it's kept in serialized form until then
+            private int pendingType = -1;
+            private long pendingId;
+            private int pendingVersion;
+            private boolean pendingVisible;
+            private final ByteBuf pendingValue = UnpooledByteBufAllocator.DEFAULT.directBuffer();
+            private final ByteBuf pendingPoint = UnpooledByteBufAllocator.DEFAULT.directBuffer();
+
+            @Override
+            public void node(@NonNull PrimitiveBlockDecoder block) throws Exception {
+                this.beginElement(Node.TYPE, block);
+                block.writeElement(this.pendingValue);
+                block.writePoint(this.pendingPoint);
+            }
+
+            @Override
+            public void way(@NonNull PrimitiveBlockDecoder block) throws Exception {
+                this.beginElement(Way.TYPE, block);
+                block.writeWay(this.pendingValue);
+            }
+
+            @Override
+            public void relation(@NonNull PrimitiveBlockDecoder block) throws Exception {
+                this.beginElement(Relation.TYPE, block);
+                block.writeRelation(this.pendingValue);
+            }
+
+            private void beginElement(int type, PrimitiveBlockDecoder block) throws Exception {
+                if (this.pendingType != type || this.pendingId != block.id()) {
+                    this.flush();
+                }
+
+                this.pendingType = type;
+                this.pendingId = block.id();
+                this.pendingVersion = block.version();
+                this.pendingVisible = block.visible();
+                this.pendingValue.clear();
+                this.pendingPoint.clear();
+            }
+
+            public void flush() throws Exception {
+                int type = this.pendingType;
+                if (type < 0) {
+                    return;
+                }
+                this.pendingType = -1;
+
+                Report report = Verifier.this.report;
+                report.checked[type].increment();
+                Verifier.this.notifier.step(type);
+
+                NativeRocksHelper.KeyValueSlice slice = this.seek(type, this.pendingId);
+                if (slice == null) {
+                    report.error(report.missing[type], "%s %d isn't present in db!", Element.typeName(type), this.pendingId);
+                    return;
+                }
+
+                ByteBuf stored = Unpooled.wrappedBuffer(slice.valueAddr(), slice.valueSize(), false);
+                int storedVersion = stored.getInt(stored.readerIndex());
+                if (storedVersion < this.pendingVersion) {
+                    report.error(report.outdated[type], "%s %d is outdated! should be at least version %d, but stored version is %d",
+                            Element.typeName(type), this.pendingId, this.pendingVersion, storedVersion);
+                    return;
+                } else if (storedVersion > this.pendingVersion) { //the element has been updated since the PBF was created, there's nothing to compare
+                    return;
+                }
+
+                //the serialized forms will almost always be identical, but tags which were written from a Map may be in a different order
+                if (!ByteBufUtil.equals(stored, this.pendingValue) && !sameContents(type, this.pendingId, stored, this.pendingValue)) {
+                    report.error(report.different[type], "%s %d version %d has different contents than in the PBF",
+                            Element.typeName(type), this.pendingId, storedVersion);
+                }
+
+                if (type == Node.TYPE) {
+                    slice = this.seek(POINTS, this.pendingId);
+                    if (!this.pendingVisible) {
+                        if (slice != null) {
+                            report.error(report.undeletedPoints, "node %d is deleted, but its point is still present in db!", this.pendingId);
+                        }
+                    } else if (slice == null) {
+                        report.error(report.missingPoints, "point for node %d isn't present in db!", this.pendingId);
+                    } else {
+                        ByteBuf storedPoint = Unpooled.wrappedBuffer(slice.valueAddr(), slice.valueSize(), false);
+                        if (!ByteBufUtil.equals(storedPoint, this.pendingPoint)) {
+                            report.error(report.differentPoints, "point for node %d has incorrect coordinates! should be (%d,%d) but stored coordinates are (%d,%d)",
+                                    this.pendingId, this.pendingPoint.getInt(0), this.pendingPoint.getInt(4), storedPoint.getInt(0), storedPoint.getInt(4));
+                        }
+                    }
+                }
+            }
+
+            /**
+             * Advances the iterator over the given column family to the given key.
+             *
+             * @return the entry with the given key, or {@code null} if it isn't present
+             */
+            private NativeRocksHelper.KeyValueSlice seek(int column, long id) throws Exception {
+                PUnsafe.putUnalignedLongBE(this.keyArray, PUnsafe.arrayByteElementOffset(0), id);
+
+                DBIterator itr = this.iterators[column];
+                if (itr == null) { //the blob's elements are sorted, so nothing below the first one we look for will ever be needed
+                    itr = this.iterators[column] = Verifier.this.access.iterator(Verifier.this.columns[column], this.keyArray.clone(), null);
+                    itr.seekToFirst();
+                } else {
+                    for (int i = 0; itr.isValid() && PUnsafe.getUnalignedLongBE(itr.keyValueSlice().keyAddr()) < id; i++) {
+                        if (i == MAX_SEQUENTIAL_SKIP) {
+                            itr.seekCeil(this.keyArray);
+                            break;
+                        }
+                        itr.next();
+                    }
+                }
+
+                if (!itr.isValid()) {
+                    return null;
+                }
+                NativeRocksHelper.KeyValueSlice slice = itr.keyValueSlice();
+                return PUnsafe.getUnalignedLongBE(slice.keyAddr()) == id ? slice : null;
+            }
+
+            public void closeIterators() throws Exception {
+                this.pendingType = -1;
+                for (int i = 0; i < this.iterators.length; i++) {
+                    if (this.iterators[i] != null) {
+                        this.iterators[i].close();
+                        this.iterators[i] = null;
+                    }
+                }
+            }
+
+            public void release() {
+                this.pendingValue.release();
+                this.pendingPoint.release();
+            }
+        }
+    }
+
+    private static boolean sameContents(int type, long id, @NonNull ByteBuf a, @NonNull ByteBuf b) {
+        switch (type) {
+            case Node.TYPE: {
+                Node x = new Node(id, a.slice());
+                Node y = new Node(id, b.slice());
+                return sameElement(x, y);
+            }
+            case Way.TYPE: {
+                Way x = new Way(id, a.slice());
+                Way y = new Way(id, b.slice());
+                return sameElement(x, y) && Arrays.equals(x.nodes(), y.nodes());
+            }
+            case Relation.TYPE: {
+                Relation x = new Relation(id, a.slice());
+                Relation y = new Relation(id, b.slice());
+                if (!sameElement(x, y) || x.members().length != y.members().length) {
+                    return false;
+                }
+                for (int i = 0; i < x.members().length; i++) {
+                    Relation.Member mx = x.members()[i];
+                    Relation.Member my = y.members()[i];
+                    if (mx.combinedId() != my.combinedId() || !Objects.equals(mx.role(), my.role())) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            default:
+                throw new IllegalArgumentException(String.valueOf(type));
+        }
+    }
+
+    private static boolean sameElement(@NonNull Element a, @NonNull Element b) {
+        return a.version() == b.version() && a.visible() == b.visible() && a.tags().equals(b.tags());
+    }
+}
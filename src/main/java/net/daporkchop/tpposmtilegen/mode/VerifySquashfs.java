@@ -0,0 +1,149 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.mode;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import lombok.NonNull;
+import net.daporkchop.lib.common.function.exception.EConsumer;
+import net.daporkchop.lib.common.misc.file.PFiles;
+import net.daporkchop.tpposmtilegen.util.ProgressNotifier;
+import net.daporkchop.tpposmtilegen.util.squashfs.SquashfsReader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.lib.logging.Logging.*;
+import static net.daporkchop.tpposmtilegen.util.Utils.*;
+
+/**
+ * Verifies a squashfs image without mounting it, by reading and decompressing every file in it using {@link SquashfsReader}.
+ * <p>
+ * If a source directory is given, every file's contents are additionally compared with the corresponding file in the source directory, and any files which
+ * are only present in one of the two are reported.
+ *
+ * @author DaPorkchop_
+ */
+public class VerifySquashfs implements IMode {
+    private static final int MAX_REPORTED_ERRORS = 100;
+
+    @Override
+    public String name() {
+        return "verify_squashfs";
+    }
+
+    @Override
+    public String synopsis() {
+        return "<image> [src_dir]";
+    }
+
+    @Override
+    public String help() {
+        return "Checks that every file in a squashfs image can be read, optionally comparing them with the directory the image was built from.";
+    }
+
+    @Override
+    public void run(@NonNull String... args) throws Exception {
+        checkArg(args.length == 1 || args.length == 2, "Usage: verify_squashfs <image> [src_dir]");
+        Path image = Paths.get(args[0]);
+        checkArg(Files.isRegularFile(image), "not a file: %s", image);
+        Path srcDir = args.length == 2 ? PFiles.assertDirectoryExists(Paths.get(args[1])) : null;
+
+        LongAdder errors = new LongAdder();
+        LongAdder bytes = new LongAdder();
+
+        long startTime = System.nanoTime();
+        try (SquashfsReader reader = new SquashfsReader(image, SquashfsReader.DEFAULT_CACHE_SIZE)) {
+            List<String> paths = reader.listFiles();
+            logger.info("Read directory tree with %d files in %.2fs", paths.size(), (System.nanoTime() - startTime) / 1_000_000_000.0d);
+
+            startTime = System.nanoTime();
+            try (ProgressNotifier notifier = new ProgressNotifier.Builder().prefix("Verify")
+                    .slot("files", paths.size()).build()) {
+                paths.parallelStream().forEach((EConsumer<String>) path -> {
+                    try {
+                        ByteBuf contents = reader.read(path);
+                        if (contents == null) {
+                            error(errors, "%s: listed in the directory tree, but can't be found", path);
+                            return;
+                        }
+
+                        try {
+                            bytes.add(contents.readableBytes());
+
+                            if (srcDir != null) {
+                                Path srcFile = srcDir.resolve(path);
+                                if (!Files.isRegularFile(srcFile)) {
+                                    error(errors, "%s: not present in the source directory", path);
+                                } else if (!ByteBufUtil.equals(contents, Unpooled.wrappedBuffer(Files.readAllBytes(srcFile)))) {
+                                    error(errors, "%s: contents differ from the source directory", path);
+                                }
+                            }
+                        } finally {
+                            contents.release();
+                        }
+                    } catch (Exception e) {
+                        error(errors, "%s: %s", path, e);
+                    } finally {
+                        notifier.step(0);
+                    }
+                });
+            }
+
+            long time = System.nanoTime() - startTime;
+            logger.info("Read %s from %d files in %.2fs (%.2f MB/s), %d blocks decompressed, %d block cache hits",
+                    formatSize(bytes.sum()), paths.size(), time / 1_000_000_000.0d, bytes.sum() * 1000.0d / time, reader.cacheMisses(), reader.cacheHits());
+
+            if (srcDir != null) { //check for files which are missing from the image
+                Set<String> imagePaths = new HashSet<>(paths);
+                try (Stream<Path> stream = Files.walk(srcDir)) {
+                    for (String path : stream.filter(Files::isRegularFile)
+                            .map(file -> srcDir.relativize(file).toString().replace(srcDir.getFileSystem().getSeparator(), "/"))
+                            .collect(Collectors.toList())) {
+                        if (!imagePaths.contains(path)) {
+                            error(errors, "%s: present in the source directory, but missing from the image", path);
+                        }
+                    }
+                }
+            }
+        }
+
+        checkState(errors.sum() == 0L, "verification failed with %d errors", errors.sum());
+        logger.success("Image is valid.");
+    }
+
+    private static void error(@NonNull LongAdder errors, @NonNull String format, Object... args) {
+        errors.increment();
+        if (errors.sum() <= MAX_REPORTED_ERRORS) {
+            logger.error(format, args);
+        }
+    }
+}
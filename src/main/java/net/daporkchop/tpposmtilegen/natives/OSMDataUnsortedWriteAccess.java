@@ -20,6 +20,10 @@
 
 package net.daporkchop.tpposmtilegen.natives;
 
+import io.netty.buffer.ByteBuf;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.NonNull;
@@ -53,15 +57,21 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.LongAccumulator;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
 import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 
+import static java.lang.Math.*;
 import static net.daporkchop.lib.common.util.PValidation.*;
 
 /**
  * @author DaPorkchop_
  */
-public final class OSMDataUnsortedWriteAccess extends AbstractUnsortedWriteAccess {
+public final class OSMDataUnsortedWriteAccess extends AbstractUnsortedWriteAccess implements WriteMemoryGovernor.Tracked {
+    //the number of bytes of values each thread writes between checks of the global memory usage. this is also the smallest amount of unflushed data for
+    // which a flush will be forced, so that a single large write access can't cause a storm of tiny flushes in all the others
+    private static final long MEMORY_CHECK_BYTES = max(WriteMemoryGovernor.BUDGET >> 12L, 1L << 20L);
+
     private final ToIntFunction<ByteBuffer> versionFromValueExtractor;
 
     private final long indexAddr;
@@ -72,8 +82,11 @@ public final class OSMDataUnsortedWriteAccess extends AbstractUnsortedWriteAcces
     private final LongAdder valueCount = new LongAdder();
     private final LongAdder valueSize = new LongAdder();
 
-    private final double compressionRatio;
-    private final long flushTriggerThreshold;
+    //the ratio between the size of the values in the index and the size of the SST files they end up in. starts out as an estimate given by the user, and is
+    // then refined using every SST file which is built
+    private volatile double compressionRatio;
+    private volatile long flushTriggerThreshold;
+    private final long targetFileSize;
 
     private final int threads;
     private final IterableThreadLocal<ThreadState> threadStates = IterableThreadLocal.of(ThreadState::new);
@@ -81,6 +94,9 @@ public final class OSMDataUnsortedWriteAccess extends AbstractUnsortedWriteAcces
     private volatile FlushInfo lastFlush;
     private volatile FlushInfo pendingFlush;
 
+    //if non-negative, flushes are triggered based on this rather than on the positions of the individual threads
+    private volatile long lowWatermark = -1L;
+
     private final Options options;
     private final List<CompletableFuture<Handle<Path>>> flushes = Collections.synchronizedList(new ArrayList<>());
 
@@ -91,8 +107,48 @@ public final class OSMDataUnsortedWriteAccess extends AbstractUnsortedWriteAcces
 
     private volatile boolean flushException = false;
 
+    //only used if SST files are ingested as soon as they're built
+    private final LongConsumer checkpointListener;
+    private final Long2ObjectMap<CompletedFlush> completedFlushes;
+    private volatile long durableKeyExclusive;
+
+    private final LongAdder ingestedFiles = new LongAdder();
+    private final LongAdder ingestedSize = new LongAdder();
+
     public OSMDataUnsortedWriteAccess(@NonNull Storage storage, @NonNull ColumnFamilyHandle columnFamilyHandle, @NonNull ToIntFunction<ByteBuffer> versionFromValueExtractor, double compressionRatio, int threads, boolean assumeEmpty) throws Exception {
+        this(storage, columnFamilyHandle, versionFromValueExtractor, compressionRatio, threads, assumeEmpty, 0L, null);
+    }
+
+    /**
+     * Creates a write access which may only be written to using {@link #put(long, int, ByteBuf)} and {@link #delete(long, int)}, for callers which always know
+     * each value's version up front.
+     *
+     * @see #OSMDataUnsortedWriteAccess(Storage, ColumnFamilyHandle, ToIntFunction, double, int, boolean, long, LongConsumer)
+     */
+    public OSMDataUnsortedWriteAccess(@NonNull Storage storage, @NonNull ColumnFamilyHandle columnFamilyHandle, double compressionRatio, int threads, boolean assumeEmpty,
+                                      long firstKey, LongConsumer checkpointListener) throws Exception {
+        this(storage, columnFamilyHandle, null, compressionRatio, threads, assumeEmpty, firstKey, checkpointListener);
+    }
+
+    /**
+     * @param versionFromValueExtractor the function used to get the version of values written through the {@link net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBWriteAccess} interface. If {@code null},
+     *                                  values may only be written with an explicit version
+     * @param compressionRatio   the initial estimate of the ratio between the size of the values and the size of the SST files built from them. This is only
+     *                           used until the first SST file has been built, so it doesn't need to be accurate
+     * @param firstKey           the first key which may be written. Every key below this one is assumed to already be present in the column family. Must be
+     *                           a value which was previously passed to a {@code checkpointListener}
+     * @param checkpointListener if non-{@code null}, SST files will be ingested in key order as soon as they're built rather than all at once when this
+     *                           write access is closed, and this function will be called with the (exclusive) upper bound of the keys which have been ingested
+     *                           into the column family so far each time it advances
+     */
+    public OSMDataUnsortedWriteAccess(@NonNull Storage storage, @NonNull ColumnFamilyHandle columnFamilyHandle, ToIntFunction<ByteBuffer> versionFromValueExtractor, double compressionRatio, int threads, boolean assumeEmpty,
+                                      long firstKey, LongConsumer checkpointListener) throws Exception {
         super(storage, columnFamilyHandle);
+        checkArg(firstKey >= 0L && firstKey % (PUnsafe.pageSize() / 16L) == 0L, "invalid first key: %d", firstKey);
+        this.checkpointListener = checkpointListener;
+        this.completedFlushes = checkpointListener != null ? new Long2ObjectOpenHashMap<>() : null;
+        this.durableKeyExclusive = firstKey;
+
         this.versionFromValueExtractor = versionFromValueExtractor;
         this.compressionRatio = compressionRatio;
         this.threads = threads;
@@ -102,8 +158,12 @@ public final class OSMDataUnsortedWriteAccess extends AbstractUnsortedWriteAcces
 
         this.indexAddr = Memory.mmap(0L, this.indexSize, 0, 0L, Memory.MapProtection.READ_WRITE, Memory.MapVisibility.PRIVATE, Memory.MapFlags.ANONYMOUS, Memory.MapFlags.NORESERVE);
 
-        this.lastFlush = FlushInfo.builder().valueSize(0L).targetKeyExclusive(0L).build();
-        this.flushTriggerThreshold = (long) (compressionRatio * this.options.targetFileSizeBase());
+        this.lastFlush = FlushInfo.builder().valueSize(0L).targetKeyExclusive(firstKey).build();
+        this.maxKey.accumulate(firstKey);
+        this.targetFileSize = this.options.targetFileSizeBase();
+        this.flushTriggerThreshold = (long) (compressionRatio * this.targetFileSize);
+
+        WriteMemoryGovernor.register(this);
 
         Memory.releaseMemoryToSystem();
     }
@@ -124,6 +184,10 @@ public final class OSMDataUnsortedWriteAccess extends AbstractUnsortedWriteAcces
                 "tried to put key %d, which has already been flushed (last flush was up to and excluding key %d)", key, lastFlush.targetKeyExclusive);
     }
 
+    private void checkVersionExtractor() {
+        checkState(this.versionFromValueExtractor != null, "this write access has no version extractor, values must be written with an explicit version");
+    }
+
     private void swapEntry(long key, long valueAddr, long valueSize) throws Exception {
         int oldSize = trySwapIndexEntry(this.indexAddr, key, valueAddr);
         if (oldSize >= 0) { //we successfully replaced the previous value
@@ -134,11 +198,19 @@ public final class OSMDataUnsortedWriteAccess extends AbstractUnsortedWriteAcces
                 this.valueCount.increment();
             }
             this.valueSize.add(d);
-
-            long totalValueSize;
-            if (this.pendingFlush == null && (totalValueSize = this.valueSize.sum()) - this.lastFlush.valueSize >= this.flushTriggerThreshold) {
-                this.scheduleFlush(key, totalValueSize);
+            WriteMemoryGovernor.valueBytes(d);
+
+            boolean memoryCheckDue = this.isMemoryCheckDue(valueSize);
+            if (this.pendingFlush == null) {
+                long totalValueSize = this.valueSize.sum();
+                long unflushedValueSize = totalValueSize - this.lastFlush.valueSize;
+                if (unflushedValueSize >= this.flushTriggerThreshold
+                    || (memoryCheckDue && unflushedValueSize >= MEMORY_CHECK_BYTES && WriteMemoryGovernor.shouldFlush())) {
+                    this.scheduleFlush(key, totalValueSize);
+                }
             }
+        } else { //the existing value is at least as new as this one, which will happen if the same element is present in multiple inputs
+            Memory.free(valueAddr, valueSize);
         }
 
         this.visitKey(key);
@@ -147,6 +219,7 @@ public final class OSMDataUnsortedWriteAccess extends AbstractUnsortedWriteAcces
     @Override
     public void put(@NonNull ColumnFamilyHandle columnFamilyHandle, @NonNull ByteBuffer key, @NonNull ByteBuffer value) throws Exception {
         this.checkWriteOk(columnFamilyHandle);
+        this.checkVersionExtractor();
 
         checkArg(key.remaining() == 8, key.remaining());
         long realKey = PUnsafe.getUnalignedLongBE(PUnsafe.pork_directBufferAddress(key) + key.position());
@@ -165,6 +238,7 @@ public final class OSMDataUnsortedWriteAccess extends AbstractUnsortedWriteAcces
     @Override
     public void delete(@NonNull ColumnFamilyHandle columnFamilyHandle, @NonNull byte[] key) throws Exception {
         this.checkWriteOk(columnFamilyHandle);
+        this.checkVersionExtractor();
 
         checkArg(key.length == 8, key.length);
         long realKey = PUnsafe.getUnalignedLongBE(key, PUnsafe.arrayByteElementOffset(0));
@@ -179,6 +253,73 @@ public final class OSMDataUnsortedWriteAccess extends AbstractUnsortedWriteAcces
         this.swapEntry(realKey, valueAddr, 4L + 4L);
     }
 
+    /**
+     * Puts a value which is already serialized into a direct buffer, without going through the version extractor.
+     *
+     * @param key     the key
+     * @param version the version of the value
+     * @param value   the value. Its readable bytes will be copied, and its indices will not be modified
+     */
+    public void put(long key, int version, @NonNull ByteBuf value) throws Exception {
+        checkArg(value.hasMemoryAddress(), "value must be a direct buffer");
+        this.preWrite(key);
+
+        //allocate space for the value
+        int size = value.readableBytes();
+        long valueAddr = Memory.malloc(size + 4L + 4L);
+        PUnsafe.putUnalignedInt(valueAddr, version);
+        PUnsafe.putUnalignedInt(valueAddr + 4L, size);
+        PUnsafe.copyMemory(value.memoryAddress() + value.readerIndex(), valueAddr + 8L, size);
+
+        this.swapEntry(key, valueAddr, size + 4L + 4L);
+    }
+
+    /**
+     * Deletes a key, without going through the version extractor.
+     *
+     * @param key     the key
+     * @param version the version of the deletion
+     */
+    public void delete(long key, int version) throws Exception {
+        this.preWrite(key);
+
+        //allocate space for the value
+        long valueAddr = Memory.malloc(4L + 4L);
+        PUnsafe.putUnalignedInt(valueAddr, version);
+        PUnsafe.putUnalignedInt(valueAddr + 4L, -1); //size of -1 indicates removal
+
+        this.swapEntry(key, valueAddr, 4L + 4L);
+    }
+
+    private boolean isMemoryCheckDue(long valueSize) {
+        ThreadState state = this.threadStates.get();
+        if ((state.bytesSinceMemoryCheck += valueSize) < MEMORY_CHECK_BYTES) {
+            return false;
+        }
+        state.bytesSinceMemoryCheck = 0L;
+        return true;
+    }
+
+    /**
+     * @return the number of bytes of the index which may currently be resident in memory
+     */
+    @Override
+    public long trackedMemoryUsage() {
+        return max(this.maxKey.get() - this.lastFlush.targetKeyExclusive, 0L) * 16L;
+    }
+
+    private synchronized void learnCompressionRatio(long valueSize, long fileSize) {
+        if (valueSize <= 0L || fileSize <= 0L) {
+            return;
+        }
+
+        //the newest sample is weighted equally with all the previous ones combined, which quickly corrects a poor initial estimate while still smoothing out
+        // the differences between individual files
+        this.compressionRatio = (this.compressionRatio + (double) valueSize / fileSize) * 0.5d;
+        this.flushTriggerThreshold = (long) (this.compressionRatio * this.targetFileSize);
+        this.logger.debug("compression ratio is now %.3f, flushing every %d bytes", this.compressionRatio, this.flushTriggerThreshold);
+    }
+
     @Override
     public long getDataSize() throws Exception {
         return this.valueSize.sum();
@@ -213,6 +354,14 @@ public final class OSMDataUnsortedWriteAccess extends AbstractUnsortedWriteAcces
     }
 
     private void tryTriggerPendingFlush(@NonNull FlushInfo pendingFlush) {
+        long lowWatermark = this.lowWatermark;
+        if (lowWatermark >= 0L) {
+            if (pendingFlush.targetKeyExclusive <= lowWatermark) {
+                this.executePendingFlush(pendingFlush);
+            }
+            return;
+        }
+
         List<ThreadState> otherThreadsStates = this.threadStates.snapshotValues();
         if (otherThreadsStates.size() == this.threads && otherThreadsStates.stream().allMatch(otherState -> otherState.state == ThreadState.State.ACTIVELY_FLUSHING
                                                                                                             || otherState.state == ThreadState.State.QUIT
@@ -248,9 +397,18 @@ public final class OSMDataUnsortedWriteAccess extends AbstractUnsortedWriteAcces
         CompletableFuture<Handle<Path>> flushFuture = new CompletableFuture<>();
         this.flushes.add(flushFuture);
         try {
-            flushFuture.complete(this.buildSstFileFromRange(
+            Handle<Path> pathHandle = this.buildSstFileFromRange(
                     this.indexAddr + lastFlush.targetKeyExclusive * 16L,
-                    (pendingFlush.targetKeyExclusive - lastFlush.targetKeyExclusive) * 16L));
+                    (pendingFlush.targetKeyExclusive - lastFlush.targetKeyExclusive) * 16L);
+            WriteMemoryGovernor.valueBytes(lastFlush.valueSize - pendingFlush.valueSize);
+            if (pathHandle != null) {
+                this.learnCompressionRatio(pendingFlush.valueSize - lastFlush.valueSize, Files.size(pathHandle.get()));
+            }
+            if (this.checkpointListener != null) {
+                this.ingestInOrder(lastFlush.targetKeyExclusive, new CompletedFlush(pendingFlush.targetKeyExclusive, pathHandle));
+                pathHandle = null; //the file is now owned by completedFlushes
+            }
+            flushFuture.complete(pathHandle);
         } catch (Throwable t) {
             flushFuture.completeExceptionally(t);
             throw PUnsafe.throwException(t);
@@ -260,6 +418,64 @@ public final class OSMDataUnsortedWriteAccess extends AbstractUnsortedWriteAcces
         }
     }
 
+    private void ingestInOrder(long firstKey, @NonNull CompletedFlush flush) throws Exception {
+        synchronized (this.completedFlushes) {
+            this.completedFlushes.put(firstKey, flush);
+
+            //flushes may complete out of order, but we can only ingest them (and advance the checkpoint) once all the preceding ones are done
+            for (CompletedFlush next; (next = this.completedFlushes.remove(this.durableKeyExclusive)) != null; ) {
+                if (next.pathHandle != null) {
+                    try {
+                        this.ingestedSize.add(Files.size(next.pathHandle.get()));
+                        this.storage.db().delegate().ingestExternalFile(this.columnFamilyHandle,
+                                Collections.singletonList(next.pathHandle.get().toString()),
+                                this.storage.db().config().ingestOptions(DatabaseConfig.IngestType.MOVE));
+                        this.ingestedFiles.increment();
+                    } finally {
+                        next.pathHandle.release();
+                    }
+                }
+
+                this.checkpointListener.accept(next.targetKeyExclusive);
+                this.durableKeyExclusive = next.targetKeyExclusive;
+            }
+        }
+    }
+
+    /**
+     * @return the (exclusive) upper bound of the keys which have been ingested into the column family so far. Only valid if a checkpoint listener was given
+     */
+    public long durableKeyExclusive() {
+        checkState(this.checkpointListener != null, "SST files aren't being ingested eagerly");
+        return this.durableKeyExclusive;
+    }
+
+    /**
+     * Indicates that no keys lower than the given key will be written anymore.
+     * <p>
+     * Once this has been called, flushes are only triggered up to the highest low watermark rather than by tracking each thread's position, which allows
+     * threads to write keys from multiple sorted inputs in any order relative to each other. In order for this to be safe, it must first be called before any
+     * keys are written.
+     * <p>
+     * If a flush can be triggered, it will be executed on the calling thread.
+     *
+     * @param key the low watermark
+     */
+    public void lowWatermark(long key) {
+        notNegative(key, "key");
+        synchronized (this) {
+            if (key <= this.lowWatermark) {
+                return;
+            }
+            this.lowWatermark = key;
+        }
+
+        FlushInfo pendingFlush = this.pendingFlush;
+        if (pendingFlush != null) {
+            this.tryTriggerPendingFlush(pendingFlush);
+        }
+    }
+
     public void threadJoin() {
         ThreadState state = this.threadStates.get();
         checkState(state.state == ThreadState.State.INACTIVE, state.state);
@@ -298,7 +514,7 @@ public final class OSMDataUnsortedWriteAccess extends AbstractUnsortedWriteAcces
         }
 
         long lastKey = this.maxKey.get();
-        this.scheduleFlush(lastKey, this.valueSize.sum());
+        this.scheduleFlush(lastKey + 1L, this.valueSize.sum());
         this.executePendingFlush(this.pendingFlush);
     }
 
@@ -348,8 +564,12 @@ public final class OSMDataUnsortedWriteAccess extends AbstractUnsortedWriteAcces
 
     @Override
     public synchronized void close() throws Exception {
-        if (!this.flushing) {
-            this.flush();
+        try {
+            if (!this.flushing) {
+                this.flush();
+            }
+        } finally {
+            WriteMemoryGovernor.unregister(this);
         }
 
         List<Handle<Path>> paths;
@@ -369,10 +589,13 @@ public final class OSMDataUnsortedWriteAccess extends AbstractUnsortedWriteAcces
         }
 
         paths.removeIf(Objects::isNull);
-        int totalCount = paths.size();
-        long totalSize = paths.stream().map(Handle::get).map((IOFunction<Path, Long>) Files::size).mapToLong(Long::longValue).sum();
+        if (this.checkpointListener != null) {
+            checkState(paths.isEmpty() && this.completedFlushes.isEmpty(), "some SST files weren't ingested?!?");
+        }
+        long totalCount = this.ingestedFiles.sum() + paths.size();
+        long totalSize = this.ingestedSize.sum() + paths.stream().map(Handle::get).map((IOFunction<Path, Long>) Files::size).mapToLong(Long::longValue).sum();
 
-        if (totalCount != 0) {
+        if (!paths.isEmpty()) {
             //ingest the SST files
             try (TimedOperation ingestOperation = new TimedOperation("Ingest SST files", this.logger)) {
                 this.storage.db().delegate().ingestExternalFile(this.columnFamilyHandle,
@@ -383,10 +606,10 @@ public final class OSMDataUnsortedWriteAccess extends AbstractUnsortedWriteAcces
             }
         }
 
-        this.logger.success("ingested %d keys (valueCount reports %d) totalling %d bytes (%.2f MiB) in %d SST files totalling %d bytes (%.2f MiB)",
+        this.logger.success("ingested %d keys (valueCount reports %d) totalling %d bytes (%.2f MiB) in %d SST files totalling %d bytes (%.2f MiB), compression ratio %.3f",
                 this.writtenKeys.sum(), this.valueCount.sum(),
                 this.getDataSize(), this.getDataSize() / (1024.0d * 1024.0d),
-                totalCount, totalSize, totalSize / (1024.0d * 1024.0d));
+                totalCount, totalSize, totalSize / (1024.0d * 1024.0d), this.compressionRatio);
 
         Memory.munmap(this.indexAddr, this.indexSize);
 
@@ -402,12 +625,19 @@ public final class OSMDataUnsortedWriteAccess extends AbstractUnsortedWriteAcces
         private final long targetKeyExclusive;
     }
 
+    @AllArgsConstructor
+    private static final class CompletedFlush {
+        private final long targetKeyExclusive;
+        private final Handle<Path> pathHandle;
+    }
+
     @Getter
     private static final class ThreadState {
         private final Thread thread = Thread.currentThread();
         private State state = State.INACTIVE;
 
         private long lastKey = 0L;
+        private long bytesSinceMemoryCheck = 0L;
 
         enum State {
             INACTIVE,
@@ -50,6 +50,7 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -60,7 +61,9 @@ import static net.daporkchop.lib.common.util.PorkUtil.*;
 /**
  * @author DaPorkchop_
  */
-public final class UInt64SetUnsortedWriteAccess extends AbstractUnsortedWriteAccess {
+public final class UInt64SetUnsortedWriteAccess extends AbstractUnsortedWriteAccess implements WriteMemoryGovernor.Tracked {
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
     private final Handle<Path> pathHandle;
     private final FileChannel channel;
 
@@ -68,6 +71,7 @@ public final class UInt64SetUnsortedWriteAccess extends AbstractUnsortedWriteAcc
     private final FileChannel sortedChannel;
 
     private final CloseableThreadLocal<WriteBuffer> writeBuffers = CloseableThreadLocal.of(WriteBuffer::new);
+    private final LongAdder writeBuffersSize = new LongAdder();
 
     private final double compressionRatio;
     private final boolean merge;
@@ -86,6 +90,10 @@ public final class UInt64SetUnsortedWriteAccess extends AbstractUnsortedWriteAcc
                 UInt64SetUnsortedWriteAccess.class.getSimpleName() + '-' + new String(columnFamilyHandle.getName(), StandardCharsets.UTF_8), "sorted.buf");
         this.sortedChannel = FileChannel.open(this.sortedPathHandle.get(), READ, WRITE, CREATE_NEW, SPARSE);
 
+        //this may be kept open for a long time alongside other write accesses (e.g. for the whole ingest phase when digesting a PBF), so its buffers need to
+        // be accounted for. buffered values are spilled to a file rather than kept in memory, so they aren't included.
+        WriteMemoryGovernor.register(this);
+
         /*Runtime.getRuntime()
                 .exec(new String[]{ "chattr", "+C", this.pathHandle.get().toAbsolutePath().toString(), this.sortedPathHandle.get().toAbsolutePath().toString() })
                 .waitFor();*/
@@ -110,6 +118,14 @@ public final class UInt64SetUnsortedWriteAccess extends AbstractUnsortedWriteAcc
         }
     }
 
+    /**
+     * @return the number of bytes of off-heap memory held by the per-thread write buffers
+     */
+    @Override
+    public long trackedMemoryUsage() {
+        return this.writeBuffersSize.sum();
+    }
+
     @Override
     public long getDataSize() throws Exception {
         return this.channel.size();
@@ -261,7 +277,11 @@ public final class UInt64SetUnsortedWriteAccess extends AbstractUnsortedWriteAcc
 
     @Override
     public synchronized void close() throws Exception {
-        this.writeBuffers.close();
+        try {
+            this.writeBuffers.close();
+        } finally {
+            WriteMemoryGovernor.unregister(this);
+        }
 
         super.close();
 
@@ -275,7 +295,11 @@ public final class UInt64SetUnsortedWriteAccess extends AbstractUnsortedWriteAcc
     }
 
     protected class WriteBuffer implements Flushable, AutoCloseable {
-        protected final ByteBuf buf = Unpooled.directBuffer(1 << 20, 1 << 20);
+        protected final ByteBuf buf = Unpooled.directBuffer(WRITE_BUFFER_SIZE, WRITE_BUFFER_SIZE);
+
+        public WriteBuffer() {
+            UInt64SetUnsortedWriteAccess.this.writeBuffersSize.add(WRITE_BUFFER_SIZE);
+        }
 
         public synchronized void put(long key, long value) throws IOException {
             if (!this.buf.isWritable(16)) {
@@ -297,8 +321,12 @@ public final class UInt64SetUnsortedWriteAccess extends AbstractUnsortedWriteAcc
 
         @Override
         public synchronized void close() throws Exception {
-            this.flush();
-            this.buf.release();
+            try {
+                this.flush();
+            } finally {
+                this.buf.release();
+                UInt64SetUnsortedWriteAccess.this.writeBuffersSize.add(-WRITE_BUFFER_SIZE);
+            }
         }
     }
 }
@@ -18,8 +18,10 @@
  *
  */
 
+
 package net.daporkchop.tpposmtilegen.natives;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
@@ -27,13 +29,12 @@ import net.daporkchop.lib.common.function.exception.ESupplier;
 import net.daporkchop.lib.common.function.io.IOFunction;
 import net.daporkchop.lib.common.misc.file.PFiles;
 import net.daporkchop.lib.common.pool.handle.Handle;
-import net.daporkchop.lib.primitive.map.LongLongMap;
-import net.daporkchop.lib.primitive.map.LongObjMap;
-import net.daporkchop.lib.primitive.map.concurrent.LongLongConcurrentHashMap;
-import net.daporkchop.lib.primitive.map.concurrent.LongObjConcurrentHashMap;
 import net.daporkchop.lib.unsafe.PUnsafe;
 import net.daporkchop.tpposmtilegen.storage.Storage;
 import net.daporkchop.tpposmtilegen.storage.rocksdb.DatabaseConfig;
+import net.daporkchop.tpposmtilegen.util.CloseableExecutor;
+import net.daporkchop.tpposmtilegen.util.CloseableThreadFactory;
+import net.daporkchop.tpposmtilegen.util.CloseableThreadLocal;
 import net.daporkchop.tpposmtilegen.util.TimedOperation;
 import net.daporkchop.tpposmtilegen.util.Utils;
 import net.daporkchop.tpposmtilegen.util.mmap.MemoryMap;
@@ -44,50 +45,96 @@ import org.rocksdb.SstFileWriter;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import static java.lang.Math.*;
 import static java.nio.file.StandardOpenOption.*;
 import static net.daporkchop.lib.common.util.PValidation.*;
 import static net.daporkchop.lib.common.util.PorkUtil.*;
 
 /**
+ * Buffers merge operands for a column family using {@link UInt64ToBlobMapMergeOperator} and writes them out as fully merged values.
+ * <p>
+ * Each thread collects its entries in an off-heap buffer. Once the buffer is full, its entries are sorted by tile key and entry key and copied
+ * into a shared memory-mapped file as a sorted run. When flushed, the key space is split into partitions of roughly one SST file each using
+ * samples taken from the runs, and each partition is built by a k-way merge of all the runs. Since every tile's value is complete by the time
+ * it's written, the resulting SST files can be ingested without leaving a separate merge operand for every write behind for compaction to deal with.
+ * <p>
+ * If the same entry is written to the same tile more than once, the write which came last wins, just as it would if the writes had been merged into the
+ * database one after another. Writes from a single thread are ordered by the order in which they were made, and writes from different threads are ordered
+ * by the order in which the threads' buffers were written out as runs.
+ * <p>
+ * Each thread's buffers are only allocated once the thread first writes to this access and are released again when this access is flushed. They are
+ * sized according to {@link WriteMemoryGovernor#BUDGET} and count towards the global write memory usage.
+ *
  * @author DaPorkchop_
  */
 public final class UInt64ToBlobMapUnsortedWriteAccess extends AbstractUnsortedWriteAccess {
-    private final LongObjMap<TileState> keysToStates = new LongObjConcurrentHashMap<>();
+    //tile key, followed by entry key, size and data as stored in the merged value
+    private static final int RECORD_HEADER_SIZE = 8 + 8 + 4;
+    //tile key, entry key, offset of the record in the thread's buffer
+    private static final int INDEX_ENTRY_SIZE = 8 + 8 + 8;
+
+    //a single thread's buffers may use a small fraction of the global write memory budget, as many accesses may be open at once
+    private static final int RUN_RECORDS_BUFFER_SIZE = (int) max(min(WriteMemoryGovernor.BUDGET / (CPU_COUNT * 64L), 16L << 20), 1L << 20);
+    //assuming that records are at least 32 bytes long on average
+    private static final int RUN_INDEX_BUFFER_SIZE = RUN_RECORDS_BUFFER_SIZE / 32 * INDEX_ENTRY_SIZE;
+
+    //the position of every nth record in a run is remembered, for partitioning and for seeking to the start of a partition
+    private static final int SAMPLE_INTERVAL = 256;
+
+    private static native int sortRun(long indexAddr, long count, long recordsAddr, long dstAddr, long samplesAddr, int sampleInterval) throws OutOfMemoryError;
 
-    private final Handle<Path> dataPathHandle;
-    private final FileChannel dataChannel;
-    private final MemoryMap dataMmap;
-    private final long dataSize = 1L << 40L;
+    private static native long appendMergedKeys(long writerHandle, long cursorsAddr, int cursorCount, long fromKeyInclusive, long toKeyExclusive, boolean bounded) throws OutOfMemoryError;
 
-    private final AtomicLong dataAddrAllocator = new AtomicLong();
+    private final Handle<Path> runsPathHandle;
+    private final FileChannel runsChannel;
+    private final MemoryMap runsMmap;
+    private final long runsSize = 1L << 40L;
+
+    private final AtomicLong runsOffsetAllocator = new AtomicLong();
+    private final List<Run> runs = new ArrayList<>();
+
+    private final LongAdder totalDataSize = new LongAdder();
+    private final LongAdder totalRecords = new LongAdder();
+    private final CloseableThreadLocal<RunBuffer> runBuffers = CloseableThreadLocal.of(RunBuffer::new);
 
     private final double compressionRatio;
+    private final Path outputDirectory;
+    private int outputFileCount;
 
     public UInt64ToBlobMapUnsortedWriteAccess(@NonNull Storage storage, @NonNull ColumnFamilyHandle columnFamilyHandle, double compressionRatio) throws Exception {
+        this(storage, columnFamilyHandle, compressionRatio, null);
+    }
+
+    /**
+     * @param outputDirectory if not {@code null}, the SST files will be moved into this directory instead of being ingested into the column family. they
+     *                        are named so that sorting them by name puts them in key order, and the key ranges of the files don't overlap.
+     */
+    public UInt64ToBlobMapUnsortedWriteAccess(@NonNull Storage storage, @NonNull ColumnFamilyHandle columnFamilyHandle, double compressionRatio, Path outputDirectory) throws Exception {
         super(storage, columnFamilyHandle);
         this.compressionRatio = compressionRatio;
+        this.outputDirectory = outputDirectory;
 
-        this.dataPathHandle = storage.getTmpFilePath(
-                UInt64ToBlobMapUnsortedWriteAccess.class.getSimpleName() + '-' + new String(columnFamilyHandle.getName(), StandardCharsets.UTF_8), "buf");
-        this.dataChannel = FileChannel.open(this.dataPathHandle.get(), READ, WRITE, CREATE_NEW);
-        Utils.truncate(this.dataChannel, this.dataSize);
-        this.dataMmap = new MemoryMap(this.dataChannel, FileChannel.MapMode.READ_WRITE, 0L, this.dataSize);
+        this.runsPathHandle = storage.getTmpFilePath(
+                UInt64ToBlobMapUnsortedWriteAccess.class.getSimpleName() + '-' + this.columnFamilyName, "runs.buf");
+        this.runsChannel = FileChannel.open(this.runsPathHandle.get(), READ, WRITE, CREATE_NEW);
+        Utils.truncate(this.runsChannel, this.runsSize);
+        this.runsMmap = new MemoryMap(this.runsChannel, FileChannel.MapMode.READ_WRITE, 0L, this.runsSize);
 
-        Memory.madvise(this.dataMmap.addr(), this.dataSize, Memory.Usage.MADV_SEQUENTIAL);
-
-        this.dataAddrAllocator.set(this.dataMmap.addr() + this.dataSize);
+        //runs are only ever written and read sequentially
+        Memory.madvise(this.runsMmap.addr(), this.runsSize, Memory.Usage.MADV_SEQUENTIAL);
     }
 
     @Override
@@ -97,32 +144,13 @@ public final class UInt64ToBlobMapUnsortedWriteAccess extends AbstractUnsortedWr
         checkArg(key.remaining() == 8, key.remaining());
         long realKey = PUnsafe.getUnalignedLongBE(PUnsafe.pork_directBufferAddress(key) + key.position());
 
-        UInt64ToBlobMapMergeOperator.decodeToSlices(Unpooled.wrappedBuffer(value), (entryKey, data) -> {
-            int dataSize = data.readableBytes();
-            long fullDataSize = 8L + 8L + 4L + dataSize;
-
-            long valueAddr = this.dataAddrAllocator.addAndGet(-fullDataSize);
-            checkState(valueAddr >= this.dataMmap.addr());
-
-            PUnsafe.putUnalignedLong(valueAddr, 0L);
-            PUnsafe.putUnalignedLong(valueAddr + 8L, entryKey);
-            PUnsafe.putUnalignedInt(valueAddr + 8L + 8L, dataSize);
-            Memory.memcpy(valueAddr + 8L + 8L + 4L, data.memoryAddress() + data.readerIndex(), dataSize);
-
-            TileState state = this.keysToStates.computeIfAbsent(realKey, TileState::new);
-            synchronized (state) {
-                //new.next = old;
-                checkState(PUnsafe.compareAndSwapLong(null, valueAddr, 0L, state.prevPtr));
-                state.prevPtr = valueAddr;
-
-                state.dataSize += fullDataSize;
-            }
-        });
+        RunBuffer runBuffer = this.runBuffers.get();
+        UInt64ToBlobMapMergeOperator.decodeToSlices(Unpooled.wrappedBuffer(value), (entryKey, data) -> runBuffer.put(realKey, entryKey, data));
     }
 
     @Override
     public long getDataSize() throws Exception {
-        return this.dataAddrAllocator.get() - this.dataMmap.addr();
+        return this.totalDataSize.sum();
     }
 
     @Override
@@ -132,56 +160,39 @@ public final class UInt64ToBlobMapUnsortedWriteAccess extends AbstractUnsortedWr
 
     @Override
     protected void flush0() throws Exception {
+        this.runBuffers.forEach(RunBuffer::spillAndRelease);
+
         long size = this.getDataSize();
         if (size == 0L) {
             return;
         }
 
+        Run[] runs;
+        synchronized (this.runs) {
+            runs = this.runs.toArray(new Run[0]);
+            this.runs.clear();
+        }
+
         LongAdder reportedTotalSize = new LongAdder();
 
-        //split the buffer's contents and build SST files out of it
         List<Handle<Path>> paths;
-        try (TimedOperation sstOperation = new TimedOperation("Build SST files", this.logger);
+        try (TimedOperation sstOperation = new TimedOperation("Build SST files from " + runs.length + " runs", this.logger);
+             CloseableExecutor executor = new CloseableExecutor(new CloseableThreadFactory("SST build worker"));
              Options options = new Options(this.storage.db().config().dbOptions(), this.storage.db().columns().get(this.columnFamilyHandle).getOptions())) {
             EnvOptions envOptions = this.storage.db().config().envOptions();
 
-            final long targetBlockSize = (long) (this.compressionRatio * options.targetFileSizeBase());
-            List<List<TileState>> batches = new ArrayList<>();
-
-            {
-                List<TileState> currentBatch = null;
-                long currentBatchSize = 0L;
+            long[] partitionKeys = this.computePartitions(runs, (long) (this.compressionRatio * options.targetFileSizeBase()));
 
-                TileState[] allTileStates = this.keysToStates.values().toArray(new TileState[0]);
-                this.keysToStates.clear();
-                Arrays.parallelSort(allTileStates, (a, b) -> Long.compareUnsigned(a.key, b.key));
-
-                for (TileState entry : allTileStates) {
-                    if (currentBatch == null) {
-                        currentBatch = new ArrayList<>();
-                        batches.add(currentBatch);
-                    }
-
-                    currentBatch.add(entry);
-                    currentBatchSize += entry.dataSize;
-
-                    if (currentBatchSize >= targetBlockSize) {
-                        currentBatch = null;
-                        currentBatchSize = 0L;
-                    }
-                }
-            }
-
-            Memory.madvise(this.dataMmap.addr(), this.dataSize, Memory.Usage.MADV_WILLNEED);
-
-            CompletableFuture<Handle<Path>>[] pathFutures = uncheckedCast(batches.stream()
-                    .map(batch -> CompletableFuture.supplyAsync(
-                            (ESupplier<Handle<Path>>) () -> this.buildSstFileFromRange(envOptions, options, batch, reportedTotalSize)))
+            CompletableFuture<Handle<Path>>[] pathFutures = uncheckedCast(IntStream.rangeClosed(0, partitionKeys.length)
+                    .mapToObj(partition -> CompletableFuture.supplyAsync((ESupplier<Handle<Path>>) () -> this.buildSstFileFromPartition(envOptions, options, runs,
+                            partition == 0 ? 0L : partitionKeys[partition - 1],
+                            partition == partitionKeys.length ? 0L : partitionKeys[partition],
+                            partition != partitionKeys.length,
+                            reportedTotalSize), executor))
                     .toArray(CompletableFuture[]::new));
 
-            CompletableFuture.allOf(pathFutures);
             try {
-                paths = Stream.of(pathFutures).map(CompletableFuture::join).collect(Collectors.toList());
+                paths = Stream.of(pathFutures).map(CompletableFuture::join).filter(Objects::nonNull).collect(Collectors.toList());
             } catch (Exception e) {
                 while (!Stream.of(pathFutures).allMatch(CompletableFuture::isDone)) {
                     try {
@@ -197,62 +208,216 @@ public final class UInt64ToBlobMapUnsortedWriteAccess extends AbstractUnsortedWr
         int totalCount = paths.size();
         long totalSize = paths.stream().map(Handle::get).map((IOFunction<Path, Long>) Files::size).mapToLong(Long::longValue).sum();
 
-        CompletableFuture<?> removeFuture = CompletableFuture.runAsync(() -> Memory.madvise(this.dataMmap.addr(), this.dataSize, Memory.Usage.MADV_REMOVE));
+        CompletableFuture<?> removeFuture = CompletableFuture.runAsync(() -> Memory.madvise(this.runsMmap.addr(), this.runsSize, Memory.Usage.MADV_REMOVE));
 
-        //ingest the SST files
-        try (TimedOperation ingestOperation = new TimedOperation("Ingest SST files", this.logger)) {
-            this.storage.db().delegate().ingestExternalFile(this.columnFamilyHandle,
-                    paths.stream().map(Handle::get).map(Path::toString).collect(Collectors.toList()),
-                    this.storage.db().config().ingestOptions(DatabaseConfig.IngestType.MOVE));
-            paths.forEach(Handle::release);
+        if (this.outputDirectory != null) { //move the SST files to the output directory, in key order
+            PFiles.ensureDirectoryExists(this.outputDirectory);
+            for (Handle<Path> path : paths) {
+                Files.move(path.get(), this.outputDirectory.resolve(String.format("%08d.sst", this.outputFileCount++)));
+                path.release();
+            }
             paths.clear();
+        } else { //ingest the SST files
+            try (TimedOperation ingestOperation = new TimedOperation("Ingest SST files", this.logger)) {
+                this.storage.db().delegate().ingestExternalFile(this.columnFamilyHandle,
+                        paths.stream().map(Handle::get).map(Path::toString).collect(Collectors.toList()),
+                        this.storage.db().config().ingestOptions(DatabaseConfig.IngestType.MOVE));
+                paths.forEach(Handle::release);
+                paths.clear();
+            }
         }
 
-        this.logger.success("ingested %d keys totalling %d bytes (%.2f MiB) (reported: %d bytes (%.2f MiB)) in %d SST files totalling %d bytes (%.2f MiB)",
-                size / 16L,
-                this.getDataSize(), this.getDataSize() / (1024.0d * 1024.0d),
+        this.logger.success("%s %d entries totalling %d bytes (%.2f MiB) (merged: %d bytes (%.2f MiB)) in %d SST files totalling %d bytes (%.2f MiB)",
+                this.outputDirectory != null ? "wrote" : "ingested", this.totalRecords.sumThenReset(),
+                size, size / (1024.0d * 1024.0d),
                 reportedTotalSize.sum(), reportedTotalSize.sum() / (1024.0d * 1024.0d),
                 totalCount, totalSize, totalSize / (1024.0d * 1024.0d));
+        this.totalDataSize.reset();
 
         removeFuture.join();
     }
 
-    private static native long appendKey(long writerHandle, long key, long root);
-
-    private Handle<Path> buildSstFileFromRange(@NonNull EnvOptions envOptions, @NonNull Options options, @NonNull List<TileState> batch, @NonNull LongAdder reportedTotalSize) throws Exception {
-        checkArg(!batch.isEmpty());
+    /**
+     * Splits the key space into partitions containing roughly the given amount of data each.
+     *
+     * @return the first tile key of every partition except the first one, in ascending unsigned order
+     */
+    private long[] computePartitions(@NonNull Run[] runs, long targetPartitionSize) {
+        //sign-flip the keys so that a signed sort puts them in unsigned order
+        long[] samples = Stream.of(runs).flatMapToLong(run -> Arrays.stream(run.sampleKeys)).map(key -> key ^ Long.MIN_VALUE).toArray();
+        Arrays.parallelSort(samples);
+
+        double averageRecordSize = this.totalDataSize.sum() / (double) this.totalRecords.sum();
+        int samplesPerPartition = (int) Math.max(targetPartitionSize / averageRecordSize / SAMPLE_INTERVAL, 1.0d);
+
+        long[] partitionKeys = new long[samples.length / samplesPerPartition];
+        int partitionCount = 0;
+        for (int i = samplesPerPartition; i < samples.length; i += samplesPerPartition) {
+            //a tile can't be split across partitions, so partitions which would start in the same tile are combined
+            long key = samples[i] ^ Long.MIN_VALUE;
+            if (key != 0L && (partitionCount == 0 || key != partitionKeys[partitionCount - 1])) {
+                partitionKeys[partitionCount++] = key;
+            }
+        }
+        return Arrays.copyOf(partitionKeys, partitionCount);
+    }
 
-        Handle<Path> pathHandle = this.storage.getTmpFilePath(this.columnFamilyName, "sst");
+    private Handle<Path> buildSstFileFromPartition(@NonNull EnvOptions envOptions, @NonNull Options options, @NonNull Run[] runs,
+                                                   long fromKeyInclusive, long toKeyExclusive, boolean bounded, @NonNull LongAdder reportedTotalSize) throws Exception {
+        long cursorsAddr = PUnsafe.allocateMemory(runs.length * 16L);
+        try {
+            //position every run's cursor at the last sample before the partition starts
+            for (int i = 0; i < runs.length; i++) {
+                Run run = runs[i];
+                int sample = run.lastSampleBefore(fromKeyInclusive);
+                PUnsafe.putLong(cursorsAddr + i * 16L, run.addr + (sample < 0 ? 0L : run.sampleOffsets[sample]));
+                PUnsafe.putLong(cursorsAddr + i * 16L + 8L, run.addr + run.size);
+            }
 
-        try (SstFileWriter writer = new SstFileWriter(envOptions, options)) {
-            writer.open(pathHandle.get().toString());
+            Handle<Path> pathHandle = this.storage.getTmpFilePath(this.columnFamilyName, "sst");
+            try (SstFileWriter writer = new SstFileWriter(envOptions, options)) {
+                writer.open(pathHandle.get().toString());
 
-            for (TileState entry : batch) {
-                long writtenData = appendKey(writer.getNativeHandle(), entry.key, entry.prevPtr);
-                checkState(writtenData != 0L, writtenData);
+                long writtenData = appendMergedKeys(writer.getNativeHandle(), cursorsAddr, runs.length, fromKeyInclusive, toKeyExclusive, bounded);
+                if (writtenData == 0L) { //the partition is empty, which can happen if the sampled keys are very unevenly distributed
+                    PFiles.rm(pathHandle.get());
+                    pathHandle.release();
+                    return null;
+                }
                 reportedTotalSize.add(writtenData);
-            }
 
-            writer.finish();
+                writer.finish();
+            }
+            return pathHandle;
+        } finally {
+            PUnsafe.freeMemory(cursorsAddr);
         }
-
-        return pathHandle;
     }
 
     @Override
     public synchronized void close() throws Exception {
+        this.runBuffers.close();
+
         super.close();
 
-        this.dataMmap.close();
-        this.dataChannel.close();
-        PFiles.rm(this.dataPathHandle.get());
-        this.dataPathHandle.release();
+        this.runsMmap.close();
+        this.runsChannel.close();
+        PFiles.rm(this.runsPathHandle.get());
+        this.runsPathHandle.release();
     }
 
+    /**
+     * A sorted run of records in the memory-mapped runs file.
+     *
+     * @author DaPorkchop_
+     */
     @RequiredArgsConstructor
-    private static class TileState {
-        private final long key;
-        private long prevPtr = 0L;
-        private long dataSize = 0L;
+    private static final class Run {
+        private final long addr;
+        private final long size;
+        private final long[] sampleKeys;
+        private final long[] sampleOffsets;
+
+        /**
+         * @return the index of the last sample whose key is less than the given key, or {@code -1} if there is none
+         */
+        public int lastSampleBefore(long key) {
+            int low = 0;
+            int high = this.sampleKeys.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (Long.compareUnsigned(this.sampleKeys[mid], key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low - 1;
+        }
+    }
+
+    /**
+     * Buffers a single thread's records until there are enough of them to be written out as a sorted run.
+     *
+     * @author DaPorkchop_
+     */
+    private final class RunBuffer implements AutoCloseable {
+        //both buffers are allocated lazily
+        private ByteBuf recordsBuf;
+        private ByteBuf indexBuf;
+
+        public synchronized void put(long key, long entryKey, @NonNull ByteBuf data) {
+            int dataSize = data.readableBytes();
+            int recordSize = RECORD_HEADER_SIZE + dataSize;
+            checkArg(recordSize <= RUN_RECORDS_BUFFER_SIZE, "value for entry %d in tile %d is too large (%d bytes)", entryKey, key, dataSize);
+
+            if (this.recordsBuf == null) {
+                this.recordsBuf = Unpooled.directBuffer(RUN_RECORDS_BUFFER_SIZE, RUN_RECORDS_BUFFER_SIZE);
+                this.indexBuf = Unpooled.directBuffer(RUN_INDEX_BUFFER_SIZE, RUN_INDEX_BUFFER_SIZE);
+                WriteMemoryGovernor.valueBytes(RUN_RECORDS_BUFFER_SIZE + RUN_INDEX_BUFFER_SIZE);
+            } else if (!this.recordsBuf.isWritable(recordSize) || !this.indexBuf.isWritable(INDEX_ENTRY_SIZE)) {
+                this.spill();
+            }
+
+            int offset = this.recordsBuf.writerIndex();
+            this.recordsBuf.writeLongLE(key).writeLongLE(entryKey).writeIntLE(dataSize).writeBytes(data);
+            this.indexBuf.writeLongLE(key).writeLongLE(entryKey).writeLongLE(offset);
+
+            UInt64ToBlobMapUnsortedWriteAccess.this.totalDataSize.add(recordSize);
+            UInt64ToBlobMapUnsortedWriteAccess.this.totalRecords.increment();
+        }
+
+        public synchronized void spill() {
+            int count = this.indexBuf != null ? this.indexBuf.readableBytes() / INDEX_ENTRY_SIZE : 0;
+            if (count == 0) {
+                return;
+            }
+
+            long size = this.recordsBuf.readableBytes();
+            long offset = UInt64ToBlobMapUnsortedWriteAccess.this.runsOffsetAllocator.getAndAdd(size);
+            checkState(offset + size <= UInt64ToBlobMapUnsortedWriteAccess.this.runsSize, "runs buffer is full");
+            long addr = UInt64ToBlobMapUnsortedWriteAccess.this.runsMmap.addr() + offset;
+
+            int maxSamples = (count + SAMPLE_INTERVAL - 1) / SAMPLE_INTERVAL;
+            long samplesAddr = PUnsafe.allocateMemory(maxSamples * 16L);
+            try {
+                int sampleCount = sortRun(this.indexBuf.memoryAddress(), count, this.recordsBuf.memoryAddress(), addr, samplesAddr, SAMPLE_INTERVAL);
+                checkState(sampleCount == maxSamples, "expected %d samples, but got %d", maxSamples, sampleCount);
+
+                long[] sampleKeys = new long[sampleCount];
+                long[] sampleOffsets = new long[sampleCount];
+                for (int i = 0; i < sampleCount; i++) {
+                    sampleKeys[i] = PUnsafe.getLong(samplesAddr + i * 16L);
+                    sampleOffsets[i] = PUnsafe.getLong(samplesAddr + i * 16L + 8L);
+                }
+
+                synchronized (UInt64ToBlobMapUnsortedWriteAccess.this.runs) {
+                    UInt64ToBlobMapUnsortedWriteAccess.this.runs.add(new Run(addr, size, sampleKeys, sampleOffsets));
+                }
+            } finally {
+                PUnsafe.freeMemory(samplesAddr);
+            }
+
+            this.recordsBuf.clear();
+            this.indexBuf.clear();
+        }
+
+        /**
+         * Writes out any buffered records and releases the buffers, they'll be allocated again if this thread writes anything else.
+         */
+        public synchronized void spillAndRelease() {
+            this.spill();
+            if (this.recordsBuf != null) {
+                this.recordsBuf.release();
+                this.indexBuf.release();
+                this.recordsBuf = this.indexBuf = null;
+                WriteMemoryGovernor.valueBytes(-(RUN_RECORDS_BUFFER_SIZE + RUN_INDEX_BUFFER_SIZE));
+            }
+        }
+
+        @Override
+        public synchronized void close() throws Exception {
+            this.spillAndRelease();
+        }
     }
 }
@@ -0,0 +1,106 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.natives;
+
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.Math.*;
+
+/**
+ * Keeps track of the off-heap memory held by all open {@link OSMDataUnsortedWriteAccess}es, so that they can be flushed early if their combined memory
+ * usage approaches a global budget.
+ * <p>
+ * Other write accesses which are kept open alongside them (such as the {@link UInt64SetUnsortedWriteAccess} used for references while digesting a PBF) may
+ * register themselves as well. They can't necessarily be flushed early, but their memory still counts towards the budget, which causes the others to flush
+ * sooner.
+ * <p>
+ * The budget may be set (in bytes) with the {@code osmDataWriteMemoryBudget} system property. By default, it's half of the physical memory which isn't
+ * reserved for the Java heap.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+class WriteMemoryGovernor {
+    public static final long BUDGET = Long.getLong("osmDataWriteMemoryBudget", defaultBudget());
+
+    //flushes are forced once this fraction of the budget is in use, leaving some headroom for the values which are written while the flush is running
+    private static final double FLUSH_THRESHOLD = 0.75d;
+
+    private static final LongAdder LIVE_VALUE_BYTES = new LongAdder();
+    private static final Set<Tracked> ACCESSES = ConcurrentHashMap.newKeySet();
+
+    private static long defaultBudget() {
+        long physicalMemory = ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getTotalPhysicalMemorySize();
+        return max(physicalMemory - Runtime.getRuntime().maxMemory(), 0L) >> 1L;
+    }
+
+    public static void register(@NonNull Tracked access) {
+        ACCESSES.add(access);
+    }
+
+    public static void unregister(@NonNull Tracked access) {
+        ACCESSES.remove(access);
+    }
+
+    /**
+     * Records a change in the number of bytes used by values which haven't been flushed yet.
+     */
+    public static void valueBytes(long delta) {
+        LIVE_VALUE_BYTES.add(delta);
+    }
+
+    /**
+     * @return the approximate number of bytes of off-heap memory currently in use by all write accesses, including their indices
+     */
+    public static long usage() {
+        long usage = LIVE_VALUE_BYTES.sum();
+        for (Tracked access : ACCESSES) {
+            usage += access.trackedMemoryUsage();
+        }
+        return usage;
+    }
+
+    /**
+     * @return whether the memory usage is close enough to the budget that write accesses should flush as soon as possible
+     */
+    public static boolean shouldFlush() {
+        return usage() >= (long) (BUDGET * FLUSH_THRESHOLD);
+    }
+
+    /**
+     * A write access whose memory usage counts towards the budget.
+     *
+     * @author DaPorkchop_
+     */
+    interface Tracked {
+        /**
+         * @return the approximate number of bytes of off-heap memory currently held, excluding anything which was reported through {@link #valueBytes(long)}
+         */
+        long trackedMemoryUsage();
+    }
+}
@@ -74,7 +74,7 @@ public class AreaKeys {
         }
     }
 
-    private Predicate<Map<String, String>> parseFilter(@NonNull JsonNode root) {
+    Predicate<Map<String, String>> parseFilter(@NonNull JsonNode root) {
         if (root.isArray()) {
             Predicate<Map<String, String>>[] filters = uncheckedCast(StreamSupport.stream(root.spliterator(), false)
                     .map(AreaKeys::parseFilter)
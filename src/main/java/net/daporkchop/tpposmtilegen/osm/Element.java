@@ -147,6 +147,19 @@ public abstract class Element implements Persistent {
         return this.visible();
     }
 
+    /**
+     * Checks if this element is allowed to be included in the tile data at the given detail level, taking the element's geometry into account.
+     * <p>
+     * Elements which are not allowed to be included at a level must also not be allowed to be included at any higher level.
+     *
+     * @param level    the detail level
+     * @param geometry this element's geometry, simplified to the given detail level
+     * @return {@code true} if this element is allowed to be included in the tile data at the given detail level
+     */
+    public boolean allowedToIncludeAtLevel(@NotNegative int level, @NonNull Geometry geometry) {
+        return this.allowedToIncludeAtLevel(level);
+    }
+
     /**
      * Assembles this element into its {@link Geometry} representation.
      *
@@ -0,0 +1,192 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.osm;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+import net.daporkchop.tpposmtilegen.geometry.Area;
+import net.daporkchop.tpposmtilegen.geometry.Geometry;
+import net.daporkchop.tpposmtilegen.geometry.Line;
+import net.daporkchop.tpposmtilegen.geometry.Point;
+import net.daporkchop.tpposmtilegen.geometry.Shape;
+import net.daporkchop.tpposmtilegen.util.Tile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.StreamSupport;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.tpposmtilegen.util.Utils.*;
+
+/**
+ * Decides which elements are included in the tile data at each level.
+ * <p>
+ * The rules are loaded from {@code level_of_detail.json}, which contains a list of rules for each element type. The first rule whose {@code match} filter (in
+ * the same format as the filters used by {@link AreaKeys}) matches an element's tags decides whether or not the element is included:
+ * <ul>
+ *     <li>{@code maxLevel}: the element is only included at levels below this one. Defaults to no limit.</li>
+ *     <li>{@code minSize}: the element is only included if its size is at least this many times the tile size at the given level. For lines, the size is the
+ *     line's length, and for areas it's the square root of the area's area. Points are never filtered by size. Defaults to {@code 0}.</li>
+ * </ul>
+ * As tiles get twice as large with each level, a size threshold relative to the tile size keeps the number of elements in each tile roughly constant across
+ * levels. Elements which don't match any rule are always included, and every element is always included at {@link net.daporkchop.tpposmtilegen.util.Utils#MIN_LEVEL},
+ * as that level contains the full-detail data which all other levels may be derived from.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class LevelOfDetail {
+    protected final Rule[] WAY_RULES = parseRules("ways");
+    protected final Rule[] RELATION_RULES = parseRules("relations");
+
+    /**
+     * Checks whether a way is allowed to be included at the given level.
+     *
+     * @param tags     the way's tags
+     * @param level    the level
+     * @param geometry the way's geometry at the given level, or {@code null} if it isn't known yet (in which case only the tags are checked)
+     */
+    public static boolean allowWay(@NonNull Map<String, String> tags, int level, Geometry geometry) {
+        return allow(WAY_RULES, tags, level, geometry);
+    }
+
+    /**
+     * Checks whether a relation is allowed to be included at the given level.
+     *
+     * @param tags     the relation's tags
+     * @param level    the level
+     * @param geometry the relation's geometry at the given level, or {@code null} if it isn't known yet (in which case only the tags are checked)
+     */
+    public static boolean allowRelation(@NonNull Map<String, String> tags, int level, Geometry geometry) {
+        return allow(RELATION_RULES, tags, level, geometry);
+    }
+
+    /**
+     * Checks whether a visible element of the given type is allowed to be included at the given level.
+     * <p>
+     * This gives the same result as {@link Element#allowedToIncludeAtLevel(int, Geometry)}, but only needs the element's type and tags, so it may be used on
+     * elements which were read back from the tile data rather than from the OSM data.
+     *
+     * @param type     the element's type
+     * @param tags     the element's tags
+     * @param level    the level
+     * @param geometry the element's geometry at the given level, or {@code null} if it isn't known yet (in which case only the tags are checked)
+     */
+    public static boolean allowElement(int type, @NonNull Map<String, String> tags, int level, Geometry geometry) {
+        switch (type) {
+            case Node.TYPE:
+                return false;
+            case Way.TYPE:
+                return allowWay(tags, level, geometry);
+            case Relation.TYPE:
+                return allowRelation(tags, level, geometry);
+            case Coastline.TYPE:
+                return true;
+            default:
+                throw new IllegalArgumentException("unknown element type: " + type);
+        }
+    }
+
+    private boolean allow(Rule[] rules, Map<String, String> tags, int level, Geometry geometry) {
+        if (notNegative(level, "level") == MIN_LEVEL) {
+            return true;
+        }
+
+        for (Rule rule : rules) {
+            if (rule.filter.test(tags)) {
+                if (level >= rule.maxLevel) {
+                    return false;
+                }
+                return geometry == null || rule.minSize <= 0.0d || size(geometry) >= rule.minSize * Tile.tileSizePointScale(level);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes the size of the given geometry, in point units.
+     *
+     * @return the length of a line, the square root of the area of an area, or {@link Double#POSITIVE_INFINITY} for any other geometry
+     */
+    public static double size(@NonNull Geometry geometry) {
+        if (geometry instanceof Line) {
+            Point[] points = ((Line) geometry).points();
+            double length = 0.0d;
+            for (int i = 1; i < points.length; i++) {
+                length += points[i - 1].distance(points[i]);
+            }
+            return length;
+        } else if (geometry instanceof Area) {
+            double area = 0.0d;
+            for (Shape shape : ((Area) geometry).shapes()) {
+                area += loopArea(shape.outerLoop());
+                for (Point[] innerLoop : shape.innerLoops()) {
+                    area -= loopArea(innerLoop);
+                }
+            }
+            return sqrt(max(area, 0.0d));
+        } else {
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    private double loopArea(Point[] loop) {
+        //shoelace formula, loops are closed so the last point is the same as the first one
+        double sum = 0.0d;
+        for (int i = 1; i < loop.length; i++) {
+            sum += (double) loop[i - 1].x() * loop[i].y() - (double) loop[i].x() * loop[i - 1].y();
+        }
+        return abs(sum) * 0.5d;
+    }
+
+    private Rule[] parseRules(@NonNull String name) {
+        try (InputStream in = LevelOfDetail.class.getResourceAsStream("level_of_detail.json")) {
+            return parseRules(new JsonMapper().readTree(in).get(name));
+        } catch (IOException e) {
+            throw new RuntimeException(name, e);
+        }
+    }
+
+    private Rule[] parseRules(@NonNull JsonNode root) {
+        checkArg(root.isArray(), "rules must be an array");
+        return StreamSupport.stream(root.spliterator(), false)
+                .map(node -> new Rule(
+                        AreaKeys.parseFilter(node.get("match")),
+                        node.path("maxLevel").asInt(Integer.MAX_VALUE),
+                        node.path("minSize").asDouble(0.0d)))
+                .toArray(Rule[]::new);
+    }
+
+    @AllArgsConstructor
+    protected static final class Rule {
+        @NonNull
+        protected final Predicate<Map<String, String>> filter;
+        protected final int maxLevel;
+        protected final double minSize;
+    }
+}
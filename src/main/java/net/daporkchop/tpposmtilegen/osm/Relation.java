@@ -118,8 +118,12 @@ public final class Relation extends Element {
 
     @Override
     public boolean allowedToIncludeAtLevel(@NotNegative int level) {
-        //TODO: smarter logic for determining this
-        return super.allowedToIncludeAtLevel(level) && true;
+        return super.allowedToIncludeAtLevel(level) && LevelOfDetail.allowRelation(this.tags, level, null);
+    }
+
+    @Override
+    public boolean allowedToIncludeAtLevel(@NotNegative int level, @NonNull Geometry geometry) {
+        return super.allowedToIncludeAtLevel(level, geometry) && LevelOfDetail.allowRelation(this.tags, level, geometry);
     }
 
     @Override
@@ -112,8 +112,12 @@ public final class Way extends Element {
 
     @Override
     public boolean allowedToIncludeAtLevel(@NotNegative int level) {
-        //TODO: smarter logic for determining this
-        return super.allowedToIncludeAtLevel(level) && true;
+        return super.allowedToIncludeAtLevel(level) && LevelOfDetail.allowWay(this.tags, level, null);
+    }
+
+    @Override
+    public boolean allowedToIncludeAtLevel(@NotNegative int level, @NonNull Geometry geometry) {
+        return super.allowedToIncludeAtLevel(level, geometry) && LevelOfDetail.allowWay(this.tags, level, geometry);
     }
 
     @Override
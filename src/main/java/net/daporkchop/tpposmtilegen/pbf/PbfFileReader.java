@@ -0,0 +1,213 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.pbf;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Reads the raw blobs from an OSM PBF file, one at a time.
+ * <p>
+ * Blobs are returned still compressed, so that they may be decompressed and decoded in parallel using {@link #decompress(Blob, Inflater, byte[])}.
+ *
+ * @author DaPorkchop_
+ */
+public final class PbfFileReader implements AutoCloseable {
+    public static final String TYPE_HEADER = "OSMHeader";
+    public static final String TYPE_DATA = "OSMData";
+
+    private static final int MAX_BLOB_HEADER_SIZE = 64 << 10;
+    static final int MAX_BLOB_SIZE = 32 << 20;
+
+    /**
+     * Reads the header block from the given PBF file.
+     */
+    public static PbfHeader readHeader(@NonNull Path path) throws IOException {
+        try (PbfFileReader reader = new PbfFileReader(path)) {
+            Blob blob = reader.next();
+            checkState(blob != null && TYPE_HEADER.equals(blob.type()), "'%s' doesn't start with a header block", path);
+
+            byte[] data = new byte[MAX_BLOB_SIZE];
+            int length = decompress(blob, new Inflater(), data);
+            return PbfHeader.parse(new ProtobufInput().reset(data, 0, length));
+        }
+    }
+
+    /**
+     * Decompresses the contents of a blob.
+     *
+     * @param blob     the blob
+     * @param inflater an {@link Inflater} to use for zlib-compressed blobs
+     * @param dst      the array to decompress into. Must be at least 32MiB, which is the maximum uncompressed blob size permitted by the format
+     * @return the uncompressed size of the blob
+     */
+    public static int decompress(@NonNull Blob blob, @NonNull Inflater inflater, @NonNull byte[] dst) throws IOException {
+        checkArg(dst.length >= MAX_BLOB_SIZE, "destination array must be at least %d bytes", MAX_BLOB_SIZE);
+
+        ProtobufInput in = new ProtobufInput().reset(blob.data(), 0, blob.data().length);
+        int rawSize = -1;
+        for (int tag; (tag = in.readTag()) != 0; ) {
+            switch (ProtobufInput.fieldNumber(tag)) {
+                case 1: { //raw
+                    int length = in.readLength();
+                    System.arraycopy(in.buf(), in.pos(), dst, 0, length);
+                    return length;
+                }
+                case 2: //raw_size
+                    rawSize = in.readInt32();
+                    break;
+                case 3: { //zlib_data
+                    checkState(rawSize >= 0 && rawSize <= MAX_BLOB_SIZE, "invalid raw_size %d", rawSize);
+                    int length = in.readLength();
+                    inflater.reset();
+                    inflater.setInput(in.buf(), in.pos(), length);
+                    try {
+                        int inflated = 0;
+                        while (inflated < rawSize && !inflater.finished()) {
+                            int n = inflater.inflate(dst, inflated, rawSize - inflated);
+                            checkState(n > 0 || !inflater.needsInput(), "truncated zlib data");
+                            inflated += n;
+                        }
+                        checkState(inflated == rawSize, "blob should inflate to %d bytes, but inflated to %d", rawSize, inflated);
+                    } catch (DataFormatException e) {
+                        throw new IOException(e);
+                    }
+                    return rawSize;
+                }
+                case 4: //lzma_data
+                case 5: //OBSOLETE_bzip2_data
+                case 6: //lz4_data
+                case 7: //zstd_data
+                    throw new UnsupportedOperationException("unsupported blob compression (field " + ProtobufInput.fieldNumber(tag) + ')');
+                default:
+                    in.skipField(tag);
+            }
+        }
+        throw new IllegalStateException("blob has no data");
+    }
+
+    private final DataInputStream in;
+    private final byte[] headerBuffer = new byte[MAX_BLOB_HEADER_SIZE];
+    private final ProtobufInput headerInput = new ProtobufInput();
+
+    @Getter
+    private long position;
+
+    public PbfFileReader(@NonNull Path path) throws IOException {
+        this(path, 0L);
+    }
+
+    /**
+     * @param path     the path to the PBF file
+     * @param position the offset of the blob header to start reading from, as returned by {@link Blob#offset()}
+     */
+    public PbfFileReader(@NonNull Path path, long position) throws IOException {
+        SeekableByteChannel channel = Files.newByteChannel(path);
+        try {
+            channel.position(notNegative(position, "position"));
+        } catch (Throwable t) {
+            channel.close();
+            throw t;
+        }
+        this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 20));
+        this.position = position;
+    }
+
+    /**
+     * Reads the next blob.
+     *
+     * @return the next blob, or {@code null} if the end of the file has been reached
+     */
+    public Blob next() throws IOException {
+        int headerSize;
+        try {
+            headerSize = this.in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        checkState(headerSize > 0 && headerSize <= MAX_BLOB_HEADER_SIZE, "invalid blob header size %d at offset %d", headerSize, this.position);
+        this.in.readFully(this.headerBuffer, 0, headerSize);
+
+        String type = null;
+        int dataSize = -1;
+        ProtobufInput header = this.headerInput.reset(this.headerBuffer, 0, headerSize);
+        for (int tag; (tag = header.readTag()) != 0; ) {
+            switch (ProtobufInput.fieldNumber(tag)) {
+                case 1: { //type
+                    int length = header.readLength();
+                    type = new String(this.headerBuffer, header.pos(), length, StandardCharsets.UTF_8);
+                    header.skip(length);
+                    break;
+                }
+                case 3: //datasize
+                    dataSize = header.readInt32();
+                    break;
+                default:
+                    header.skipField(tag);
+            }
+        }
+        checkState(type != null && dataSize >= 0 && dataSize <= MAX_BLOB_SIZE, "invalid blob header at offset %d", this.position);
+
+        Blob blob = new Blob(type, new byte[dataSize], this.position);
+        this.in.readFully(blob.data());
+        this.position += 4L + headerSize + dataSize;
+        return blob;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.in.close();
+    }
+
+    /**
+     * A single compressed blob.
+     *
+     * @author DaPorkchop_
+     */
+    @AllArgsConstructor
+    @Getter
+    public static final class Blob {
+        @NonNull
+        protected final String type;
+        @NonNull
+        protected final byte[] data;
+        /**
+         * The offset of the blob's header in the file.
+         */
+        protected final long offset;
+    }
+}
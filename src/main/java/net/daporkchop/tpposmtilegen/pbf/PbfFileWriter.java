@@ -0,0 +1,139 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.pbf;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.zip.Deflater;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Writes raw blobs to an OSM PBF file, one at a time.
+ * <p>
+ * Blobs are compressed and framed using {@link #frame(String, ProtobufOutput, Deflater)} before being written, so that this may be done in parallel.
+ *
+ * @author DaPorkchop_
+ */
+public final class PbfFileWriter implements AutoCloseable {
+    /**
+     * Compresses the given block and wraps it in a blob, preceded by its blob header.
+     *
+     * @param type     the blob type, either {@link PbfFileReader#TYPE_HEADER} or {@link PbfFileReader#TYPE_DATA}
+     * @param block    the encoded block
+     * @param deflater a {@link Deflater} to compress the block with
+     * @return the framed blob, which may be written to a file using {@link #write(byte[])}
+     */
+    public static byte[] frame(@NonNull String type, @NonNull ProtobufOutput block, @NonNull Deflater deflater) {
+        checkArg(block.size() <= PbfFileReader.MAX_BLOB_SIZE, "block is too large: %d bytes", block.size());
+
+        byte[] compressed = new byte[block.size() + (block.size() >> 3) + 64];
+        deflater.reset();
+        deflater.setInput(block.buf(), 0, block.size());
+        deflater.finish();
+        int compressedSize = 0;
+        while (!deflater.finished()) {
+            if (compressedSize == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length << 1);
+            }
+            compressedSize += deflater.deflate(compressed, compressedSize, compressed.length - compressedSize);
+        }
+
+        ProtobufOutput blob = new ProtobufOutput()
+                .writeVarintField(2, block.size()) //raw_size
+                .writeBytesField(3, compressed, 0, compressedSize); //zlib_data
+        ProtobufOutput header = new ProtobufOutput()
+                .writeStringField(1, type) //type
+                .writeVarintField(3, blob.size()); //datasize
+
+        byte[] framed = new byte[4 + header.size() + blob.size()];
+        framed[0] = (byte) (header.size() >>> 24);
+        framed[1] = (byte) (header.size() >>> 16);
+        framed[2] = (byte) (header.size() >>> 8);
+        framed[3] = (byte) header.size();
+        System.arraycopy(header.buf(), 0, framed, 4, header.size());
+        System.arraycopy(blob.buf(), 0, framed, 4 + header.size(), blob.size());
+        return framed;
+    }
+
+    private final OutputStream out;
+    private final Deflater deflater = new Deflater();
+
+    @Getter
+    private long position;
+
+    public PbfFileWriter(@NonNull Path path) throws IOException {
+        this.out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 20);
+    }
+
+    /**
+     * Writes the header block, which must be the first block in the file.
+     *
+     * @param replicationTimestamp      the replication timestamp, in seconds since the epoch. May be {@code null}
+     * @param replicationSequenceNumber the replication sequence number. May be {@code null}
+     * @param replicationBaseUrl        the replication base URL. May be {@code null}
+     */
+    public void writeHeader(@NonNull Collection<String> requiredFeatures, @NonNull Collection<String> optionalFeatures, @NonNull String writingProgram,
+                            Long replicationTimestamp, Long replicationSequenceNumber, String replicationBaseUrl) throws IOException {
+        checkState(this.position == 0L, "header must be the first block in the file");
+
+        ProtobufOutput block = new ProtobufOutput();
+        requiredFeatures.forEach(feature -> block.writeStringField(4, feature)); //required_features
+        optionalFeatures.forEach(feature -> block.writeStringField(5, feature)); //optional_features
+        block.writeStringField(16, writingProgram); //writingprogram
+        if (replicationTimestamp != null) {
+            block.writeVarintField(32, replicationTimestamp); //osmosis_replication_timestamp
+        }
+        if (replicationSequenceNumber != null) {
+            block.writeVarintField(33, replicationSequenceNumber); //osmosis_replication_sequence_number
+        }
+        if (replicationBaseUrl != null) {
+            block.writeStringField(34, replicationBaseUrl); //osmosis_replication_base_url
+        }
+        this.write(frame(PbfFileReader.TYPE_HEADER, block, this.deflater));
+    }
+
+    /**
+     * Writes a blob which was framed using {@link #frame(String, ProtobufOutput, Deflater)}.
+     */
+    public void write(@NonNull byte[] framed) throws IOException {
+        this.out.write(framed);
+        this.position += framed.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.out.close();
+        } finally {
+            this.deflater.end();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.pbf;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The contents of an OSM PBF file's {@code HeaderBlock}.
+ *
+ * @author DaPorkchop_
+ */
+@Getter
+@ToString
+public final class PbfHeader {
+    public static final String FEATURE_HISTORICAL_INFORMATION = "HistoricalInformation";
+    public static final String FEATURE_SORTED = "Sort.Type_then_ID";
+
+    static PbfHeader parse(@NonNull ProtobufInput in) {
+        PbfHeader header = new PbfHeader();
+        for (int tag; (tag = in.readTag()) != 0; ) {
+            switch (ProtobufInput.fieldNumber(tag)) {
+                case 4: //required_features
+                    header.requiredFeatures.add(readString(in));
+                    break;
+                case 5: //optional_features
+                    header.optionalFeatures.add(readString(in));
+                    break;
+                case 16: //writingprogram
+                    header.writingProgram = readString(in);
+                    break;
+                case 32: //osmosis_replication_timestamp
+                    header.replicationTimestamp = in.readVarint();
+                    break;
+                case 33: //osmosis_replication_sequence_number
+                    header.replicationSequenceNumber = in.readVarint();
+                    break;
+                case 34: //osmosis_replication_base_url
+                    header.replicationBaseUrl = readString(in);
+                    break;
+                default:
+                    in.skipField(tag);
+            }
+        }
+        return header;
+    }
+
+    private static String readString(ProtobufInput in) {
+        int length = in.readLength();
+        String s = new String(in.buf(), in.pos(), length, StandardCharsets.UTF_8);
+        in.skip(length);
+        return s;
+    }
+
+    protected final Set<String> requiredFeatures = new HashSet<>();
+    protected final Set<String> optionalFeatures = new HashSet<>();
+    protected String writingProgram;
+    protected Long replicationTimestamp;
+    protected Long replicationSequenceNumber;
+    protected String replicationBaseUrl;
+
+    private PbfHeader() {
+    }
+}
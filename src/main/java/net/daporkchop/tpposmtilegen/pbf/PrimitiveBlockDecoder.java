@@ -0,0 +1,629 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.pbf;
+
+import io.netty.buffer.ByteBuf;
+import it.unimi.dsi.fastutil.longs.LongList;
+import lombok.Getter;
+import lombok.NonNull;
+import net.daporkchop.tpposmtilegen.osm.Element;
+
+import java.util.Arrays;
+import java.util.zip.Inflater;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Decodes the elements in an OSM PBF {@code PrimitiveBlock} without allocating any objects per element.
+ * <p>
+ * Strings are never decoded: tags and relation member roles are kept as indices into the block's string table, whose entries are already UTF-8 and can be
+ * copied straight into our own serialized format. Elements are passed to a {@link Visitor} one at a time, and the properties of the current element may be
+ * accessed using the getters on this class or serialized using the {@code write*} methods. The current element is only valid for the duration of the visitor
+ * callback.
+ * <p>
+ * Not thread-safe, instances are intended to be reused by a single thread.
+ *
+ * @author DaPorkchop_
+ */
+public final class PrimitiveBlockDecoder {
+    private static int[] ensureCapacity(int[] arr, int size) {
+        return size <= arr.length ? arr : Arrays.copyOf(arr, max(size, arr.length << 1));
+    }
+
+    private static long[] ensureCapacity(long[] arr, int size) {
+        return size <= arr.length ? arr : Arrays.copyOf(arr, max(size, arr.length << 1));
+    }
+
+    private static boolean[] ensureCapacity(boolean[] arr, int size) {
+        return size <= arr.length ? arr : Arrays.copyOf(arr, max(size, arr.length << 1));
+    }
+
+    private final Inflater inflater = new Inflater();
+    private final byte[] data = new byte[32 << 20];
+    private final ProtobufInput in = new ProtobufInput();
+
+    //string table, as offsets into this.data
+    private int[] stringOffsets = new int[1024];
+    private int[] stringLengths = new int[1024];
+    private int stringCount;
+
+    private long granularity;
+    private long latOffset;
+    private long lonOffset;
+
+    private int[] groupOffsets = new int[16];
+    private int[] groupLengths = new int[16];
+    private int groupCount;
+
+    //the current element
+    @Getter
+    private long id;
+    @Getter
+    private int version;
+    @Getter
+    private boolean visible;
+    @Getter
+    private int lon;
+    @Getter
+    private int lat;
+
+    private int[] tagKeys = new int[64];
+    private int[] tagValues = new int[64];
+    @Getter
+    private int tagCount;
+    private int tagValueCount; //only used while decoding, as the keys and values of non-dense elements are stored in separate fields
+
+    //node IDs for ways, combined member IDs for relations
+    private long[] refs = new long[2048];
+    private int[] roles = new int[2048];
+    private int[] memberTypes = new int[2048];
+    private int refCount;
+
+    //dense node columns
+    private long[] denseIds = new long[8192];
+    private int[] denseVersions = new int[8192];
+    private boolean[] denseVisible = new boolean[8192];
+    private long[] denseLats = new long[8192];
+    private long[] denseLons = new long[8192];
+    private int[] denseKeysVals = new int[8192];
+
+    /**
+     * Decompresses and decodes the given {@link PbfFileReader#TYPE_DATA} blob, passing every element in it to the given visitor in the order they're
+     * stored in.
+     */
+    public void decode(@NonNull PbfFileReader.Blob blob, @NonNull Visitor visitor) throws Exception {
+        checkArg(PbfFileReader.TYPE_DATA.equals(blob.type()), "not a data blob: %s", blob.type());
+        int length = PbfFileReader.decompress(blob, this.inflater, this.data);
+
+        //the block's granularity and offsets are stored after the groups, so we need to find them before decoding any of the groups
+        this.stringCount = 0;
+        this.groupCount = 0;
+        this.granularity = 100L;
+        this.latOffset = 0L;
+        this.lonOffset = 0L;
+
+        ProtobufInput in = this.in.reset(this.data, 0, length);
+        for (int tag; (tag = in.readTag()) != 0; ) {
+            switch (ProtobufInput.fieldNumber(tag)) {
+                case 1: { //stringtable
+                    int oldLimit = in.pushLimit(in.readLength());
+                    this.readStringTable(in);
+                    in.popLimit(oldLimit);
+                    break;
+                }
+                case 2: { //primitivegroup
+                    int groupLength = in.readLength();
+                    this.groupOffsets = ensureCapacity(this.groupOffsets, this.groupCount + 1);
+                    this.groupLengths = ensureCapacity(this.groupLengths, this.groupCount + 1);
+                    this.groupOffsets[this.groupCount] = in.pos();
+                    this.groupLengths[this.groupCount++] = groupLength;
+                    in.skip(groupLength);
+                    break;
+                }
+                case 17: //granularity
+                    this.granularity = in.readInt32();
+                    break;
+                case 19: //lat_offset
+                    this.latOffset = in.readVarint();
+                    break;
+                case 20: //lon_offset
+                    this.lonOffset = in.readVarint();
+                    break;
+                default:
+                    in.skipField(tag);
+            }
+        }
+
+        for (int group = 0; group < this.groupCount; group++) {
+            in.reset(this.data, this.groupOffsets[group], this.groupLengths[group]);
+            for (int tag; (tag = in.readTag()) != 0; ) {
+                int fieldNumber = ProtobufInput.fieldNumber(tag);
+                if (fieldNumber >= 1 && fieldNumber <= 4) {
+                    int oldLimit = in.pushLimit(in.readLength());
+                    switch (fieldNumber) {
+                        case 1:
+                            this.readNode(in, visitor);
+                            break;
+                        case 2:
+                            this.readDenseNodes(in, visitor);
+                            break;
+                        case 3:
+                            this.readWay(in, visitor);
+                            break;
+                        case 4:
+                            this.readRelation(in, visitor);
+                            break;
+                    }
+                    in.popLimit(oldLimit);
+                } else { //changesets or something unknown
+                    in.skipField(tag);
+                }
+            }
+        }
+    }
+
+    private void readStringTable(ProtobufInput in) {
+        for (int tag; (tag = in.readTag()) != 0; ) {
+            if (ProtobufInput.fieldNumber(tag) == 1) {
+                int length = in.readLength();
+                this.stringOffsets = ensureCapacity(this.stringOffsets, this.stringCount + 1);
+                this.stringLengths = ensureCapacity(this.stringLengths, this.stringCount + 1);
+                this.stringOffsets[this.stringCount] = in.pos();
+                this.stringLengths[this.stringCount++] = length;
+                in.skip(length);
+            } else {
+                in.skipField(tag);
+            }
+        }
+    }
+
+    private int checkString(int sid) {
+        checkState(sid >= 0 && sid < this.stringCount, "string index %d out of bounds (string table size: %d)", sid, this.stringCount);
+        return sid;
+    }
+
+    private boolean stringsEqual(int sid0, int sid1) {
+        if (sid0 == sid1) {
+            return true;
+        }
+
+        int length = this.stringLengths[sid0];
+        if (length != this.stringLengths[sid1]) {
+            return false;
+        }
+        for (int i = 0, offset0 = this.stringOffsets[sid0], offset1 = this.stringOffsets[sid1]; i < length; i++) {
+            if (this.data[offset0 + i] != this.data[offset1 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasLaterTag(int index) {
+        for (int i = index + 1; i < this.tagCount; i++) {
+            if (this.stringsEqual(this.tagKeys[index], this.tagKeys[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Must be called once the current element has been read completely, before it's passed to the visitor.
+     * <p>
+     * Checks that the element has as many tag values as keys, and removes all but the last occurrence of every key from the element's tags, as a map built
+     * from them would only contain the last value. Elements rarely have more than a handful of tags, so the quadratic search is cheaper than anything which
+     * would need to allocate.
+     */
+    private void finishTags() {
+        checkState(this.tagCount == this.tagValueCount, "element %d has %d keys, but %d values", this.id, this.tagCount, this.tagValueCount);
+
+        int count = 0;
+        for (int i = 0; i < this.tagCount; i++) {
+            if (!this.hasLaterTag(i)) {
+                this.tagKeys[count] = this.tagKeys[i];
+                this.tagValues[count++] = this.tagValues[i];
+            }
+        }
+        this.tagCount = count;
+    }
+
+    private int fixedLat(long lat) {
+        return toIntExact((this.latOffset + this.granularity * lat) / 100L);
+    }
+
+    private int fixedLon(long lon) {
+        return toIntExact((this.lonOffset + this.granularity * lon) / 100L);
+    }
+
+    private void resetElement() {
+        this.version = -1;
+        this.visible = true;
+        this.tagCount = 0;
+        this.tagValueCount = 0;
+        this.refCount = 0;
+    }
+
+    private void readInfo(ProtobufInput in) {
+        for (int tag; (tag = in.readTag()) != 0; ) {
+            switch (ProtobufInput.fieldNumber(tag)) {
+                case 1: //version
+                    this.version = in.readInt32();
+                    break;
+                case 6: //visible
+                    this.visible = in.readBool();
+                    break;
+                default:
+                    in.skipField(tag);
+            }
+        }
+    }
+
+    /**
+     * Reads a field which is either {@code keys} or {@code vals}, which are stored as separate packed arrays.
+     * <p>
+     * Protobuf doesn't guarantee any particular field order, so the two arrays are only paired up by {@link #finishTags()} once the whole element has been
+     * read.
+     */
+    private void readTagIndices(ProtobufInput in, boolean keys) {
+        int oldLimit = in.pushLimit(in.readLength());
+        int[] dst = keys ? this.tagKeys : this.tagValues;
+        int i = 0;
+        while (in.hasRemaining()) {
+            dst = ensureCapacity(dst, i + 1);
+            dst[i++] = this.checkString(in.readInt32());
+        }
+        in.popLimit(oldLimit);
+
+        if (keys) {
+            this.tagKeys = dst;
+            this.tagCount = i;
+        } else {
+            this.tagValues = dst;
+            this.tagValueCount = i;
+        }
+    }
+
+    private void readNode(ProtobufInput in, Visitor visitor) throws Exception {
+        this.resetElement();
+        long lat = 0L;
+        long lon = 0L;
+        for (int tag; (tag = in.readTag()) != 0; ) {
+            switch (ProtobufInput.fieldNumber(tag)) {
+                case 1: //id
+                    this.id = in.readSInt64();
+                    break;
+                case 2: //keys
+                    this.readTagIndices(in, true);
+                    break;
+                case 3: //vals
+                    this.readTagIndices(in, false);
+                    break;
+                case 4: { //info
+                    int oldLimit = in.pushLimit(in.readLength());
+                    this.readInfo(in);
+                    in.popLimit(oldLimit);
+                    break;
+                }
+                case 8: //lat
+                    lat = in.readSInt64();
+                    break;
+                case 9: //lon
+                    lon = in.readSInt64();
+                    break;
+                default:
+                    in.skipField(tag);
+            }
+        }
+        this.lat = this.fixedLat(lat);
+        this.lon = this.fixedLon(lon);
+        this.finishTags();
+        visitor.node(this);
+    }
+
+    private void readDenseNodes(ProtobufInput in, Visitor visitor) throws Exception {
+        int count = 0;
+        int versionCount = 0;
+        int visibleCount = 0;
+        int latCount = 0;
+        int lonCount = 0;
+        int keysValsCount = 0;
+
+        for (int tag; (tag = in.readTag()) != 0; ) {
+            switch (ProtobufInput.fieldNumber(tag)) {
+                case 1: { //id
+                    int oldLimit = in.pushLimit(in.readLength());
+                    for (long id = 0L; in.hasRemaining(); ) {
+                        this.denseIds = ensureCapacity(this.denseIds, count + 1);
+                        this.denseIds[count++] = id += in.readSInt64();
+                    }
+                    in.popLimit(oldLimit);
+                    break;
+                }
+                case 5: { //denseinfo
+                    int infoLimit = in.pushLimit(in.readLength());
+                    for (int infoTag; (infoTag = in.readTag()) != 0; ) {
+                        switch (ProtobufInput.fieldNumber(infoTag)) {
+                            case 1: { //version
+                                int oldLimit = in.pushLimit(in.readLength());
+                                while (in.hasRemaining()) {
+                                    this.denseVersions = ensureCapacity(this.denseVersions, versionCount + 1);
+                                    this.denseVersions[versionCount++] = in.readInt32();
+                                }
+                                in.popLimit(oldLimit);
+                                break;
+                            }
+                            case 6: { //visible
+                                int oldLimit = in.pushLimit(in.readLength());
+                                while (in.hasRemaining()) {
+                                    this.denseVisible = ensureCapacity(this.denseVisible, visibleCount + 1);
+                                    this.denseVisible[visibleCount++] = in.readBool();
+                                }
+                                in.popLimit(oldLimit);
+                                break;
+                            }
+                            default:
+                                in.skipField(infoTag);
+                        }
+                    }
+                    in.popLimit(infoLimit);
+                    break;
+                }
+                case 8: { //lat
+                    int oldLimit = in.pushLimit(in.readLength());
+                    for (long lat = 0L; in.hasRemaining(); ) {
+                        this.denseLats = ensureCapacity(this.denseLats, latCount + 1);
+                        this.denseLats[latCount++] = lat += in.readSInt64();
+                    }
+                    in.popLimit(oldLimit);
+                    break;
+                }
+                case 9: { //lon
+                    int oldLimit = in.pushLimit(in.readLength());
+                    for (long lon = 0L; in.hasRemaining(); ) {
+                        this.denseLons = ensureCapacity(this.denseLons, lonCount + 1);
+                        this.denseLons[lonCount++] = lon += in.readSInt64();
+                    }
+                    in.popLimit(oldLimit);
+                    break;
+                }
+                case 10: { //keys_vals
+                    int oldLimit = in.pushLimit(in.readLength());
+                    while (in.hasRemaining()) {
+                        this.denseKeysVals = ensureCapacity(this.denseKeysVals, keysValsCount + 1);
+                        this.denseKeysVals[keysValsCount++] = in.readInt32();
+                    }
+                    in.popLimit(oldLimit);
+                    break;
+                }
+                default:
+                    in.skipField(tag);
+            }
+        }
+
+        checkState(latCount == count && lonCount == count, "dense nodes have %d ids, but %d lats and %d lons", count, latCount, lonCount);
+        checkState(versionCount == 0 || versionCount == count, "dense nodes have %d ids, but %d versions", count, versionCount);
+        checkState(visibleCount == 0 || visibleCount == count, "dense nodes have %d ids, but %d visible flags", count, visibleCount);
+
+        for (int i = 0, keysValsIndex = 0; i < count; i++) {
+            this.resetElement();
+            this.id = this.denseIds[i];
+            if (versionCount != 0) {
+                this.version = this.denseVersions[i];
+            }
+            if (visibleCount != 0) {
+                this.visible = this.denseVisible[i];
+            }
+            this.lat = this.fixedLat(this.denseLats[i]);
+            this.lon = this.fixedLon(this.denseLons[i]);
+
+            if (keysValsCount != 0) { //each node's tags are stored as alternating keys and values, terminated by a 0
+                while (true) {
+                    checkState(keysValsIndex < keysValsCount, "keys_vals ended unexpectedly");
+                    int key = this.denseKeysVals[keysValsIndex++];
+                    if (key == 0) {
+                        break;
+                    }
+                    checkState(keysValsIndex < keysValsCount, "keys_vals ended unexpectedly");
+                    this.tagKeys = ensureCapacity(this.tagKeys, this.tagCount + 1);
+                    this.tagValues = ensureCapacity(this.tagValues, this.tagCount + 1);
+                    this.tagKeys[this.tagCount] = this.checkString(key);
+                    this.tagValues[this.tagCount++] = this.checkString(this.denseKeysVals[keysValsIndex++]);
+                    this.tagValueCount++;
+                }
+            }
+
+            this.finishTags();
+            visitor.node(this);
+        }
+    }
+
+    private void readWay(ProtobufInput in, Visitor visitor) throws Exception {
+        this.resetElement();
+        for (int tag; (tag = in.readTag()) != 0; ) {
+            switch (ProtobufInput.fieldNumber(tag)) {
+                case 1: //id
+                    this.id = in.readVarint();
+                    break;
+                case 2: //keys
+                    this.readTagIndices(in, true);
+                    break;
+                case 3: //vals
+                    this.readTagIndices(in, false);
+                    break;
+                case 4: { //info
+                    int oldLimit = in.pushLimit(in.readLength());
+                    this.readInfo(in);
+                    in.popLimit(oldLimit);
+                    break;
+                }
+                case 8: { //refs
+                    int oldLimit = in.pushLimit(in.readLength());
+                    for (long ref = 0L; in.hasRemaining(); ) {
+                        this.refs = ensureCapacity(this.refs, this.refCount + 1);
+                        this.refs[this.refCount++] = ref += in.readSInt64();
+                    }
+                    in.popLimit(oldLimit);
+                    break;
+                }
+                default:
+                    in.skipField(tag);
+            }
+        }
+        this.finishTags();
+        visitor.way(this);
+    }
+
+    private void readRelation(ProtobufInput in, Visitor visitor) throws Exception {
+        this.resetElement();
+        int roleCount = 0;
+        int typeCount = 0;
+        for (int tag; (tag = in.readTag()) != 0; ) {
+            switch (ProtobufInput.fieldNumber(tag)) {
+                case 1: //id
+                    this.id = in.readVarint();
+                    break;
+                case 2: //keys
+                    this.readTagIndices(in, true);
+                    break;
+                case 3: //vals
+                    this.readTagIndices(in, false);
+                    break;
+                case 4: { //info
+                    int oldLimit = in.pushLimit(in.readLength());
+                    this.readInfo(in);
+                    in.popLimit(oldLimit);
+                    break;
+                }
+                case 8: { //roles_sid
+                    int oldLimit = in.pushLimit(in.readLength());
+                    while (in.hasRemaining()) {
+                        this.roles = ensureCapacity(this.roles, roleCount + 1);
+                        this.roles[roleCount++] = this.checkString(in.readInt32());
+                    }
+                    in.popLimit(oldLimit);
+                    break;
+                }
+                case 9: { //memids
+                    int oldLimit = in.pushLimit(in.readLength());
+                    for (long memid = 0L; in.hasRemaining(); ) {
+                        this.refs = ensureCapacity(this.refs, this.refCount + 1);
+                        this.refs[this.refCount++] = memid += in.readSInt64();
+                    }
+                    in.popLimit(oldLimit);
+                    break;
+                }
+                case 10: { //types, which are stored in the same order as our element types
+                    int oldLimit = in.pushLimit(in.readLength());
+                    while (in.hasRemaining()) {
+                        this.memberTypes = ensureCapacity(this.memberTypes, typeCount + 1);
+                        int type = in.readInt32();
+                        checkState(type >= 0 && type <= 2, "invalid relation member type %d", type);
+                        this.memberTypes[typeCount++] = type;
+                    }
+                    in.popLimit(oldLimit);
+                    break;
+                }
+                default:
+                    in.skipField(tag);
+            }
+        }
+
+        checkState(roleCount == this.refCount && typeCount == this.refCount, "relation %d has %d members, but %d roles and %d types",
+                this.id, this.refCount, roleCount, typeCount);
+        for (int i = 0; i < this.refCount; i++) {
+            this.refs[i] = Element.addTypeToId(this.memberTypes[i], this.refs[i]);
+        }
+        this.finishTags();
+        visitor.relation(this);
+    }
+
+    private void writeString(ByteBuf dst, int sid) {
+        int length = this.stringLengths[sid];
+        dst.writeInt(length).writeBytes(this.data, this.stringOffsets[sid], length);
+    }
+
+    /**
+     * Replaces the contents of the given {@link LongList} with the combined IDs of all elements referenced by the current way or relation.
+     * <p>
+     * A way's node IDs are also their combined IDs, as the node type is {@code 0}.
+     */
+    public void getReferencesCombinedIds(@NonNull LongList dst) {
+        dst.clear();
+        dst.addElements(0, this.refs, 0, this.refCount);
+    }
+
+    /**
+     * Writes the current element's version, visibility and tags in the format used by {@link Element#toBytes(ByteBuf)}.
+     */
+    public void writeElement(@NonNull ByteBuf dst) {
+        dst.writeInt(this.version).writeBoolean(this.visible).writeInt(this.tagCount);
+        for (int i = 0; i < this.tagCount; i++) {
+            this.writeString(dst, this.tagKeys[i]);
+            this.writeString(dst, this.tagValues[i]);
+        }
+    }
+
+    /**
+     * Writes the current node's coordinates in the format used by {@link net.daporkchop.tpposmtilegen.geometry.Point#toBytes(ByteBuf)}.
+     */
+    public void writePoint(@NonNull ByteBuf dst) {
+        dst.writeInt(this.lon).writeInt(this.lat);
+    }
+
+    /**
+     * Writes the current way in the format used by {@link net.daporkchop.tpposmtilegen.osm.Way#toBytes(ByteBuf)}.
+     */
+    public void writeWay(@NonNull ByteBuf dst) {
+        this.writeElement(dst);
+        dst.writeInt(this.refCount);
+        for (int i = 0; i < this.refCount; i++) {
+            dst.writeLong(this.refs[i]);
+        }
+    }
+
+    /**
+     * Writes the current relation in the format used by {@link net.daporkchop.tpposmtilegen.osm.Relation#toBytes(ByteBuf)}.
+     */
+    public void writeRelation(@NonNull ByteBuf dst) {
+        this.writeElement(dst);
+        dst.writeInt(this.refCount);
+        for (int i = 0; i < this.refCount; i++) {
+            dst.writeLong(this.refs[i]);
+            this.writeString(dst, this.roles[i]);
+        }
+    }
+
+    /**
+     * Receives the elements decoded by a {@link PrimitiveBlockDecoder}.
+     *
+     * @author DaPorkchop_
+     */
+    public interface Visitor {
+        void node(@NonNull PrimitiveBlockDecoder block) throws Exception;
+
+        void way(@NonNull PrimitiveBlockDecoder block) throws Exception;
+
+        void relation(@NonNull PrimitiveBlockDecoder block) throws Exception;
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.pbf;
+
+import it.unimi.dsi.fastutil.booleans.BooleanArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import lombok.Getter;
+import lombok.NonNull;
+import net.daporkchop.tpposmtilegen.geometry.Point;
+import net.daporkchop.tpposmtilegen.osm.Element;
+import net.daporkchop.tpposmtilegen.osm.Node;
+import net.daporkchop.tpposmtilegen.osm.Relation;
+import net.daporkchop.tpposmtilegen.osm.Way;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Encodes elements into a single OSM PBF {@code PrimitiveBlock}, in a form which can be read by {@link PrimitiveBlockDecoder}.
+ * <p>
+ * Every block contains elements of a single type, which are stored in a single group. Nodes are always encoded as dense nodes. Coordinates are stored with
+ * the default granularity, which is the same as the precision of {@link Point}. Timestamps are in seconds since the epoch.
+ * <p>
+ * Instances are mutable and intended to be reused.
+ *
+ * @author DaPorkchop_
+ */
+public final class PrimitiveBlockEncoder {
+    private final Object2IntMap<String> stringIds = new Object2IntOpenHashMap<>();
+    private final List<String> strings = new ArrayList<>();
+
+    private int type = -1;
+    @Getter
+    private int elementCount;
+
+    //dense node columns
+    private final LongArrayList nodeIds = new LongArrayList();
+    private final IntArrayList nodeVersions = new IntArrayList();
+    private final LongArrayList nodeTimestamps = new LongArrayList();
+    private final BooleanArrayList nodeVisible = new BooleanArrayList();
+    private final IntArrayList nodeLats = new IntArrayList();
+    private final IntArrayList nodeLons = new IntArrayList();
+    private final IntArrayList nodeKeysVals = new IntArrayList();
+    private boolean nodesHaveTags;
+
+    //ways and relations are encoded as soon as they're added
+    private final ProtobufOutput group = new ProtobufOutput();
+    private final ProtobufOutput element = new ProtobufOutput();
+    private final ProtobufOutput scratch = new ProtobufOutput();
+
+    public PrimitiveBlockEncoder() {
+        this.clear();
+    }
+
+    /**
+     * Removes all elements from this block.
+     */
+    public PrimitiveBlockEncoder clear() {
+        this.stringIds.clear();
+        this.stringIds.defaultReturnValue(-1);
+        this.strings.clear();
+        this.stringId(""); //string 0 is used as a delimiter, and may not be referenced
+
+        this.type = -1;
+        this.elementCount = 0;
+
+        this.nodeIds.clear();
+        this.nodeVersions.clear();
+        this.nodeTimestamps.clear();
+        this.nodeVisible.clear();
+        this.nodeLats.clear();
+        this.nodeLons.clear();
+        this.nodeKeysVals.clear();
+        this.nodesHaveTags = false;
+
+        this.group.clear();
+        return this;
+    }
+
+    /**
+     * @return the approximate size of this block once it's been encoded, in bytes
+     */
+    public long estimatedSize() {
+        return this.group.size() + this.nodeIds.size() * 32L + this.nodeKeysVals.size() * 2L + this.strings.size() * 16L;
+    }
+
+    private int stringId(String s) {
+        int id = this.stringIds.getInt(s);
+        if (id < 0) {
+            this.stringIds.put(s, id = this.strings.size());
+            this.strings.add(s);
+        }
+        return id;
+    }
+
+    private void beginElement(int type) {
+        checkState(this.type < 0 || this.type == type, "can't add a %s to a block containing %ss", Element.typeName(type), Element.typeName(max(this.type, 0)));
+        this.type = type;
+        this.elementCount++;
+    }
+
+    /**
+     * Adds a node.
+     *
+     * @param point     the node's coordinates. May be {@code null} if the node isn't visible
+     * @param timestamp the timestamp of the node's version
+     */
+    public void node(@NonNull Node node, Point point, long timestamp) {
+        this.beginElement(Node.TYPE);
+        checkArg(point != null || !node.visible(), "visible node %d must have coordinates", node.id());
+
+        this.nodeIds.add(node.id());
+        this.nodeVersions.add(node.version());
+        this.nodeTimestamps.add(timestamp);
+        this.nodeVisible.add(node.visible());
+        this.nodeLats.add(point != null ? point.y() : 0);
+        this.nodeLons.add(point != null ? point.x() : 0);
+
+        for (Map.Entry<String, String> tag : node.tags().entrySet()) {
+            this.nodeKeysVals.add(this.stringId(tag.getKey()));
+            this.nodeKeysVals.add(this.stringId(tag.getValue()));
+            this.nodesHaveTags = true;
+        }
+        this.nodeKeysVals.add(0);
+    }
+
+    /**
+     * Adds a way.
+     *
+     * @param timestamp the timestamp of the way's version
+     */
+    public void way(@NonNull Way way, long timestamp) {
+        this.beginElement(Way.TYPE);
+
+        ProtobufOutput element = this.beginNonDenseElement(way, timestamp);
+        long[] nodes = way.nodes();
+        if (nodes.length != 0) {
+            ProtobufOutput refs = this.scratch.clear();
+            for (int i = 0; i < nodes.length; i++) {
+                refs.writeSInt64(nodes[i] - (i == 0 ? 0L : nodes[i - 1]));
+            }
+            element.writeMessageField(8, refs); //refs
+        }
+        this.group.writeMessageField(3, element); //ways
+    }
+
+    /**
+     * Adds a relation.
+     *
+     * @param timestamp the timestamp of the relation's version
+     */
+    public void relation(@NonNull Relation relation, long timestamp) {
+        this.beginElement(Relation.TYPE);
+
+        ProtobufOutput element = this.beginNonDenseElement(relation, timestamp);
+        Relation.Member[] members = relation.members();
+        if (members.length != 0) {
+            ProtobufOutput packed = this.scratch.clear();
+            for (Relation.Member member : members) {
+                packed.writeVarint(this.stringId(member.role() != null ? member.role() : ""));
+            }
+            element.writeMessageField(8, packed); //roles_sid
+
+            packed.clear();
+            for (int i = 0; i < members.length; i++) {
+                packed.writeSInt64(Element.extractId(members[i].combinedId()) - (i == 0 ? 0L : Element.extractId(members[i - 1].combinedId())));
+            }
+            element.writeMessageField(9, packed); //memids
+
+            //member types are stored in the same order as our element types
+            packed.clear();
+            for (Relation.Member member : members) {
+                packed.writeVarint(Element.extractType(member.combinedId()));
+            }
+            element.writeMessageField(10, packed); //types
+        }
+        this.group.writeMessageField(4, element); //relations
+    }
+
+    /**
+     * Encodes the fields which are shared by ways and relations into {@link #element}.
+     */
+    private ProtobufOutput beginNonDenseElement(Element element, long timestamp) {
+        ProtobufOutput out = this.element.clear();
+        out.writeVarintField(1, element.id()); //id
+
+        if (!element.tags().isEmpty()) {
+            ProtobufOutput keys = this.scratch.clear();
+            for (String key : element.tags().keySet()) {
+                keys.writeVarint(this.stringId(key));
+            }
+            out.writeMessageField(2, keys); //keys
+
+            ProtobufOutput vals = this.scratch.clear();
+            for (String value : element.tags().values()) {
+                vals.writeVarint(this.stringId(value));
+            }
+            out.writeMessageField(3, vals); //vals
+        }
+
+        ProtobufOutput info = this.scratch.clear()
+                .writeVarintField(1, element.version()) //version
+                .writeVarintField(2, timestamp) //timestamp
+                .writeVarintField(3, element.version()) //changeset
+                .writeVarintField(4, 0L) //uid
+                .writeVarintField(5, 0L) //user_sid
+                .writeBoolField(6, element.visible()); //visible
+        out.writeMessageField(4, info); //info
+        return out;
+    }
+
+    /**
+     * Encodes this block.
+     *
+     * @param dst the {@link ProtobufOutput} to write the encoded block to
+     */
+    public void encode(@NonNull ProtobufOutput dst) {
+        checkState(this.elementCount > 0, "block is empty");
+
+        ProtobufOutput stringTable = this.scratch.clear();
+        for (String s : this.strings) {
+            stringTable.writeStringField(1, s); //s
+        }
+        dst.writeMessageField(1, stringTable); //stringtable
+
+        if (this.type == Node.TYPE) {
+            this.group.clear().writeMessageField(2, this.encodeDenseNodes()); //dense
+        }
+        dst.writeMessageField(2, this.group); //primitivegroup
+    }
+
+    private ProtobufOutput encodeDenseNodes() {
+        ProtobufOutput dense = this.element.clear();
+        ProtobufOutput packed = new ProtobufOutput();
+        int count = this.nodeIds.size();
+
+        for (int i = 0; i < count; i++) {
+            packed.writeSInt64(this.nodeIds.getLong(i) - (i == 0 ? 0L : this.nodeIds.getLong(i - 1)));
+        }
+        dense.writeMessageField(1, packed); //id
+
+        ProtobufOutput info = this.scratch.clear();
+        packed.clear();
+        for (int i = 0; i < count; i++) {
+            packed.writeVarint(this.nodeVersions.getInt(i));
+        }
+        info.writeMessageField(1, packed); //version
+        packed.clear();
+        for (int i = 0; i < count; i++) {
+            packed.writeSInt64(this.nodeTimestamps.getLong(i) - (i == 0 ? 0L : this.nodeTimestamps.getLong(i - 1)));
+        }
+        info.writeMessageField(2, packed); //timestamp
+        packed.clear();
+        for (int i = 0; i < count; i++) {
+            packed.writeSInt64(this.nodeVersions.getInt(i) - (i == 0 ? 0L : this.nodeVersions.getInt(i - 1)));
+        }
+        info.writeMessageField(3, packed); //changeset, which is the same as the version
+        packed.clear();
+        for (int i = 0; i < count; i++) {
+            packed.writeSInt64(0L);
+        }
+        info.writeMessageField(4, packed); //uid
+        info.writeMessageField(5, packed); //user_sid
+        packed.clear();
+        for (int i = 0; i < count; i++) {
+            packed.writeVarint(this.nodeVisible.getBoolean(i) ? 1L : 0L);
+        }
+        info.writeMessageField(6, packed); //visible
+        dense.writeMessageField(5, info); //denseinfo
+
+        packed.clear();
+        for (int i = 0; i < count; i++) {
+            packed.writeSInt64((long) this.nodeLats.getInt(i) - (i == 0 ? 0L : this.nodeLats.getInt(i - 1)));
+        }
+        dense.writeMessageField(8, packed); //lat
+        packed.clear();
+        for (int i = 0; i < count; i++) {
+            packed.writeSInt64((long) this.nodeLons.getInt(i) - (i == 0 ? 0L : this.nodeLons.getInt(i - 1)));
+        }
+        dense.writeMessageField(9, packed); //lon
+
+        if (this.nodesHaveTags) {
+            packed.clear();
+            for (int i = 0; i < this.nodeKeysVals.size(); i++) {
+                packed.writeVarint(this.nodeKeysVals.getInt(i));
+            }
+            dense.writeMessageField(10, packed); //keys_vals
+        }
+        return dense;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.pbf;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * A minimal, allocation-free protobuf decoder which reads directly from a {@code byte[]}.
+ * <p>
+ * Only the subset of the wire format used by the OSM PBF format is supported. Instances are mutable and intended to be reused.
+ *
+ * @author DaPorkchop_
+ */
+@Getter
+public final class ProtobufInput {
+    public static final int WIRETYPE_VARINT = 0;
+    public static final int WIRETYPE_FIXED64 = 1;
+    public static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    public static final int WIRETYPE_FIXED32 = 5;
+
+    public static int fieldNumber(int tag) {
+        return tag >>> 3;
+    }
+
+    public static int wireType(int tag) {
+        return tag & 7;
+    }
+
+    private byte[] buf;
+    private int pos;
+    private int limit;
+
+    /**
+     * Resets this input to read from the given range of the given array.
+     */
+    public ProtobufInput reset(@NonNull byte[] buf, int off, int len) {
+        checkRangeLen(buf.length, off, len);
+        this.buf = buf;
+        this.pos = off;
+        this.limit = off + len;
+        return this;
+    }
+
+    public boolean hasRemaining() {
+        return this.pos < this.limit;
+    }
+
+    /**
+     * @return the next field's tag, or {@code 0} if the end of the current limit has been reached
+     */
+    public int readTag() {
+        return this.pos < this.limit ? (int) this.readVarint() : 0;
+    }
+
+    public long readVarint() {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            checkState(this.pos < this.limit, "varint extends past end of message");
+            byte b = this.buf[this.pos++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("malformed varint");
+    }
+
+    public int readInt32() {
+        return (int) this.readVarint();
+    }
+
+    public long readSInt64() {
+        long value = this.readVarint();
+        return (value >>> 1) ^ -(value & 1L);
+    }
+
+    public int readSInt32() {
+        return (int) this.readSInt64();
+    }
+
+    public boolean readBool() {
+        return this.readVarint() != 0L;
+    }
+
+    /**
+     * Reads the length prefix of a length-delimited field, and checks that the field's contents are fully contained within the current limit.
+     *
+     * @return the field's length
+     */
+    public int readLength() {
+        int length = this.readInt32();
+        checkState(length >= 0 && length <= this.limit - this.pos, "length-delimited field of %d bytes extends past end of message", length);
+        return length;
+    }
+
+    /**
+     * Restricts this input to the next {@code length} bytes, which must have been read using {@link #readLength()}.
+     *
+     * @return the previous limit, which must be restored using {@link #popLimit(int)} once the nested message has been read
+     */
+    public int pushLimit(int length) {
+        int oldLimit = this.limit;
+        this.limit = this.pos + length;
+        return oldLimit;
+    }
+
+    /**
+     * Restores a limit returned by {@link #pushLimit(int)}, skipping any bytes which weren't read before the current limit.
+     */
+    public void popLimit(int oldLimit) {
+        this.pos = this.limit;
+        this.limit = oldLimit;
+    }
+
+    public void skip(int bytes) {
+        checkState(bytes >= 0 && bytes <= this.limit - this.pos, "tried to skip %d bytes, but only %d are remaining", bytes, this.limit - this.pos);
+        this.pos += bytes;
+    }
+
+    /**
+     * Skips the value of a field with the given tag.
+     */
+    public void skipField(int tag) {
+        switch (wireType(tag)) {
+            case WIRETYPE_VARINT:
+                this.readVarint();
+                break;
+            case WIRETYPE_FIXED64:
+                this.skip(8);
+                break;
+            case WIRETYPE_LENGTH_DELIMITED:
+                this.skip(this.readLength());
+                break;
+            case WIRETYPE_FIXED32:
+                this.skip(4);
+                break;
+            default:
+                throw new IllegalStateException("unsupported wire type " + wireType(tag) + " for field " + fieldNumber(tag));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.pbf;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * A minimal protobuf encoder which writes into a growable {@code byte[]}.
+ * <p>
+ * This is the counterpart to {@link ProtobufInput}, and likewise only supports the subset of the wire format used by the OSM PBF format. Nested messages are
+ * encoded into a separate instance, and then appended using {@link #writeMessageField(int, ProtobufOutput)}. Instances are mutable and intended to be reused.
+ *
+ * @author DaPorkchop_
+ */
+@Getter
+public final class ProtobufOutput {
+    private byte[] buf = new byte[4096];
+    private int size;
+
+    /**
+     * Discards everything which has been written so far.
+     */
+    public ProtobufOutput clear() {
+        this.size = 0;
+        return this;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(this.buf, this.size);
+    }
+
+    private void ensureWritable(int bytes) {
+        if (this.buf.length - this.size < bytes) {
+            this.buf = Arrays.copyOf(this.buf, max(this.buf.length << 1, addExact(this.size, bytes)));
+        }
+    }
+
+    public ProtobufOutput writeRawBytes(@NonNull byte[] src, int off, int len) {
+        checkRangeLen(src.length, off, len);
+        this.ensureWritable(len);
+        System.arraycopy(src, off, this.buf, this.size, len);
+        this.size += len;
+        return this;
+    }
+
+    public ProtobufOutput writeVarint(long value) {
+        this.ensureWritable(10);
+        while ((value & ~0x7FL) != 0L) {
+            this.buf[this.size++] = (byte) (value & 0x7FL | 0x80L);
+            value >>>= 7;
+        }
+        this.buf[this.size++] = (byte) value;
+        return this;
+    }
+
+    public ProtobufOutput writeSInt64(long value) {
+        return this.writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    public ProtobufOutput writeTag(int fieldNumber, int wireType) {
+        return this.writeVarint((fieldNumber << 3 | wireType) & 0xFFFFFFFFL);
+    }
+
+    public ProtobufOutput writeVarintField(int fieldNumber, long value) {
+        return this.writeTag(fieldNumber, ProtobufInput.WIRETYPE_VARINT).writeVarint(value);
+    }
+
+    public ProtobufOutput writeSInt64Field(int fieldNumber, long value) {
+        return this.writeTag(fieldNumber, ProtobufInput.WIRETYPE_VARINT).writeSInt64(value);
+    }
+
+    public ProtobufOutput writeBoolField(int fieldNumber, boolean value) {
+        return this.writeVarintField(fieldNumber, value ? 1L : 0L);
+    }
+
+    public ProtobufOutput writeBytesField(int fieldNumber, @NonNull byte[] src, int off, int len) {
+        return this.writeTag(fieldNumber, ProtobufInput.WIRETYPE_LENGTH_DELIMITED).writeVarint(len).writeRawBytes(src, off, len);
+    }
+
+    public ProtobufOutput writeStringField(int fieldNumber, @NonNull String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return this.writeBytesField(fieldNumber, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Writes the contents of the given instance as a length-delimited field. This is used both for nested messages and for packed repeated fields.
+     */
+    public ProtobufOutput writeMessageField(int fieldNumber, @NonNull ProtobufOutput message) {
+        return this.writeBytesField(fieldNumber, message.buf, 0, message.size);
+    }
+}
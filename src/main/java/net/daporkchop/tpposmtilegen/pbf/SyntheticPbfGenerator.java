@@ -0,0 +1,476 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.pbf;
+
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+import net.daporkchop.lib.common.function.exception.ESupplier;
+import net.daporkchop.tpposmtilegen.geometry.Point;
+import net.daporkchop.tpposmtilegen.osm.Element;
+import net.daporkchop.tpposmtilegen.osm.Node;
+import net.daporkchop.tpposmtilegen.osm.Relation;
+import net.daporkchop.tpposmtilegen.osm.Way;
+import net.daporkchop.tpposmtilegen.util.Bounds2d;
+import net.daporkchop.tpposmtilegen.util.CloseableExecutor;
+import net.daporkchop.tpposmtilegen.util.CloseableThreadFactory;
+import net.daporkchop.tpposmtilegen.util.IterableThreadLocal;
+import net.daporkchop.tpposmtilegen.util.ProgressNotifier;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.Deflater;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Generates a sorted OSM PBF file full of synthetic data, for benchmarking.
+ * <p>
+ * Nodes are laid out on a jittered grid, with one node per grid cell. Ways are built from neighboring grid cells, so that their geometry is always valid:
+ * buildings and landuse areas are rings around one or more cells, and roads run along a row of cells. The first relations are multipolygons, each of which
+ * consists of an outer and an inner ring around a block of cells, and the remaining relations are routes made up of random ways and nodes.
+ * <p>
+ * Every element is derived solely from the seed and its ID, so the output is deterministic and blocks can be generated in parallel.
+ *
+ * @author DaPorkchop_
+ */
+@Builder
+@Getter
+@ToString
+public final class SyntheticPbfGenerator {
+    private static final int ELEMENTS_PER_BLOCK = 8000;
+    private static final long MAX_BLOCK_SIZE = 16L << 20L;
+
+    //the distance between adjacent nodes on the grid, roughly 11m at the equator
+    private static final int CELL_SIZE = Point.PRECISION / 10_000;
+    //the size of the blocks of cells which contain multipolygons
+    private static final int MULTIPOLYGON_BLOCK_SIZE = 8;
+
+    private static final long BASE_TIMESTAMP = 1_600_000_000L;
+    private static final long VERSION_INTERVAL = 86400L;
+
+    //random streams, which are combined with the element's index
+    private static final int STRUCTURE = 0;
+    private static final int TAGS = 1;
+    private static final int HISTORY = 2;
+    private static final int DELETION = 3;
+
+    private static final String[] BUILDING_VALUES = { "yes", "yes", "yes", "house", "residential", "apartments", "garage", "commercial", "industrial", "shed" };
+    private static final String[] HIGHWAY_VALUES = { "residential", "residential", "service", "footway", "track", "unclassified", "tertiary", "secondary", "primary" };
+    private static final String[] LANDUSE_VALUES = { "grass", "forest", "residential", "farmland", "meadow", "industrial" };
+    private static final String[] MULTIPOLYGON_TAGS = { "natural", "water", "natural", "wood", "landuse", "forest", "leisure", "park", "building", "yes" };
+    private static final String[] NODE_TAGS = { "amenity", "bench", "amenity", "restaurant", "shop", "bakery", "highway", "bus_stop", "natural", "tree" };
+    private static final String[] ROUTE_VALUES = { "bus", "bicycle", "hiking", "road" };
+
+    private final long nodes;
+    private final long ways;
+    private final long relations;
+
+    @Builder.Default
+    private final long seed = 0L;
+
+    /**
+     * The coordinates of the grid's south-western corner, in degrees.
+     */
+    @Builder.Default
+    private final double minLon = 8.0d;
+    @Builder.Default
+    private final double minLat = 47.0d;
+
+    /**
+     * Each element's newest version is uniformly distributed between {@code 1} and this.
+     */
+    @Builder.Default
+    private final int maxVersion = 3;
+    /**
+     * The fraction of elements for which all older versions are included as well, rather than just the newest one.
+     */
+    @Builder.Default
+    private final double historyFraction = 0.1d;
+    /**
+     * The fraction of ways and relations whose newest version is a deletion. Ways which are part of a multipolygon and multipolygon relations are never deleted.
+     */
+    @Builder.Default
+    private final double deletedFraction = 0.01d;
+
+    /**
+     * The fraction of nodes which have tags.
+     */
+    @Builder.Default
+    private final double taggedNodeFraction = 0.05d;
+    /**
+     * The fraction of relations which are multipolygons.
+     */
+    @Builder.Default
+    private final double multipolygonFraction = 0.5d;
+    /**
+     * Each tagged element gets up to this many random tags in addition to the ones which describe what it is.
+     */
+    @Builder.Default
+    private final int extraTags = 2;
+    /**
+     * The number of distinct keys used by the random tags. Lower keys are chosen more frequently than higher ones.
+     */
+    @Builder.Default
+    private final int tagVocabulary = 1000;
+
+    /**
+     * Writes the synthetic data to the given file.
+     *
+     * @param dst     the file to write to
+     * @param threads the number of threads to generate blocks with
+     * @return the number of elements written, including all versions
+     */
+    public long generate(@NonNull Path dst, int threads) throws Exception {
+        Layout layout = new Layout();
+        positive(threads, "threads");
+
+        IterableThreadLocal<Worker> workers = IterableThreadLocal.of(Worker::new);
+        try (PbfFileWriter writer = new PbfFileWriter(dst);
+             ProgressNotifier notifier = new ProgressNotifier.Builder().prefix("Generate PBF")
+                     .slot("nodes", this.nodes).slot("ways", this.ways).slot("relations", this.relations)
+                     .build();
+             CloseableExecutor executor = new CloseableExecutor(new CloseableThreadFactory("PBF generate worker"), threads)) {
+            writer.writeHeader(
+                    Arrays.asList("OsmSchema-V0.6", "DenseNodes", PbfHeader.FEATURE_HISTORICAL_INFORMATION),
+                    Collections.singletonList(PbfHeader.FEATURE_SORTED),
+                    "TerraPlusPlusOSMTileGen synthetic data",
+                    BASE_TIMESTAMP + (this.maxVersion + 1L) * VERSION_INTERVAL, null, null);
+
+            //blocks are generated in parallel, but written in order
+            Deque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+            long[] counts = { this.nodes, this.ways, this.relations };
+            long elements = 0L;
+            for (int type = Node.TYPE; type <= Relation.TYPE; type++) {
+                for (long first = 0L; first < counts[type]; first += ELEMENTS_PER_BLOCK) {
+                    int blockType = type;
+                    long blockFirst = first;
+                    long blockLast = min(first + ELEMENTS_PER_BLOCK, counts[type]);
+                    pending.add(CompletableFuture.supplyAsync((ESupplier<byte[]>) () -> {
+                        byte[] framed = workers.get().generate(layout, blockType, blockFirst, blockLast);
+                        notifier.step(blockType, blockLast - blockFirst);
+                        return framed;
+                    }, executor));
+
+                    while (pending.size() > threads << 1) {
+                        writer.write(pending.poll().join());
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                writer.write(pending.poll().join());
+            }
+            return workers.snapshotValues().stream().mapToLong(worker -> worker.elements).sum();
+        } finally {
+            workers.forEach(Worker::release);
+        }
+    }
+
+    /**
+     * @return the bounds of the generated nodes, in fixed-point coordinates (see {@link Point#PRECISION})
+     */
+    public Bounds2d bounds() {
+        Layout layout = new Layout();
+        return Bounds2d.of(
+                layout.minX - CELL_SIZE, layout.minX + (layout.gridWidth + 1) * CELL_SIZE,
+                layout.minY - CELL_SIZE, layout.minY + (layout.gridHeight + 2) * CELL_SIZE);
+    }
+
+    /**
+     * Derives a random number generator for the given element.
+     */
+    private SplittableRandom random(int stream, int type, long index, int version) {
+        return new SplittableRandom(this.seed * 0x9E3779B97F4A7C15L + (((index * 3L + type) * 4L + stream) << 16L) + version);
+    }
+
+    private static String randomValue(SplittableRandom random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    /**
+     * The positions of the grid and multipolygons, which are computed once from the configuration.
+     *
+     * @author DaPorkchop_
+     */
+    private final class Layout {
+        private final int gridWidth;
+        private final int gridHeight;
+        private final int minX;
+        private final int minY;
+
+        private final long multipolygons;
+        private final int multipolygonsPerRow;
+
+        public Layout() {
+            SyntheticPbfGenerator config = SyntheticPbfGenerator.this;
+            checkArg(config.nodes >= 4096L, "at least 4096 nodes are required (given: %d)", config.nodes);
+            notNegative(config.ways, "ways");
+            notNegative(config.relations, "relations");
+            checkArg(config.maxVersion >= 1, "maxVersion must be at least 1 (given: %d)", config.maxVersion);
+            positive(config.tagVocabulary, "tagVocabulary");
+            notNegative(config.extraTags, "extraTags");
+
+            this.gridWidth = toIntExact((long) ceil(sqrt(config.nodes)));
+            this.gridHeight = toIntExact(config.nodes / this.gridWidth); //only full rows are used by ways
+            this.minX = Point.doubleToFix(config.minLon);
+            this.minY = Point.doubleToFix(config.minLat);
+            checkArg(Point.fixToDouble(this.minX + (long) this.gridWidth * CELL_SIZE) <= 180.0d
+                     && Point.fixToDouble(this.minY + (long) this.gridHeight * CELL_SIZE) <= 90.0d, "grid doesn't fit on the globe");
+
+            //each multipolygon needs its own block of cells, and two ways for its rings
+            this.multipolygonsPerRow = (this.gridWidth - 1) / MULTIPOLYGON_BLOCK_SIZE;
+            long blocks = (long) this.multipolygonsPerRow * ((this.gridHeight - 1) / MULTIPOLYGON_BLOCK_SIZE);
+            this.multipolygons = min(min((long) (config.relations * config.multipolygonFraction), config.ways >> 1L), blocks);
+        }
+
+        public long nodeId(int x, int y) {
+            return (long) y * this.gridWidth + x + 1L;
+        }
+
+        /**
+         * @return the IDs of the nodes forming a counter-clockwise ring around the {@code size*size} cells starting at the given position
+         */
+        public long[] ring(int x, int y, int size) {
+            long[] ring = new long[size * 4 + 1];
+            int i = 0;
+            for (int d = 0; d < size; d++) {
+                ring[i++] = this.nodeId(x + d, y);
+            }
+            for (int d = 0; d < size; d++) {
+                ring[i++] = this.nodeId(x + size, y + d);
+            }
+            for (int d = 0; d < size; d++) {
+                ring[i++] = this.nodeId(x + size - d, y + size);
+            }
+            for (int d = 0; d < size; d++) {
+                ring[i++] = this.nodeId(x, y + size - d);
+            }
+            ring[i] = ring[0];
+            return ring;
+        }
+
+        public boolean isDeleted(int type, long index) {
+            if (type == Node.TYPE //nodes are never deleted, as ways may still reference them
+                || (type == Way.TYPE && index < this.multipolygons << 1L)
+                || (type == Relation.TYPE && index < this.multipolygons)) {
+                return false;
+            }
+            return SyntheticPbfGenerator.this.random(DELETION, type, index, 0).nextDouble() < SyntheticPbfGenerator.this.deletedFraction;
+        }
+
+        public int newestVersion(int type, long index) {
+            int version = 1 + SyntheticPbfGenerator.this.random(HISTORY, type, index, 0).nextInt(SyntheticPbfGenerator.this.maxVersion);
+            return this.isDeleted(type, index) ? max(version, 2) : version; //an element can't be deleted in its first version
+        }
+
+        public boolean hasHistory(int type, long index) {
+            return SyntheticPbfGenerator.this.random(HISTORY, type, index, 1).nextDouble() < SyntheticPbfGenerator.this.historyFraction;
+        }
+    }
+
+    /**
+     * Generates blocks of elements. Each thread has its own instance.
+     *
+     * @author DaPorkchop_
+     */
+    private final class Worker {
+        private final PrimitiveBlockEncoder encoder = new PrimitiveBlockEncoder();
+        private final ProtobufOutput block = new ProtobufOutput();
+        private final Deflater deflater = new Deflater();
+        private final ByteArrayList framed = new ByteArrayList();
+
+        private long elements;
+
+        /**
+         * Generates all versions of the elements of the given type with indices in the given range.
+         *
+         * @return the generated block(s), framed and ready to be written
+         */
+        public byte[] generate(Layout layout, int type, long firstIndex, long lastIndexExclusive) {
+            this.framed.clear();
+            this.encoder.clear();
+            for (long index = firstIndex; index < lastIndexExclusive; index++) {
+                int newestVersion = layout.newestVersion(type, index);
+                boolean deleted = layout.isDeleted(type, index);
+                for (int version = layout.hasHistory(type, index) ? 1 : newestVersion; version <= newestVersion; version++) {
+                    this.element(layout, type, index, version, deleted && version == newestVersion);
+                    this.elements++;
+                }
+
+                //elements with a lot of history may make the block too big, in which case it's split. all versions of an element are kept together
+                if (this.encoder.estimatedSize() >= MAX_BLOCK_SIZE) {
+                    this.flush();
+                }
+            }
+            if (this.encoder.elementCount() > 0) {
+                this.flush();
+            }
+            return this.framed.toByteArray();
+        }
+
+        private void flush() {
+            this.encoder.encode(this.block.clear());
+            this.framed.addElements(this.framed.size(), PbfFileWriter.frame(PbfFileReader.TYPE_DATA, this.block, this.deflater));
+            this.encoder.clear();
+        }
+
+        private void element(Layout layout, int type, long index, int version, boolean deleted) {
+            long id = index + 1L;
+            long timestamp = BASE_TIMESTAMP + version * VERSION_INTERVAL;
+            SyntheticPbfGenerator config = SyntheticPbfGenerator.this;
+            SplittableRandom structure = config.random(STRUCTURE, type, index, 0);
+            SplittableRandom tagsRandom = config.random(TAGS, type, index, version);
+            Map<String, String> tags = new HashMap<>();
+
+            switch (type) {
+                case Node.TYPE: {
+                    //nodes move around slightly between versions, but never far enough to leave their cell
+                    int x = toIntExact(index % layout.gridWidth);
+                    int y = toIntExact(index / layout.gridWidth);
+                    Point point = new Point(
+                            layout.minX + x * CELL_SIZE + tagsRandom.nextInt(CELL_SIZE >> 1) - (CELL_SIZE >> 2),
+                            layout.minY + y * CELL_SIZE + tagsRandom.nextInt(CELL_SIZE >> 1) - (CELL_SIZE >> 2));
+                    if (structure.nextDouble() < config.taggedNodeFraction) {
+                        int i = structure.nextInt(NODE_TAGS.length >> 1) << 1;
+                        tags.put(NODE_TAGS[i], NODE_TAGS[i + 1]);
+                        this.extraTags(tags, tagsRandom);
+                    }
+                    this.encoder.node(new Node(id, tags, version, true), point, timestamp);
+                    return;
+                }
+                case Way.TYPE: {
+                    if (deleted) {
+                        this.encoder.way(new Way(id, tags, version, false, new long[0]), timestamp);
+                        return;
+                    }
+
+                    long[] nodes;
+                    if (index < layout.multipolygons << 1L) { //the rings of a multipolygon, which are untagged as the relation describes the area
+                        long multipolygon = index >> 1L;
+                        int x = toIntExact(multipolygon % layout.multipolygonsPerRow) * MULTIPOLYGON_BLOCK_SIZE;
+                        int y = toIntExact(multipolygon / layout.multipolygonsPerRow) * MULTIPOLYGON_BLOCK_SIZE;
+                        nodes = (index & 1L) == 0L
+                                ? layout.ring(x, y, MULTIPOLYGON_BLOCK_SIZE)
+                                : layout.ring(x + 2, y + 2, MULTIPOLYGON_BLOCK_SIZE - 4);
+                    } else {
+                        int kind = structure.nextInt(10);
+                        if (kind < 4) { //building
+                            nodes = layout.ring(structure.nextInt(layout.gridWidth - 1), structure.nextInt(layout.gridHeight - 1), 1);
+                            tags.put("building", randomValue(tagsRandom, BUILDING_VALUES));
+                            if (tagsRandom.nextBoolean()) {
+                                tags.put("addr:housenumber", String.valueOf(1 + tagsRandom.nextInt(200)));
+                            }
+                        } else if (kind < 9) { //road
+                            int length = 2 + structure.nextInt(31);
+                            int x = structure.nextInt(layout.gridWidth - length);
+                            int y = structure.nextInt(layout.gridHeight);
+                            nodes = new long[length];
+                            for (int i = 0; i < length; i++) {
+                                nodes[i] = layout.nodeId(x + i, y);
+                            }
+                            tags.put("highway", randomValue(tagsRandom, HIGHWAY_VALUES));
+                            if (tagsRandom.nextBoolean()) {
+                                tags.put("name", "Street " + tagsRandom.nextInt(10000));
+                            }
+                        } else { //landuse
+                            int size = 2 + structure.nextInt(7);
+                            nodes = layout.ring(structure.nextInt(layout.gridWidth - size), structure.nextInt(layout.gridHeight - size), size);
+                            tags.put("landuse", randomValue(tagsRandom, LANDUSE_VALUES));
+                        }
+                        this.extraTags(tags, tagsRandom);
+                    }
+                    this.encoder.way(new Way(id, tags, version, true, nodes), timestamp);
+                    return;
+                }
+                case Relation.TYPE: {
+                    if (deleted) {
+                        this.encoder.relation(new Relation(id, tags, version, false, new Relation.Member[0]), timestamp);
+                        return;
+                    }
+
+                    Relation.Member[] members;
+                    if (index < layout.multipolygons) {
+                        members = new Relation.Member[]{
+                                new Relation.Member(Element.addTypeToId(Way.TYPE, (index << 1L) + 1L), "outer"),
+                                new Relation.Member(Element.addTypeToId(Way.TYPE, (index << 1L) + 2L), "inner")
+                        };
+                        int i = tagsRandom.nextInt(MULTIPOLYGON_TAGS.length >> 1) << 1;
+                        tags.put("type", "multipolygon");
+                        tags.put(MULTIPOLYGON_TAGS[i], MULTIPOLYGON_TAGS[i + 1]);
+                    } else {
+                        long firstWay = layout.multipolygons << 1L;
+                        int wayCount = config.ways > firstWay ? 2 + structure.nextInt(15) : 0;
+                        int nodeCount = structure.nextInt(4);
+                        boolean parent = index > 0L && structure.nextInt(10) == 0;
+
+                        members = new Relation.Member[wayCount + nodeCount + (parent ? 1 : 0)];
+                        int count = 0;
+                        for (int i = 0; i < wayCount; i++) {
+                            long way = firstWay + structure.nextLong(config.ways - firstWay);
+                            if (!layout.isDeleted(Way.TYPE, way)) {
+                                members[count++] = new Relation.Member(Element.addTypeToId(Way.TYPE, way + 1L), "");
+                            }
+                        }
+                        for (int i = 0; i < nodeCount; i++) {
+                            members[count++] = new Relation.Member(Element.addTypeToId(Node.TYPE, 1L + structure.nextLong(config.nodes)), "stop");
+                        }
+                        if (parent) { //a route which is a member of an earlier route
+                            members[count++] = new Relation.Member(Element.addTypeToId(Relation.TYPE, 1L + structure.nextLong(index)), "");
+                        }
+                        members = Arrays.copyOf(members, count);
+
+                        tags.put("type", "route");
+                        tags.put("route", randomValue(tagsRandom, ROUTE_VALUES));
+                        tags.put("ref", String.valueOf(1 + tagsRandom.nextInt(999)));
+                    }
+                    this.extraTags(tags, tagsRandom);
+                    this.encoder.relation(new Relation(id, tags, version, true, members), timestamp);
+                    return;
+                }
+                default:
+                    throw new IllegalArgumentException(String.valueOf(type));
+            }
+        }
+
+        private void extraTags(Map<String, String> tags, SplittableRandom random) {
+            SyntheticPbfGenerator config = SyntheticPbfGenerator.this;
+            for (int i = random.nextInt(config.extraTags + 1); i > 0; i--) {
+                double d = random.nextDouble();
+                tags.put("synthetic:" + (int) (d * d * config.tagVocabulary), String.valueOf(random.nextInt(16)));
+            }
+        }
+
+        public void release() {
+            this.deflater.end();
+        }
+    }
+}
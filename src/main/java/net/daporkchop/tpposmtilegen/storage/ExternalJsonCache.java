@@ -0,0 +1,176 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.storage;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenHashMap;
+import lombok.EqualsAndHashCode;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBReadAccess;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A size-bounded LRU cache of external JSON blobs, shared between all requests and all levels.
+ * <p>
+ * Large elements such as coastlines or country borders are referenced from a great many tiles, so resolving references at serve time would otherwise read the
+ * same blobs from the database over and over again.
+ * <p>
+ * The cache is not invalidated automatically when the external JSON storage is modified, so {@link #clear()} must be called after committing any changes.
+ *
+ * @author DaPorkchop_
+ */
+public final class ExternalJsonCache {
+    public static final long DEFAULT_MAX_SIZE = Long.parseUnsignedLong(System.getProperty("externalJsonCacheSize", String.valueOf(256L << 20L)));
+
+    private final Storage storage;
+    private final long maxSize;
+
+    //ordered from most to least recently used
+    private final Object2ObjectLinkedOpenHashMap<Key, byte[]> map = new Object2ObjectLinkedOpenHashMap<>();
+    private long size;
+
+    //incremented whenever the cache is cleared, so that blobs which were loaded before it was cleared can be recognized and discarded
+    private long generation;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ExternalJsonCache(@NonNull Storage storage, long maxSize) {
+        this.storage = storage;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Gets the external JSON blobs for multiple elements at once, reading all of the ones which aren't cached using a single batched read.
+     *
+     * @param access      the {@link DBReadAccess} to read from
+     * @param level       the level to get the blobs at
+     * @param combinedIds the combined IDs of the elements
+     * @return a list containing the external JSON blob for each element, or {@code null} for elements which have no external JSON at the given level. The arrays
+     *         are shared and must not be modified
+     */
+    public List<byte[]> getAll(@NonNull DBReadAccess access, int level, @NonNull LongList combinedIds) throws Exception {
+        int size = combinedIds.size();
+        List<byte[]> values = new ArrayList<>(size);
+        LongList missingIds = new LongArrayList();
+
+        long generation;
+        synchronized (this) {
+            generation = this.generation;
+            for (int i = 0; i < size; i++) {
+                byte[] value = this.map.getAndMoveToFirst(new Key(level, combinedIds.getLong(i)));
+                if (value == null) {
+                    missingIds.add(combinedIds.getLong(i));
+                }
+                values.add(value);
+            }
+        }
+
+        this.hits.add(size - missingIds.size());
+        if (missingIds.isEmpty()) {
+            return values;
+        }
+        this.misses.add(missingIds.size());
+
+        List<ByteBuffer> loadedValues = this.storage.externalJsonStorage()[level].getAll(access, missingIds);
+
+        synchronized (this) {
+            //if the cache was cleared while the blobs were being loaded, they may already be outdated and must not be cached
+            boolean cacheable = generation == this.generation;
+
+            for (int i = 0, j = 0; i < size; i++) {
+                if (values.get(i) != null) {
+                    continue;
+                }
+
+                ByteBuffer loadedValue = loadedValues.get(j++);
+                if (loadedValue != null) {
+                    byte[] value = toArray(loadedValue);
+                    values.set(i, value);
+
+                    if (cacheable) {
+                        byte[] replaced = this.map.putAndMoveToFirst(new Key(level, combinedIds.getLong(i)), value);
+                        this.size += value.length - (replaced != null ? replaced.length : 0L);
+                    }
+                }
+            }
+
+            this.evict();
+        }
+        return values;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+
+        byte[] arr = new byte[buffer.remaining()];
+        buffer.duplicate().get(arr);
+        return arr;
+    }
+
+    private void evict() {
+        while (this.size > this.maxSize && !this.map.isEmpty()) {
+            this.size -= this.map.removeLast().length;
+        }
+    }
+
+    /**
+     * Removes all entries from this cache.
+     * <p>
+     * Blobs which are currently being loaded by concurrent calls to {@link #getAll(DBReadAccess, int, LongList)} will not be added to the cache once they're
+     * done.
+     */
+    public synchronized void clear() {
+        this.map.clear();
+        this.size = 0L;
+        this.generation++;
+    }
+
+    /**
+     * @return the number of blobs which were served from this cache
+     */
+    public long hits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return the number of blobs which had to be read from the database
+     */
+    public long misses() {
+        return this.misses.sum();
+    }
+
+    @RequiredArgsConstructor
+    @EqualsAndHashCode
+    private static final class Key {
+        private final int level;
+        private final long combinedId;
+    }
+}
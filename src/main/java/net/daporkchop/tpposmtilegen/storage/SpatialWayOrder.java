@@ -0,0 +1,272 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.storage;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.longs.LongList;
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+import net.daporkchop.lib.primitive.lambda.LongObjConsumer;
+import net.daporkchop.lib.unsafe.PUnsafe;
+import net.daporkchop.tpposmtilegen.natives.NativeRocksHelper;
+import net.daporkchop.tpposmtilegen.osm.Way;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBIterator;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBReadAccess;
+import net.daporkchop.tpposmtilegen.util.Threading;
+import net.daporkchop.tpposmtilegen.util.TimedOperation;
+import org.rocksdb.ColumnFamilyHandle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.lib.common.util.PorkUtil.*;
+import static net.daporkchop.tpposmtilegen.geometry.Point.*;
+
+/**
+ * Iterates over all the ways in a {@link Storage} in an order which follows their location rather than their ID.
+ * <p>
+ * Way IDs have very little spatial locality, so assembling ways in ID order makes every way's point lookups hit more or less random blocks in the
+ * points column. Instead, each way is assigned the position of its first node on a Hilbert curve, and the ways are then visited in the order of
+ * their positions along the curve. The first nodes' positions are found using a merge join against a sequential scan of the points column, so
+ * computing the order doesn't require any random reads either.
+ * <p>
+ * Computing the order needs up to about 40 bytes of heap memory per way at its peak: the first nodes and IDs are first collected into per-thread lists
+ * (16 bytes per way, plus up to 50% slack from the lists growing), which are then copied into the two arrays to be sorted (another 16 bytes per way).
+ * Once the lists have been released, 16 bytes per way remain for the rest of the computation, and 8 bytes per way are retained while the ways are being
+ * visited.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class SpatialWayOrder {
+    //the number of bits per axis used for positions on the hilbert curve
+    private static final int HILBERT_ORDER = 16;
+
+    //the curve position assigned to ways whose first node isn't known, sorts them after everything else. sort keys are compared as unsigned values, so this
+    // works even though it sets the key's sign bit
+    private static final long NO_POSITION = (1L << (HILBERT_ORDER << 1)) - 1L;
+
+    //the number of ways which are loaded from the db at once
+    private static final int BATCH_SIZE = 1024;
+
+    //if the points iterator would have to be advanced more than this many times to reach the next node, it's repositioned with a seek instead
+    private static final int MAX_SEQUENTIAL_SKIP = 16;
+
+    /**
+     * Computes the position of the given point on a Hilbert curve covering the whole world.
+     *
+     * @param x the point's longitude, in fixed-point format with {@link net.daporkchop.tpposmtilegen.geometry.Point#PRECISION} fractional digits
+     * @param y the point's latitude, in fixed-point format with {@link net.daporkchop.tpposmtilegen.geometry.Point#PRECISION} fractional digits
+     * @return the point's position on the curve
+     */
+    public static long hilbertIndex(int x, int y) {
+        final long n = 1L << HILBERT_ORDER;
+
+        //scale coordinates to the curve's resolution
+        long hx = min(max((x + 180L * PRECISION) * n / (360L * PRECISION), 0L), n - 1L);
+        long hy = min(max((y + 90L * PRECISION) * n / (180L * PRECISION), 0L), n - 1L);
+
+        long d = 0L;
+        for (long s = n >>> 1L; s > 0L; s >>>= 1L) {
+            int rx = (hx & s) != 0L ? 1 : 0;
+            int ry = (hy & s) != 0L ? 1 : 0;
+            d += s * s * ((3 * rx) ^ ry);
+
+            //rotate the quadrant
+            if (ry == 0) {
+                if (rx == 1) {
+                    hx = n - 1L - hx;
+                    hy = n - 1L - hy;
+                }
+                long t = hx;
+                hx = hy;
+                hy = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Invokes the given callback for every way in the given {@link Storage}, in spatial order.
+     * <p>
+     * The callback will be invoked from multiple threads concurrently. Each thread works on a contiguous section of the curve.
+     *
+     * @param storage  the {@link Storage}
+     * @param access   the {@link DBReadAccess} to read from
+     * @param callback the callback to invoke
+     */
+    public static void forEachParallel(@NonNull Storage storage, @NonNull DBReadAccess access, @NonNull LongObjConsumer<? super Way> callback) throws Exception {
+        forEachParallel(storage, access, 0L, -1L, callback);
+    }
+
+    /**
+     * Invokes the given callback for every way in the given {@link Storage} whose ID is in the given range, in spatial order.
+     *
+     * @param storage       the {@link Storage}
+     * @param access        the {@link DBReadAccess} to read from
+     * @param fromInclusive the lowest way ID to visit
+     * @param toExclusive   the way ID at which to stop, or a negative value to visit all ways up to the highest ID
+     * @param callback      the callback to invoke
+     * @see #forEachParallel(Storage, DBReadAccess, LongObjConsumer)
+     */
+    public static void forEachParallel(@NonNull Storage storage, @NonNull DBReadAccess access, long fromInclusive, long toExclusive,
+                                       @NonNull LongObjConsumer<? super Way> callback) throws Exception {
+        long[] order;
+        try (TimedOperation operation = new TimedOperation("Compute spatial way order")) {
+            order = computeOrder(storage, access, fromInclusive, toExclusive);
+        }
+
+        //the batches are split into contiguous sections, so each thread still works on a small part of the world at a time
+        long batches = (order.length + (long) BATCH_SIZE - 1L) / BATCH_SIZE;
+        Threading.forEachParallelLong(batch -> {
+            int from = toIntExact(batch * BATCH_SIZE);
+            int to = min(from + BATCH_SIZE, order.length);
+
+            LongList ids = new LongArrayList(to - from);
+            for (int i = from; i < to; i++) {
+                ids.add(order[i] & 0xFFFFFFFFL);
+            }
+
+            List<Way> ways;
+            try {
+                ways = storage.ways().getAll(access, ids);
+            } catch (Exception e) {
+                PUnsafe.throwException(e);
+                throw new AssertionError(); //impossible
+            }
+
+            for (int i = 0; i < ways.size(); i++) {
+                Way way = ways.get(i);
+                if (way != null) {
+                    callback.accept(ids.getLong(i), way);
+                }
+            }
+        }, LongStream.range(0L, batches).spliterator());
+    }
+
+    /**
+     * @return the IDs of all ways, each prefixed with the way's curve position in the upper 32 bits and sorted
+     */
+    private static long[] computeOrder(@NonNull Storage storage, @NonNull DBReadAccess access, long fromInclusive, long toExclusive) throws Exception {
+        //collect each way's first node
+        //  buffers are tracked separately rather than with an IterableThreadLocal, as the latter would drop them once the worker threads exit
+        List<LongArrayList[]> buffers = new ArrayList<>();
+        ThreadLocal<LongArrayList[]> threadBuffers = ThreadLocal.withInitial(() -> {
+            LongArrayList[] buffer = { new LongArrayList(), new LongArrayList() };
+            synchronized (buffers) {
+                buffers.add(buffer);
+            }
+            return buffer;
+        });
+        LongObjConsumer<Way> collector = (id, way) -> {
+            checkState((id >>> 32L) == 0L, "way ID %d is too large", id);
+
+            LongArrayList[] buffer = threadBuffers.get();
+            buffer[0].add(way.visible() && way.nodes().length != 0 ? way.nodes()[0] : -1L);
+            buffer[1].add(id);
+        };
+        if (fromInclusive == 0L && toExclusive < 0L) {
+            storage.ways().forEachParallel(access, collector);
+        } else {
+            storage.ways().forEachParallel(access, fromInclusive, toExclusive, collector);
+        }
+
+        long totalSize = 0L;
+        for (LongArrayList[] buffer : buffers) {
+            totalSize += buffer[0].size();
+        }
+        checkState(totalSize < Integer.MAX_VALUE, "too many ways: %d", totalSize);
+
+        long[] firstNodes = new long[(int) totalSize];
+        long[] ids = new long[(int) totalSize];
+        int size = 0;
+        for (LongArrayList[] buffer : buffers) {
+            int count = buffer[0].size();
+            buffer[0].getElements(0, firstNodes, size, count);
+            buffer[1].getElements(0, ids, size, count);
+            buffer[0] = buffer[1] = null;
+            size += count;
+        }
+
+        //sort by first node so that the points can be read sequentially
+        LongArrays.parallelRadixSort(firstNodes, ids);
+
+        //look up the position of each way's first node, replacing the node ID with the way's sort key. each section is handled by one iterator,
+        //  which only ever moves forwards.
+        ColumnFamilyHandle pointsColumn = storage.db().internalColumnFamily(storage.points());
+        int sections = CPU_COUNT << 2;
+        IntStream.range(0, sections).parallel().forEach(section -> {
+            int from = (int) ((long) firstNodes.length * section / sections);
+            int to = (int) ((long) firstNodes.length * (section + 1) / sections);
+
+            byte[] keyArray = new byte[8];
+            try (DBIterator itr = access.iterator(pointsColumn)) {
+                boolean positioned = false;
+                for (int i = from; i < to; i++) {
+                    long node = firstNodes[i];
+                    long position = NO_POSITION;
+                    if (node >= 0L) {
+                        PUnsafe.putUnalignedLongBE(keyArray, PUnsafe.arrayByteElementOffset(0), node);
+                        if (!positioned) {
+                            itr.seekCeil(keyArray);
+                            positioned = true;
+                        } else {
+                            for (int skip = 0; itr.isValid() && PUnsafe.getUnalignedLongBE(itr.keyValueSlice().keyAddr()) < node; skip++) {
+                                if (skip == MAX_SEQUENTIAL_SKIP) {
+                                    itr.seekCeil(keyArray);
+                                    break;
+                                }
+                                itr.next();
+                            }
+                        }
+
+                        if (itr.isValid()) {
+                            NativeRocksHelper.KeyValueSlice slice = itr.keyValueSlice();
+                            if (PUnsafe.getUnalignedLongBE(slice.keyAddr()) == node) {
+                                long point = PUnsafe.getUnalignedLongBE(slice.valueAddr());
+                                position = hilbertIndex((int) (point >>> 32L), (int) point);
+                            }
+                        }
+                    }
+                    firstNodes[i] = (position << 32L) | ids[i];
+                }
+            } catch (Exception e) {
+                PUnsafe.throwException(e);
+            }
+        });
+
+        //sort by curve position. the keys need to be sorted as unsigned values, but the radix sort is signed, so we flip the sign bit before and after sorting
+        for (int i = 0; i < firstNodes.length; i++) {
+            firstNodes[i] ^= Long.MIN_VALUE;
+        }
+        LongArrays.parallelRadixSort(firstNodes);
+        for (int i = 0; i < firstNodes.length; i++) {
+            firstNodes[i] ^= Long.MIN_VALUE;
+        }
+        return firstNodes;
+    }
+}
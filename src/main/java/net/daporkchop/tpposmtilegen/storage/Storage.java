@@ -21,10 +21,14 @@
 package net.daporkchop.tpposmtilegen.storage;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.buffer.UnpooledByteBufAllocator;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenHashMap;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
@@ -74,17 +78,22 @@ import net.daporkchop.tpposmtilegen.util.Tile;
 import net.daporkchop.tpposmtilegen.util.TimedOperation;
 import net.daporkchop.tpposmtilegen.util.Utils;
 import org.rocksdb.Checkpoint;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.OptionalLong;
@@ -127,10 +136,16 @@ public final class Storage implements AutoCloseable {
 
     protected ReferenceDB references;
 
+    /**
+     * The number of levels in this storage. All per-level arrays are indexed from {@link Utils#MIN_LEVEL} (inclusive) to this value (exclusive).
+     */
+    protected final int maxLevel;
+
     //TODO: index these properly with MIN_LEVEL
-    protected final LongArrayDB[] intersectedTiles = new LongArrayDB[MAX_LEVEL];
-    protected final TileDB[] tileJsonStorage = new TileDB[MAX_LEVEL];
-    protected final BlobDB[] externalJsonStorage = new BlobDB[MAX_LEVEL];
+    protected final LongArrayDB[] intersectedTiles;
+    protected final TileDB[] tileJsonStorage;
+    protected final BlobDB[] externalJsonStorage;
+    protected final ExternalJsonCache externalJsonCache;
 
     protected final Database db;
 
@@ -148,8 +163,33 @@ public final class Storage implements AutoCloseable {
     }
 
     public Storage(@NonNull Path root, @NonNull DatabaseConfig config) throws Exception {
+        this(root, config, -1);
+    }
+
+    /**
+     * @param maxLevel the number of levels to open the storage with. If negative, the storage's existing level count will be used, or
+     *                 {@link Utils#DEFAULT_MAX_LEVEL} if the storage doesn't exist yet. Otherwise, it may not be less than the existing level count, and may only
+     *                 be greater than it if the storage is being opened read-write (in which case the column families for the new levels will be created empty)
+     */
+    public Storage(@NonNull Path root, @NonNull DatabaseConfig config, int maxLevel) throws Exception {
         this.root = root;
 
+        int existingMaxLevel = existingMaxLevel(root.resolve("db"));
+        if (maxLevel < 0) {
+            maxLevel = existingMaxLevel >= 0 ? existingMaxLevel : DEFAULT_MAX_LEVEL;
+        } else if (existingMaxLevel >= 0) {
+            //opening read-write with fewer levels would cause the column families for the extra levels to be dropped
+            checkArg(maxLevel >= existingMaxLevel, "storage at '%s' has %d levels, can't open it with only %d", root, existingMaxLevel, maxLevel);
+            checkArg(maxLevel == existingMaxLevel || !config.readOnly(), "can't add levels to storage at '%s' while opening it read-only", root);
+        }
+        positive(maxLevel, "maxLevel");
+        this.maxLevel = maxLevel;
+
+        this.intersectedTiles = new LongArrayDB[maxLevel];
+        this.tileJsonStorage = new TileDB[maxLevel];
+        this.externalJsonStorage = new BlobDB[maxLevel];
+        this.externalJsonCache = new ExternalJsonCache(this, ExternalJsonCache.DEFAULT_MAX_SIZE);
+
         if (!config.readOnly() && PFiles.checkFileExists(root.resolve("db").resolve("IDENTITY"))) {
             //if we're trying to open the storage read-write, we should first open and close it read-only in order to double-check the version number without breaking
             // anything
@@ -169,9 +209,9 @@ public final class Storage implements AutoCloseable {
                 .add("references", (database, handle, descriptor) -> this.references = new ReferenceDB(database, handle, descriptor), UInt64SetMergeOperator.INSTANCE)
                 .add("properties", (database, handle, descriptor) -> this.properties = new DBProperties(database, handle, descriptor), DBPropertiesMergeOperator.UINT64_ADD_OPERATOR);
 
-        IntStream.range(MIN_LEVEL, MAX_LEVEL).forEach(lvl -> builder.add("intersected_tiles@" + lvl, (database, handle, descriptor) -> this.intersectedTiles[lvl] = new LongArrayDB(database, handle, descriptor)));
-        IntStream.range(MIN_LEVEL, MAX_LEVEL).forEach(lvl -> builder.add("tiles@" + lvl, DatabaseConfig.ColumnFamilyType.COMPACT, (database, handle, descriptor) -> this.tileJsonStorage[lvl] = new TileDB(database, handle, descriptor), UInt64ToBlobMapMergeOperator.INSTANCE));
-        IntStream.range(MIN_LEVEL, MAX_LEVEL).forEach(lvl -> builder.add("external_json@" + lvl, DatabaseConfig.ColumnFamilyType.COMPACT, (database, handle, descriptor) -> this.externalJsonStorage[lvl] = new BlobDB(database, handle, descriptor)));
+        IntStream.range(MIN_LEVEL, maxLevel).forEach(lvl -> builder.add("intersected_tiles@" + lvl, (database, handle, descriptor) -> this.intersectedTiles[lvl] = new LongArrayDB(database, handle, descriptor)));
+        IntStream.range(MIN_LEVEL, maxLevel).forEach(lvl -> builder.add("tiles@" + lvl, DatabaseConfig.ColumnFamilyType.COMPACT, (database, handle, descriptor) -> this.tileJsonStorage[lvl] = new TileDB(database, handle, descriptor), UInt64ToBlobMapMergeOperator.INSTANCE));
+        IntStream.range(MIN_LEVEL, maxLevel).forEach(lvl -> builder.add("external_json@" + lvl, DatabaseConfig.ColumnFamilyType.COMPACT, (database, handle, descriptor) -> this.externalJsonStorage[lvl] = new BlobDB(database, handle, descriptor)));
         try (TimedOperation operation = new TimedOperation("Open DB")) {
             this.db = builder.build(root.resolve("db"));
         }
@@ -202,6 +242,29 @@ public final class Storage implements AutoCloseable {
         }
     }
 
+    /**
+     * Determines the number of levels in an existing database from the names of the per-level column families it contains.
+     *
+     * @param path the path to the database
+     * @return the number of levels, or {@code -1} if there is no database at the given path
+     */
+    private static int existingMaxLevel(@NonNull Path path) throws Exception {
+        if (!PFiles.checkFileExists(path.resolve("IDENTITY"))) {
+            return -1;
+        }
+
+        int maxLevel = 0;
+        try (Options options = new Options()) {
+            for (byte[] name : RocksDB.listColumnFamilies(options, path.toString())) {
+                String nameString = new String(name, StandardCharsets.UTF_8);
+                if (nameString.startsWith("tiles@")) {
+                    maxLevel = Math.max(maxLevel, Integer.parseInt(nameString.substring("tiles@".length())) + 1);
+                }
+            }
+        }
+        return maxLevel;
+    }
+
     public void putNode(@NonNull DBWriteAccess access, @NonNull Node node, @NonNull Point point) throws Exception {
         this.points.put(access, node.id(), point);
         this.nodes.put(access, node.id(), node);
@@ -264,8 +327,11 @@ public final class Storage implements AutoCloseable {
         boolean anyNewLevelWasNull = newGeometry == null || !newElement.visible();
         boolean anyOldLevelWasNull = oldElement == null || !oldElement.visible();
 
-        for (int lvl = MIN_LEVEL; !(anyOldLevelWasNull && anyNewLevelWasNull) && lvl < MAX_LEVEL; lvl++) {
+        for (int lvl = MIN_LEVEL; !(anyOldLevelWasNull && anyNewLevelWasNull) && lvl < this.maxLevel; lvl++) {
             Geometry simplifiedGeometry = !anyNewLevelWasNull && newElement.allowedToIncludeAtLevel(lvl) ? newGeometry.simplifyTo(lvl).orElse(null) : null;
+            if (simplifiedGeometry != null && !newElement.allowedToIncludeAtLevel(lvl, simplifiedGeometry)) { //the element is too small to be included at this level
+                simplifiedGeometry = null;
+            }
             if (simplifiedGeometry == null) {
                 anyNewLevelWasNull = true;
             }
@@ -366,7 +432,81 @@ public final class Storage implements AutoCloseable {
         }
     }
 
+    /**
+     * Removes all geometry which is currently stored for the given element from every level, regardless of whether or not the element is visible.
+     *
+     * @param currentStateReadAccess a {@link DBReadAccess} for reading the element's currently stored intersected tiles
+     * @param nextStateWriteAccess   a {@link DBWriteAccess} for writing tiles/external blobs/intersected tiles data
+     * @param combinedId             the element's combined ID
+     */
+    public void unassembleElement(@NonNull DBReadAccess currentStateReadAccess, @NonNull DBWriteAccess nextStateWriteAccess, long combinedId) throws Exception {
+        for (int lvl = MIN_LEVEL; lvl < this.maxLevel; lvl++) {
+            long[] oldIntersected = this.intersectedTiles[lvl].get(currentStateReadAccess, combinedId);
+            if (oldIntersected == null) { //an element which doesn't exist at one level can't exist at any higher level either
+                break;
+            }
+
+            this.tileJsonStorage[lvl].deleteElementFromTiles(nextStateWriteAccess, LongArrayList.wrap(oldIntersected), combinedId);
+            this.externalJsonStorage[lvl].delete(nextStateWriteAccess, combinedId);
+            this.intersectedTiles[lvl].delete(nextStateWriteAccess, combinedId);
+        }
+    }
+
+    /**
+     * Adds already simplified geometry to every tile it intersects at a single level, without reading any existing data.
+     * <p>
+     * The element must not currently exist at the given level.
+     *
+     * @param access     a {@link DBWriteAccess} for writing tiles/external blobs/intersected tiles data
+     * @param level      the level to add the geometry at
+     * @param combinedId the element's combined ID
+     * @param geometry   the geometry, already simplified to the given level
+     * @param tags       the element's tags
+     * @return the number of bytes of GeoJSON which were written
+     */
+    public long putGeometryAtLevel(@NonNull DBWriteAccess access, int level, long combinedId, @NonNull Geometry geometry, @NonNull Map<String, String> tags) throws Exception {
+        long[] intersected = Objects.requireNonNull(geometry.listIntersectedTiles(level));
+        Utils.maybeParallelSort(intersected);
+        this.intersectedTiles[level].put(access, combinedId, intersected);
+
+        Recycler<StringBuilder> stringBuilderRecycler = PorkUtil.stringBuilderRecycler();
+        StringBuilder builder = stringBuilderRecycler.allocate();
+        Geometry.toGeoJSON(builder, geometry, tags, combinedId);
+        ByteBuf tileBuffer = Geometry.toByteBuf(builder);
+        stringBuilderRecycler.release(builder);
+
+        ByteBuf externalBuffer = null;
+        try {
+            long size = tileBuffer.readableBytes();
+            if (geometry.shouldStoreExternally(intersected.length, tileBuffer.readableBytes())) {
+                externalBuffer = tileBuffer;
+                tileBuffer = Geometry.createReference(Element.extractType(combinedId), Element.extractId(combinedId));
+                this.externalJsonStorage[level].put(access, combinedId, externalBuffer.nioBuffer());
+                size += (long) tileBuffer.readableBytes() * intersected.length;
+            } else {
+                size *= intersected.length;
+            }
+
+            this.tileJsonStorage[level].addElementToTiles(access, LongArrayList.wrap(intersected), combinedId, tileBuffer);
+            return size;
+        } finally {
+            if (externalBuffer != null) {
+                externalBuffer.release();
+            }
+            tileBuffer.release();
+        }
+    }
+
     public ByteBuf getTile(@NonNull DBReadAccess access, int tileX, int tileY, int level) throws Exception {
+        return this.getTile(access, tileX, tileY, level, false);
+    }
+
+    /**
+     * Gets the contents of a single tile.
+     *
+     * @param resolveReferences if {@code true}, references to externally stored geometry will be replaced with the referenced geometry itself
+     */
+    public ByteBuf getTile(@NonNull DBReadAccess access, int tileX, int tileY, int level, boolean resolveReferences) throws Exception {
         long tilePos = Tile.xy2tilePos(tileX, tileY);
 
         //TODO: make this use a FeatureCollection again
@@ -376,9 +516,15 @@ public final class Storage implements AutoCloseable {
         merged.clear();
 
         int startWriterIndex = merged.writerIndex();
+        LongList references = resolveReferences ? new LongArrayList() : null;
 
         this.tileJsonStorage[level].getElementsInTile(access, tilePos, (combinedId, json) -> {
             checkArg(json.length != 0, "empty json data for %s %d", Element.typeName(Element.extractType(combinedId)), Element.extractId(combinedId));
+            if (resolveReferences && Geometry.isReference(Unpooled.wrappedBuffer(json))) { //resolve all references at once after the tile has been read
+                references.add(combinedId);
+                return;
+            }
+
             //merged.writeBytes(json).writeByte(',');
             merged.writeBytes(json);
             if (merged.getByte(merged.writerIndex() - 1) != '\n') {
@@ -386,6 +532,23 @@ public final class Storage implements AutoCloseable {
             }
         });
 
+        if (resolveReferences && !references.isEmpty()) {
+            List<byte[]> externalJson = this.externalJsonCache.getAll(access, level, references);
+            for (int i = 0; i < externalJson.size(); i++) {
+                byte[] json = externalJson.get(i);
+                if (json == null) {
+                    long combinedId = references.getLong(i);
+                    logger.warn("missing external json for %s %d at level %d", Element.typeName(Element.extractType(combinedId)), Element.extractId(combinedId), level);
+                    continue;
+                }
+
+                merged.writeBytes(json);
+                if (merged.getByte(merged.writerIndex() - 1) != '\n') {
+                    merged.writeByte('\n');
+                }
+            }
+        }
+
         if (merged.writerIndex() != startWriterIndex) {
             merged.writerIndex(merged.writerIndex() - 1);
         }
@@ -394,6 +557,36 @@ public final class Storage implements AutoCloseable {
         return merged;
     }
 
+    /**
+     * Gets the contents of multiple tiles at once, encoded as newline-delimited GeoJSON features.
+     * <p>
+     * Elements which are present in more than one of the requested tiles are only included once.
+     *
+     * @param tilePositions the positions of the tiles to get
+     */
+    public ByteBuf getTiles(@NonNull DBReadAccess access, @NonNull LongList tilePositions, int level) throws Exception {
+        //sort the tile positions in order to make the keys for the batched read be in ascending order
+        long[] sortedPositions = tilePositions.toLongArray();
+        Arrays.sort(sortedPositions);
+
+        ByteBuf merged = UnpooledByteBufAllocator.DEFAULT.ioBuffer();
+        LongSet visitedIds = new LongOpenHashSet();
+
+        this.tileJsonStorage[level].getElementsInTiles(access, LongArrayList.wrap(sortedPositions), (tilePos, combinedId, json) -> {
+            if (!visitedIds.add(combinedId)) { //the element was already included from another tile
+                return;
+            }
+
+            checkArg(json.isReadable(), "empty json data for %s %d", Element.typeName(Element.extractType(combinedId)), Element.extractId(combinedId));
+            merged.writeBytes(json);
+            if (merged.getByte(merged.writerIndex() - 1) != '\n') {
+                merged.writeByte('\n');
+            }
+        });
+
+        return merged;
+    }
+
     public void flush() throws Exception {
         this.db.flush();
     }
@@ -225,15 +225,41 @@ public abstract class RocksDBMap<V> extends WrappedRocksDB {
             }
         }
 
-        @AllArgsConstructor
-        class ValueWithKey {
-            final byte[] key;
-            final byte[] value;
+        Threading.<ValueWithKey>iterateParallel(32 * CPU_COUNT,
+                c -> {
+                    try (DBIterator itr = access.iterator(this.column)) {
+                        for (itr.seekToFirst(); itr.isValid(); itr.next()) {
+                            c.accept(new ValueWithKey(itr.key(), itr.value()));
+                        }
+                    }
+                },
+                v -> {
+                    long key = PUnsafe.getUnalignedLongBE(v.key, PUnsafe.arrayByteElementOffset(0));
+                    callback.accept(key, this.valueFromBytes(key, Unpooled.wrappedBuffer(v.value)));
+                });
+    }
+
+    /**
+     * Iterates over all the entries whose keys are in the given range in parallel.
+     * <p>
+     * The entries are read sequentially from a single iterator, only decoding them and invoking the callback is done in parallel.
+     *
+     * @param fromInclusive the lowest key to iterate over
+     * @param toExclusive   the key at which to stop iterating, or a negative value to iterate up to the end of the column
+     */
+    public void forEachParallel(@NonNull DBReadAccess access, long fromInclusive, long toExclusive, @NonNull LongObjConsumer<? super V> callback) throws Exception {
+        byte[] fromKey = new byte[8];
+        PUnsafe.putUnalignedLongBE(fromKey, PUnsafe.arrayByteElementOffset(0), fromInclusive);
+        byte[] toKey = null;
+        if (toExclusive >= 0L) {
+            toKey = new byte[8];
+            PUnsafe.putUnalignedLongBE(toKey, PUnsafe.arrayByteElementOffset(0), toExclusive);
         }
+        byte[] finalToKey = toKey;
 
         Threading.<ValueWithKey>iterateParallel(32 * CPU_COUNT,
                 c -> {
-                    try (DBIterator itr = access.iterator(this.column)) {
+                    try (DBIterator itr = access.iterator(this.column, fromKey, finalToKey)) {
                         for (itr.seekToFirst(); itr.isValid(); itr.next()) {
                             c.accept(new ValueWithKey(itr.key(), itr.value()));
                         }
@@ -259,6 +285,12 @@ public abstract class RocksDBMap<V> extends WrappedRocksDB {
                 DatabaseConfig.ReadType.BULK_ITERATE, RocksColumnSpliterator.KeyOperations.FIXED_SIZE_LEX_ORDER));
     }
 
+    @AllArgsConstructor
+    private static final class ValueWithKey {
+        final byte[] key;
+        final byte[] value;
+    }
+
     /**
      * @author DaPorkchop_
      */
@@ -23,19 +23,32 @@ package net.daporkchop.tpposmtilegen.storage.special;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import it.unimi.dsi.fastutil.longs.LongList;
+import lombok.AllArgsConstructor;
 import lombok.NonNull;
+import net.daporkchop.lib.primitive.lambda.LongLongObjConsumer;
 import net.daporkchop.lib.primitive.lambda.LongObjConsumer;
 import net.daporkchop.lib.unsafe.PUnsafe;
 import net.daporkchop.tpposmtilegen.natives.UInt64ToBlobMapMergeOperator;
 import net.daporkchop.tpposmtilegen.storage.rocksdb.Database;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.DatabaseConfig;
 import net.daporkchop.tpposmtilegen.storage.rocksdb.WrappedRocksDB;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBIterator;
 import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBReadAccess;
 import net.daporkchop.tpposmtilegen.storage.rocksdb.access.DBWriteAccess;
+import net.daporkchop.tpposmtilegen.storage.rocksdb.iterate.RocksColumnSpliterator;
+import net.daporkchop.tpposmtilegen.util.DuplicatedList;
+import net.daporkchop.tpposmtilegen.util.Threading;
 import org.rocksdb.ColumnFamilyDescriptor;
 import org.rocksdb.ColumnFamilyHandle;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.lib.common.util.PorkUtil.*;
 
 /**
  * Tracks which elements are contained in each tile.
@@ -106,4 +119,93 @@ public final class TileDB extends WrappedRocksDB {
             recycler.release(key);
         }
     }
+
+    /**
+     * Gets the contents of multiple tiles at once using a single batched read.
+     *
+     * @param access        the {@link DBReadAccess} to read from
+     * @param tilePositions the positions of the tiles to read. For best performance, these should be sorted
+     * @param callback      a callback which will be called with the tile position, the element's combined ID and a slice containing the element's JSON data for
+     *                      every element in every tile. The slice is only valid for the duration of the callback
+     */
+    public void getElementsInTiles(@NonNull DBReadAccess access, @NonNull LongList tilePositions, @NonNull LongLongObjConsumer<ByteBuf> callback) throws Exception {
+        int size = tilePositions.size();
+        if (size == 0) {
+            return;
+        } else if (size > 10000) { //split into smaller gets (see RocksDBMap#getAll)
+            for (int i = 0; i < size; i += 10000) {
+                this.getElementsInTiles(access, tilePositions.subList(i, min(i + 10000, size)), callback);
+            }
+            return;
+        }
+
+        ByteArrayRecycler recycler = BYTE_ARRAY_RECYCLER_8.get();
+        List<byte[]> keys = new ArrayList<>(size);
+        List<byte[]> values;
+        try {
+            for (int i = 0; i < size; i++) {
+                byte[] key = recycler.get();
+                PUnsafe.putUnalignedLongBE(key, PUnsafe.arrayByteElementOffset(0), tilePositions.getLong(i));
+                keys.add(key);
+            }
+
+            values = access.multiGetAsList(new DuplicatedList<>(this.column, size), keys);
+        } finally {
+            keys.forEach(recycler::release);
+        }
+
+        for (int i = 0; i < size; i++) {
+            byte[] arr = values.get(i);
+            if (arr != null) {
+                long tilePos = tilePositions.getLong(i);
+                UInt64ToBlobMapMergeOperator.decodeToSlices(Unpooled.wrappedBuffer(arr), (combinedId, json) -> callback.accept(tilePos, combinedId, json));
+            }
+        }
+    }
+
+    /**
+     * Iterates over the contents of every tile in parallel.
+     * <p>
+     * Each tile is read exactly once, so an element which intersects multiple tiles will be passed to the callback once for each of them.
+     *
+     * @param access   the {@link DBReadAccess} to read from
+     * @param callback a callback which will be called with the tile position, the element's combined ID and a slice containing the element's JSON data for
+     *                 every element in every tile. The slice is only valid for the duration of the callback
+     */
+    public void forEachElementParallel(@NonNull DBReadAccess access, @NonNull LongLongObjConsumer<ByteBuf> callback) throws Exception {
+        if (access.isDirectRead()) {
+            try (RocksColumnSpliterator rootSpliterator = new RocksColumnSpliterator(this.database, this.column, access.internalSnapshot(),
+                    DatabaseConfig.ReadType.BULK_ITERATE, RocksColumnSpliterator.KeyOperations.FIXED_SIZE_LEX_ORDER)) {
+                Threading.forEachParallel(CPU_COUNT, spliterator -> {
+                    spliterator.forEachRemaining(slice -> {
+                        checkArg(slice.keySize() == 8, slice.keySize());
+
+                        long tilePos = PUnsafe.getUnalignedLongBE(slice.keyAddr());
+                        UInt64ToBlobMapMergeOperator.decodeToSlices(Unpooled.wrappedBuffer(slice.valueAddr(), slice.valueSize(), false),
+                                (combinedId, json) -> callback.accept(tilePos, combinedId, json));
+                    });
+                }, rootSpliterator);
+                return;
+            }
+        }
+
+        Threading.<TileWithPos>iterateParallel(32 * CPU_COUNT,
+                c -> {
+                    try (DBIterator itr = access.iterator(this.column)) {
+                        for (itr.seekToFirst(); itr.isValid(); itr.next()) {
+                            c.accept(new TileWithPos(itr.key(), itr.value()));
+                        }
+                    }
+                },
+                t -> {
+                    long tilePos = PUnsafe.getUnalignedLongBE(t.key, PUnsafe.arrayByteElementOffset(0));
+                    UInt64ToBlobMapMergeOperator.decodeToSlices(Unpooled.wrappedBuffer(t.value), (combinedId, json) -> callback.accept(tilePos, combinedId, json));
+                });
+    }
+
+    @AllArgsConstructor
+    private static final class TileWithPos {
+        final byte[] key;
+        final byte[] value;
+    }
 }
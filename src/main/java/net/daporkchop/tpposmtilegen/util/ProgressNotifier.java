@@ -119,6 +119,10 @@ public final class ProgressNotifier implements AutoCloseable {
         this.slots[slot].increment();
     }
 
+    public void step(int slot, long count) {
+        this.slots[slot].add(count);
+    }
+
     public ProgressNotifier setTotal(int slot, long total) {
         this.slots[slot].total.reset();
         this.slots[slot].total.add(total);
@@ -20,10 +20,15 @@
 
 package net.daporkchop.tpposmtilegen.util;
 
+import lombok.NonNull;
 import lombok.experimental.UtilityClass;
 import net.daporkchop.lib.common.annotation.param.NotNegative;
 import net.daporkchop.tpposmtilegen.geometry.Point;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
 import java.util.stream.IntStream;
 import java.util.stream.LongStream;
 
@@ -82,4 +87,78 @@ public class Tile {
                 .flatMapToLong(x -> (parallel ? IntStream.rangeClosed(bounds.minY(), bounds.maxY()).parallel() : IntStream.rangeClosed(bounds.minY(), bounds.maxY()))
                         .mapToLong(y -> xy2tilePos(x, y)));
     }
+
+    /**
+     * Iterates over the positions of all tiles in the given bounds, in ascending order of their (unsigned) packed tile positions.
+     * <p>
+     * As tile positions are stored as big-endian keys, this is the same order in which they are stored in the database. The bounds are never materialized, so
+     * this uses constant memory regardless of the size of the bounds.
+     *
+     * @param bounds the bounds of the tiles to iterate over, in tile coordinates (inclusive)
+     */
+    public static PrimitiveIterator.OfLong tilePositionsInBounds(@NonNull Bounds2d bounds) {
+        //interleaved positions are only contiguous within a single sign quadrant, so we split the bounds along the axes and iterate over each part separately.
+        // the quadrants are visited in ascending order of their sign bits: (+x, +y), (-x, +y), (+x, -y), (-x, -y)
+        List<Bounds2d> parts = new ArrayList<>(4);
+        for (int ySign = 0; ySign < 2; ySign++) {
+            int minY = ySign == 0 ? Math.max(bounds.minY(), 0) : bounds.minY();
+            int maxY = ySign == 0 ? bounds.maxY() : Math.min(bounds.maxY(), -1);
+            for (int xSign = 0; xSign < 2; xSign++) {
+                int minX = xSign == 0 ? Math.max(bounds.minX(), 0) : bounds.minX();
+                int maxX = xSign == 0 ? bounds.maxX() : Math.min(bounds.maxX(), -1);
+                if (minX <= maxX && minY <= maxY) {
+                    parts.add(Bounds2d.of(minX, maxX, minY, maxY));
+                }
+            }
+        }
+
+        return new PrimitiveIterator.OfLong() {
+            int part = -1;
+            long min;
+            long max;
+            long next;
+            boolean done = true;
+
+            {
+                this.advancePart();
+            }
+
+            private void advancePart() {
+                if (++this.part < parts.size()) {
+                    Bounds2d partBounds = parts.get(this.part);
+                    this.min = this.next = xy2tilePos(partBounds.minX(), partBounds.minY());
+                    this.max = xy2tilePos(partBounds.maxX(), partBounds.maxY());
+                    this.done = false;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !this.done;
+            }
+
+            @Override
+            public long nextLong() {
+                if (this.done) {
+                    throw new NoSuchElementException();
+                }
+
+                long result = this.next;
+                if (result == this.max) {
+                    this.done = true;
+                    this.advancePart();
+                } else {
+                    long candidate = result + 1L;
+                    int x = tileX(candidate);
+                    int y = tileY(candidate);
+                    Bounds2d partBounds = parts.get(this.part);
+                    if (x < partBounds.minX() || x > partBounds.maxX() || y < partBounds.minY() || y > partBounds.maxY()) {
+                        candidate = Utils.nextInterleavedInRange(candidate, this.min, this.max);
+                    }
+                    this.next = candidate;
+                }
+                return result;
+            }
+        };
+    }
 }
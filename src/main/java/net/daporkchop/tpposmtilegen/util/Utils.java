@@ -73,8 +73,12 @@ public class Utils {
     public static final double POINT_DENSITY_LEVEL0_THIRD_QUARTILE = 2891.26581651644d;
 
     public static final int MIN_LEVEL = 0;
-    public static final int MAX_LEVEL = 1;
-    public static final int NUM_LEVELS = MAX_LEVEL - MIN_LEVEL;
+
+    /**
+     * The number of levels to create when a new index is initialized. Existing indices keep the number of levels they were created with (see
+     * {@link net.daporkchop.tpposmtilegen.storage.Storage#maxLevel()}), and may be extended using {@code build_pyramid}.
+     */
+    public static final int DEFAULT_MAX_LEVEL = Integer.getInteger("defaultMaxLevel", 1);
 
     public static double minimumDensityAtLevel(int level) {
         //increase by factor of 2 with each level
@@ -250,6 +254,47 @@ public class Utils {
         return i;
     }
 
+    /**
+     * Finds the smallest interleaved value which is greater than the given value and lies within the 2D box spanned by the given minimum and maximum values.
+     * <p>
+     * All values are treated as unsigned. The given value must be greater than {@code min}, less than {@code max}, and must not itself lie inside the box.
+     * <p>
+     * This is the BIGMIN computation described in <a href="https://hermanntropf.de/media/multidimensionalrangequery.pdf">Tropf &amp; Herzog - Multidimensional
+     * Range Search in Dynamically Balanced Trees</a>.
+     *
+     * @param value the interleaved value which lies outside of the box
+     * @param min   the interleaved minimum corner of the box
+     * @param max   the interleaved maximum corner of the box
+     * @return the next interleaved value inside the box
+     */
+    public static long nextInterleavedInRange(long value, long min, long max) {
+        long bigMin = 0L;
+        for (int bit = 63; bit >= 0; bit--) {
+            long mask = 1L << bit;
+            long lowerSameAxis = (0x5555555555555555L << (bit & 1)) & (mask - 1L);
+
+            switch (((value & mask) != 0L ? 4 : 0) | ((min & mask) != 0L ? 2 : 0) | ((max & mask) != 0L ? 1 : 0)) {
+                case 0b000:
+                case 0b111:
+                    break;
+                case 0b001: //the box straddles this bit, remember the lower bound of the upper half and continue searching in the lower half
+                    bigMin = (min & ~lowerSameAxis) | mask;
+                    max = (max & ~mask) | lowerSameAxis;
+                    break;
+                case 0b011: //the whole box is above the value
+                    return min;
+                case 0b100: //the whole box is below the value
+                    return bigMin;
+                case 0b101: //the box straddles this bit, continue searching in the upper half
+                    min = (min & ~lowerSameAxis) | mask;
+                    break;
+                default:
+                    throw new IllegalStateException("min > max");
+            }
+        }
+        return bigMin;
+    }
+
     public static <A, B> Stream<Tuple<A, B>> zip(@NonNull Stream<A> a, @NonNull Stream<B> b) {
         List<A> aValues = a.collect(Collectors.toList());
         List<B> bValues = b.collect(Collectors.toList());
@@ -21,11 +21,14 @@
 package net.daporkchop.tpposmtilegen.util.squashfs;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntList;
 import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
-import net.daporkchop.lib.common.function.io.IORunnable;
+import net.daporkchop.lib.common.function.exception.ESupplier;
+import net.daporkchop.lib.common.util.PorkUtil;
 import net.daporkchop.tpposmtilegen.util.CloseableExecutor;
 import net.daporkchop.tpposmtilegen.util.ProgressNotifier;
 import net.daporkchop.tpposmtilegen.util.SimpleRecycler;
@@ -36,10 +39,13 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.concurrent.CompletableFuture;
 import java.util.stream.IntStream;
 
+import static java.lang.Math.*;
 import static net.daporkchop.lib.common.util.PValidation.*;
 import static net.daporkchop.tpposmtilegen.util.Utils.*;
 
@@ -47,6 +53,9 @@ import static net.daporkchop.tpposmtilegen.util.Utils.*;
  * @author DaPorkchop_
  */
 abstract class CompressedBlockSequence implements ISquashfsBuilder, Iterable<DatablockReference> {
+    private static final int BATCH_BLOCKS = 64;
+    private static final int MAX_BATCHES_IN_FLIGHT = PorkUtil.CPU_COUNT << 1;
+
     protected final SquashfsBuilder parent;
     protected final Compression compression;
 
@@ -84,45 +93,79 @@ abstract class CompressedBlockSequence implements ISquashfsBuilder, Iterable<Dat
     @Override
     @SneakyThrows(Exception.class)
     public void transferTo(@NonNull FileChannel channel, @NonNull Superblock superblock) throws IOException {
-        CompletableFuture<Void> previousFuture = CompletableFuture.completedFuture(null);
-
-        try (CloseableExecutor executor = new CloseableExecutor()) {
-            long size = this.rawChannel.position();
-            try (ProgressNotifier notifier = new ProgressNotifier.Builder().prefix("Compress " + this.name())
-                    .slot("blocks", (size - 1L) / this.blockSize + 1L).build()) {
-                long _pos = 0L;
-                for (int blockSize : this.blockSizes) {
-                    long pos = _pos;
-                    CompletableFuture<Void> thePreviousFuture = previousFuture;
-
-                    previousFuture = CompletableFuture.runAsync((IORunnable) () -> {
-                        SimpleRecycler<ByteBuf> recycler = IO_BUFFER_RECYCLER.get();
-                        ByteBuf readBuffer = recycler.get();
-                        ByteBuf writeBuffer = recycler.get();
-                        ByteBuf indexBuffer = recycler.get();
-                        try {
-                            readFully(this.rawChannel, pos, readBuffer, blockSize);
-                            boolean uncompressed = this.compress(readBuffer, writeBuffer);
-                            indexBuffer.writeIntLE(this.toReferenceSize(uncompressed, writeBuffer.readableBytes()));
-
-                            thePreviousFuture.join();
-
-                            indexBuffer.writeLongLE(channel.position());
-                            writeFully(channel, writeBuffer);
-                            writeFully(this.indexChannel, indexBuffer);
-                        } finally {
-                            recycler.release(indexBuffer);
-                            recycler.release(writeBuffer);
-                            recycler.release(readBuffer);
-                        }
-                        notifier.step(0);
-                    }, executor);
-
-                    _pos += blockSize;
+        try (CloseableExecutor executor = new CloseableExecutor();
+             ProgressNotifier notifier = new ProgressNotifier.Builder().prefix("Compress " + this.name())
+                     .slot("blocks", this.blockSizes.size()).build()) {
+            //blocks are compressed in batches, which are written to the output channel in order by this thread as soon as they're done
+            Deque<CompletableFuture<CompressedBatch>> pending = new ArrayDeque<>();
+            long pos = 0L;
+            for (int from = 0; from < this.blockSizes.size(); from += BATCH_BLOCKS) {
+                int to = min(from + BATCH_BLOCKS, this.blockSizes.size());
+                long batchPos = pos;
+                for (int i = from; i < to; i++) {
+                    pos += this.blockSizes.getInt(i);
+                }
+                int batchFrom = from;
+
+                pending.addLast(CompletableFuture.supplyAsync((ESupplier<CompressedBatch>) () -> this.compressBatch(batchPos, batchFrom, to), executor));
+                if (pending.size() >= MAX_BATCHES_IN_FLIGHT) {
+                    this.writeBatch(channel, notifier, pending.pollFirst().join());
                 }
-                previousFuture.join();
             }
+            while (!pending.isEmpty()) {
+                this.writeBatch(channel, notifier, pending.pollFirst().join());
+            }
+        }
+    }
+
+    private CompressedBatch compressBatch(long pos, int from, int to) throws IOException {
+        int rawSize = 0;
+        for (int i = from; i < to; i++) {
+            rawSize += this.blockSizes.getInt(i);
+        }
+
+        ByteBuf readBuffer = UnpooledByteBufAllocator.DEFAULT.ioBuffer(rawSize);
+        ByteBuf writeBuffer = UnpooledByteBufAllocator.DEFAULT.ioBuffer(rawSize);
+        SimpleRecycler<ByteBuf> recycler = IO_BUFFER_RECYCLER.get();
+        ByteBuf blockBuffer = recycler.get();
+        try {
+            readFully(this.rawChannel, pos, readBuffer, rawSize);
+
+            int[] referenceSizes = new int[to - from];
+            int[] storedSizes = new int[to - from];
+            for (int i = from; i < to; i++) {
+                blockBuffer.clear();
+                boolean uncompressed = this.compress(readBuffer.readSlice(this.blockSizes.getInt(i)), blockBuffer);
+                referenceSizes[i - from] = this.toReferenceSize(uncompressed, storedSizes[i - from] = blockBuffer.readableBytes());
+                writeBuffer.writeBytes(blockBuffer);
+            }
+            return new CompressedBatch(writeBuffer, referenceSizes, storedSizes);
+        } catch (Throwable t) {
+            writeBuffer.release();
+            throw t;
+        } finally {
+            recycler.release(blockBuffer);
+            readBuffer.release();
+        }
+    }
+
+    private void writeBatch(@NonNull FileChannel channel, @NonNull ProgressNotifier notifier, @NonNull CompressedBatch batch) throws IOException {
+        SimpleRecycler<ByteBuf> recycler = IO_BUFFER_RECYCLER.get();
+        ByteBuf indexBuffer = recycler.get();
+        try {
+            long pos = channel.position();
+            for (int i = 0, off = 0; i < batch.referenceSizes.length; i++) {
+                indexBuffer.writeIntLE(batch.referenceSizes[i]).writeLongLE(pos + off);
+                off += batch.storedSizes[i];
+            }
+
+            writeFully(channel, batch.data);
+            writeFully(this.indexChannel, indexBuffer);
+        } finally {
+            recycler.release(indexBuffer);
+            batch.data.release();
         }
+        notifier.step(0, batch.referenceSizes.length);
     }
 
     protected boolean compress(ByteBuf readBuffer, ByteBuf writeBuffer) throws IOException {
@@ -138,6 +181,7 @@ abstract class CompressedBlockSequence implements ISquashfsBuilder, Iterable<Dat
 
     protected abstract int toReferenceSize(boolean uncompressed, int compressedSize);
 
+
     public int writtenBlockCount() {
         return this.blockSizes.size();
     }
@@ -177,4 +221,19 @@ abstract class CompressedBlockSequence implements ISquashfsBuilder, Iterable<Dat
 
         Files.delete(this.root);
     }
+
+    /**
+     * A batch of blocks which have been compressed, but not yet written.
+     *
+     * @author DaPorkchop_
+     */
+    @RequiredArgsConstructor
+    private static final class CompressedBatch {
+        @NonNull
+        protected final ByteBuf data;
+        @NonNull
+        protected final int[] referenceSizes;
+        @NonNull
+        protected final int[] storedSizes;
+    }
 }
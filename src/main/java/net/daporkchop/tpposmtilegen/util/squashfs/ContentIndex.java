@@ -0,0 +1,218 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.util.squashfs;
+
+import io.netty.buffer.ByteBuf;
+import lombok.Getter;
+import lombok.NonNull;
+import net.daporkchop.lib.unsafe.PUnsafe;
+
+/**
+ * An off-heap hash table which maps the 128-bit hash and size of a file's contents to the location where those contents were already written, allowing files
+ * with identical contents to share their data blocks and fragments.
+ * <p>
+ * Not thread-safe.
+ *
+ * @author DaPorkchop_
+ */
+final class ContentIndex implements AutoCloseable {
+    private static final long C1 = 0x87C37B91114253D5L;
+    private static final long C2 = 0x4CF5AD432745937FL;
+
+    //struct Entry {
+    //  long hash0;
+    //  long hash1;
+    //  long sizePlusOne; //0 if the slot is empty
+    //  long blockReferenceIndex;
+    //  int fragmentIndex;
+    //  int fragmentOffset;
+    //};
+    private static final long ENTRY_BYTES = 40L;
+
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    private static long fmix(long k) {
+        k ^= k >>> 33L;
+        k *= 0xFF51AFD7ED558CCDL;
+        k ^= k >>> 33L;
+        k *= 0xC4CEB9FE1A85EC53L;
+        k ^= k >>> 33L;
+        return k;
+    }
+
+    private long table;
+    private long mask;
+    private long size;
+
+    //the result of the last call to lookup()
+    private long hash0;
+    private long hash1;
+    private long lookupSize;
+    private long lookupSlot;
+
+    @Getter
+    private long duplicateFiles;
+    @Getter
+    private long duplicateBytes;
+
+    public ContentIndex() {
+        this.allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(long capacity) {
+        this.table = PUnsafe.allocateMemory(capacity * ENTRY_BYTES);
+        PUnsafe.setMemory(this.table, capacity * ENTRY_BYTES, (byte) 0);
+        this.mask = capacity - 1L;
+    }
+
+    /**
+     * Looks up the given file contents.
+     * <p>
+     * If no entry was found, the contents' location may be added by calling {@link #insert(long, int, int)} before the next lookup.
+     *
+     * @param contents the file contents. Its indices will not be modified
+     * @return whether or not a file with identical contents has already been added. If {@code true}, its location may be obtained using
+     *         {@link #blockReferenceIndex()}, {@link #fragmentIndex()} and {@link #fragmentOffset()}
+     */
+    public boolean lookup(@NonNull ByteBuf contents) {
+        this.hash(contents);
+        this.lookupSize = contents.readableBytes();
+
+        for (long slot = this.hash0 & this.mask; ; slot = (slot + 1L) & this.mask) {
+            long addr = this.table + slot * ENTRY_BYTES;
+            long sizePlusOne = PUnsafe.getLong(addr + 16L);
+            if (sizePlusOne == 0L) { //empty slot, the contents aren't present
+                this.lookupSlot = slot;
+                return false;
+            } else if (sizePlusOne - 1L == this.lookupSize && PUnsafe.getLong(addr) == this.hash0 && PUnsafe.getLong(addr + 8L) == this.hash1) {
+                this.lookupSlot = slot;
+                this.duplicateFiles++;
+                this.duplicateBytes += this.lookupSize;
+                return true;
+            }
+        }
+    }
+
+    public long blockReferenceIndex() {
+        return PUnsafe.getLong(this.table + this.lookupSlot * ENTRY_BYTES + 24L);
+    }
+
+    public int fragmentIndex() {
+        return PUnsafe.getInt(this.table + this.lookupSlot * ENTRY_BYTES + 32L);
+    }
+
+    public int fragmentOffset() {
+        return PUnsafe.getInt(this.table + this.lookupSlot * ENTRY_BYTES + 36L);
+    }
+
+    /**
+     * Adds the location of the contents passed to the last (unsuccessful) call to {@link #lookup(ByteBuf)}.
+     */
+    public void insert(long blockReferenceIndex, int fragmentIndex, int fragmentOffset) {
+        long addr = this.table + this.lookupSlot * ENTRY_BYTES;
+        PUnsafe.putLong(addr, this.hash0);
+        PUnsafe.putLong(addr + 8L, this.hash1);
+        PUnsafe.putLong(addr + 16L, this.lookupSize + 1L);
+        PUnsafe.putLong(addr + 24L, blockReferenceIndex);
+        PUnsafe.putInt(addr + 32L, fragmentIndex);
+        PUnsafe.putInt(addr + 36L, fragmentOffset);
+
+        if (++this.size > (this.mask + 1L) >> 1L) { //keep the load factor below 0.5
+            this.grow();
+        }
+    }
+
+    private void grow() {
+        long oldTable = this.table;
+        long oldCapacity = this.mask + 1L;
+        this.allocate(oldCapacity << 1L);
+
+        for (long oldAddr = oldTable, end = oldTable + oldCapacity * ENTRY_BYTES; oldAddr < end; oldAddr += ENTRY_BYTES) {
+            if (PUnsafe.getLong(oldAddr + 16L) != 0L) {
+                long slot = PUnsafe.getLong(oldAddr) & this.mask;
+                while (PUnsafe.getLong(this.table + slot * ENTRY_BYTES + 16L) != 0L) {
+                    slot = (slot + 1L) & this.mask;
+                }
+                PUnsafe.copyMemory(oldAddr, this.table + slot * ENTRY_BYTES, ENTRY_BYTES);
+            }
+        }
+        PUnsafe.freeMemory(oldTable);
+    }
+
+    /**
+     * Computes the 128-bit MurmurHash3 (x64 variant) of the given buffer's readable bytes.
+     */
+    private void hash(ByteBuf buf) {
+        int index = buf.readerIndex();
+        int length = buf.readableBytes();
+        int end = index + (length & ~15);
+
+        long h1 = 0L;
+        long h2 = 0L;
+        for (; index < end; index += 16) {
+            long k1 = buf.getLongLE(index);
+            long k2 = buf.getLongLE(index + 8);
+
+            h1 ^= Long.rotateLeft(k1 * C1, 31) * C2;
+            h1 = (Long.rotateLeft(h1, 27) + h2) * 5L + 0x52DCE729L;
+
+            h2 ^= Long.rotateLeft(k2 * C2, 33) * C1;
+            h2 = (Long.rotateLeft(h2, 31) + h1) * 5L + 0x38495AB5L;
+        }
+
+        int tail = length & 15;
+        if (tail != 0) {
+            long k1 = 0L;
+            long k2 = 0L;
+            for (int i = 0; i < tail; i++) {
+                long b = buf.getByte(index + i) & 0xFFL;
+                if (i < 8) {
+                    k1 |= b << (i << 3);
+                } else {
+                    k2 |= b << ((i - 8) << 3);
+                }
+            }
+
+            if (tail > 8) {
+                h2 ^= Long.rotateLeft(k2 * C2, 33) * C1;
+            }
+            h1 ^= Long.rotateLeft(k1 * C1, 31) * C2;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        this.hash0 = h1;
+        this.hash1 = h2;
+    }
+
+    @Override
+    public void close() {
+        PUnsafe.freeMemory(this.table);
+    }
+}
@@ -37,6 +37,7 @@ import java.nio.file.StandardOpenOption;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.lang.Math.*;
 import static net.daporkchop.lib.common.util.PValidation.*;
@@ -58,10 +59,19 @@ final class DatablockBuilder implements ISquashfsBuilder {
 
     protected long writtenBlocks = 0L;
 
+    /**
+     * The position in the output file at which the next compressed block will be written.
+     * <p>
+     * Space for each batch of blocks is reserved by atomically advancing this, after which the blocks are written using a positional write. This allows any
+     * number of compression workers to write their output concurrently, without having to synchronize on the output channel's position.
+     */
+    protected final AtomicLong outputPosition;
+
     public DatablockBuilder(@NonNull Path root, @NonNull SquashfsBuilder parent) throws IOException {
         this.parent = parent;
 
         this.root = Files.createDirectories(root);
+        this.outputPosition = new AtomicLong(parent.channel.position());
 
         this.indexFile = this.root.resolve("index");
         this.indexChannel = FileChannel.open(this.indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
@@ -74,6 +84,7 @@ final class DatablockBuilder implements ISquashfsBuilder {
         long blockIndex = this.writtenBlocks;
         this.writtenBlocks += blocks;
 
+        //the caller may reuse the buffer as soon as we return, so the data needs to be copied
         ByteBuf slice = buffer.readSlice(min(buffer.readableBytes(), blocks * blockSize)).copy();
 
         this.lock.acquireUninterruptibly();
@@ -87,16 +98,14 @@ final class DatablockBuilder implements ISquashfsBuilder {
                             .writeLongLE(-1L);
                 }
 
-                synchronized (this.parent.channel) {
-                    long pos = this.parent.channel.position();
-                    for (int i = 0, off = 0; i < blocks; i++) {
-                        indexBuffer.setLongLE(i * 12 + 4, pos + off);
-                        off += indexBuffer.getIntLE(i * 12) & ~DATA_BLOCK_UNCOMPRESSED_FLAG;
-                    }
-
-                    writeFully(this.parent.channel, compressedBuffer);
-                    writeFully(this.indexChannel, blockIndex * 12L, indexBuffer);
+                long pos = this.outputPosition.getAndAdd(compressedBuffer.readableBytes());
+                for (int i = 0, off = 0; i < blocks; i++) {
+                    indexBuffer.setLongLE(i * 12 + 4, pos + off);
+                    off += indexBuffer.getIntLE(i * 12) & ~DATA_BLOCK_UNCOMPRESSED_FLAG;
                 }
+
+                writeFully(this.parent.channel, pos, compressedBuffer);
+                writeFully(this.indexChannel, blockIndex * 12L, indexBuffer);
             } finally {
                 this.lock.release();
                 recycler.release(indexBuffer);
@@ -111,6 +120,35 @@ final class DatablockBuilder implements ISquashfsBuilder {
         return blockIndex;
     }
 
+    /**
+     * Writes blocks which have already been compressed, e.g. because they were copied from another image.
+     *
+     * @param compressed the compressed contents of all the blocks
+     * @param sizes      the size of each block, including the {@link SquashfsConstants#DATA_BLOCK_UNCOMPRESSED_FLAG uncompressed flag}
+     * @return the index of the first block
+     */
+    public long copyBlocks(@NonNull ByteBuf compressed, @NonNull int[] sizes) throws IOException {
+        long blockIndex = this.writtenBlocks;
+        this.writtenBlocks += positive(sizes.length, "blocks");
+
+        SimpleRecycler<ByteBuf> recycler = IO_BUFFER_RECYCLER.get();
+        ByteBuf indexBuffer = recycler.get();
+        try {
+            long pos = this.outputPosition.getAndAdd(compressed.readableBytes());
+            for (int i = 0, off = 0; i < sizes.length; i++) {
+                indexBuffer.writeIntLE(sizes[i]).writeLongLE(pos + off);
+                off += sizes[i] & ~DATA_BLOCK_UNCOMPRESSED_FLAG;
+                checkArg(off <= compressed.readableBytes(), "block sizes don't match the compressed data");
+            }
+
+            writeFully(this.parent.channel, pos, compressed);
+            writeFully(this.indexChannel, blockIndex * 12L, indexBuffer);
+        } finally {
+            recycler.release(indexBuffer);
+        }
+        return blockIndex;
+    }
+
     protected int compress(ByteBuf readBuffer, ByteBuf writeBuffer) throws IOException {
         int count = readBuffer.readableBytes();
         int oldWriteIndex = writeBuffer.writerIndex();
@@ -135,12 +173,22 @@ final class DatablockBuilder implements ISquashfsBuilder {
         }
     }
 
-    @Override
-    public void finish(@NonNull FileChannel channel, @NonNull Superblock superblock) throws IOException {
+    /**
+     * Waits until all blocks which have been submitted so far have been written.
+     */
+    public void awaitWrites() {
         this.lock.acquireUninterruptibly(PorkUtil.CPU_COUNT);
         this.lock.release(PorkUtil.CPU_COUNT);
     }
 
+    @Override
+    public void finish(@NonNull FileChannel channel, @NonNull Superblock superblock) throws IOException {
+        this.awaitWrites();
+
+        //all blocks have been written, everything else is appended after them
+        this.parent.channel.position(this.outputPosition.get());
+    }
+
     @Override
     public void transferTo(@NonNull FileChannel channel, @NonNull Superblock superblock) throws IOException {
     }
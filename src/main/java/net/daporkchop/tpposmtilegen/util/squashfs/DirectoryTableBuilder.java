@@ -98,6 +98,13 @@ final class DirectoryTableBuilder implements ISquashfsBuilder {
     public void addFile(@NonNull String name, @NonNull ByteBuf contents) throws IOException {
         int fullFileSize = contents.readableBytes();
 
+        ContentIndex contentIndex = this.parent.contentIndex;
+        if (contentIndex.lookup(contents)) { //a file with identical contents has already been written, point this one at the same data
+            this.stack.getFirst().appendFile(name, fullFileSize, contentIndex.fragmentIndex(), contentIndex.fragmentOffset(), contentIndex.blockReferenceIndex());
+            contents.skipBytes(fullFileSize);
+            return;
+        }
+
         long blockReferenceIndex = -1L;
         int blocks = fullFileSize >> this.parent.blockLog;
         if (blocks > 0) {
@@ -112,9 +119,14 @@ final class DirectoryTableBuilder implements ISquashfsBuilder {
             fragmentOffset = fragmentEntry.block_offset;
         }
 
+        contentIndex.insert(blockReferenceIndex, fragmentIndex, fragmentOffset);
         this.stack.getFirst().appendFile(name, fullFileSize, fragmentIndex, fragmentOffset, blockReferenceIndex);
     }
 
+    public void addCopiedFile(@NonNull String name, long fileSize, int fragmentIndex, int fragmentOffset, long blockReferenceIndex) {
+        this.stack.getFirst().appendFile(name, fileSize, fragmentIndex, fragmentOffset, blockReferenceIndex);
+    }
+
     @Override
     public void finish(@NonNull FileChannel channel, @NonNull Superblock superblock) throws IOException {
         while (this.stack.size() > 1) {
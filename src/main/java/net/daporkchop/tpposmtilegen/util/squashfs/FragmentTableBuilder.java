@@ -45,6 +45,7 @@ final class FragmentTableBuilder extends MultilevelSquashfsBuilder {
     protected final FileChannel indexChannel;
 
     protected int blockIdAllocator = 0;
+    protected int openBlockId = -1;
 
     public FragmentTableBuilder(@NonNull Compression compression, @NonNull Path root, @NonNull SquashfsBuilder parent) throws IOException {
         super(compression, root, parent);
@@ -66,25 +67,45 @@ final class FragmentTableBuilder extends MultilevelSquashfsBuilder {
             this.flush(false);
         }
 
-        FragmentBlockEntry entry = new FragmentBlockEntry(this.blockIdAllocator, this.dataBuffer.readableBytes());
+        if (this.openBlockId < 0) {
+            this.openBlockId = this.blockIdAllocator++;
+        }
+
+        FragmentBlockEntry entry = new FragmentBlockEntry(this.openBlockId, this.dataBuffer.readableBytes());
         this.dataBuffer.writeBytes(data);
         return entry;
     }
 
+    /**
+     * Adds a fragment block which has already been compressed, e.g. because it was copied from another image.
+     * <p>
+     * The fragment block which is currently being filled is unaffected.
+     *
+     * @param compressed the block's compressed contents
+     * @param size       the block's size, including the {@link SquashfsConstants#DATA_BLOCK_UNCOMPRESSED_FLAG uncompressed flag}
+     * @return the index of the new fragment block
+     */
+    public int copyFragmentBlock(@NonNull ByteBuf compressed, int size) throws IOException {
+        int blockId = this.blockIdAllocator++;
+        this.writeIndex(blockId, this.parent.blockTable.copyBlocks(compressed, new int[]{ size }));
+        return blockId;
+    }
+
     private void flush(boolean sync) throws IOException {
-        long id = this.parent.blockTable.writeBlocks(this.dataBuffer, 1, sync);
+        this.writeIndex(this.openBlockId, this.parent.blockTable.writeBlocks(this.dataBuffer, 1, sync));
         this.dataBuffer.clear();
+        this.openBlockId = -1;
+    }
 
+    private void writeIndex(int blockId, long blockReferenceIndex) throws IOException {
         SimpleRecycler<ByteBuf> recycler = IO_BUFFER_RECYCLER.get();
         ByteBuf dst = recycler.get();
         try {
-            dst.writeLongLE(id);
-            writeFully(this.indexChannel, dst);
+            dst.writeLongLE(blockReferenceIndex);
+            writeFully(this.indexChannel, blockId * 8L, dst);
         } finally {
             recycler.release(dst);
         }
-
-        this.blockIdAllocator++;
     }
 
     @Override
@@ -94,6 +115,9 @@ final class FragmentTableBuilder extends MultilevelSquashfsBuilder {
         }
         this.dataBuffer.release();
 
+        //the references to the fragment blocks are only known once they've all been written
+        this.parent.blockTable.awaitWrites();
+
         SimpleRecycler<ByteBuf> recycler = IO_BUFFER_RECYCLER.get();
         ByteBuf dst = recycler.get();
         try {
@@ -22,6 +22,8 @@ package net.daporkchop.tpposmtilegen.util.squashfs;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
 import lombok.NonNull;
 import net.daporkchop.tpposmtilegen.util.SimpleRecycler;
 import net.daporkchop.tpposmtilegen.util.squashfs.compression.Compression;
@@ -31,10 +33,12 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
 import static java.lang.Math.*;
 import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.lib.logging.Logging.*;
 import static net.daporkchop.tpposmtilegen.util.Utils.*;
 import static net.daporkchop.tpposmtilegen.util.squashfs.SquashfsConstants.*;
 
@@ -46,7 +50,20 @@ import static net.daporkchop.tpposmtilegen.util.squashfs.SquashfsConstants.*;
  * @author DaPorkchop_
  */
 public final class SquashfsBuilder implements AutoCloseable {
+    /**
+     * Gets the path of the file which the compression dictionary for the given image is stored in, if any.
+     * <p>
+     * Images which depend on such a dictionary are written with {@link SquashfsConstants#COMPRESSION_ID_ZSTD_DICTIONARY} rather than the standard zstd ID, so
+     * that standard squashfs implementations reject them cleanly.
+     *
+     * @param image the path to the image
+     */
+    public static Path dictionaryPath(@NonNull Path image) {
+        return image.resolveSibling(image.getFileName().toString() + ".zdict");
+    }
+
     protected final Path root;
+    protected final Path dst;
 
     protected final Compression compression;
 
@@ -57,10 +74,16 @@ public final class SquashfsBuilder implements AutoCloseable {
     protected final DatablockBuilder blockTable;
     protected final FragmentTableBuilder fragmentTable;
 
+    protected final ContentIndex contentIndex = new ContentIndex();
+
     protected final int blockLog;
 
     protected Path lastPath;
 
+    protected SquashfsReader copySource;
+    protected final Int2IntMap copiedFragments = new Int2IntOpenHashMap();
+    protected long copiedFiles;
+
     public SquashfsBuilder(@NonNull Compression compression, @NonNull Path workingDirectory, @NonNull Path dst, int blockLog) throws IOException {
         checkArg(!Files.exists(workingDirectory), "working directory already exists: %s", workingDirectory);
 
@@ -68,6 +91,7 @@ public final class SquashfsBuilder implements AutoCloseable {
         writeFully(this.channel, Unpooled.wrappedBuffer(new byte[SUPERBLOCK_BYTES])); //write blank superblock
 
         this.root = Files.createDirectories(workingDirectory);
+        this.dst = dst;
         this.compression = compression;
 
         this.blockLog = blockLog;
@@ -78,9 +102,85 @@ public final class SquashfsBuilder implements AutoCloseable {
         this.fragmentTable = new FragmentTableBuilder(compression, this.root.resolve("fragment"), this);
 
         this.idTable.putId(tochar(1000));
+        this.copiedFragments.defaultReturnValue(-1);
     }
 
     public void putFile(@NonNull Path path, @NonNull ByteBuf contents) throws IOException {
+        this.enterParentDirectory(path);
+
+        this.directoryTable.addFile(path.getFileName().toString(), contents);
+        this.lastPath = path;
+    }
+
+    /**
+     * Adds a file whose data is copied verbatim from a previous image, without being recompressed.
+     * <p>
+     * Fragment blocks are copied in their entirety the first time any file which uses them is copied, and are shared by all files copied from them
+     * afterwards. Copied files take part in content deduplication just like files added with {@link #putFile(Path, ByteBuf)}: their contents are
+     * decompressed to be hashed, and if identical contents have already been added to this image, the file simply points at the existing data instead of
+     * being copied again. The previous image must use the same compression and block size as this one, and all files copied into this image must come from
+     * the same previous image.
+     *
+     * @param path         the path to store the file at in this image
+     * @param previous     the previous image
+     * @param previousPath the path of the file in the previous image
+     * @return whether or not the file was copied. If {@code false}, the file doesn't exist in the previous image and nothing was added
+     */
+    public boolean copyFile(@NonNull Path path, @NonNull SquashfsReader previous, @NonNull String previousPath) throws IOException {
+        if (this.copySource == null) {
+            checkArg(previous.compression().id() == this.compression.id(), "previous image uses different compression");
+            checkArg(Objects.equals(previous.compression().dictionary(), this.compression.dictionary()), "previous image uses a different dictionary");
+            checkArg(previous.blockLog() == this.blockLog, "previous image uses a different block size");
+            this.copySource = previous;
+        } else {
+            checkArg(this.copySource == previous, "files may only be copied from a single image");
+        }
+
+        SquashfsReader.FileInode inode = previous.fileInode(previousPath);
+        if (inode == null) {
+            return false;
+        }
+
+        this.enterParentDirectory(path);
+
+        //the contents only need to be hashed, so we don't retain them
+        ByteBuf contents = previous.readFile(inode);
+        boolean duplicate;
+        try {
+            duplicate = this.contentIndex.lookup(contents);
+        } finally {
+            contents.release();
+        }
+        if (duplicate) { //a file with identical contents has already been added to this image, point this one at the same data
+            this.directoryTable.addCopiedFile(path.getFileName().toString(), inode.fileSize,
+                    this.contentIndex.fragmentIndex(), this.contentIndex.fragmentOffset(), this.contentIndex.blockReferenceIndex());
+            this.lastPath = path;
+            return true;
+        }
+
+        long blockReferenceIndex = -1L;
+        if (inode.blockSizes.length > 0) {
+            blockReferenceIndex = this.blockTable.copyBlocks(previous.rawDataBlocks(inode), inode.blockSizes);
+        }
+
+        int fragmentIndex = -1;
+        if (inode.fragmentIndex >= 0) {
+            fragmentIndex = this.copiedFragments.get(inode.fragmentIndex);
+            if (fragmentIndex < 0) {
+                fragmentIndex = this.fragmentTable.copyFragmentBlock(previous.rawFragmentBlock(inode.fragmentIndex), previous.fragmentBlockSize(inode.fragmentIndex));
+                this.copiedFragments.put(inode.fragmentIndex, fragmentIndex);
+            }
+        }
+
+        int fragmentOffset = fragmentIndex >= 0 ? inode.fragmentOffset : 0;
+        this.contentIndex.insert(blockReferenceIndex, fragmentIndex, fragmentOffset);
+        this.directoryTable.addCopiedFile(path.getFileName().toString(), inode.fileSize, fragmentIndex, fragmentOffset, blockReferenceIndex);
+        this.lastPath = path;
+        this.copiedFiles++;
+        return true;
+    }
+
+    private void enterParentDirectory(@NonNull Path path) throws IOException {
         int newCount = path.getNameCount();
 
         int highestCommonIndex = -1;
@@ -100,9 +200,6 @@ public final class SquashfsBuilder implements AutoCloseable {
         for (int i = highestCommonIndex + 1; i < newCount - 1; i++) {
             this.directoryTable.startDirectory(path.getName(i).toString());
         }
-
-        this.directoryTable.addFile(path.getFileName().toString(), contents);
-        this.lastPath = path;
     }
 
     @Override
@@ -112,7 +209,7 @@ public final class SquashfsBuilder implements AutoCloseable {
                     .modification_time(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()))
                     .block_log(this.blockLog)
                     .block_size(1L << this.blockLog)
-                    .flags(NO_XATTRS)
+                    .flags(NO_XATTRS | DUPLICATES)
                     .compression_id(this.compression.id());
 
             this.fragmentTable.finish(this.channel, superblock);
@@ -127,6 +224,20 @@ public final class SquashfsBuilder implements AutoCloseable {
             this.idTable.transferTo(this.channel, superblock); //apparently the id table needs to be at the end
 
             superblock.bytes_used(this.channel.position());
+
+            logger.info("Deduplicated %d files, saved %s", this.contentIndex.duplicateFiles(), formatSize(this.contentIndex.duplicateBytes()));
+            if (this.copySource != null) {
+                logger.info("Copied %d files and %d fragment blocks from the previous image", this.copiedFiles, this.copiedFragments.size());
+            }
+
+            ByteBuf dictionary = this.compression.dictionary();
+            if (dictionary != null) { //the image can't be decompressed without the dictionary, so store it next to the image
+                try (FileChannel dictionaryChannel = FileChannel.open(dictionaryPath(this.dst), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    writeFully(dictionaryChannel, dictionary.slice());
+                }
+            } else { //don't leave behind a dictionary from a previous build of the same image
+                Files.deleteIfExists(dictionaryPath(this.dst));
+            }
             this.channel.position(0L);
 
             SimpleRecycler<ByteBuf> recycler = IO_BUFFER_RECYCLER.get();
@@ -143,6 +254,7 @@ public final class SquashfsBuilder implements AutoCloseable {
             this.directoryTable.close();
             this.blockTable.close();
             this.fragmentTable.close();
+            this.contentIndex.close();
 
             Files.delete(this.root);
         }
@@ -46,6 +46,13 @@ public class SquashfsConstants {
     public final int COMPRESSION_ID_XZ = 4;
     public final int COMPRESSION_ID_LZ4 = 5;
     public final int COMPRESSION_ID_ZSTD = 6;
+    /**
+     * Non-standard compression ID for zstd compression with an external dictionary.
+     * <p>
+     * Such images can't be decompressed without the dictionary, so they're deliberately marked with an ID which no standard squashfs implementation knows about.
+     * This way the kernel and squashfs-tools refuse to open them up front, rather than accepting them and failing on the first block read.
+     */
+    public final int COMPRESSION_ID_ZSTD_DICTIONARY = 0x8000 | COMPRESSION_ID_ZSTD;
 
     public final int UNCOMPRESSED_INODES = 0x0001;
     public final int UNCOMPRESSED_DATA = 0x0002;
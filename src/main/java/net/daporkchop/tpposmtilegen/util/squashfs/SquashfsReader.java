@@ -0,0 +1,663 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.util.squashfs;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import net.daporkchop.tpposmtilegen.natives.Memory;
+import net.daporkchop.tpposmtilegen.util.SimpleRecycler;
+import net.daporkchop.tpposmtilegen.util.mmap.MemoryMap;
+import net.daporkchop.tpposmtilegen.util.squashfs.compression.Compression;
+import net.daporkchop.tpposmtilegen.util.squashfs.compression.GzipCompression;
+import net.daporkchop.tpposmtilegen.util.squashfs.compression.ZstdCompression;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.tpposmtilegen.util.Utils.*;
+import static net.daporkchop.tpposmtilegen.util.squashfs.SquashfsConstants.*;
+
+/**
+ * Read-only access to a squashfs image, backed by a memory mapping of the entire file.
+ * <p>
+ * The directory table is walked once when the image is opened, and every regular file is indexed by a 64-bit hash of its path. The index doesn't contain any
+ * names: instead, each file remembers where its name is stored in the directory table and which directory it's in, so every hit is verified against the
+ * actual path before being returned. Paths whose hashes collide are simply chained together. Data which is stored uncompressed is served straight out of the
+ * mapping, while compressed blocks are decompressed into a size-bounded LRU cache shared by all readers.
+ * <p>
+ * Thread-safe.
+ *
+ * @author DaPorkchop_
+ */
+public final class SquashfsReader implements AutoCloseable {
+    public static final long DEFAULT_CACHE_SIZE = Long.parseUnsignedLong(System.getProperty("squashfsBlockCacheSize", String.valueOf(64L << 20L)));
+
+    private static final int FRAGMENT_ENTRY_BYTES = 16;
+    private static final int FRAGMENT_ENTRIES_PER_METABLOCK = METABLOCK_MAX_SIZE / FRAGMENT_ENTRY_BYTES;
+
+    private static final long PATH_HASH_SEED = 0xCBF29CE484222325L;
+    private static final long PATH_HASH_PRIME = 0x100000001B3L;
+
+    static Compression compressionForId(int id, ByteBuf dictionary) {
+        switch (id) {
+            case COMPRESSION_ID_GZIP:
+                checkArg(dictionary == null, "gzip compression doesn't support dictionaries");
+                return new GzipCompression();
+            case COMPRESSION_ID_ZSTD:
+                return new ZstdCompression();
+            case COMPRESSION_ID_ZSTD_DICTIONARY:
+                checkArg(dictionary != null, "image is compressed using a zstd dictionary, but the dictionary file is missing");
+                return new ZstdCompression(dictionary);
+            default:
+                throw new IllegalArgumentException("unsupported compression id: " + id);
+        }
+    }
+
+    private static long hashPathStep(long state, byte b) {
+        return (state ^ (b & 0xFF)) * PATH_HASH_PRIME;
+    }
+
+    private static long hashPath(byte[] path) {
+        long state = PATH_HASH_SEED;
+        for (byte b : path) {
+            state = hashPathStep(state, b);
+        }
+        return HashCommon.mix(state);
+    }
+
+    private final FileChannel channel;
+    private final MemoryMap map;
+
+    @Getter
+    private final Superblock superblock;
+    private final Compression compression;
+    private final int blockSize;
+
+    private final long[] fragmentStarts;
+    private final int[] fragmentSizes;
+
+    //path hash -> index of the first file with that hash
+    private final Long2IntOpenHashMap pathIndex = new Long2IntOpenHashMap();
+    //per-file data, indexed by file index
+    private final LongArrayList fileInodes = new LongArrayList();
+    private final LongArrayList fileNames = new LongArrayList(); //location of the file's name in the directory table, see #nameReference
+    private final IntArrayList fileParents = new IntArrayList(); //directory index of the file's parent directory
+    private final IntArrayList fileNextInChain = new IntArrayList(); //index of the next file with the same path hash, or -1
+    //per-directory data, indexed by directory index. the root directory has index 0
+    private final List<byte[]> directoryNames = new ArrayList<>();
+    private final IntArrayList directoryParents = new IntArrayList();
+
+    private final Long2ObjectLinkedOpenHashMap<byte[]> cache = new Long2ObjectLinkedOpenHashMap<>();
+    private final long maxCacheSize;
+    private long cacheSize;
+
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    public SquashfsReader(@NonNull Path file, long maxCacheSize) throws IOException {
+        this.maxCacheSize = notNegative(maxCacheSize, "maxCacheSize");
+
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            checkArg(this.channel.size() >= SUPERBLOCK_BYTES, "not a squashfs image (file too small): %s", file);
+            this.map = new MemoryMap(this.channel, FileChannel.MapMode.READ_ONLY, 0L, this.channel.size());
+
+            //accesses while serving are essentially random, readahead would only pollute the page cache
+            Memory.madvise(this.map.addr(), this.map.size(), Memory.Usage.MADV_RANDOM);
+
+            this.superblock = Superblock.read(this.mapped(0L, SUPERBLOCK_BYTES));
+            checkArg(this.superblock.bytes_used() <= this.map.size(), "squashfs image is truncated: %s", file);
+
+            //the dictionary file is only consulted if the image says it needs one, a leftover file next to an ordinary image is simply ignored
+            Path dictionaryFile = SquashfsBuilder.dictionaryPath(file);
+            this.compression = compressionForId(this.superblock.compression_id(),
+                    this.superblock.compression_id() == COMPRESSION_ID_ZSTD_DICTIONARY && Files.exists(dictionaryFile)
+                            ? Unpooled.wrappedBuffer(Files.readAllBytes(dictionaryFile)) : null);
+            this.blockSize = toInt(this.superblock.block_size(), "block_size");
+
+            int fragmentCount = toInt(this.superblock.fragment_entry_count(), "fragment_entry_count");
+            this.fragmentStarts = new long[fragmentCount];
+            this.fragmentSizes = new int[fragmentCount];
+            this.readFragmentTable();
+
+            this.pathIndex.defaultReturnValue(-1);
+            this.directoryNames.add(new byte[0]);
+            this.directoryParents.add(-1);
+            this.indexDirectory(this.readDirectoryInode(this.superblock.root_inode()), 0, PATH_HASH_SEED);
+            this.pathIndex.trim();
+            this.fileInodes.trim();
+            this.fileNames.trim();
+            this.fileParents.trim();
+            this.fileNextInChain.trim();
+            this.directoryParents.trim();
+        } catch (Throwable t) {
+            this.channel.close();
+            throw t;
+        }
+    }
+
+    /**
+     * @return the number of regular files in this image
+     */
+    public int fileCount() {
+        return this.fileInodes.size();
+    }
+
+    /**
+     * @return the number of block reads which could be served from the decompressed block cache
+     */
+    public long cacheHits() {
+        return this.cacheHits.sum();
+    }
+
+    /**
+     * @return the number of block reads which required a block to be decompressed
+     */
+    public long cacheMisses() {
+        return this.cacheMisses.sum();
+    }
+
+    /**
+     * Reads the contents of the regular file at the given path.
+     * <p>
+     * The returned buffer may reference the memory mapping directly, and therefore must not be accessed after this reader has been closed.
+     *
+     * @param path the path, relative to the image's root and with components separated by {@code '/'}
+     * @return the file's contents, or {@code null} if no such file exists
+     */
+    public ByteBuf read(@NonNull String path) throws IOException {
+        long inodeReference = this.lookupFile(path);
+        return inodeReference < 0L ? null : this.readFile(this.readFileInode(inodeReference));
+    }
+
+    /**
+     * Lists the paths of all regular files in this image, in the order in which they're stored.
+     * <p>
+     * Unlike the index used by {@link #read(String)}, this walks the whole directory tree again.
+     *
+     * @return the paths, relative to the image's root and with components separated by {@code '/'}
+     */
+    public List<String> listFiles() throws IOException {
+        List<String> paths = new ArrayList<>(this.fileInodes.size());
+        this.listDirectory(this.readDirectoryInode(this.superblock.root_inode()), "", paths);
+        return paths;
+    }
+
+    /**
+     * @return the compression used by this image
+     */
+    public Compression compression() {
+        return this.compression;
+    }
+
+    /**
+     * @return the base 2 logarithm of this image's data block size
+     */
+    public int blockLog() {
+        return toInt(this.superblock.block_log());
+    }
+
+    /**
+     * Gets the inode of the regular file at the given path.
+     *
+     * @return the file's inode, or {@code null} if no such file exists
+     */
+    FileInode fileInode(@NonNull String path) throws IOException {
+        long inodeReference = this.lookupFile(path);
+        return inodeReference < 0L ? null : this.readFileInode(inodeReference);
+    }
+
+    /**
+     * Gets the raw, still compressed contents of all of the given file's data blocks.
+     */
+    ByteBuf rawDataBlocks(@NonNull FileInode inode) {
+        long size = 0L;
+        for (int blockSize : inode.blockSizes) {
+            size += blockSize & (DATA_BLOCK_UNCOMPRESSED_FLAG - 1);
+        }
+        return this.mapped(inode.blocksStart, toInt(size));
+    }
+
+    /**
+     * @return the size of the fragment block with the given index, as stored in the fragment table
+     */
+    int fragmentBlockSize(int fragmentIndex) {
+        checkIndex(this.fragmentSizes.length, fragmentIndex);
+        return this.fragmentSizes[fragmentIndex];
+    }
+
+    /**
+     * Gets the raw, still compressed contents of the fragment block with the given index.
+     */
+    ByteBuf rawFragmentBlock(int fragmentIndex) {
+        return this.mapped(this.fragmentStarts[fragmentIndex], this.fragmentBlockSize(fragmentIndex) & (DATA_BLOCK_UNCOMPRESSED_FLAG - 1));
+    }
+
+    /**
+     * Reads the contents of the regular file with the given inode.
+     * <p>
+     * The returned buffer may reference the memory mapping directly, and therefore must not be accessed after this reader has been closed.
+     */
+    ByteBuf readFile(@NonNull FileInode inode) throws IOException {
+        int remaining = toInt(inode.fileSize, "file_size");
+        if (remaining == 0) {
+            return Unpooled.EMPTY_BUFFER;
+        }
+
+        List<ByteBuf> components = new ArrayList<>(inode.blockSizes.length + 1);
+        long pos = inode.blocksStart;
+        for (int blockSize : inode.blockSizes) {
+            int length = min(remaining, this.blockSize);
+            int storedSize = blockSize & (DATA_BLOCK_UNCOMPRESSED_FLAG - 1);
+            if (storedSize == 0) { //sparse block
+                components.add(Unpooled.wrappedBuffer(new byte[length]));
+            } else {
+                ByteBuf block = this.dataBlock(pos, blockSize);
+                checkState(block.readableBytes() == length, "data block at %d contains %d bytes (expected %d)", pos, block.readableBytes(), length);
+                components.add(block);
+                pos += storedSize;
+            }
+            remaining -= length;
+        }
+
+        if (remaining > 0) { //the file's tail end is stored in a fragment
+            checkState(inode.fragmentIndex >= 0 && inode.fragmentIndex < this.fragmentStarts.length, "invalid fragment index: %d", inode.fragmentIndex);
+            ByteBuf fragmentBlock = this.dataBlock(this.fragmentStarts[inode.fragmentIndex], this.fragmentSizes[inode.fragmentIndex]);
+            checkState(inode.fragmentOffset >= 0 && inode.fragmentOffset + (long) remaining <= fragmentBlock.readableBytes(),
+                    "fragment %d contains %d bytes, but a file needs [%d,%d)", inode.fragmentIndex, fragmentBlock.readableBytes(), inode.fragmentOffset, inode.fragmentOffset + (long) remaining);
+            components.add(fragmentBlock.slice(inode.fragmentOffset, remaining));
+        }
+
+        return components.size() == 1 ? components.get(0) : Unpooled.wrappedBuffer(components.toArray(new ByteBuf[0]));
+    }
+
+    private void readFragmentTable() throws IOException {
+        int count = this.fragmentStarts.length;
+        ByteBuf index = this.mapped(this.superblock.fragment_table_start(), ((count + FRAGMENT_ENTRIES_PER_METABLOCK - 1) / FRAGMENT_ENTRIES_PER_METABLOCK) << 3);
+        for (int i = 0; i < count; i += FRAGMENT_ENTRIES_PER_METABLOCK) {
+            int entries = min(count - i, FRAGMENT_ENTRIES_PER_METABLOCK);
+            ByteBuf block = this.readMetadata(index.readLongLE(), 0, entries * FRAGMENT_ENTRY_BYTES);
+            for (int j = 0; j < entries; j++) {
+                this.fragmentStarts[i + j] = block.readLongLE();
+                this.fragmentSizes[i + j] = block.readIntLE();
+                block.skipBytes(4); //unused
+            }
+        }
+    }
+
+    private void indexDirectory(DirectoryInode inode, int directory, long pathState) throws IOException {
+        //names are referenced by their position in the directory table, so we need to know the position of each metadata block the listing spans. these are
+        // found lazily as we go, which only requires reading the block headers
+        long directoryTableStart = this.superblock.directory_table_start();
+        long[] block = { directoryTableStart + inode.blockIndex };
+        int[] blockNumber = { 0 };
+
+        this.forEachEntry(inode, (name, nameOffset, type, inodeReference) -> {
+            long state = pathState;
+            for (int i = name.readerIndex(); i < name.writerIndex(); i++) {
+                state = hashPathStep(state, name.getByte(i));
+            }
+
+            switch (type) {
+                case INODE_BASIC_DIRECTORY:
+                case INODE_EXTENDED_DIRECTORY: {
+                    byte[] nameBytes = new byte[name.readableBytes()];
+                    name.getBytes(name.readerIndex(), nameBytes);
+                    int child = this.directoryNames.size();
+                    this.directoryNames.add(nameBytes);
+                    this.directoryParents.add(directory);
+                    this.indexDirectory(this.readDirectoryInode(inodeReference), child, hashPathStep(state, (byte) '/'));
+                    break;
+                }
+                case INODE_BASIC_FILE:
+                case INODE_EXTENDED_FILE: {
+                    int offset = inode.blockOffset + nameOffset;
+                    for (; blockNumber[0] < offset / METABLOCK_MAX_SIZE; blockNumber[0]++) {
+                        block[0] += 2L + (this.mapped(block[0], 2).readUnsignedShortLE() & METABLOCK_HEADER_DATA_SIZE_MASK);
+                    }
+
+                    int file = this.fileInodes.size();
+                    this.fileInodes.add(inodeReference);
+                    this.fileNames.add(nameReference(block[0] - directoryTableStart, offset % METABLOCK_MAX_SIZE, name.readableBytes()));
+                    this.fileParents.add(directory);
+                    this.fileNextInChain.add(this.pathIndex.put(HashCommon.mix(state), file));
+                    break;
+                }
+                default: //symlinks, devices etc. can't be served, so there's no point in indexing them
+            }
+        });
+    }
+
+    /**
+     * Packs the location of a name in the directory table into a single {@code long}.
+     *
+     * @param block      the position of the metadata block the name starts in, relative to the start of the directory table
+     * @param offset     the offset of the name in the decompressed metadata block
+     * @param nameLength the length of the name, in bytes
+     */
+    private static long nameReference(long block, int offset, int nameLength) {
+        checkState(block >= 0L && block < (1L << 40L), "directory table is too large");
+        return (block << 24L) | ((long) offset << 8L) | (nameLength - 1);
+    }
+
+    /**
+     * Resolves the given path using the index.
+     *
+     * @return the inode reference of the regular file at the given path, or {@code -1L} if no such file exists
+     */
+    private long lookupFile(String path) throws IOException {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        for (int file = this.pathIndex.get(hashPath(bytes)); file >= 0; file = this.fileNextInChain.getInt(file)) {
+            if (this.pathMatches(file, bytes)) {
+                return this.fileInodes.getLong(file);
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * Checks whether the given file's actual path is equal to the given path.
+     */
+    private boolean pathMatches(int file, byte[] path) throws IOException {
+        long nameReference = this.fileNames.getLong(file);
+        int nameLength = (int) (nameReference & 0xFFL) + 1;
+        int end = path.length;
+        int start = end - nameLength;
+        if (start < 0) {
+            return false;
+        }
+
+        ByteBuf name = this.readMetadata(this.superblock.directory_table_start() + (nameReference >>> 24L), (int) (nameReference >>> 8L) & 0xFFFF, nameLength);
+        for (int i = 0; i < nameLength; i++) {
+            if (name.getByte(name.readerIndex() + i) != path[start + i]) {
+                return false;
+            }
+        }
+
+        //walk up the directory tree, comparing the name of each parent directory with the preceding path component
+        for (int directory = this.fileParents.getInt(file); directory != 0; directory = this.directoryParents.getInt(directory)) {
+            byte[] directoryName = this.directoryNames.get(directory);
+            end = start - 1;
+            start = end - directoryName.length;
+            if (start < 0 || path[end] != '/') {
+                return false;
+            }
+            for (int i = 0; i < directoryName.length; i++) {
+                if (directoryName[i] != path[start + i]) {
+                    return false;
+                }
+            }
+        }
+        return start == 0;
+    }
+
+    private void listDirectory(DirectoryInode inode, String prefix, List<String> paths) throws IOException {
+        this.forEachEntry(inode, (name, nameOffset, type, inodeReference) -> {
+            String path = prefix + name.toString(StandardCharsets.UTF_8);
+            switch (type) {
+                case INODE_BASIC_DIRECTORY:
+                case INODE_EXTENDED_DIRECTORY:
+                    this.listDirectory(this.readDirectoryInode(inodeReference), path + '/', paths);
+                    break;
+                case INODE_BASIC_FILE:
+                case INODE_EXTENDED_FILE:
+                    paths.add(path);
+                    break;
+                default:
+            }
+        });
+    }
+
+    private void forEachEntry(DirectoryInode inode, DirectoryEntryConsumer action) throws IOException {
+        ByteBuf listing = this.readMetadata(this.superblock.directory_table_start() + inode.blockIndex, inode.blockOffset, inode.fileSize);
+        int listingStart = listing.readerIndex();
+
+        //mksquashfs stores directory sizes 3 bytes larger than the actual listing to account for the implicit "." and ".." entries, while SquashfsBuilder doesn't.
+        // no valid header fits into 3 bytes, so we simply stop once there isn't enough data left for another one.
+        while (listing.readableBytes() > 3) {
+            int count = listing.readIntLE() + 1;
+            long start = listing.readUnsignedIntLE();
+            listing.skipBytes(4); //inode_number
+            checkState(count <= DIRECTORY_ENTRY_MAX_COUNT + 1, "directory header has too many entries: %d", count);
+
+            for (int i = 0; i < count; i++) {
+                int offset = listing.readUnsignedShortLE();
+                listing.skipBytes(2); //inode_offset
+                int type = listing.readUnsignedShortLE();
+                int nameSize = listing.readUnsignedShortLE() + 1;
+
+                int nameOffset = listing.readerIndex() - listingStart;
+                action.accept(listing.readSlice(nameSize), nameOffset, type, (start << 16L) | offset);
+            }
+        }
+    }
+
+    private DirectoryInode readDirectoryInode(long inodeReference) throws IOException {
+        long pos = this.superblock.inode_table_start() + (inodeReference >>> 16L);
+        int offset = (int) (inodeReference & 0xFFFFL);
+
+        ByteBuf header = this.readMetadata(pos, offset, 16);
+        int type = header.readUnsignedShortLE();
+        switch (type) {
+            case INODE_BASIC_DIRECTORY: {
+                ByteBuf buf = this.readMetadata(pos, offset, 32).skipBytes(16);
+                long blockIndex = buf.readUnsignedIntLE();
+                buf.skipBytes(4); //hard_link_count
+                int fileSize = buf.readUnsignedShortLE();
+                int blockOffset = buf.readUnsignedShortLE();
+                return new DirectoryInode(blockIndex, blockOffset, fileSize);
+            }
+            case INODE_EXTENDED_DIRECTORY: {
+                ByteBuf buf = this.readMetadata(pos, offset, 40).skipBytes(16);
+                buf.skipBytes(4); //hard_link_count
+                int fileSize = toInt(buf.readUnsignedIntLE(), "file_size");
+                long blockIndex = buf.readUnsignedIntLE();
+                buf.skipBytes(4 + 2); //parent_inode_number, index_count
+                int blockOffset = buf.readUnsignedShortLE();
+                return new DirectoryInode(blockIndex, blockOffset, fileSize);
+            }
+            default:
+                throw new IllegalStateException("not a directory inode: type " + type);
+        }
+    }
+
+    private FileInode readFileInode(long inodeReference) throws IOException {
+        long pos = this.superblock.inode_table_start() + (inodeReference >>> 16L);
+        int offset = (int) (inodeReference & 0xFFFFL);
+
+        ByteBuf header = this.readMetadata(pos, offset, 16);
+        int type = header.readUnsignedShortLE();
+
+        int fixedSize;
+        long blocksStart;
+        int fragmentIndex;
+        int fragmentOffset;
+        long fileSize;
+        switch (type) {
+            case INODE_BASIC_FILE: {
+                ByteBuf buf = this.readMetadata(pos, offset, fixedSize = 32).skipBytes(16);
+                blocksStart = buf.readUnsignedIntLE();
+                fragmentIndex = buf.readIntLE();
+                fragmentOffset = buf.readIntLE();
+                fileSize = buf.readUnsignedIntLE();
+                break;
+            }
+            case INODE_EXTENDED_FILE: {
+                ByteBuf buf = this.readMetadata(pos, offset, fixedSize = 56).skipBytes(16);
+                blocksStart = buf.readLongLE();
+                fileSize = buf.readLongLE();
+                buf.skipBytes(8 + 4); //sparse, hard_link_count
+                fragmentIndex = buf.readIntLE();
+                fragmentOffset = buf.readIntLE();
+                break;
+            }
+            default:
+                throw new IllegalStateException("not a file inode: type " + type);
+        }
+
+        //files without a fragment have their tail end stored in a (partial) block of its own
+        long blockCount = fragmentIndex == -1 ? (fileSize + this.blockSize - 1L) / this.blockSize : fileSize / this.blockSize;
+        int[] blockSizes = new int[toInt(blockCount, "block count")];
+        if (blockSizes.length != 0) {
+            ByteBuf buf = this.readMetadata(pos, offset, fixedSize + (blockSizes.length << 2)).skipBytes(fixedSize);
+            for (int i = 0; i < blockSizes.length; i++) {
+                blockSizes[i] = buf.readIntLE();
+            }
+        }
+        return new FileInode(blocksStart, fileSize, fragmentIndex, fragmentOffset, blockSizes);
+    }
+
+    /**
+     * Reads a sequence of bytes from the metadata block sequence starting at the given position, continuing into the following metadata blocks if necessary.
+     */
+    private ByteBuf readMetadata(long pos, int offset, int length) throws IOException {
+        ByteBuf first = this.metablock(pos);
+        checkState(offset <= first.readableBytes(), "metadata offset %d is out of bounds", offset);
+        if (offset + length <= first.readableBytes()) { //fast path: everything is in a single metadata block
+            return first.slice(first.readerIndex() + offset, length);
+        }
+
+        ByteBuf dst = Unpooled.buffer(length, length);
+        dst.writeBytes(first, first.readerIndex() + offset, first.readableBytes() - offset);
+        while (dst.isWritable()) {
+            pos += 2L + (this.mapped(pos, 2).readUnsignedShortLE() & METABLOCK_HEADER_DATA_SIZE_MASK);
+            ByteBuf block = this.metablock(pos);
+            dst.writeBytes(block, min(block.readableBytes(), dst.writableBytes()));
+        }
+        return dst;
+    }
+
+    private ByteBuf metablock(long pos) throws IOException {
+        int header = this.mapped(pos, 2).readUnsignedShortLE();
+        int storedSize = header & METABLOCK_HEADER_DATA_SIZE_MASK;
+        if ((header & METABLOCK_HEADER_UNCOMPRESSED_FLAG) != 0) {
+            return this.mapped(pos + 2L, storedSize);
+        } else {
+            return Unpooled.wrappedBuffer(this.decompress(pos + 2L, storedSize, METABLOCK_MAX_SIZE));
+        }
+    }
+
+    private ByteBuf dataBlock(long pos, int size) throws IOException {
+        int storedSize = size & (DATA_BLOCK_UNCOMPRESSED_FLAG - 1);
+        if ((size & DATA_BLOCK_UNCOMPRESSED_FLAG) != 0) {
+            return this.mapped(pos, storedSize);
+        } else {
+            return Unpooled.wrappedBuffer(this.decompress(pos, storedSize, this.blockSize));
+        }
+    }
+
+    private byte[] decompress(long pos, int storedSize, int maxSize) throws IOException {
+        synchronized (this.cache) {
+            byte[] cached = this.cache.getAndMoveToFirst(pos);
+            if (cached != null) {
+                this.cacheHits.increment();
+                return cached;
+            }
+        }
+        this.cacheMisses.increment();
+
+        byte[] data;
+        SimpleRecycler<ByteBuf> recycler = IO_BUFFER_RECYCLER.get();
+        ByteBuf buf = recycler.get();
+        try {
+            this.compression.decompress(this.mapped(pos, storedSize), buf);
+            checkState(buf.readableBytes() <= maxSize, "block at %d decompressed to %d bytes (expected at most %d)", pos, buf.readableBytes(), maxSize);
+            buf.readBytes(data = new byte[buf.readableBytes()]);
+        } finally {
+            recycler.release(buf);
+        }
+
+        //another thread may have decompressed the same block concurrently, in which case we simply replace its copy
+        synchronized (this.cache) {
+            byte[] old = this.cache.putAndMoveToFirst(pos, data);
+            if (old != null) {
+                this.cacheSize -= old.length;
+            }
+            this.cacheSize += data.length;
+            while (this.cacheSize > this.maxCacheSize && !this.cache.isEmpty()) {
+                this.cacheSize -= this.cache.removeLast().length;
+            }
+        }
+        return data;
+    }
+
+    private ByteBuf mapped(long pos, int length) {
+        checkArg(pos >= 0L && length >= 0 && pos + length <= this.map.size(), "range [%d,%d) is outside of the image", pos, pos + length);
+        return Unpooled.wrappedBuffer(this.map.addr() + pos, length, false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.map.close();
+        this.channel.close();
+    }
+
+    /**
+     * @author DaPorkchop_
+     */
+    @FunctionalInterface
+    private interface DirectoryEntryConsumer {
+        /**
+         * @param nameOffset the offset of the entry's name relative to the start of the directory's listing
+         */
+        void accept(ByteBuf name, int nameOffset, int type, long inodeReference) throws IOException;
+    }
+
+    /**
+     * @author DaPorkchop_
+     */
+    @RequiredArgsConstructor
+    private static final class DirectoryInode {
+        private final long blockIndex;
+        private final int blockOffset;
+        private final int fileSize;
+    }
+
+    /**
+     * @author DaPorkchop_
+     */
+    @RequiredArgsConstructor
+    static final class FileInode {
+        final long blocksStart;
+        final long fileSize;
+        final int fragmentIndex;
+        final int fragmentOffset;
+        final int[] blockSizes;
+    }
+}
@@ -27,6 +27,7 @@ import lombok.Setter;
 import lombok.ToString;
 import net.daporkchop.tpposmtilegen.util.squashfs.inode.Inode;
 
+import static net.daporkchop.lib.common.util.PValidation.*;
 import static net.daporkchop.lib.logging.Logging.*;
 import static net.daporkchop.tpposmtilegen.util.Utils.*;
 import static net.daporkchop.tpposmtilegen.util.squashfs.SquashfsConstants.*;
@@ -55,6 +56,32 @@ final class Superblock {
     private long fragment_table_start = -1L;
     private long export_table_start = -1L;
 
+    public static Superblock read(@NonNull ByteBuf src) {
+        checkArg(src.readIntLE() == SQUASHFS_MAGIC, "not a squashfs image (invalid magic number)");
+        Superblock superblock = new Superblock()
+                .inode_count(src.readUnsignedIntLE())
+                .modification_time(src.readUnsignedIntLE())
+                .block_size(src.readUnsignedIntLE())
+                .fragment_entry_count(src.readUnsignedIntLE())
+                .compression_id(src.readUnsignedShortLE())
+                .block_log(src.readUnsignedShortLE())
+                .flags(src.readUnsignedShortLE())
+                .id_count(src.readUnsignedShortLE());
+
+        int versionMajor = src.readUnsignedShortLE();
+        int versionMinor = src.readUnsignedShortLE();
+        checkArg(versionMajor == SQUASHFS_VERSION_MAJOR && versionMinor == SQUASHFS_VERSION_MINOR, "unsupported squashfs version: %d.%d", versionMajor, versionMinor);
+
+        return superblock.root_inode(src.readLongLE())
+                .bytes_used(src.readLongLE())
+                .id_table_start(src.readLongLE())
+                .xattr_id_table_start(src.readLongLE())
+                .inode_table_start(src.readLongLE())
+                .directory_table_start(src.readLongLE())
+                .fragment_table_start(src.readLongLE())
+                .export_table_start(src.readLongLE());
+    }
+
     public void write(@NonNull ByteBuf dst) {
         logger.info("inode table: %d\ndirectory table: %d\nfragment table: %d, count: %d\nid table: %d",
                 this.inode_table_start, this.directory_table_start, this.fragment_table_start, this.fragment_entry_count, this.id_table_start);
@@ -38,6 +38,15 @@ public interface Compression {
         return false;
     }
 
+    /**
+     * @return the dictionary used by this compression mode, or {@code null} if none. Images compressed using a dictionary are marked with a non-standard
+     *         {@link #id() compression ID} so that the kernel and squashfs-tools reject them, and may only be read using
+     *         {@link net.daporkchop.tpposmtilegen.util.squashfs.SquashfsReader} with the dictionary stored alongside the image
+     */
+    default ByteBuf dictionary() {
+        return null;
+    }
+
     /**
      * @return the ID of this compression type
      */
@@ -50,4 +59,12 @@ public interface Compression {
      * @param dst the buffer to write compressed data to
      */
     void compress(@NonNull ByteBuf src, @NonNull ByteBuf dst) throws IOException;
+
+    /**
+     * Decompresses the contents of the source buffer into the given destination buffer.
+     *
+     * @param src the compressed data
+     * @param dst the buffer to write decompressed data to
+     */
+    void decompress(@NonNull ByteBuf src, @NonNull ByteBuf dst) throws IOException;
 }
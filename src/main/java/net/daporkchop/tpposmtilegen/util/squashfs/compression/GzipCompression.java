@@ -25,9 +25,11 @@ import lombok.NonNull;
 import net.daporkchop.lib.common.reference.ReferenceStrength;
 import net.daporkchop.lib.common.reference.cache.Cached;
 import net.daporkchop.lib.compression.context.PDeflater;
+import net.daporkchop.lib.compression.context.PInflater;
 import net.daporkchop.lib.compression.zlib.Zlib;
 import net.daporkchop.lib.compression.zlib.ZlibMode;
 import net.daporkchop.lib.compression.zlib.options.ZlibDeflaterOptions;
+import net.daporkchop.lib.compression.zlib.options.ZlibInflaterOptions;
 import net.daporkchop.lib.compression.zstd.Zstd;
 
 import java.io.IOException;
@@ -41,6 +43,10 @@ public final class GzipCompression implements Compression {
     protected final ZlibDeflaterOptions options = Zlib.PROVIDER.deflateOptions().withMode(ZlibMode.GZIP);
     protected final Cached<PDeflater> deflaterCache = Cached.threadLocal(() -> Zlib.PROVIDER.deflater(this.options), ReferenceStrength.SOFT);
 
+    //images built by mksquashfs use zlib framing rather than gzip, so let the inflater figure it out
+    protected final ZlibInflaterOptions inflateOptions = Zlib.PROVIDER.inflateOptions().withMode(ZlibMode.AUTO);
+    protected final Cached<PInflater> inflaterCache = Cached.threadLocal(() -> Zlib.PROVIDER.inflater(this.inflateOptions), ReferenceStrength.SOFT);
+
     @Override
     public int id() {
         return COMPRESSION_ID_GZIP;
@@ -50,4 +56,9 @@ public final class GzipCompression implements Compression {
     public void compress(@NonNull ByteBuf src, @NonNull ByteBuf dst) throws IOException {
         this.deflaterCache.get().compressGrowing(src, dst);
     }
+
+    @Override
+    public void decompress(@NonNull ByteBuf src, @NonNull ByteBuf dst) throws IOException {
+        this.inflaterCache.get().decompressGrowing(src, dst);
+    }
 }
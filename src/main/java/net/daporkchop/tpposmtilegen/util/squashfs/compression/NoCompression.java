@@ -50,4 +50,9 @@ public final class NoCompression implements Compression {
     public void compress(@NonNull ByteBuf src, @NonNull ByteBuf dst) throws IOException {
         dst.writeBytes(src);
     }
+
+    @Override
+    public void decompress(@NonNull ByteBuf src, @NonNull ByteBuf dst) throws IOException {
+        dst.writeBytes(src);
+    }
 }
@@ -18,32 +18,75 @@
  *
  */
 
+
 package net.daporkchop.tpposmtilegen.util.squashfs.compression;
 
 import io.netty.buffer.ByteBuf;
+import lombok.Getter;
 import lombok.NonNull;
 import net.daporkchop.lib.common.reference.ReferenceStrength;
 import net.daporkchop.lib.common.reference.cache.Cached;
-import net.daporkchop.lib.compression.context.PDeflater;
 import net.daporkchop.lib.compression.zstd.Zstd;
+import net.daporkchop.lib.compression.zstd.ZstdDeflateDictionary;
+import net.daporkchop.lib.compression.zstd.ZstdDeflater;
+import net.daporkchop.lib.compression.zstd.ZstdInflateDictionary;
+import net.daporkchop.lib.compression.zstd.ZstdInflater;
 
 import java.io.IOException;
 
+import static net.daporkchop.lib.common.util.PValidation.*;
 import static net.daporkchop.tpposmtilegen.util.squashfs.SquashfsConstants.*;
 
 /**
  * @author DaPorkchop_
  */
 public final class ZstdCompression implements Compression {
-    protected final Cached<PDeflater> deflaterCache = Cached.threadLocal(Zstd.PROVIDER::deflater, ReferenceStrength.SOFT);
+    protected final Cached<ZstdDeflater> deflaterCache = Cached.threadLocal(Zstd.PROVIDER::deflater, ReferenceStrength.SOFT);
+    protected final Cached<ZstdInflater> inflaterCache = Cached.threadLocal(Zstd.PROVIDER::inflater, ReferenceStrength.SOFT);
+
+    @Getter
+    protected final ByteBuf dictionary;
+    protected final ZstdDeflateDictionary deflateDictionary;
+    protected final ZstdInflateDictionary inflateDictionary;
+
+    public ZstdCompression() {
+        this.dictionary = null;
+        this.deflateDictionary = null;
+        this.inflateDictionary = null;
+    }
+
+    /**
+     * @param dictionary a zstd dictionary (either a raw content dictionary or one produced by {@code zstd --train}) to use for all compression and decompression
+     */
+    public ZstdCompression(@NonNull ByteBuf dictionary) {
+        this.dictionary = dictionary.retainedSlice();
+        this.deflateDictionary = Zstd.PROVIDER.loadDeflateDictionary(this.dictionary, Zstd.LEVEL_DEFAULT);
+        this.inflateDictionary = Zstd.PROVIDER.loadInflateDictionary(this.dictionary);
+    }
 
     @Override
     public int id() {
-        return COMPRESSION_ID_ZSTD;
+        return this.dictionary != null ? COMPRESSION_ID_ZSTD_DICTIONARY : COMPRESSION_ID_ZSTD;
     }
 
     @Override
     public void compress(@NonNull ByteBuf src, @NonNull ByteBuf dst) throws IOException {
-        this.deflaterCache.get().compressGrowing(src, dst);
+        if (this.deflateDictionary == null) {
+            this.deflaterCache.get().compressGrowing(src, dst);
+        } else {
+            dst.ensureWritable(toInt(Zstd.PROVIDER.compressBound(src.readableBytes())));
+            checkState(this.deflaterCache.get().compress(src, dst, this.deflateDictionary), "unable to compress %d bytes", src.readableBytes());
+        }
+    }
+
+    @Override
+    public void decompress(@NonNull ByteBuf src, @NonNull ByteBuf dst) throws IOException {
+        if (this.inflateDictionary == null) {
+            this.inflaterCache.get().decompressGrowing(src, dst);
+        } else {
+            //squashfs blocks are compressed as a single frame, so the frame header always contains the decompressed size
+            dst.ensureWritable(toInt(Zstd.PROVIDER.frameContentSize(src)));
+            checkState(this.inflaterCache.get().decompress(src, dst, this.inflateDictionary), "unable to decompress %d bytes", src.readableBytes());
+        }
     }
 }
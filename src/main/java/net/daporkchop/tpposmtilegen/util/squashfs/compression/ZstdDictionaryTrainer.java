@@ -0,0 +1,156 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package net.daporkchop.tpposmtilegen.util.squashfs.compression;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+
+import java.util.List;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Trains raw content dictionaries for {@link ZstdCompression}.
+ * <p>
+ * This is a simplified version of the COVER algorithm used by {@code zstd --train}: the samples are split into one epoch per segment, and from each epoch the
+ * segment whose distinct {@value #DMER_SIZE}-byte substrings occur in the most samples is chosen. Substrings which have already been added to the dictionary
+ * don't count towards the score of later segments. zstd is able to use the resulting dictionary as-is, although without the pre-computed entropy tables of a
+ * "real" dictionary.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class ZstdDictionaryTrainer {
+    public static final int DEFAULT_DICTIONARY_SIZE = 112 << 10;
+
+    private static final int DMER_SIZE = 8;
+    private static final int SEGMENT_SIZE = 1024;
+
+    /**
+     * The maximum number of bytes of sample data to use, relative to the dictionary size. Using more data than this doesn't noticeably improve the dictionary.
+     */
+    private static final int MAX_SAMPLES_FACTOR = 100;
+
+    /**
+     * Trains a dictionary from the given samples.
+     *
+     * @param samples        the samples. Their reader indices will not be modified
+     * @param dictionarySize the maximum size of the dictionary
+     * @return the trained dictionary
+     */
+    public static ByteBuf train(@NonNull List<ByteBuf> samples, int dictionarySize) {
+        checkArg(dictionarySize >= SEGMENT_SIZE, "dictionary size must be at least %d bytes", SEGMENT_SIZE);
+
+        //concatenate the samples into a single array, counting the number of samples each dmer occurs in along the way
+        int maxSampleBytes = (int) min((long) dictionarySize * MAX_SAMPLES_FACTOR, Integer.MAX_VALUE - 8);
+        int totalSize = 0;
+        for (ByteBuf sample : samples) {
+            totalSize = (int) min((long) totalSize + sample.readableBytes(), maxSampleBytes);
+        }
+        checkArg(totalSize >= dictionarySize, "not enough sample data to train a %d byte dictionary (only %d bytes given)", dictionarySize, totalSize);
+
+        byte[] data = new byte[totalSize];
+        Long2IntMap frequencies = new Long2IntOpenHashMap();
+        LongSet sampleDmers = new LongOpenHashSet();
+        for (int i = 0, offset = 0; i < samples.size() && offset < totalSize; i++) {
+            ByteBuf sample = samples.get(i);
+            int length = min(sample.readableBytes(), totalSize - offset);
+            sample.getBytes(sample.readerIndex(), data, offset, length);
+
+            sampleDmers.clear();
+            for (int pos = offset, end = offset + length - DMER_SIZE; pos <= end; pos++) {
+                sampleDmers.add(dmer(data, pos));
+            }
+            sampleDmers.forEach((long dmer) -> frequencies.mergeInt(dmer, 1, Integer::sum));
+
+            offset += length;
+        }
+
+        //select the best segment from each epoch, filling the dictionary from the back so that the best segments are closest to the data being compressed
+        byte[] dictionary = new byte[dictionarySize];
+        int tail = dictionarySize;
+        int epochs = max(dictionarySize / SEGMENT_SIZE, 1);
+        int epochSize = totalSize / epochs;
+
+        Long2IntMap activeDmers = new Long2IntOpenHashMap();
+        for (int epoch = 0; epoch < epochs && tail > 0; epoch++) {
+            int epochStart = epoch * epochSize;
+            int epochEnd = min(epochStart + epochSize, totalSize) - DMER_SIZE;
+
+            activeDmers.clear();
+            long score = 0L;
+            long bestScore = 0L;
+            int bestStart = -1;
+            for (int pos = epochStart; pos <= epochEnd; pos++) {
+                long dmer = dmer(data, pos);
+                if (activeDmers.mergeInt(dmer, 1, Integer::sum) == 1) {
+                    score += frequencies.get(dmer);
+                }
+
+                //remove the dmer which just left the window
+                int windowStart = pos - (SEGMENT_SIZE - DMER_SIZE);
+                if (windowStart > epochStart) {
+                    long removedDmer = dmer(data, windowStart - 1);
+                    if (activeDmers.mergeInt(removedDmer, -1, Integer::sum) == 0) {
+                        activeDmers.remove(removedDmer);
+                        score -= frequencies.get(removedDmer);
+                    }
+                }
+
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestStart = max(windowStart, epochStart);
+                }
+            }
+
+            if (bestStart < 0) { //nothing in this epoch is worth adding
+                continue;
+            }
+
+            int bestEnd = min(bestStart + SEGMENT_SIZE, totalSize);
+            for (int pos = bestStart; pos <= bestEnd - DMER_SIZE; pos++) { //the selected dmers shouldn't be selected again
+                frequencies.put(dmer(data, pos), 0);
+            }
+
+            int length = min(bestEnd - bestStart, tail);
+            tail -= length;
+            System.arraycopy(data, bestStart, dictionary, tail, length);
+        }
+
+        return Unpooled.wrappedBuffer(dictionary, tail, dictionarySize - tail);
+    }
+
+    private static long dmer(byte[] data, int pos) {
+        long dmer = 0L;
+        for (int i = 0; i < DMER_SIZE; i++) {
+            dmer = (dmer << 8L) | (data[pos + i] & 0xFFL);
+        }
+        return dmer;
+    }
+}
@@ -4,26 +4,72 @@
 #include <lib-rocksdb/include/rocksdb/sst_file_writer.h>
 
 #include <algorithm>
+#include <cstring>
 #include <new>
 #include <utility>
+#include <vector>
 
 #include <cassert>
-#include <sys/mman.h>
-
-#include <iostream>
 
 #include "UInt64ToBlobMapMergeOperator.h"
 
 namespace {
-    class __attribute__((packed)) entry_t {
+    //a single record in a sorted run: the tile key, followed by the entry in the same format as it's stored in the db
+    class __attribute__((packed)) record_t {
     public:
-        const entry_t* next;
+        uint64le key;
         element_t element;
+
+        size_t size() const noexcept {
+            return sizeof(record_t) + std::max({ static_cast<int32_t>(element.value_size), 0 });
+        }
+
+        const record_t* next() const noexcept {
+            return reinterpret_cast<const record_t*>(reinterpret_cast<const char*>(this) + this->size());
+        }
+    };
+
+    //an entry in a run buffer's index, referring to a record which hasn't been sorted yet
+    class __attribute__((packed)) index_entry_t {
+    public:
+        uint64le key;
+        uint64le subkey;
+        uint64le record_offset;
+
+        const record_t* record(const void* recordsBaseAddr) const noexcept {
+            return reinterpret_cast<const record_t*>(reinterpret_cast<const char*>(recordsBaseAddr) + record_offset);
+        }
+
+        //records are appended to the buffer in the order they're written, so breaking ties by offset keeps repeated writes in order
+        constexpr bool operator <(const index_entry_t& other) const noexcept {
+            return key < other.key || (key == other.key && (subkey < other.subkey || (subkey == other.subkey && record_offset < other.record_offset)));
+        }
     };
 
-    static_assert(sizeof(entry_t) == sizeof(uint64_t) * 2 + sizeof(int32_t));
+    class sample_t {
+    public:
+        uint64_t key;
+        uint64_t offset;
+    };
+
+    class cursor_t {
+    public:
+        const record_t* begin;
+        const record_t* end;
+    };
+
+    //a cursor in the merge heap, along with the index of its run so that ties can be broken by run order
+    class heap_entry_t {
+    public:
+        cursor_t cursor;
+        jint run;
+    };
 }
 
+static_assert(sizeof(record_t) == sizeof(uint64_t) + sizeof(element_t));
+static_assert(sizeof(index_entry_t) == sizeof(uint64_t) * 3);
+static_assert(sizeof(cursor_t) == sizeof(uint64_t) * 2);
+
 static void throwOutOfMemory(JNIEnv* env, const std::bad_alloc& e) noexcept {
     if (!env->ExceptionCheck()) {
         env->ThrowNew(env->FindClass("java/lang/OutOfMemoryError"), e.what());
@@ -39,64 +85,127 @@ static void throwRocksdbException(JNIEnv* env, const rocksdb::Status& status) no
 
 extern "C" {
 
-JNIEXPORT jlong JNICALL Java_net_daporkchop_tpposmtilegen_natives_UInt64ToBlobMapUnsortedWriteAccess_appendKey
-        (JNIEnv *env, jobject instance, rocksdb::SstFileWriter* writer, uint64_t key, const entry_t* root) {
+JNIEXPORT jint JNICALL Java_net_daporkchop_tpposmtilegen_natives_UInt64ToBlobMapUnsortedWriteAccess_sortRun
+        (JNIEnv *env, jobject instance, index_entry_t* index, jlong count, const void* recordsBaseAddr, char* dst, sample_t* samples, jint sampleInterval) {
     try {
-        assert(root != nullptr);
-
-        std::vector<const entry_t*> entries;
+        assert(count > 0);
+        assert(sampleInterval > 0);
 
-        //gather entries into a vector (aka pointer dereference hell)
-        for (const entry_t* it = root; it != nullptr; it = it->next) {
-            entries.push_back(it);
-        }
+        std::sort(&index[0], &index[count]);
 
-        //sort elements by subkey
-        //std::sort(entries.begin(), entries.end(), [](const entry_t* a, const entry_t* b) { return a->subkey < b->subkey; });
-        std::sort(entries.begin(), entries.end(), [](const entry_t* a, const entry_t* b) { return a->element.key < b->element.key; });
+        //copy the records into the destination buffer in sorted order, remembering the position of every nth one
+        jint sampleCount = 0;
+        size_t offset = 0;
+        for (jlong i = 0; i < count; i++) {
+            const record_t* record = index[i].record(recordsBaseAddr);
+            size_t size = record->size();
 
-        //make sure there are no duplicate subkeys
-        for (size_t i = 1; i < entries.size(); i++) {
-            //assert(entries[i - 1]->subkey != entries[i]->subkey);
-            assert(entries[i - 1]->element.key != entries[i]->element.key);
-        }
+            if (i % sampleInterval == 0) {
+                samples[sampleCount++] = { record->key, offset };
+            }
 
-        //make sure there are no entries containing zeroes
-        for (const entry_t* entry : entries) {
-            assert(entry->element.value_as_view().find('\0') == std::string_view::npos);
+            memcpy(&dst[offset], record, size);
+            offset += size;
         }
+        return sampleCount;
+    } catch (const std::bad_alloc& e) {
+        throwOutOfMemory(env, e);
+        return 0;
+    }
+}
 
-        //compute the total size of the output buffer
-        size_t actual_total_size = 0;
-        size_t total_size = 0;
-        for (const entry_t* entry : entries) {
-            assert(entry->element.value_size >= 0);
-            actual_total_size += sizeof(entry_t) + entry->element.value_size;
-            total_size += sizeof(element_t) + entry->element.value_size;
+JNIEXPORT jlong JNICALL Java_net_daporkchop_tpposmtilegen_natives_UInt64ToBlobMapUnsortedWriteAccess_appendMergedKeys
+        (JNIEnv *env, jobject instance, rocksdb::SstFileWriter* writer, const cursor_t* cursors, jint cursorCount, uint64_t fromKeyInclusive, uint64_t toKeyExclusive, jboolean bounded) {
+    try {
+        auto inRange = [&](const cursor_t& cursor) noexcept {
+            return cursor.begin != cursor.end && (!bounded || cursor.begin->key < toKeyExclusive);
+        };
+
+        //the cursors start at the sample before the partition, skip ahead to its first key
+        std::vector<heap_entry_t> heap;
+        heap.reserve(cursorCount);
+        for (jint i = 0; i < cursorCount; i++) {
+            cursor_t cursor = cursors[i];
+            while (cursor.begin != cursor.end && cursor.begin->key < fromKeyInclusive) {
+                cursor.begin = cursor.begin->next();
+            }
+            if (inRange(cursor)) {
+                heap.push_back({ cursor, i });
+            }
         }
 
-        //append values to the buffer
+        //std::*_heap builds a max-heap, so the comparator is reversed in order to get the smallest record first.
+        // records with the same tile key and entry key are popped in the order of the runs they're from, and a single run keeps them in the order they
+        // were written in, so the last one popped is always the one which was written last.
+        auto cmp = [](const heap_entry_t& a, const heap_entry_t& b) noexcept {
+            const record_t* ra = a.cursor.begin;
+            const record_t* rb = b.cursor.begin;
+            if (ra->key != rb->key) {
+                return rb->key < ra->key;
+            } else if (ra->element.key != rb->element.key) {
+                return rb->element.key < ra->element.key;
+            } else {
+                return b.run < a.run;
+            }
+        };
+        std::make_heap(heap.begin(), heap.end(), cmp);
+
+        jlong writtenData = 0;
         std::string value_buffer;
-        value_buffer.reserve(total_size);
-        for (const entry_t* entry : entries) {
-            value_buffer.append(entry->element.element_as_view());
+        uint64_t current_key = 0;
+        uint64_t last_subkey = 0;
+        size_t last_entry_offset = 0;
+        bool has_key = false;
+
+        auto putCurrentValue = [&]() -> bool {
+            uint64be key_be = current_key;
+            rocksdb::Slice key_slice(reinterpret_cast<const char*>(&key_be), sizeof(uint64be));
+            rocksdb::Slice value_slice(value_buffer.data(), value_buffer.size());
+
+            rocksdb::Status status = writer->Put(key_slice, value_slice);
+            if (!status.ok()) {
+                throwRocksdbException(env, status);
+                return false;
+            }
+            writtenData += value_buffer.size();
+            value_buffer.clear();
+            return true;
+        };
+
+        while (!heap.empty()) {
+            std::pop_heap(heap.begin(), heap.end(), cmp);
+            cursor_t& cursor = heap.back().cursor;
+            const record_t* record = cursor.begin;
+
+            if (!has_key || record->key != current_key) {
+                if (has_key && !putCurrentValue()) {
+                    return 0;
+                }
+                current_key = record->key;
+                has_key = true;
+            } else if (record->element.key == last_subkey) {
+                //the same entry was written to the tile more than once, the later write replaces the earlier one
+                value_buffer.resize(last_entry_offset);
+            }
+            last_subkey = record->element.key;
+            last_entry_offset = value_buffer.size();
+            value_buffer.append(record->element.element_as_view());
+
+            cursor.begin = record->next();
+            if (inRange(cursor)) {
+                std::push_heap(heap.begin(), heap.end(), cmp);
+            } else {
+                heap.pop_back();
+            }
         }
-        assert(value_buffer.size() == total_size);
-
-        uint64be key_be = key;
-        rocksdb::Status status = writer->Put(
-                rocksdb::Slice(reinterpret_cast<const char*>(&key_be), sizeof(uint64be)),
-                rocksdb::Slice(value_buffer.data(), value_buffer.size()));
 
-        if (!status.ok()) {
-            throwRocksdbException(env, status);
+        if (has_key && !putCurrentValue()) {
             return 0;
         }
-
-        return actual_total_size;
+        return writtenData;
     } catch (const std::bad_alloc& e) {
         throwOutOfMemory(env, e);
-        return false;
+        return 0;
     }
 }
 
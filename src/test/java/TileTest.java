@@ -18,8 +18,10 @@
  *
  */
 
+import net.daporkchop.tpposmtilegen.util.Bounds2d;
 import org.junit.Test;
 
+import java.util.PrimitiveIterator;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.IntStream;
 
@@ -45,4 +47,27 @@ public class TileTest {
                     checkState(ty == tileY, "%d -> y: %d (expected: %d)", tilePos, ty, tileY);
                 });
     }
+
+    @Test
+    public void testPositionsInBounds() {
+        IntStream.range(0, 100000).parallel()
+                .forEach(i -> {
+                    ThreadLocalRandom r = ThreadLocalRandom.current();
+                    int minX = r.nextInt(-100, 100);
+                    int minY = r.nextInt(-100, 100);
+                    Bounds2d bounds = Bounds2d.of(minX, minX + r.nextInt(32), minY, minY + r.nextInt(32));
+
+                    long count = 0L;
+                    long prev = 0L;
+                    for (PrimitiveIterator.OfLong itr = tilePositionsInBounds(bounds); itr.hasNext(); count++) {
+                        long tilePos = itr.nextLong();
+                        checkState(count == 0L || Long.compareUnsigned(prev, tilePos) < 0, "%d is not greater than %d", tilePos, prev);
+                        checkState(bounds.contains(tileX(tilePos), tileX(tilePos), tileY(tilePos), tileY(tilePos)), "%d is not in %s", tilePos, bounds);
+                        prev = tilePos;
+                    }
+
+                    long expected = (bounds.maxX() - bounds.minX() + 1L) * (bounds.maxY() - bounds.minY() + 1L);
+                    checkState(count == expected, "%s: %d (expected: %d)", bounds, count, expected);
+                });
+    }
 }
@@ -0,0 +1,251 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package pbf;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import lombok.NonNull;
+import net.daporkchop.tpposmtilegen.geometry.Point;
+import net.daporkchop.tpposmtilegen.osm.Element;
+import net.daporkchop.tpposmtilegen.osm.Node;
+import net.daporkchop.tpposmtilegen.osm.Relation;
+import net.daporkchop.tpposmtilegen.osm.Way;
+import net.daporkchop.tpposmtilegen.pbf.PbfFileReader;
+import net.daporkchop.tpposmtilegen.pbf.PbfFileWriter;
+import net.daporkchop.tpposmtilegen.pbf.PbfHeader;
+import net.daporkchop.tpposmtilegen.pbf.PrimitiveBlockDecoder;
+import net.daporkchop.tpposmtilegen.pbf.PrimitiveBlockEncoder;
+import net.daporkchop.tpposmtilegen.pbf.ProtobufOutput;
+import net.daporkchop.tpposmtilegen.pbf.SyntheticPbfGenerator;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.Deflater;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * @author DaPorkchop_
+ */
+public class TestPbfRoundTrip {
+    private static Map<String, String> tags(String... keysAndValues) {
+        Map<String, String> tags = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            tags.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return tags;
+    }
+
+    private static List<String> decode(@NonNull Path path) throws Exception {
+        List<String> elements = new ArrayList<>();
+        PrimitiveBlockDecoder decoder = new PrimitiveBlockDecoder();
+        try (PbfFileReader reader = new PbfFileReader(path)) {
+            for (PbfFileReader.Blob blob; (blob = reader.next()) != null; ) {
+                if (PbfFileReader.TYPE_DATA.equals(blob.type())) {
+                    decoder.decode(blob, new PrimitiveBlockDecoder.Visitor() {
+                        @Override
+                        public void node(@NonNull PrimitiveBlockDecoder block) {
+                            elements.add("node " + block.id() + " v" + block.version() + ' ' + block.visible() + " (" + block.lon() + ',' + block.lat() + ") " + block.tagCount());
+                        }
+
+                        @Override
+                        public void way(@NonNull PrimitiveBlockDecoder block) {
+                            elements.add("way " + block.id() + " v" + block.version() + ' ' + block.visible() + ' ' + block.tagCount());
+                        }
+
+                        @Override
+                        public void relation(@NonNull PrimitiveBlockDecoder block) {
+                            elements.add("relation " + block.id() + " v" + block.version() + ' ' + block.visible() + ' ' + block.tagCount());
+                        }
+                    });
+                }
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * Decodes every element in the given file into a full {@link Element}, using the same serialized formats as the rest of the program.
+     *
+     * @param points a list to which each element's coordinates will be added ({@code null} for anything other than visible nodes)
+     */
+    private static List<Element> decodeFull(@NonNull Path path, @NonNull List<Point> points) throws Exception {
+        List<Element> elements = new ArrayList<>();
+        PrimitiveBlockDecoder decoder = new PrimitiveBlockDecoder();
+        ByteBuf buf = Unpooled.buffer();
+        try (PbfFileReader reader = new PbfFileReader(path)) {
+            for (PbfFileReader.Blob blob; (blob = reader.next()) != null; ) {
+                if (PbfFileReader.TYPE_DATA.equals(blob.type())) {
+                    decoder.decode(blob, new PrimitiveBlockDecoder.Visitor() {
+                        @Override
+                        public void node(@NonNull PrimitiveBlockDecoder block) {
+                            block.writeElement(buf.clear());
+                            elements.add(new Node(block.id(), buf));
+                            if (block.visible()) {
+                                block.writePoint(buf.clear());
+                                points.add(new Point(buf));
+                            } else {
+                                points.add(null);
+                            }
+                        }
+
+                        @Override
+                        public void way(@NonNull PrimitiveBlockDecoder block) {
+                            block.writeWay(buf.clear());
+                            elements.add(new Way(block.id(), buf));
+                            points.add(null);
+                        }
+
+                        @Override
+                        public void relation(@NonNull PrimitiveBlockDecoder block) {
+                            block.writeRelation(buf.clear());
+                            elements.add(new Relation(block.id(), buf));
+                            points.add(null);
+                        }
+                    });
+                }
+            }
+        }
+        return elements;
+    }
+
+    private static void checkElementEquals(@NonNull Element expected, @NonNull Element actual) {
+        checkState(expected.getClass() == actual.getClass(), "expected %s, got %s", expected, actual);
+        checkState(expected.id() == actual.id(), "expected %s, got %s", expected, actual);
+        checkState(expected.version() == actual.version(), "expected %s, got %s", expected, actual);
+        checkState(expected.visible() == actual.visible(), "expected %s, got %s", expected, actual);
+        checkState(expected.tags().equals(actual.tags()), "expected %s, got %s", expected, actual);
+
+        if (expected instanceof Way) {
+            checkState(Arrays.equals(((Way) expected).nodes(), ((Way) actual).nodes()), "expected %s, got %s", expected, actual);
+        } else if (expected instanceof Relation) {
+            Relation.Member[] expectedMembers = ((Relation) expected).members();
+            Relation.Member[] actualMembers = ((Relation) actual).members();
+            checkState(expectedMembers.length == actualMembers.length, "expected %s, got %s", expected, actual);
+            for (int i = 0; i < expectedMembers.length; i++) {
+                checkState(expectedMembers[i].combinedId() == actualMembers[i].combinedId() && expectedMembers[i].role().equals(actualMembers[i].role()),
+                        "member %d: expected %s, got %s", i, expectedMembers[i], actualMembers[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testEncodeDecode() throws Exception {
+        Path path = Files.createTempFile("test", ".osm.pbf");
+        try {
+            List<Element> expected = Arrays.asList(
+                    new Node(1L, tags(), 1, true),
+                    new Node(1L, tags("amenity", "bench"), 2, true),
+                    new Node(5L, tags(), 3, false),
+                    new Way(2L, tags("highway", "primary", "name", "Main Street"), 4, true, new long[]{ 1L, 5L, 3L }),
+                    new Relation(7L, tags("type", "multipolygon", "name", "Main Street"), 1, true, new Relation.Member[]{
+                            new Relation.Member(Element.addTypeToId(Way.TYPE, 2L), "outer"),
+                            new Relation.Member(Element.addTypeToId(Node.TYPE, 1L), ""),
+                            new Relation.Member(Element.addTypeToId(Relation.TYPE, 3L), "outer")
+                    }));
+            List<Point> expectedPoints = Arrays.asList(new Point(-1234567, 7654321), new Point(-1234568, 7654320), null, null, null);
+
+            Deflater deflater = new Deflater();
+            PrimitiveBlockEncoder encoder = new PrimitiveBlockEncoder();
+            ProtobufOutput block = new ProtobufOutput();
+            try (PbfFileWriter writer = new PbfFileWriter(path)) {
+                writer.writeHeader(Collections.singletonList(PbfHeader.FEATURE_HISTORICAL_INFORMATION), Collections.singletonList(PbfHeader.FEATURE_SORTED),
+                        "test", 1234L, null, null);
+
+                encoder.node((Node) expected.get(0), expectedPoints.get(0), 100L);
+                encoder.node((Node) expected.get(1), expectedPoints.get(1), 200L);
+                encoder.node((Node) expected.get(2), expectedPoints.get(2), 300L);
+                encoder.encode(block.clear());
+                writer.write(PbfFileWriter.frame(PbfFileReader.TYPE_DATA, block, deflater));
+
+                encoder.clear().way((Way) expected.get(3), 400L);
+                encoder.encode(block.clear());
+                writer.write(PbfFileWriter.frame(PbfFileReader.TYPE_DATA, block, deflater));
+
+                encoder.clear().relation((Relation) expected.get(4), 500L);
+                encoder.encode(block.clear());
+                writer.write(PbfFileWriter.frame(PbfFileReader.TYPE_DATA, block, deflater));
+            } finally {
+                deflater.end();
+            }
+
+            PbfHeader header = PbfFileReader.readHeader(path);
+            checkState(header.requiredFeatures().contains(PbfHeader.FEATURE_HISTORICAL_INFORMATION), header);
+            checkState(header.optionalFeatures().contains(PbfHeader.FEATURE_SORTED), header);
+            checkState(header.replicationTimestamp() == 1234L, header);
+
+            List<String> elements = decode(path);
+            checkState(elements.size() == 5, elements);
+            checkState(elements.get(0).equals("node 1 v1 true (-1234567,7654321) 0"), elements.get(0));
+            checkState(elements.get(1).equals("node 1 v2 true (-1234568,7654320) 1"), elements.get(1));
+            checkState(elements.get(2).equals("node 5 v3 false (0,0) 0"), elements.get(2));
+            checkState(elements.get(3).equals("way 2 v4 true 2"), elements.get(3));
+            checkState(elements.get(4).equals("relation 7 v1 true 2"), elements.get(4));
+
+            List<Point> points = new ArrayList<>();
+            List<Element> decoded = decodeFull(path, points);
+            checkState(decoded.size() == expected.size(), decoded);
+            for (int i = 0; i < expected.size(); i++) {
+                checkElementEquals(expected.get(i), decoded.get(i));
+                checkState(Objects.equals(expectedPoints.get(i), points.get(i)), "element %d: expected %s, got %s", i, expectedPoints.get(i), points.get(i));
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    public void testSyntheticIsSorted() throws Exception {
+        Path path = Files.createTempFile("test", ".osm.pbf");
+        try {
+            SyntheticPbfGenerator.builder().nodes(20000L).ways(10000L).relations(1000L).historyFraction(0.5d).build().generate(path, 4);
+
+            String lastType = "node";
+            long lastId = 0L;
+            int lastVersion = 0;
+            for (String element : decode(path)) {
+                String[] split = element.split(" ");
+                String type = split[0];
+                long id = Long.parseLong(split[1]);
+                int version = Integer.parseInt(split[2].substring(1));
+                if (type.equals(lastType)) {
+                    checkState(id > lastId || (id == lastId && version > lastVersion), "%s after %s %d v%d", element, lastType, lastId, lastVersion);
+                } else {
+                    checkState(Element.typeId(type) > Element.typeId(lastType), "%s after %s", type, lastType);
+                }
+                lastType = type;
+                lastId = id;
+                lastVersion = version;
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+}